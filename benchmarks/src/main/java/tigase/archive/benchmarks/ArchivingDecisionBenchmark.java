@@ -0,0 +1,121 @@
+/*
+ * ArchivingDecisionBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.Settings;
+import tigase.archive.processors.MessageArchivePlugin;
+import tigase.kernel.core.Kernel;
+import tigase.server.Packet;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+import tigase.xmpp.XMPPException;
+import tigase.xmpp.XMPPResourceConnection;
+import tigase.xmpp.impl.ProcessorTestCase;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures processing of a message passing through the session manager by
+ * <code>MessageArchivePlugin</code> with default configuration, which decides
+ * if the message should be archived and forwards it to the component.
+ *
+ * Session of a user is created using a session manager of
+ * <code>ProcessorTestCase</code>, with automatic archiving enabled in
+ * settings of the user, so checks of settings are included, but roster of
+ * the user is not checked.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArchivingDecisionBenchmark extends ProcessorTestCase {
+
+	private static final String MESSAGE_HINTS_XMLNS = "urn:xmpp:hints";
+
+	@Param({"body", "chatState", "noStore", "mamResult"})
+	private String kind;
+
+	private MessageArchivePlugin plugin;
+	private XMPPResourceConnection session;
+	private Packet packet;
+	private final Queue<Packet> results = new ArrayDeque<>();
+
+	@Setup
+	public void setup() throws Exception {
+		super.setUp();
+
+		Kernel kernel = new Kernel();
+		kernel.registerBean(MessageArchivePlugin.class).setActive(true).exec();
+		plugin = kernel.getInstance(MessageArchivePlugin.class);
+		plugin.init(new HashMap<String, Object>());
+
+		session = getSession(JID.jidInstance("c2s@example.com/" + UUID.randomUUID().toString()),
+							 JID.jidInstance("romeo@montague.example/orchard"));
+		Settings settings = new Settings();
+		settings.setAuto(true);
+		session.putCommonSessionData("message-archive/settings", settings);
+
+		Element msg = new Element("message", new String[]{"from", "to", "id", "type"},
+								  new String[]{"romeo@montague.example/orchard", "juliet@capulet.example/balcony",
+											   "5a8d6b7c-0e5f-4c4e-9d7b-3a1b2c3d4e5f", "chat"});
+		switch (kind) {
+			case "body":
+				msg.addChild(new Element("body", "Wherefore art thou, Romeo?"));
+				msg.addChild(new Element("active", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/chatstates"}));
+				break;
+			case "chatState":
+				msg.addChild(new Element("composing", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/chatstates"}));
+				break;
+			case "noStore":
+				msg.addChild(new Element("body", "Wherefore art thou, Romeo?"));
+				msg.addChild(new Element("no-store", new String[]{"xmlns"}, new String[]{MESSAGE_HINTS_XMLNS}));
+				break;
+			case "mamResult":
+				Element result = new Element("result", new String[]{"xmlns"}, new String[]{"urn:xmpp:mam:1"});
+				result.addChild(new Element("forwarded", new String[]{"xmlns"}, new String[]{"urn:xmpp:forward:0"}));
+				msg.addChild(result);
+				break;
+		}
+		packet = Packet.packetInstance(msg);
+	}
+
+	@TearDown
+	public void cleanUp() throws Exception {
+		super.tearDown();
+	}
+
+	@Benchmark
+	public int archive() throws XMPPException {
+		plugin.process(packet, session, null, results, null);
+		int archived = results.size();
+		results.clear();
+		return archived;
+	}
+
+}
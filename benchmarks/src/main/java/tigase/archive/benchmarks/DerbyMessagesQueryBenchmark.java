@@ -0,0 +1,263 @@
+/*
+ * DerbyMessagesQueryBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares retrieval of a page of messages of a conversation filtered by
+ * SHA1 of JIDs of an owner and a buddy joined with messages, with retrieval
+ * of the same page after ids of JIDs are resolved by a separate query.
+ *
+ * Dataset is generated in an embedded Derby database on the first run and
+ * reused by later runs, as generation of 10M messages takes a long time.
+ * Plans of both queries are printed during setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DerbyMessagesQueryBenchmark {
+
+	private static final String JOIN_QUERY = "select m.msg, m.ts, m.direction, b.jid, m.stanza_hash" +
+			" from tig_ma_msgs m" +
+			" inner join tig_ma_jids o on m.owner_id = o.jid_id" +
+			" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
+			" where o.jid_sha1 = ? and b.jid_sha1 = ?" +
+			" order by m.ts offset ? rows fetch next ? rows only";
+	private static final String JID_ID_QUERY = "select jid_id from tig_ma_jids where jid_sha1 = ?";
+	private static final String BY_ID_QUERY = "select m.msg, m.ts, m.direction, b.jid, m.stanza_hash" +
+			" from tig_ma_msgs m" +
+			" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
+			" where m.owner_id = ? and m.buddy_id = ?" +
+			" order by m.ts offset ? rows fetch next ? rows only";
+
+	@Param({"jdbc:derby:target/derby-benchmark;create=true"})
+	private String uri;
+	@Param({"10000000"})
+	private int messages;
+	@Param({"10000"})
+	private int owners;
+	@Param({"20"})
+	private int buddiesPerOwner;
+
+	private Connection conn;
+	private PreparedStatement joinSt;
+	private PreparedStatement jidIdSt;
+	private PreparedStatement byIdSt;
+	private final Random random = new Random(1);
+
+	@Setup
+	public void setup() throws SQLException, NoSuchAlgorithmException {
+		conn = DriverManager.getConnection(uri);
+		if (countMessages() < messages) {
+			generate();
+		}
+		joinSt = conn.prepareStatement(JOIN_QUERY);
+		jidIdSt = conn.prepareStatement(JID_ID_QUERY);
+		byIdSt = conn.prepareStatement(BY_ID_QUERY);
+
+		try (Statement st = conn.createStatement()) {
+			st.execute("call SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+			join(0);
+			printPlan(st, "filtering by SHA1 of JIDs");
+			byIds(0);
+			printPlan(st, "filtering by resolved ids");
+			st.execute("call SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws SQLException {
+		conn.close();
+	}
+
+	@Benchmark
+	public int joinOnSha1() throws SQLException, NoSuchAlgorithmException {
+		return join(random.nextInt(owners));
+	}
+
+	@Benchmark
+	public int resolvedIds() throws SQLException, NoSuchAlgorithmException {
+		return byIds(random.nextInt(owners));
+	}
+
+	private int join(int owner) throws SQLException, NoSuchAlgorithmException {
+		joinSt.setString(1, sha1(ownerJid(owner)));
+		joinSt.setString(2, sha1(buddyJid(owner, 0)));
+		joinSt.setInt(3, 0);
+		joinSt.setInt(4, 50);
+		return readAll(joinSt);
+	}
+
+	private int byIds(int owner) throws SQLException, NoSuchAlgorithmException {
+		long ownerId = jidId(ownerJid(owner));
+		long buddyId = jidId(buddyJid(owner, 0));
+		byIdSt.setLong(1, ownerId);
+		byIdSt.setLong(2, buddyId);
+		byIdSt.setInt(3, 0);
+		byIdSt.setInt(4, 50);
+		return readAll(byIdSt);
+	}
+
+	private long jidId(String jid) throws SQLException, NoSuchAlgorithmException {
+		jidIdSt.setString(1, sha1(jid));
+		try (ResultSet rs = jidIdSt.executeQuery()) {
+			return rs.next() ? rs.getLong(1) : 0;
+		}
+	}
+
+	private int readAll(PreparedStatement st) throws SQLException {
+		int count = 0;
+		try (ResultSet rs = st.executeQuery()) {
+			while (rs.next()) {
+				rs.getString(1);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void printPlan(Statement st, String name) throws SQLException {
+		try (ResultSet rs = st.executeQuery("values SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()")) {
+			if (rs.next()) {
+				System.out.println("Plan of a query " + name + ":");
+				System.out.println(rs.getString(1));
+			}
+		}
+	}
+
+	private int countMessages() throws SQLException {
+		try (Statement st = conn.createStatement()) {
+			try (ResultSet rs = st.executeQuery("select count(1) from tig_ma_msgs")) {
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+		} catch (SQLException ex) {
+			createSchema();
+			return 0;
+		}
+	}
+
+	private void createSchema() throws SQLException {
+		try (Statement st = conn.createStatement()) {
+			st.execute("create table tig_ma_jids (jid_id bigint generated by default as identity not null," +
+							   " jid varchar(2049), jid_sha1 varchar(50), primary key (jid_id))");
+			st.execute("create unique index tig_ma_jids_jid on tig_ma_jids (jid)");
+			st.execute("create index tig_ma_jids_jid_sha1_index on tig_ma_jids (jid_sha1)");
+			st.execute("create table tig_ma_msgs (msg_id bigint generated by default as identity not null," +
+							   " owner_id bigint not null references tig_ma_jids (jid_id)," +
+							   " buddy_id bigint not null references tig_ma_jids (jid_id)," +
+							   " ts timestamp, direction smallint, \"type\" varchar(20), body varchar(32672)," +
+							   " msg varchar(32672), stanza_hash varchar(50), primary key (msg_id))");
+			st.execute("create index tig_ma_msgs_owner_id_buddy_id_ts_index on tig_ma_msgs (owner_id, buddy_id, ts)");
+			st.execute("create index tig_ma_msgs_owner_id_ts_msg_id_index on tig_ma_msgs (owner_id, ts, msg_id)");
+		}
+	}
+
+	private void generate() throws SQLException, NoSuchAlgorithmException {
+		try (Statement st = conn.createStatement()) {
+			st.execute("delete from tig_ma_msgs");
+			st.execute("delete from tig_ma_jids");
+		}
+		conn.setAutoCommit(false);
+		try (PreparedStatement ps = conn.prepareStatement(
+				"insert into tig_ma_jids (jid_id, jid, jid_sha1) values (?, ?, ?)")) {
+			for (int owner = 0; owner < owners; owner++) {
+				addJid(ps, ownerId(owner), ownerJid(owner));
+				for (int buddy = 0; buddy < buddiesPerOwner; buddy++) {
+					addJid(ps, buddyId(owner, buddy), buddyJid(owner, buddy));
+				}
+				ps.executeBatch();
+			}
+		}
+		conn.commit();
+
+		long start = System.currentTimeMillis() - messages * 1000L;
+		try (PreparedStatement ps = conn.prepareStatement("insert into tig_ma_msgs (owner_id, buddy_id, ts, direction," +
+																	  " \"type\", body, msg, stanza_hash) values (?, ?, ?, ?, ?, ?, ?, ?)")) {
+			for (int i = 0; i < messages; i++) {
+				int owner = random.nextInt(owners);
+				int buddy = random.nextInt(buddiesPerOwner);
+				String body = "Message " + i;
+				ps.setLong(1, ownerId(owner));
+				ps.setLong(2, buddyId(owner, buddy));
+				ps.setTimestamp(3, new Timestamp(start + i * 1000L));
+				ps.setShort(4, (short) (i % 2));
+				ps.setString(5, "chat");
+				ps.setString(6, body);
+				ps.setString(7, "<message type=\"chat\"><body>" + body + "</body></message>");
+				ps.setString(8, Integer.toHexString(i));
+				ps.addBatch();
+				if (i % 10000 == 9999) {
+					ps.executeBatch();
+					conn.commit();
+				}
+			}
+			ps.executeBatch();
+			conn.commit();
+		}
+		conn.setAutoCommit(true);
+	}
+
+	private void addJid(PreparedStatement ps, long id, String jid) throws SQLException, NoSuchAlgorithmException {
+		ps.setLong(1, id);
+		ps.setString(2, jid);
+		ps.setString(3, sha1(jid));
+		ps.addBatch();
+	}
+
+	private long ownerId(int owner) {
+		return 1 + (long) owner * (buddiesPerOwner + 1);
+	}
+
+	private long buddyId(int owner, int buddy) {
+		return ownerId(owner) + 1 + buddy;
+	}
+
+	private String ownerJid(int owner) {
+		return "user-" + owner + "@example.com";
+	}
+
+	private String buddyJid(int owner, int buddy) {
+		return "buddy-" + buddy + "-of-" + owner + "@example.net";
+	}
+
+	private static String sha1(String jid) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		byte[] hash = md.digest(jid.toLowerCase().getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * ItemParsingBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.db.RawMessageElement;
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building of a DOM of a message retrieved from a repository with
+ * passing it as <code>RawMessageElement</code>, for a plain chat message and
+ * for a message with formatting and receipts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ItemParsingBenchmark {
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	@Param({"plain", "rich"})
+	private String kind;
+
+	private String messageStr;
+
+	@Setup
+	public void setup() {
+		Element msg = new Element("message", new String[]{"from", "to", "id", "type", "time"},
+								  new String[]{"romeo@montague.example/orchard", "juliet@capulet.example",
+											   "5a8d6b7c-0e5f-4c4e-9d7b-3a1b2c3d4e5f", "chat", "1466000000000"});
+		msg.addChild(new Element("body", "Wherefore art thou, Romeo? Deny thy father & refuse thy name."));
+		if ("rich".equals(kind)) {
+			Element html = new Element("html", new String[]{"xmlns"}, new String[]{"http://jabber.org/protocol/xhtml-im"});
+			Element body = new Element("body", new String[]{"xmlns"}, new String[]{"http://www.w3.org/1999/xhtml"});
+			Element p = new Element("p", "Wherefore art thou, ");
+			p.addChild(new Element("strong", "Romeo"));
+			body.addChild(p);
+			html.addChild(body);
+			msg.addChild(html);
+			msg.addChild(new Element("request", new String[]{"xmlns"}, new String[]{"urn:xmpp:receipts"}));
+			msg.addChild(new Element("markable", new String[]{"xmlns"}, new String[]{"urn:xmpp:chat-markers:0"}));
+			msg.addChild(new Element("origin-id", new String[]{"xmlns", "id"},
+									 new String[]{"urn:xmpp:sid:0", "de305d54-75b4-431b-adb2-eb6b9e546014"}));
+		}
+		messageStr = msg.toString();
+	}
+
+	@Benchmark
+	public Element domBuilder() {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, messageStr.toCharArray(), 0, messageStr.length());
+		return domHandler.getParsedElements().poll();
+	}
+
+	@Benchmark
+	public Element rawMessageElement() {
+		return RawMessageElement.fromXml(messageStr);
+	}
+
+}
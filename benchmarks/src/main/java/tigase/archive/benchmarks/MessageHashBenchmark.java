@@ -0,0 +1,105 @@
+/*
+ * MessageHashBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.QueryCriteria;
+import tigase.archive.db.JDBCMessageArchiveRepository;
+import tigase.archive.db.MessageArchiveRepository;
+import tigase.archive.db.MessageHasher;
+import tigase.xml.Element;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares calculation of a hash of a message using a new instance of
+ * <code>MessageDigest</code> and <code>String.getBytes()</code> with
+ * calculation using <code>MessageHasher</code>. Calculation of a hash
+ * of a whole message by a repository is measured as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageHashBenchmark {
+
+	@Param({"16", "256", "4096"})
+	private int bodyLength;
+
+	private String peer = "juliet@capulet.example/balcony";
+	private String id = "5a8d6b7c-0e5f-4c4e-9d7b-3a1b2c3d4e5f";
+	private long ts = 1466000000000L;
+	private String body;
+	private String subject = "Wherefore art thou, Romeo?";
+	private Element msg;
+	private final HashingRepository repo = new HashingRepository();
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder(bodyLength);
+		for (int i = 0; i < bodyLength; i++) {
+			// mostly ASCII with some multibyte characters
+			sb.append(i % 32 == 31 ? 'ż' : (char) ('a' + (i % 26)));
+		}
+		body = sb.toString();
+
+		msg = new Element("message", new String[]{"from", "to", "id", "type"},
+						  new String[]{"romeo@montague.example/orchard", peer, id, "chat"});
+		msg.addChild(new Element("body", body));
+		msg.addChild(new Element("subject", subject));
+	}
+
+	@Benchmark
+	public byte[] messageDigest() throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		md.update(peer.getBytes());
+		md.update(id.getBytes());
+		md.update(new Long(ts / 1000).toString().getBytes());
+		md.update(body.getBytes());
+		md.update(subject.getBytes());
+		return md.digest();
+	}
+
+	@Benchmark
+	public byte[] messageHasher() {
+		return MessageHasher.get().update(peer).update(id).update(ts / 1000).update(body).update(subject).digest();
+	}
+
+	@Benchmark
+	public byte[] generateHashOfMessage() {
+		return repo.hash(msg, new Date(ts));
+	}
+
+	private static class HashingRepository
+			extends JDBCMessageArchiveRepository<QueryCriteria> {
+
+		private byte[] hash(Element msg, Date ts) {
+			return generateHashOfMessage(MessageArchiveRepository.Direction.outgoing, msg, ts, null);
+		}
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * QueryParamsBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.QueryCriteria;
+import tigase.archive.db.JDBCMessageArchiveRepository;
+import tigase.util.TigaseStringprepException;
+import tigase.xmpp.JID;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures setting of parameters of a query retrieving messages, including
+ * building of lists of tags and searched texts passed to stored procedures.
+ * Parameters are passed to a statement which only keeps the last value, so
+ * only work done by a repository is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryParamsBenchmark {
+
+	@Param({"0", "3"})
+	private int tags;
+	@Param({"0", "3"})
+	private int contains;
+
+	private final JDBCMessageArchiveRepository<QueryCriteria> repo = new JDBCMessageArchiveRepository<>();
+	private QueryCriteria crit;
+	private PreparedStatement stmt;
+	private Object lastValue;
+
+	@Setup
+	public void setup() throws TigaseStringprepException {
+		crit = new QueryCriteria();
+		crit.setQuestionerJID(JID.jidInstance("romeo@montague.example"));
+		crit.setWith(JID.jidInstance("juliet@capulet.example"));
+		crit.setStart(new Date(1466000000000L));
+		crit.getRsm().setIndex(0);
+		crit.getRsm().setMax(100);
+		for (int i = 0; i < tags; i++) {
+			crit.addTag("#tag" + i);
+		}
+		for (int i = 0; i < contains; i++) {
+			crit.addContains("thou'rt " + i);
+		}
+		stmt = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+														  new Class[]{PreparedStatement.class}, (proxy, method, args) -> {
+					if (args != null && args.length > 1) {
+						lastValue = args[1];
+					}
+					return null;
+				});
+	}
+
+	@Benchmark
+	public Object setItemsQueryParams() throws SQLException {
+		repo.setItemsQueryParams(stmt, "romeo@montague.example", crit, null);
+		return lastValue;
+	}
+
+}
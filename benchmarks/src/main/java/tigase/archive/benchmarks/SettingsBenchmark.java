@@ -0,0 +1,67 @@
+/*
+ * SettingsBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.Settings;
+import tigase.archive.StoreMethod;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing and serialization of archiving settings of a user,
+ * which are parsed whenever settings are loaded for a new session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SettingsBenchmark {
+
+	private Settings settings;
+	private String serialized;
+
+	@Setup
+	public void setup() {
+		settings = new Settings();
+		settings.setAuto(true);
+		settings.setStoreMethod(StoreMethod.Message);
+		settings.setArchiveMucMessages(true);
+		settings.setArchiveOnlyForContactsInRoster(true);
+		serialized = settings.serialize();
+	}
+
+	@Benchmark
+	public Settings parse() {
+		Settings parsed = new Settings();
+		parsed.parse(serialized);
+		return parsed;
+	}
+
+	@Benchmark
+	public String serialize() {
+		return settings.serialize();
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * StatementContentionBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.db.JDBCMessageArchiveRepository;
+import tigase.archive.db.MessageArchiveRepository;
+import tigase.db.DataRepository;
+import tigase.db.RepositoryFactory;
+import tigase.util.SchemaLoader;
+import tigase.xml.Element;
+import tigase.xmpp.JID;
+
+import java.lang.reflect.Field;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares throughput of storing messages by many threads using prepared
+ * statements of a data source shared by all threads with throughput of
+ * storing them using connections of the data source leased exclusively by
+ * every operation.
+ *
+ * Messages are stored in an embedded Derby database, which is created with
+ * schema of the component on the first run. Number of threads may be changed
+ * with <code>-t</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class StatementContentionBenchmark {
+
+	private static final JID BUDDY = JID.jidInstanceNS("buddy@example.net");
+
+	@Param({"target/derby-contention"})
+	private String database;
+	@Param({"../database/derby-message-archiving-schema-1.3.0.sql"})
+	private String schema;
+	@Param({"4"})
+	private int dataSourcePoolSize;
+	@Param({"false", "true"})
+	private boolean statementLeaseExclusive;
+
+	private JDBCMessageArchiveRepository repo;
+
+	@State(Scope.Thread)
+	public static class Sender {
+
+		private static final AtomicInteger senders = new AtomicInteger();
+
+		private final JID jid = JID.jidInstanceNS("sender-" + senders.incrementAndGet() + "@example.com/res-1");
+		private int messages = 0;
+
+	}
+
+	@Setup
+	public void setup() throws Exception {
+		String uri = "jdbc:derby:" + database + ";create=true";
+		Map<String, String> params = new HashMap<>();
+		params.put(RepositoryFactory.DATA_REPO_POOL_SIZE_PROP_KEY, String.valueOf(dataSourcePoolSize));
+		DataRepository dataRepo = RepositoryFactory.getDataRepository(null, uri, params);
+		if (!dataRepo.checkTable("tig_ma_msgs")) {
+			loadSchema();
+		}
+
+		repo = new JDBCMessageArchiveRepository();
+		Field exclusiveField = JDBCMessageArchiveRepository.class.getDeclaredField("statementLeaseExclusive");
+		exclusiveField.setAccessible(true);
+		exclusiveField.setBoolean(repo, statementLeaseExclusive);
+		repo.setDataSource(dataRepo);
+	}
+
+	@TearDown
+	public void tearDown() {
+		repo.destroy();
+	}
+
+	@Benchmark
+	public void archiveMessage(Sender sender) {
+		Element message = new Element("message", new String[]{"from", "to", "type", "id"},
+									  new String[]{sender.jid.toString(), BUDDY.toString(), "chat",
+												   UUID.randomUUID().toString()});
+		message.addChild(new Element("body", "Message " + sender.messages++));
+		repo.archiveMessage(sender.jid.getBareJID(), BUDDY, MessageArchiveRepository.Direction.outgoing, new Date(),
+							message, null);
+	}
+
+	private void loadSchema() throws SQLException {
+		Properties props = new Properties();
+		props.put("dbType", "derby");
+		props.put("dbName", database);
+		SchemaLoader loader = SchemaLoader.newInstance(props);
+		loader.validateDBConnection(props);
+		loader.validateDBExists(props);
+		props.put("file", schema);
+		if (loader.loadSchemaFile(props) != SchemaLoader.Result.ok) {
+			throw new SQLException("Could not load schema from " + schema);
+		}
+		loader.shutdown(props);
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * TagsBenchmark.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import tigase.archive.TagsHelper;
+import tigase.xml.Element;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures extraction of tags from a body of a message, which is done for
+ * every stored message if tags are enabled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagsBenchmark {
+
+	@Param({"16", "256", "4096"})
+	private int bodyLength;
+	@Param({"0", "3"})
+	private int tags;
+
+	private Element msg;
+
+	@Setup
+	public void setup() {
+		StringBuilder sb = new StringBuilder(bodyLength);
+		int tag = 0;
+		while (sb.length() < bodyLength) {
+			if (tag < tags && sb.length() >= (bodyLength / (tags + 1)) * (tag + 1)) {
+				sb.append(tag % 2 == 0 ? "#tag" : "@person").append(tag++).append(' ');
+			} else {
+				sb.append("word ");
+			}
+		}
+		msg = new Element("message", new String[]{"from", "to", "type"},
+						  new String[]{"romeo@montague.example/orchard", "juliet@capulet.example", "chat"});
+		msg.addChild(new Element("body", sb.toString()));
+	}
+
+	@Benchmark
+	public Set<String> extractTags() {
+		return TagsHelper.extractTags(msg);
+	}
+
+}
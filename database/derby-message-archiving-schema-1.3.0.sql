@@ -117,11 +117,91 @@ create index tig_ma_jids_domain_index on tig_ma_jids ("domain");
 create index tig_ma_msgs_ts_index on tig_ma_msgs (ts); 
 -- QUERY END:
 
+-- additional indexes on tig_ma_msgs to retrieve pages of messages by seeking from a known message
+-- QUERY START:
+create index tig_ma_msgs_owner_id_ts_msg_id_index on tig_ma_msgs (owner_id, ts, msg_id);
+-- QUERY END:
+-- QUERY START:
+create index tig_ma_msgs_owner_id_stanza_hash_index on tig_ma_msgs (owner_id, stanza_hash);
+-- QUERY END:
+
+-- index used to resolve ids of JIDs before messages are retrieved
+-- QUERY START:
+create index tig_ma_jids_jid_sha1_index on tig_ma_jids (jid_sha1);
+-- QUERY END:
+
 -- added unique constraint on tig_ma_msgs_tags
 -- QUERY START:
 --alter table tig_ma_msgs_tags add primary key (msgs_id, tag_id);
 -- QUERY END:
 
+-- summary of collections maintained when messages are stored or removed
+-- QUERY START:
+create table tig_ma_collections (
+	owner_id bigint not null references tig_ma_jids (jid_id),
+	buddy_id bigint not null references tig_ma_jids (jid_id),
+	"day" date not null,
+	"type" varchar(20) not null,
+	first_ts timestamp not null,
+	last_ts timestamp not null,
+
+	primary key (owner_id, buddy_id, "day", "type")
+);
+-- QUERY END:
+-- QUERY START:
+create index tig_ma_collections_owner_id_first_ts_index on tig_ma_collections (owner_id, first_ts);
+-- QUERY END:
+
+-- retention periods of messages set by users of domains with user defined retention
+-- QUERY START:
+create table tig_ma_user_retention (
+	owner_id bigint not null references tig_ma_jids (jid_id),
+	expire bigint not null,
+
+	primary key (owner_id)
+);
+-- QUERY END:
+-- QUERY START:
+create index tig_ma_user_retention_expire_owner_id_index on tig_ma_user_retention (expire, owner_id);
+-- QUERY END:
+
+-- old messages moved out of tig_ma_msgs
+-- QUERY START:
+create table tig_ma_msgs_cold (
+	msg_id bigint not null,
+	owner_id bigint not null references tig_ma_jids (jid_id),
+	buddy_id bigint not null references tig_ma_jids (jid_id),
+	buddy_res varchar(1024),
+	ts timestamp not null,
+	direction smallint,
+	"type" varchar(20),
+	body varchar(32672),
+	msg varchar(32672),
+	stanza_hash varchar(50),
+
+	primary key (owner_id, ts, msg_id)
+);
+-- QUERY END:
+-- QUERY START:
+create index tig_ma_msgs_cold_ts_index on tig_ma_msgs_cold (ts);
+-- QUERY END:
+-- QUERY START:
+create index tig_ma_msgs_cold_msg_id_index on tig_ma_msgs_cold (msg_id);
+-- QUERY END:
+
+-- tags of messages in cold storage, which are referenced by id only, as primary key of cold storage starts with owner
+-- QUERY START:
+create table tig_ma_msgs_cold_tags (
+	msg_id bigint not null,
+	tag_id bigint not null references tig_ma_tags (tag_id) on delete cascade,
+
+	primary key (msg_id, tag_id)
+);
+-- QUERY END:
+-- QUERY START:
+create index tig_ma_msgs_cold_tags_tag_id on tig_ma_msgs_cold_tags (tag_id);
+-- QUERY END:
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -153,6 +233,15 @@ create procedure Tig_MA_GetMessagePosition(ownerJid varchar(2049), buddyJid varc
 	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getMessagePosition';
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_GetMessagesPage(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, "tags" varchar(32672), "contains" varchar(32672), afterHash varchar(50), beforeHash varchar(50), lastPage smallint, "limit" int, "offset" int, knownCount bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getMessagesPage';
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_MA_GetCollections(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, "tags" varchar(32672), "contains" varchar(32672), byType smallint, "limit" int, "offset" int)
 	PARAMETER STYLE JAVA
@@ -171,6 +260,33 @@ create procedure Tig_MA_GetCollectionsCount(ownerJid varchar(2049), buddyJid var
 	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getCollectionsCount';
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_GetStoredCollections(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, byType smallint, "limit" int, "offset" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getStoredCollections';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetStoredCollectionsCount(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, byType smallint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getStoredCollectionsCount';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_BackfillCollections(lastOwnerId bigint, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.backfillCollections';
+-- QUERY END:
+
 -- QUERY START:
 create function Tig_MA_EnsureJid(jid varchar(2049))
 	RETURNS bigint
@@ -190,6 +306,34 @@ create procedure Tig_MA_AddMessage(ownerJid varchar(2049), buddyJid varchar(2049
 	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addMessage';
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_EnsureJidId(jid varchar(2049))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.ensureJidId';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageById(ownerId bigint, buddyId bigint, buddyRes varchar(1024), ts timestamp,
+	direction smallint, "type" varchar(20), "body" varchar(32672), "msg" varchar(32672), "hash" varchar(50))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addMessageById';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_StoreMessageById(ownerId bigint, buddyId bigint, buddyRes varchar(1024), ts timestamp,
+	direction smallint, "type" varchar(20), "body" varchar(32672), "msg" varchar(32672), "hash" varchar(50))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.storeMessageById';
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_MA_AddTagToMessage(msg_id bigint, tag varchar(255))
 	PARAMETER STYLE JAVA
@@ -198,6 +342,23 @@ create procedure Tig_MA_AddTagToMessage(msg_id bigint, tag varchar(255))
 	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addTagToMessage';
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_EnsureTagId(ownerId bigint, tag varchar(255))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.ensureTagId';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddTagToMessageById(msgId bigint, tagId bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.addTagToMessageById';
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_MA_RemoveMessages(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp)
 	PARAMETER STYLE JAVA
@@ -214,6 +375,102 @@ create procedure Tig_MA_DeleteExpiredMessages("domain" varchar(1024), "before" t
 	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteExpiredMessages';
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessagesChunk("domain" varchar(1024), "before" timestamp, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteExpiredMessagesChunk';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_SetUserRetention(ownerJid varchar(2049), "expire" bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.setUserRetention';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_MigrateUserRetention()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.migrateUserRetention';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetUserRetentionBuckets("domain" varchar(1024))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getUserRetentionBuckets';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessages("domain" varchar(1024), "expire" bigint, "before" timestamp)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteExpiredUserMessages';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_MoveMessagesToCold("before" timestamp, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.moveMessagesToCold';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessages(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, "tags" varchar(32672), "contains" varchar(32672), "limit" int, "offset" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getColdMessages';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessagesCount(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, "tags" varchar(32672), "contains" varchar(32672))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getColdMessagesCount';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessagePosition(ownerJid varchar(2049), buddyJid varchar(2049), "from" timestamp, "to" timestamp, "tags" varchar(32672), "contains" varchar(32672), hash varchar(50))
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	READS SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getColdMessagePosition';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteOrphanedJids(lastJidId bigint, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteOrphanedJids';
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteOrphanedTags(lastTagId bigint, "limit" int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.deleteOrphanedTags';
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_MA_GetTagsForUser(ownerJid varchar(2049), tagStartsWith varchar(255), "limit" int, "offset" int)
 	PARAMETER STYLE JAVA
@@ -231,3 +488,9 @@ create procedure Tig_MA_GetTagsForUserCount(ownerJid varchar(2049), tagStartsWit
 	DYNAMIC RESULT SETS 1
 	EXTERNAL NAME 'tigase.archive.db.derby.StoredProcedures.getTagsForUserCount';
 -- QUERY END:
+
+-- retention periods set by users were kept only in the user repository before,
+-- which is available only if it is stored in the same database
+-- QUERY START:
+call Tig_MA_MigrateUserRetention();
+-- QUERY END:
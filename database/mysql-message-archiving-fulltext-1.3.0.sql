@@ -0,0 +1,32 @@
+--
+--  Tigase Message Archiving Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+-- Optional full-text index of bodies of messages used to search messages by text.
+-- Index uses n-grams parser (MySQL 5.7.6 or newer) so terms are found also within words.
+-- Index is created without stopwords, as n-grams containing a stopword would not be indexed and messages
+-- containing them would not be found. Index created with stopwords should be dropped and created again.
+-- Creation of the index on a large archive takes long time, so it should be scheduled accordingly.
+-- Procedure TigExecuteIfNot is created by mysql-message-archiving-schema script.
+
+-- QUERY START:
+set session innodb_ft_enable_stopword = OFF;
+-- QUERY END:
+
+-- QUERY START:
+call TigExecuteIfNot((select count(1) from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_body_fulltext_index'),
+	'create fulltext index tig_ma_msgs_body_fulltext_index on tig_ma_msgs (body) with parser ngram');
+-- QUERY END:
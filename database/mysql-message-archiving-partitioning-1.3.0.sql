@@ -0,0 +1,159 @@
+--
+--  Tigase Message Archiving Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+-- Optional partitioning of tig_ma_msgs by timestamps of messages (MySQL 5.7 or newer).
+-- Partitions cover one month each (change the number of months passed to Tig_MA_PartitionMessages and
+-- `message-partition-months` of the repository to use longer partitions). Queries with time ranges read only
+-- partitions covering these ranges and expired messages may be removed by dropping whole partitions.
+-- Partitioned tables of MySQL support neither foreign keys nor full-text indexes, so they are dropped
+-- and every unique key of tig_ma_msgs needs to include timestamp of a message.
+-- Conversion of a large archive rebuilds the whole table, so it should be scheduled accordingly.
+-- Procedure TigExecuteIfNot is created by mysql-message-archiving-schema script.
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DropMessagesForeignKeys;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_PartitionMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_EnsurePartitions;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DropExpiredPartitions;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure Tig_MA_DropMessagesForeignKeys()
+begin
+	declare _query text;
+
+	fk_loop: loop
+		set _query = (select CONCAT('alter table ', TABLE_NAME, ' drop foreign key ', CONSTRAINT_NAME)
+			from information_schema.REFERENTIAL_CONSTRAINTS
+			where CONSTRAINT_SCHEMA = DATABASE() and (TABLE_NAME = 'tig_ma_msgs' or REFERENCED_TABLE_NAME = 'tig_ma_msgs')
+			limit 1);
+		if _query is null then
+			leave fk_loop;
+		end if;
+		call TigExecuteIfNot(0, _query);
+	end loop;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_PartitionMessages(_months int)
+begin
+	declare _start datetime;
+	declare _partitions text default '';
+
+	if not exists (select 1 from information_schema.PARTITIONS where TABLE_SCHEMA = DATABASE() and TABLE_NAME = 'tig_ma_msgs' and PARTITION_NAME is not null) then
+		select DATE_FORMAT(coalesce(min(ts), now()), '%Y-%m-01') into _start from tig_ma_msgs;
+		-- partitions are named after the first day they cover, the last one holds messages newer than all of them
+		repeat
+			set _partitions = CONCAT(_partitions, 'partition p', DATE_FORMAT(_start, '%Y%m%d'),
+				' values less than (', UNIX_TIMESTAMP(_start + interval _months month), '), ');
+			set _start = _start + interval _months month;
+		until _start > now() + interval _months month end repeat;
+		call TigExecuteIfNot(0, CONCAT('alter table tig_ma_msgs partition by range (UNIX_TIMESTAMP(ts)) (',
+			_partitions, 'partition pmax values less than maxvalue)'));
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_EnsurePartitions(_months int)
+begin
+	declare _start datetime;
+
+	select FROM_UNIXTIME(max(cast(PARTITION_DESCRIPTION as unsigned))) into _start
+		from information_schema.PARTITIONS
+		where TABLE_SCHEMA = DATABASE() and TABLE_NAME = 'tig_ma_msgs' and PARTITION_DESCRIPTION <> 'MAXVALUE';
+	-- partitions are split from the last one, which should stay empty
+	while _start is not null and _start <= now() + interval _months month do
+		call TigExecuteIfNot(0, CONCAT('alter table tig_ma_msgs reorganize partition pmax into (partition p',
+			DATE_FORMAT(_start, '%Y%m%d'), ' values less than (', UNIX_TIMESTAMP(_start + interval _months month),
+			'), partition pmax values less than maxvalue)'));
+		set _start = _start + interval _months month;
+	end while;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DropExpiredPartitions(_before timestamp)
+begin
+	declare _name varchar(64);
+	declare _end bigint unsigned;
+	declare _dropped_before timestamp default null;
+
+	partitions_loop: loop
+		set _end = (select min(cast(PARTITION_DESCRIPTION as unsigned)) from information_schema.PARTITIONS
+			where TABLE_SCHEMA = DATABASE() and TABLE_NAME = 'tig_ma_msgs' and PARTITION_DESCRIPTION <> 'MAXVALUE');
+		-- partition is dropped only if all of its messages expired
+		if _end is null or _end > UNIX_TIMESTAMP(_before) then
+			leave partitions_loop;
+		end if;
+		set _name = (select PARTITION_NAME from information_schema.PARTITIONS
+			where TABLE_SCHEMA = DATABASE() and TABLE_NAME = 'tig_ma_msgs' and PARTITION_DESCRIPTION = cast(_end as char));
+		-- tags are not removed by foreign keys of partitioned table
+		call TigExecuteIfNot(0, CONCAT('delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs partition (', _name,
+			') m on m.msg_id = mt.msg_id'));
+		call TigExecuteIfNot(0, CONCAT('alter table tig_ma_msgs drop partition ', _name));
+		set _dropped_before = FROM_UNIXTIME(_end);
+	end loop;
+
+	if _dropped_before is not null then
+		delete from tig_ma_collections where last_ts < _dropped_before;
+		update tig_ma_collections c
+			set c.first_ts = coalesce((
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _dropped_before and m.ts <= c.last_ts
+					and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+			), c.last_ts)
+			where c.first_ts < _dropped_before;
+	end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call Tig_MA_DropMessagesForeignKeys();
+-- QUERY END:
+
+-- QUERY START:
+call TigExecuteIfNot((select count(1) from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_body_fulltext_index') = 0,
+	'alter table tig_ma_msgs drop index tig_ma_msgs_body_fulltext_index');
+-- QUERY END:
+
+-- QUERY START:
+call TigExecuteIfNot((select count(1) from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'PRIMARY' and COLUMN_NAME = 'ts'),
+	'alter table tig_ma_msgs drop primary key, add primary key (msg_id, ts)');
+-- QUERY END:
+
+-- QUERY START:
+call TigExecuteIfNot((select count(1) from information_schema.STATISTICS where TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_owner_id_buddy_id_stanza_hash_index' and COLUMN_NAME = 'ts'),
+	'alter table tig_ma_msgs drop index tig_ma_msgs_owner_id_buddy_id_stanza_hash_index, add unique index tig_ma_msgs_owner_id_buddy_id_stanza_hash_index (owner_id, buddy_id, stanza_hash, ts)');
+-- QUERY END:
+
+-- QUERY START:
+call Tig_MA_PartitionMessages(1);
+-- QUERY END:
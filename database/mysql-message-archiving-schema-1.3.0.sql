@@ -148,6 +148,14 @@ call TigAddIndexIfNotExists('tig_ma_jids', 'tig_ma_jids_domain_index', 0, '(`dom
 call TigAddIndexIfNotExists('tig_ma_msgs', 'tig_ma_msgs_ts_index', 0, '(ts)'); 
 -- QUERY END:
 
+-- additional indexes on tig_ma_msgs to retrieve pages of messages by seeking from a known message
+-- QUERY START:
+call TigAddIndexIfNotExists('tig_ma_msgs', 'tig_ma_msgs_owner_id_ts_msg_id_index', 0, '(owner_id, ts, msg_id)');
+-- QUERY END:
+-- QUERY START:
+call TigAddIndexIfNotExists('tig_ma_msgs', 'tig_ma_msgs_owner_id_stanza_hash_index', 0, '(owner_id, stanza_hash)');
+-- QUERY END:
+
 -- additional performace optimizations
 -- QUERY START:
 call TigAddColumnIfNotExists('tig_ma_jids', 'jid_sha1', 'char(40)');
@@ -176,6 +184,73 @@ alter table tig_ma_tags collate utf8_general_ci;
 alter table tig_ma_msgs collate utf8_general_ci;
 -- QUERY END:
 
+-- summary of collections maintained when messages are stored or removed
+-- QUERY START:
+create table if not exists tig_ma_collections (
+	owner_id bigint unsigned NOT NULL,
+	buddy_id bigint unsigned NOT NULL,
+	`day` date NOT NULL,
+	`type` varchar(20) NOT NULL,
+	first_ts timestamp null default null,
+	last_ts timestamp null default null,
+
+	primary key (owner_id, buddy_id, `day`, `type`),
+	foreign key (owner_id) references tig_ma_jids (jid_id),
+	foreign key (buddy_id) references tig_ma_jids (jid_id),
+	key tig_ma_collections_owner_id_first_ts_index (owner_id, first_ts)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- retention periods of messages set by users of domains with user defined retention
+-- QUERY START:
+create table if not exists tig_ma_user_retention (
+	owner_id bigint unsigned NOT NULL,
+	expire bigint NOT NULL,
+
+	primary key (owner_id),
+	foreign key (owner_id) references tig_ma_jids (jid_id),
+	key tig_ma_user_retention_expire_owner_id_index (expire, owner_id)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- old messages moved out of tig_ma_msgs, clustered by owner and time of a message
+-- QUERY START:
+create table if not exists tig_ma_msgs_cold (
+	msg_id bigint unsigned NOT NULL,
+	owner_id bigint unsigned NOT NULL,
+	buddy_id bigint unsigned NOT NULL,
+	buddy_res varchar(1024),
+	ts timestamp,
+	`direction` smallint,
+	`type` varchar(20),
+	body text,
+	msg text,
+	stanza_hash varchar(50),
+
+	primary key (owner_id, ts, msg_id),
+	foreign key (buddy_id) references tig_ma_jids (jid_id),
+	foreign key (owner_id) references tig_ma_jids (jid_id),
+	key tig_ma_msgs_cold_ts_index (ts),
+	key tig_ma_msgs_cold_msg_id_index (msg_id)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=COMPRESSED;
+-- QUERY END:
+
+-- tags of messages in cold storage, which are referenced by id only, as primary key of cold storage starts with owner
+-- QUERY START:
+create table if not exists tig_ma_msgs_cold_tags (
+	msg_id bigint unsigned NOT NULL,
+	tag_id bigint unsigned NOT NULL,
+
+	primary key (msg_id, tag_id),
+	foreign key (tag_id) references tig_ma_tags (tag_id) on delete cascade,
+	key tig_ma_msgs_cold_tags_tag_id_index (tag_id)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -200,6 +275,10 @@ drop procedure if exists Tig_MA_GetMessagesCount;
 drop procedure if exists Tig_MA_GetMessagePosition;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MA_GetMessagesPage;
+-- QUERY END:
+
 -- QUERY START:
 drop procedure if exists Tig_MA_GetCollections;
 -- QUERY END:
@@ -208,6 +287,22 @@ drop procedure if exists Tig_MA_GetCollections;
 drop procedure if exists Tig_MA_GetCollectionsCount;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MA_GetStoredCollections;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetStoredCollectionsCount;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_UpdateCollection;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_BackfillCollections;
+-- QUERY END:
+
 -- QUERY START:
 drop function if exists Tig_MA_EnsureJid;
 -- QUERY END:
@@ -216,10 +311,30 @@ drop function if exists Tig_MA_EnsureJid;
 drop procedure if exists Tig_MA_AddMessage;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MA_EnsureJidId;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_AddMessageById;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_StoreMessageById;
+-- QUERY END:
+
 -- QUERY START:
 drop procedure if exists Tig_MA_AddTagToMessage;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MA_EnsureTagId;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_AddTagToMessageById;
+-- QUERY END:
+
 -- QUERY START:
 drop procedure if exists Tig_MA_RemoveMessages;
 -- QUERY END:
@@ -228,6 +343,54 @@ drop procedure if exists Tig_MA_RemoveMessages;
 drop procedure if exists Tig_MA_DeleteExpiredMessages;
 -- QUERY END:
 
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredMessagesChunk;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_SetUserRetention;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_MigrateUserRetention;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetUserRetentionBuckets;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteExpiredUserMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_MoveMessagesToCold;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_MoveLateMessageToCold;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetColdMessages;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetColdMessagesCount;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_GetColdMessagePosition;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteOrphanedJids;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists Tig_MA_DeleteOrphanedTags;
+-- QUERY END:
+
 -- QUERY START:
 drop procedure if exists Tig_MA_GetTagsForUser;
 -- QUERY END:
@@ -244,6 +407,14 @@ drop function if exists Tig_MA_GetHasTagsQuery;
 drop function if exists Tig_MA_GetBodyContainsQuery;
 -- QUERY END:
 
+-- QUERY START:
+drop function if exists Tig_MA_GetColdHasTagsQuery;
+-- QUERY END:
+
+-- QUERY START:
+drop function if exists Tig_MA_GetColdBodyContainsQuery;
+-- QUERY END:
+
 delimiter //
 
 -- QUERY START:
@@ -258,10 +429,65 @@ end //
 -- QUERY END:
 
 -- QUERY START:
-create function Tig_MA_GetBodyContainsQuery(_in_str text CHARSET utf8) returns text CHARSET utf8 NO SQL
+create function Tig_MA_GetBodyContainsQuery(_in_str text CHARSET utf8) returns text CHARSET utf8 READS SQL DATA
+begin
+	declare _query text CHARSET utf8 default '';
+	declare _terms text CHARSET utf8;
+	declare _term text CHARSET utf8;
+	declare _pos int;
+	declare _fulltext int default 0;
+
+	if _in_str is null then
+		return '';
+	end if;
+
+	-- full-text index is used only if it was created with mysql-message-archiving-fulltext script
+	select count(1) into _fulltext from information_schema.STATISTICS
+		where TABLE_SCHEMA = DATABASE() and TABLE_NAME = 'tig_ma_msgs' and INDEX_NAME = 'tig_ma_msgs_body_fulltext_index';
+
+	-- terms are passed as '%term1%','%term2%'
+	set _terms = SUBSTRING(_in_str, 3, CHAR_LENGTH(_in_str) - 4);
+	while _terms is not null do
+		set _pos = LOCATE(N'%'',''%', _terms);
+		if _pos > 0 then
+			set _term = SUBSTRING(_terms, 1, _pos - 1);
+			set _terms = SUBSTRING(_terms, _pos + 5);
+		else
+			set _term = _terms;
+			set _terms = null;
+		end if;
+
+		set _query = CONCAT(_query, ' and m.body like ''%', _term, '%''');
+		-- n-grams index finds only terms which are not shorter than a single token and are not split
+		-- by the parser at spaces or punctuation, other terms are searched with like only
+		if _fulltext > 0 then
+			if CHAR_LENGTH(_term) >= @@ngram_token_size and _term not regexp '[[:space:][:punct:]]' then
+				set _query = CONCAT(_query, ' and match(m.body) against (''"', REPLACE(_term, '"', ' '), '"'' in boolean mode)');
+			end if;
+		end if;
+	end while;
+
+	return _query;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create function Tig_MA_GetColdHasTagsQuery(_in_str text CHARSET utf8) returns text CHARSET utf8 NO SQL
 begin
 	if _in_str is not null then
-		return CONCAT(' and m.body like ', replace(_in_str, N''',''', N''' and m.body like = '''));
+		return CONCAT(' and exists(select 1 from tig_ma_msgs_cold_tags mt inner join tig_ma_tags t on mt.tag_id = t.tag_id where m.msg_id = mt.msg_id and t.owner_id = o.jid_id and t.tag IN (', _in_str, '))');
+	else
+		return '';
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create function Tig_MA_GetColdBodyContainsQuery(_in_str text CHARSET utf8) returns text CHARSET utf8 NO SQL
+begin
+	-- cold storage has no full-text index, so terms passed as '%term1%','%term2%' are searched with like only
+	if _in_str is not null then
+		return CONCAT(' and m.body like ', REPLACE(_in_str, N'%'',''%', N'%'' and m.body like ''%'));
 	else
 		return '';
 	end if;
@@ -391,6 +617,86 @@ begin
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_GetMessagesPage( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _tags text CHARSET utf8, _contains text CHARSET utf8, _afterHash varchar(50) CHARSET utf8, _beforeHash varchar(50) CHARSET utf8, _lastPage smallint, _limit int, _offset int, _count bigint)
+begin
+	set @ownerJid = _ownerJid;
+	set @buddyJid = _buddyJid;
+	set @from = _from;
+	set @to = _to;
+	select Tig_MA_GetHasTagsQuery(_tags) into @tags_query;
+	select Tig_MA_GetBodyContainsQuery(_contains) into @contains_query;
+	set @msgs_query = CONCAT(' from tig_ma_msgs m
+		inner join tig_ma_jids o on m.owner_id = o.jid_id
+		inner join tig_ma_jids b on b.jid_id = m.buddy_id
+	where
+		o.jid_sha1 = SHA1(LOWER(?))
+		and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+		and (? is null or m.ts >= ?)
+		and (? is null or m.ts <= ?)', @tags_query, @contains_query);
+
+	-- number of messages may be already known to the caller
+	if _count is null then
+		set @count = 0;
+		set @query = CONCAT('select count(m.msg_id) into @count', @msgs_query);
+		prepare stmt from @query;
+		execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to;
+		deallocate prepare stmt;
+	else
+		set @count = _count;
+	end if;
+
+	set @hash_ts = null;
+	set @hash_id = null;
+	if _afterHash is not null or _beforeHash is not null then
+		set @stanza_hash = COALESCE(_afterHash, _beforeHash);
+		set @query = CONCAT('select m.ts, m.msg_id into @hash_ts, @hash_id', @msgs_query, ' and m.stanza_hash = ? order by m.ts, m.msg_id limit 1');
+		prepare stmt from @query;
+		execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to, @stanza_hash;
+		deallocate prepare stmt;
+	end if;
+
+	set @page_offset = _offset;
+	set @page_limit = _limit;
+	if _afterHash is not null or _beforeHash is not null then
+		-- position of a page next to a message is not counted, -1 is returned if the message was found
+		set @page_offset = if(@hash_id is null, null, -1);
+	elseif _lastPage = 1 then
+		set @page_offset = if(@count > _limit, @count - _limit, 0);
+	end if;
+
+	if @page_offset is null then
+		select null as msg, null as ts, null as direction, null as jid, null as stanza_hash, 0 as position, @count as count, null as page_offset, @page_limit as page_limit;
+	else
+		-- messages around a known message and the last page are found by seeking on (ts, msg_id)
+		-- so the cost of retrieving a page does not depend on its position
+		set @row_number = 0;
+		if _afterHash is not null then
+			set @position_base = 0;
+			set @position_step = 1;
+			set @seek_query = ' and (m.ts > ? or (m.ts = ? and m.msg_id > ?)) order by m.ts, m.msg_id limit ?';
+		elseif _beforeHash is not null or _lastPage = 1 then
+			-- rows are read in reverse order, so positions are assigned from the end of the page
+			set @position_base = IF(_beforeHash is not null, @page_limit, LEAST(@page_limit, @count - @page_offset)) + 1;
+			set @position_step = -1;
+			set @seek_query = IF(_beforeHash is not null, ' and (m.ts < ? or (m.ts = ? and m.msg_id < ?)) order by m.ts desc, m.msg_id desc limit ?', ' and ? is null and ? is null and ? is null order by m.ts desc, m.msg_id desc limit ?');
+		else
+			set @position_base = 0;
+			set @position_step = 1;
+			set @seek_query = CONCAT(' and ? is null and ? is null and ? is null order by m.ts, m.msg_id limit ? offset ', @page_offset);
+		end if;
+		set @query = CONCAT('select null as msg, null as ts, null as direction, null as jid, null as stanza_hash, 0 as position, ? as count, ? as page_offset, ? as page_limit
+		union all
+		select x.msg, x.ts, x.direction, x.jid, x.stanza_hash, @position_base + @position_step * (@row_number := @row_number + 1), null, null, null
+		from (select m.msg, m.ts, m.direction, b.jid, m.stanza_hash', @msgs_query, @seek_query, ') x
+		order by position');
+		prepare stmt from @query;
+		execute stmt using @count, @page_offset, @page_limit, @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to, @hash_ts, @hash_ts, @hash_id, @page_limit;
+		deallocate prepare stmt;
+	end if;
+end //
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_MA_GetCollections( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _tags text CHARSET utf8, _contains text CHARSET utf8, _byType smallint, _limit int, _offset int)
 begin
@@ -523,6 +829,112 @@ begin
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_GetStoredCollections( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _byType smallint, _limit int, _offset int)
+begin
+	select y.ts, y.jid, y.`type` from (
+		-- start of a collection partially out of range needs to be found within messages
+		select case when _from is null or c.first_ts >= _from then c.first_ts else (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _from and m.ts <= c.last_ts
+					and (_to is null or m.ts <= _to)
+					and (_byType = 0 or if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`)
+			) end as ts, b.jid, if(_byType = 1, c.`type`, null) as `type`
+		from (
+			select x.owner_id, x.buddy_id, x.`day`, if(_byType = 1, x.`type`, '') as `type`, min(x.first_ts) as first_ts, max(x.last_ts) as last_ts
+			from tig_ma_collections x
+				inner join tig_ma_jids o on x.owner_id = o.jid_id
+			where
+				o.jid_sha1 = SHA1(LOWER(_ownerJid))
+				and (_from is null or x.last_ts >= _from)
+				and (_to is null or x.first_ts <= _to)
+			group by x.owner_id, x.buddy_id, x.`day`, if(_byType = 1, x.`type`, '')
+		) c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		where
+			(_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+	) y
+	where y.ts is not null
+	order by y.ts, y.jid
+	limit _limit offset _offset;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetStoredCollectionsCount( _ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _byType smallint)
+begin
+	select count(1) from (
+		select case when _from is null or c.first_ts >= _from then c.first_ts else (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _from and m.ts <= c.last_ts
+					and (_to is null or m.ts <= _to)
+					and (_byType = 0 or if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`)
+			) end as ts
+		from (
+			select x.owner_id, x.buddy_id, x.`day`, if(_byType = 1, x.`type`, '') as `type`, min(x.first_ts) as first_ts, max(x.last_ts) as last_ts
+			from tig_ma_collections x
+				inner join tig_ma_jids o on x.owner_id = o.jid_id
+			where
+				o.jid_sha1 = SHA1(LOWER(_ownerJid))
+				and (_from is null or x.last_ts >= _from)
+				and (_to is null or x.first_ts <= _to)
+			group by x.owner_id, x.buddy_id, x.`day`, if(_byType = 1, x.`type`, '')
+		) c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		where
+			(_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+	) y
+	where y.ts is not null;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_UpdateCollection(_ownerId bigint, _buddyId bigint, _ts timestamp, _type varchar(20) CHARSET utf8)
+begin
+	insert into tig_ma_collections (owner_id, buddy_id, `day`, `type`, first_ts, last_ts)
+		values (_ownerId, _buddyId, date(_ts), if(_type = 'groupchat', 'groupchat', ''), _ts, _ts)
+		on duplicate key update first_ts = least(first_ts, _ts), last_ts = greatest(last_ts, _ts);
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_MoveLateMessageToCold(_msgId bigint, _ownerId bigint, _ts timestamp)
+begin
+	-- message older than messages of its owner in cold storage is moved there at once,
+	-- so messages in cold storage still precede all messages of the owner in tig_ma_msgs
+	if _ts < (select max(ts) from tig_ma_msgs_cold where owner_id = _ownerId) then
+		insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, `direction`, `type`, body, msg, stanza_hash)
+			select msg_id, owner_id, buddy_id, buddy_res, ts, `direction`, `type`, body, msg, stanza_hash
+			from tig_ma_msgs where msg_id = _msgId and ts = _ts;
+		delete from tig_ma_msgs where msg_id = _msgId and ts = _ts;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_BackfillCollections(_lastOwnerId bigint, _limit int)
+begin
+	declare _max_owner_id bigint;
+
+	select max(x.jid_id) into _max_owner_id from (
+		select jid_id from tig_ma_jids where jid_id > _lastOwnerId order by jid_id limit _limit
+	) x;
+	if _max_owner_id is not null then
+		-- collections of messages stored in the meantime are merged with collections of older messages
+		insert into tig_ma_collections (owner_id, buddy_id, `day`, `type`, first_ts, last_ts)
+			select a.owner_id, a.buddy_id, a.`day`, a.`type`, a.first_ts, a.last_ts from (
+				select owner_id, buddy_id, date(ts) as `day`, if(`type` = 'groupchat', 'groupchat', '') as `type`, min(ts) as first_ts, max(ts) as last_ts
+				from tig_ma_msgs
+				where owner_id > _lastOwnerId and owner_id <= _max_owner_id
+				group by owner_id, buddy_id, date(ts), if(`type` = 'groupchat', 'groupchat', '')
+			) a
+			on duplicate key update first_ts = least(first_ts, values(first_ts)), last_ts = greatest(last_ts, values(last_ts));
+	end if;
+
+	select _max_owner_id as last_owner_id;
+end //
+-- QUERY END:
+
 -- QUERY START:
 create function Tig_MA_EnsureJid(_jid varchar(2049) CHARSET utf8) returns bigint DETERMINISTIC
 begin
@@ -551,29 +963,102 @@ begin
 	declare _buddy_id bigint;
 	declare _msg_id bigint;
 
-	START TRANSACTION;
+	-- transaction is controlled by the caller, as START TRANSACTION would commit transaction of the caller
 	select Tig_MA_EnsureJid(_ownerJid) into _owner_id;
 	select Tig_MA_EnsureJid(_buddyJid) into _buddy_id;
 
-	insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, `type`, body, msg, stanza_hash)
-		values (_owner_id, _buddy_id, _buddyRes, _ts, _direction, _type, _body, _msg, _hash)
-		on duplicate key update direction = direction;
+	-- LAST_INSERT_ID() is not changed if message was not inserted
+	select LAST_INSERT_ID(0) into _msg_id;
+	-- unique key of partitioned table includes timestamp, so message stored before with other timestamp
+	-- (or within 30 minutes for groupchat, as in other databases) is not detected by the key alone
+	if not exists (select 1 from tig_ma_msgs where owner_id = _owner_id and buddy_id = _buddy_id and stanza_hash = _hash
+			and (coalesce(_type, '') <> 'groupchat' or ts between _ts - interval 30 minute and _ts + interval 30 minute)) then
+		insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, `type`, body, msg, stanza_hash)
+			values (_owner_id, _buddy_id, _buddyRes, _ts, _direction, _type, _body, _msg, _hash)
+			on duplicate key update direction = direction;
+	end if;
+	select NULLIF(LAST_INSERT_ID(), 0) into _msg_id;
 
-	select LAST_INSERT_ID() into _msg_id;
-	COMMIT;
+	-- message which was already stored is not inserted again
+	if _msg_id is not null then
+		call Tig_MA_UpdateCollection(_owner_id, _buddy_id, _ts, _type);
+		call Tig_MA_MoveLateMessageToCold(_msg_id, _owner_id, _ts);
+	end if;
 
 	select _msg_id as msg_id;
 end //
 -- QUERY END:
 
+-- QUERY START:
+create procedure Tig_MA_EnsureJidId(_jid varchar(2049) CHARSET utf8)
+begin
+	select Tig_MA_EnsureJid(_jid) as jid_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageById(_ownerId bigint, _buddyId bigint,
+	 _buddyRes varchar(1024)  CHARSET utf8, _ts timestamp, _direction smallint, _type varchar(20) CHARSET utf8,
+	 _body text CHARSET utf8, _msg text CHARSET utf8, _hash varchar(50) CHARSET utf8)
+begin
+	declare _msg_id bigint;
+
+	-- LAST_INSERT_ID() is not changed if message was not inserted
+	select LAST_INSERT_ID(0) into _msg_id;
+	-- unique key of partitioned table includes timestamp, so message stored before with other timestamp
+	-- (or within 30 minutes for groupchat, as in other databases) is not detected by the key alone
+	if not exists (select 1 from tig_ma_msgs where owner_id = _ownerId and buddy_id = _buddyId and stanza_hash = _hash
+			and (coalesce(_type, '') <> 'groupchat' or ts between _ts - interval 30 minute and _ts + interval 30 minute)) then
+		insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, `type`, body, msg, stanza_hash)
+			values (_ownerId, _buddyId, _buddyRes, _ts, _direction, _type, _body, _msg, _hash)
+			on duplicate key update direction = direction;
+	end if;
+	select NULLIF(LAST_INSERT_ID(), 0) into _msg_id;
+
+	-- message which was already stored is not inserted again
+	if _msg_id is not null then
+		call Tig_MA_UpdateCollection(_ownerId, _buddyId, _ts, _type);
+		call Tig_MA_MoveLateMessageToCold(_msg_id, _ownerId, _ts);
+	end if;
+
+	select _msg_id as msg_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_StoreMessageById(_ownerId bigint, _buddyId bigint,
+	 _buddyRes varchar(1024)  CHARSET utf8, _ts timestamp, _direction smallint, _type varchar(20) CHARSET utf8,
+	 _body text CHARSET utf8, _msg text CHARSET utf8, _hash varchar(50) CHARSET utf8)
+begin
+	declare _msg_id bigint;
+
+	-- same as Tig_MA_AddMessageById but id of the message is not returned, so it may be executed in a batch
+	select LAST_INSERT_ID(0) into _msg_id;
+	if not exists (select 1 from tig_ma_msgs where owner_id = _ownerId and buddy_id = _buddyId and stanza_hash = _hash
+			and (coalesce(_type, '') <> 'groupchat' or ts between _ts - interval 30 minute and _ts + interval 30 minute)) then
+		insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, `type`, body, msg, stanza_hash)
+			values (_ownerId, _buddyId, _buddyRes, _ts, _direction, _type, _body, _msg, _hash)
+			on duplicate key update direction = direction;
+	end if;
+	select NULLIF(LAST_INSERT_ID(), 0) into _msg_id;
+
+	if _msg_id is not null then
+		call Tig_MA_UpdateCollection(_ownerId, _buddyId, _ts, _type);
+		call Tig_MA_MoveLateMessageToCold(_msg_id, _ownerId, _ts);
+	end if;
+end //
+-- QUERY END:
+
 -- QUERY START:
 create procedure Tig_MA_AddTagToMessage(_msgId bigint, _tag varchar(255) CHARSET utf8)
 begin
 	declare _owner_id bigint;
 	declare _tag_id bigint;
 
-	START TRANSACTION;
 	select owner_id into _owner_id from tig_ma_msgs where msg_id = _msgId;
+	if _owner_id is null then
+		select owner_id into _owner_id from tig_ma_msgs_cold where msg_id = _msgId;
+	end if;
 	select tag_id into _tag_id from tig_ma_tags where owner_id = _owner_id and tag = _tag;
 	if _tag_id is null then
 		insert into tig_ma_tags (owner_id, tag) 
@@ -581,8 +1066,36 @@ begin
 			on duplicate key update tag_id = LAST_INSERT_ID(tag_id);
 		select LAST_INSERT_ID() into _tag_id;
 	end if;
-	insert into tig_ma_msgs_tags (msg_id, tag_id) values (_msgId, _tag_id) on duplicate key update tag_id = tag_id;
-	COMMIT;
+	call Tig_MA_AddTagToMessageById(_msgId, _tag_id);
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_EnsureTagId(_ownerId bigint, _tag varchar(255) CHARSET utf8)
+begin
+	declare _tag_id bigint;
+
+	select tag_id into _tag_id from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+	if _tag_id is null then
+		insert into tig_ma_tags (owner_id, tag)
+			values (_ownerId, _tag)
+			on duplicate key update tag_id = LAST_INSERT_ID(tag_id);
+		select LAST_INSERT_ID() into _tag_id;
+	end if;
+
+	select _tag_id as tag_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_AddTagToMessageById(_msgId bigint, _tagId bigint)
+begin
+	-- message stored with an old timestamp may be already in cold storage
+	if exists (select 1 from tig_ma_msgs where msg_id = _msgId) then
+		insert into tig_ma_msgs_tags (msg_id, tag_id) values (_msgId, _tagId) on duplicate key update tag_id = tag_id;
+	else
+		insert into tig_ma_msgs_cold_tags (msg_id, tag_id) values (_msgId, _tagId) on duplicate key update tag_id = tag_id;
+	end if;
 end //
 -- QUERY END:
 
@@ -593,14 +1106,390 @@ begin
 	set @_buddy_id = 0;
 	select jid_id into @_owner_id from tig_ma_jids j where j.jid_sha1 = SHA1(LOWER(_ownerJid));
 	select jid_id into @_buddy_id from tig_ma_jids j where j.jid_sha1 = SHA1(LOWER(_buddyJid));
+	-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+	delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id
+		where m.owner_id = @_owner_id and m.buddy_id = @_buddy_id and m.ts >= _from and m.ts <= _to;
 	delete from tig_ma_msgs where owner_id = @_owner_id and buddy_id = @_buddy_id and ts >= _from and ts <= _to;
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id
+		where m.owner_id = @_owner_id and m.buddy_id = @_buddy_id and m.ts >= _from and m.ts <= _to;
+	delete from tig_ma_msgs_cold where owner_id = @_owner_id and buddy_id = @_buddy_id and ts >= _from and ts <= _to;
+	-- collections of days of removed messages are calculated again from remaining messages
+	delete from tig_ma_collections where owner_id = @_owner_id and buddy_id = @_buddy_id and `day` >= date(_from) and `day` <= date(_to);
+	insert into tig_ma_collections (owner_id, buddy_id, `day`, `type`, first_ts, last_ts)
+		select owner_id, buddy_id, date(ts), if(`type` = 'groupchat', 'groupchat', ''), min(ts), max(ts)
+		from (
+			select owner_id, buddy_id, ts, `type` from tig_ma_msgs
+			union all
+			select owner_id, buddy_id, ts, `type` from tig_ma_msgs_cold
+		) m
+		where owner_id = @_owner_id and buddy_id = @_buddy_id and ts >= date(_from) and ts < date(_to) + interval 1 day
+		group by owner_id, buddy_id, date(ts), if(`type` = 'groupchat', 'groupchat', '');
 end //
 -- QUERY END:
 
 -- QUERY START:
 create procedure Tig_MA_DeleteExpiredMessages(_domain varchar(1024) CHARSET utf8, _before timestamp)
 begin
+	-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+	delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < _before and j.`domain` = _domain;
 	delete from tig_ma_msgs where ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and `domain` = _domain);
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < _before and j.`domain` = _domain;
+	delete from tig_ma_msgs_cold where ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and `domain` = _domain);
+	delete c from tig_ma_collections c inner join tig_ma_jids j on j.jid_id = c.owner_id where c.last_ts < _before and j.`domain` = _domain;
+	-- messages in cold storage are older than messages in tig_ma_msgs
+	update tig_ma_collections c inner join tig_ma_jids j on j.jid_id = c.owner_id
+		set c.first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+		), c.last_ts)
+		where c.first_ts < _before and j.`domain` = _domain;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessagesChunk(_domain varchar(1024) CHARSET utf8, _before timestamp, _limit int)
+begin
+	declare _chunk_to timestamp;
+	declare _deleted int default 0;
+
+	-- chunk ends at timestamp of the last of the oldest expired messages, so next chunk starts where it stopped;
+	-- messages in cold storage are older than messages in tig_ma_msgs, so they are removed first
+	select max(x.ts) into _chunk_to from (
+		select m.ts from tig_ma_msgs_cold m inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < _before and j.`domain` = _domain
+		order by m.ts
+		limit _limit
+	) x;
+	if _chunk_to is null then
+		select max(x.ts) into _chunk_to from (
+			select m.ts from tig_ma_msgs m inner join tig_ma_jids j on j.jid_id = m.owner_id
+			where m.ts < _before and j.`domain` = _domain
+			order by m.ts
+			limit _limit
+		) x;
+	end if;
+	if _chunk_to is not null then
+		-- tags of messages in cold storage are not referencing them by a foreign key
+		delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id inner join tig_ma_jids j on j.jid_id = m.owner_id
+			where m.ts <= _chunk_to and j.`domain` = _domain;
+		delete from tig_ma_msgs_cold where ts <= _chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and `domain` = _domain);
+		set _deleted = ROW_COUNT();
+		-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+		delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id inner join tig_ma_jids j on j.jid_id = m.owner_id
+			where m.ts <= _chunk_to and j.`domain` = _domain;
+		delete from tig_ma_msgs where ts <= _chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and `domain` = _domain);
+		set _deleted = _deleted + ROW_COUNT();
+		delete c from tig_ma_collections c inner join tig_ma_jids j on j.jid_id = c.owner_id where c.last_ts <= _chunk_to and j.`domain` = _domain;
+		update tig_ma_collections c inner join tig_ma_jids j on j.jid_id = c.owner_id
+			set c.first_ts = coalesce((
+				select min(m.ts) from tig_ma_msgs_cold m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > _chunk_to and m.ts <= c.last_ts
+					and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+			), (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > _chunk_to and m.ts <= c.last_ts
+					and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+			), c.last_ts)
+			where c.first_ts <= _chunk_to and j.`domain` = _domain;
+	end if;
+
+	select _deleted as deleted;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_SetUserRetention(_ownerJid varchar(2049) CHARSET utf8, _expire bigint)
+begin
+	if _expire is null then
+		delete r from tig_ma_user_retention r inner join tig_ma_jids j on j.jid_id = r.owner_id
+			where j.jid_sha1 = SHA1(LOWER(_ownerJid));
+	else
+		insert into tig_ma_user_retention (owner_id, expire) values (Tig_MA_EnsureJid(_ownerJid), _expire)
+			on duplicate key update expire = _expire;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_MigrateUserRetention()
+begin
+	-- retention periods set by users were kept only in the user repository before,
+	-- which is available only if it is stored in the same database
+	if (select count(1) from information_schema.TABLES where TABLE_SCHEMA = DATABASE()
+			and TABLE_NAME in ('tig_users', 'tig_nodes', 'tig_pairs')) = 3 then
+		insert into tig_ma_user_retention (owner_id, expire)
+			select Tig_MA_EnsureJid(u.user_id), cast(p.pval as signed)
+			from tig_pairs p
+			inner join tig_nodes n on n.nid = p.nid and n.node = 'settings'
+			inner join tig_nodes a on a.nid = n.parent_nid and a.node = 'message-archive'
+			inner join tig_users u on u.uid = p.uid
+			where p.pkey = 'expire' and p.pval regexp '^[0-9]{1,18}$' and cast(p.pval as signed) > 0
+		on duplicate key update expire = tig_ma_user_retention.expire;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetUserRetentionBuckets(_domain varchar(1024) CHARSET utf8)
+begin
+	select r.expire, count(1) as users
+		from tig_ma_user_retention r
+		inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where j.`domain` = _domain
+		group by r.expire;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessages(_domain varchar(1024) CHARSET utf8, _expire bigint, _before timestamp)
+begin
+	-- messages of all users of a domain with the same retention period are removed at once
+	delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = _expire and j.`domain` = _domain and m.ts < _before;
+	delete m from tig_ma_msgs m
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = _expire and j.`domain` = _domain and m.ts < _before;
+	delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = _expire and j.`domain` = _domain and m.ts < _before;
+	delete m from tig_ma_msgs_cold m
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = _expire and j.`domain` = _domain and m.ts < _before;
+	delete c from tig_ma_collections c
+		inner join tig_ma_user_retention r on r.owner_id = c.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = _expire and j.`domain` = _domain and c.last_ts < _before;
+	-- messages in cold storage are older than messages in tig_ma_msgs
+	update tig_ma_collections c
+		inner join tig_ma_user_retention r on r.owner_id = c.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		set c.first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and if(m.`type` = 'groupchat', 'groupchat', '') = c.`type`
+		), c.last_ts)
+		where r.expire = _expire and j.`domain` = _domain and c.first_ts < _before;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_MoveMessagesToCold(_before timestamp, _limit int)
+begin
+	declare _batch_to timestamp;
+	declare _moved int default 0;
+
+	-- batch ends at timestamp of the last of the oldest messages, so messages are moved in order of time
+	select max(x.ts) into _batch_to from (
+		select ts from tig_ma_msgs
+		where ts < _before
+		order by ts
+		limit _limit
+	) x;
+	if _batch_to is not null then
+		start transaction;
+		insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, `direction`, `type`, body, msg, stanza_hash)
+			select msg_id, owner_id, buddy_id, buddy_res, ts, `direction`, `type`, body, msg, stanza_hash
+			from tig_ma_msgs where ts <= _batch_to;
+		set _moved = ROW_COUNT();
+		insert into tig_ma_msgs_cold_tags (msg_id, tag_id)
+			select mt.msg_id, mt.tag_id from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id where m.ts <= _batch_to;
+		-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+		delete mt from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id where m.ts <= _batch_to;
+		delete from tig_ma_msgs where ts <= _batch_to;
+		commit;
+	end if;
+
+	select _moved as moved;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessages(_ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _tags text CHARSET utf8, _contains text CHARSET utf8, _limit int, _offset int)
+begin
+	if _tags is not null or _contains is not null then
+		set @ownerJid = _ownerJid;
+		set @buddyJid = _buddyJid;
+		set @from = _from;
+		set @to = _to;
+		set @limit = _limit;
+		set @offset = _offset;
+		select Tig_MA_GetColdHasTagsQuery(_tags) into @tags_query;
+		select Tig_MA_GetColdBodyContainsQuery(_contains) into @contains_query;
+		set @msgs_query = 'select m.msg, m.ts, m.direction, b.jid, m.stanza_hash
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(?))
+			and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+			and (? is null or m.ts >= ?)
+			and (? is null or m.ts <= ?)';
+		set @query = CONCAT(@msgs_query, @tags_query, @contains_query, ' order by m.ts limit ? offset ?');
+		prepare stmt from @query;
+		execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to, @limit, @offset;
+		deallocate prepare stmt;
+	else
+		select m.msg, m.ts, m.direction, b.jid, m.stanza_hash
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(_ownerJid))
+			and (_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+			and (_from is null or m.ts >= _from)
+			and (_to is null or m.ts <= _to)
+		order by m.ts
+		limit _limit offset _offset;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessagesCount(_ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _tags text CHARSET utf8, _contains text CHARSET utf8)
+begin
+	if _tags is not null or _contains is not null then
+		set @ownerJid = _ownerJid;
+		set @buddyJid = _buddyJid;
+		set @from = _from;
+		set @to = _to;
+		select Tig_MA_GetColdHasTagsQuery(_tags) into @tags_query;
+		select Tig_MA_GetColdBodyContainsQuery(_contains) into @contains_query;
+		set @msgs_query = 'select count(m.msg_id)
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(?))
+			and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+			and (? is null or m.ts >= ?)
+			and (? is null or m.ts <= ?)';
+		set @query = CONCAT(@msgs_query, @tags_query, @contains_query);
+		prepare stmt from @query;
+		execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to;
+		deallocate prepare stmt;
+	else
+		select count(m.msg_id)
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = SHA1(LOWER(_ownerJid))
+			and (_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+			and (_from is null or m.ts >= _from)
+			and (_to is null or m.ts <= _to);
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessagePosition(_ownerJid varchar(2049) CHARSET utf8, _buddyJid varchar(2049) CHARSET utf8, _from timestamp, _to timestamp, _tags text CHARSET utf8, _contains text CHARSET utf8, _hash varchar(50) CHARSET utf8)
+begin
+	if _tags is not null or _contains is not null then
+		set @ownerJid = _ownerJid;
+		set @buddyJid = _buddyJid;
+		set @from = _from;
+		set @to = _to;
+		set @stanza_hash = _hash;
+		select Tig_MA_GetColdHasTagsQuery(_tags) into @tags_query;
+		select Tig_MA_GetColdBodyContainsQuery(_contains) into @contains_query;
+		set @msgs_query = 'select x.position from (
+		select @row_number := @row_number + 1 AS position, m.stanza_hash
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id,
+			(select @row_number := 0) as t
+		where
+			o.jid_sha1 = SHA1(LOWER(?))
+			and (? is null or b.jid_sha1 = SHA1(LOWER(?)))
+			and (? is null or m.ts >= ?)
+			and (? is null or m.ts <= ?)';
+		set @query = CONCAT(@msgs_query, @tags_query, @contains_query, ' order by m.ts) x where x.stanza_hash = ?');
+		prepare stmt from @query;
+		execute stmt using @ownerJid, @buddyJid, @buddyJid, @from, @from, @to, @to, @stanza_hash;
+		deallocate prepare stmt;
+	else
+		set @row_number = 0;
+		select x.position from (
+			select @row_number := @row_number + 1 AS position, m.stanza_hash
+			from tig_ma_msgs_cold m
+				inner join tig_ma_jids o on m.owner_id = o.jid_id
+				inner join tig_ma_jids b on b.jid_id = m.buddy_id
+			where
+				o.jid_sha1 = SHA1(LOWER(_ownerJid))
+				and (_buddyJid is null or b.jid_sha1 = SHA1(LOWER(_buddyJid)))
+				and (_from is null or m.ts >= _from)
+				and (_to is null or m.ts <= _to)
+			order by m.ts
+		) x where x.stanza_hash = _hash;
+	end if;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteOrphanedJids(_lastJidId bigint, _limit int)
+begin
+	declare _max_jid_id bigint;
+	declare _deleted int default 0;
+
+	-- without foreign keys a message stored concurrently, but not committed yet, could reference a removed JID
+	if (select count(1) from information_schema.REFERENTIAL_CONSTRAINTS
+			where CONSTRAINT_SCHEMA = DATABASE() and TABLE_NAME = 'tig_ma_msgs' and REFERENCED_TABLE_NAME = 'tig_ma_jids') < 2 then
+		signal sqlstate '45000' set message_text = 'Removal of JIDs requires foreign keys of tig_ma_msgs, which are dropped by partitioning';
+	end if;
+
+	select max(x.jid_id) into _max_jid_id from (
+		select jid_id from tig_ma_jids where jid_id > _lastJidId order by jid_id limit _limit
+	) x;
+	if _max_jid_id is not null then
+		-- references are checked by the delete itself, so JIDs used in the meantime are kept
+		delete j from tig_ma_jids j
+		where j.jid_id > _lastJidId and j.jid_id <= _max_jid_id
+			and not exists (select 1 from tig_ma_msgs m where m.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_msgs m where m.buddy_id = j.jid_id)
+			and not exists (select 1 from tig_ma_msgs_cold m where m.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_msgs_cold m where m.buddy_id = j.jid_id)
+			and not exists (select 1 from tig_ma_collections c where c.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_collections c where c.buddy_id = j.jid_id)
+			and not exists (select 1 from tig_ma_tags t where t.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_user_retention r where r.owner_id = j.jid_id);
+		set _deleted = ROW_COUNT();
+	end if;
+
+	select _max_jid_id as last_jid_id, _deleted as deleted;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure Tig_MA_DeleteOrphanedTags(_lastTagId bigint, _limit int)
+begin
+	declare _max_tag_id bigint;
+	declare _deleted int default 0;
+
+	select max(x.tag_id) into _max_tag_id from (
+		select tag_id from tig_ma_tags where tag_id > _lastTagId order by tag_id limit _limit
+	) x;
+	if _max_tag_id is not null then
+		-- references are checked by the delete itself, so tags used in the meantime are kept
+		delete t from tig_ma_tags t
+		where t.tag_id > _lastTagId and t.tag_id <= _max_tag_id
+			and not exists (select 1 from tig_ma_msgs_tags mt where mt.tag_id = t.tag_id)
+			and not exists (select 1 from tig_ma_msgs_cold_tags mt where mt.tag_id = t.tag_id);
+		set _deleted = ROW_COUNT();
+	end if;
+
+	select _max_tag_id as last_tag_id, _deleted as deleted;
 end //
 -- QUERY END:
 
@@ -629,3 +1518,7 @@ delimiter ;
 -- QUERY START:
 update tig_ma_jids set jid_sha1 = SHA1(LOWER(jid)), `domain` = LOWER(`domain`) where jid <> LOWER(jid) or `domain` <> LOWER(`domain`);
 -- QUERY END:
+
+-- QUERY START:
+call Tig_MA_MigrateUserRetention();
+-- QUERY END:
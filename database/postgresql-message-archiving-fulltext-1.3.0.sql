@@ -0,0 +1,33 @@
+--
+--  Tigase Message Archiving Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+-- Optional index of bodies of messages used to search messages by text.
+-- Searching uses `like` operator, which may use trigrams index provided by pg_trgm extension.
+-- Creation of the index on a large archive takes long time, so it should be scheduled accordingly.
+
+-- QUERY START:
+create extension if not exists pg_trgm;
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_body_trgm_index')) is null) then
+	create index tig_ma_msgs_body_trgm_index on tig_ma_msgs using gin (body gin_trgm_ops);
+end if;
+end$$;
+-- QUERY END:
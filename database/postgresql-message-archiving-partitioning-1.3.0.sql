@@ -0,0 +1,143 @@
+--
+--  Tigase Message Archiving Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+-- Optional partitioning of tig_ma_msgs by timestamps of messages (PostgreSQL 11 or newer).
+-- Partitions cover one month each (change the number of months passed to Tig_MA_EnsurePartitions and
+-- `message-partition-months` of the repository to use longer partitions). Queries with time ranges read only
+-- partitions covering these ranges and expired messages may be removed by dropping whole partitions.
+-- Primary key of a partitioned table needs to include timestamp of a message, so tig_ma_msgs_tags cannot
+-- reference tig_ma_msgs with a foreign key anymore.
+-- Conversion copies all messages to a new table, so it should be scheduled accordingly.
+
+-- QUERY START:
+create or replace function Tig_MA_GetMsgsPartitions() returns table (
+	"partition_name" name, "partition_to" timestamp
+) as $$
+begin
+	return query select c.relname, substring(pg_get_expr(c.relpartbound, c.oid) from 'TO \(''([^'']+)''\)')::timestamp
+		from pg_inherits i
+			inner join pg_class c on c.oid = i.inhrelid
+		where i.inhparent = to_regclass('public.tig_ma_msgs');
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_EnsurePartitions(_months int) returns void as $$
+declare
+	_start timestamp;
+begin
+	select max(p."partition_to") into _start from Tig_MA_GetMsgsPartitions() p;
+	-- partitions are named after the first day they cover
+	while _start is not null and _start <= localtimestamp + make_interval(months => _months) loop
+		execute format('create table if not exists %I partition of tig_ma_msgs for values from (%L) to (%L)',
+			'tig_ma_msgs_p' || to_char(_start, 'YYYYMMDD'), _start, _start + make_interval(months => _months));
+		_start := _start + make_interval(months => _months);
+	end loop;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DropExpiredPartitions(_before timestamp) returns void as $$
+declare
+	_partition record;
+	_dropped_before timestamp;
+begin
+	-- partition is dropped only if all of its messages expired
+	for _partition in select p."partition_name", p."partition_to" from Tig_MA_GetMsgsPartitions() p
+			where p."partition_to" <= _before order by p."partition_to" loop
+		-- tags are not removed by foreign keys of partitioned table
+		execute format('delete from tig_ma_msgs_tags mt using %I m where mt.msg_id = m.msg_id', _partition."partition_name");
+		execute format('drop table %I', _partition."partition_name");
+		_dropped_before := _partition."partition_to";
+	end loop;
+
+	if _dropped_before is not null then
+		delete from tig_ma_collections c where c.last_ts < _dropped_before;
+		update tig_ma_collections c set first_ts = coalesce((
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _dropped_before and m.ts <= c.last_ts
+					and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+			), c.last_ts)
+		where c.first_ts < _dropped_before;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+do $$
+declare
+	_index name;
+	_constraint name;
+	_start timestamp;
+begin
+if not exists (select 1 from pg_partitioned_table where partrelid = to_regclass('public.tig_ma_msgs')) then
+	-- names of indexes are unique within a schema, so indexes of the old table are renamed
+	for _index in select indexname from pg_indexes where schemaname = 'public' and tablename = 'tig_ma_msgs' loop
+		execute format('alter index %I rename to %I', _index, _index || '_old');
+	end loop;
+	alter table tig_ma_msgs rename to tig_ma_msgs_unpartitioned;
+	for _constraint in select conname from pg_constraint where contype = 'f' and conrelid = to_regclass('public.tig_ma_msgs_tags')
+			and confrelid = to_regclass('public.tig_ma_msgs_unpartitioned') loop
+		execute format('alter table tig_ma_msgs_tags drop constraint %I', _constraint);
+	end loop;
+	alter sequence tig_ma_msgs_msg_id_seq owned by none;
+
+	create table tig_ma_msgs (
+		msg_id bigint not null default nextval('tig_ma_msgs_msg_id_seq'),
+		owner_id bigint not null,
+		buddy_id bigint not null,
+		ts timestamp not null,
+		direction smallint,
+		"type" varchar(20),
+		body text,
+		msg text,
+		stanza_hash varchar(50),
+		buddy_res varchar(1024),
+
+		primary key (msg_id, ts),
+		foreign key (buddy_id) references tig_ma_jids (jid_id),
+		foreign key (owner_id) references tig_ma_jids (jid_id)
+	) partition by range (ts);
+	alter sequence tig_ma_msgs_msg_id_seq owned by tig_ma_msgs.msg_id;
+
+	create index tig_ma_msgs_owner_id_index on tig_ma_msgs (owner_id);
+	create index tig_ma_msgs_owner_id_buddy_id_index on tig_ma_msgs (owner_id, buddy_id);
+	create index tig_ma_msgs_owner_id_buddy_id_ts_index on tig_ma_msgs (owner_id, buddy_id, ts);
+	create unique index tig_ma_msgs_owner_id_buddy_id_stanza_hash_ts_index on tig_ma_msgs (owner_id, buddy_id, stanza_hash, ts);
+	create index tig_ma_msgs_owner_id_ts_msg_id_index on tig_ma_msgs (owner_id, ts, msg_id);
+	create index tig_ma_msgs_owner_id_stanza_hash_index on tig_ma_msgs (owner_id, stanza_hash);
+	create index tig_ma_msgs_owner_id_buddy_id_buddy_res_index on tig_ma_msgs (owner_id, buddy_id, buddy_res);
+	create index tig_ma_msgs_ts_index on tig_ma_msgs (ts);
+	if to_regclass('public.tig_ma_msgs_body_trgm_index_old') is not null then
+		create index tig_ma_msgs_body_trgm_index on tig_ma_msgs using gin (body gin_trgm_ops);
+	end if;
+
+	select date_trunc('month', coalesce(min(ts), localtimestamp)) into _start from tig_ma_msgs_unpartitioned;
+	execute format('create table %I partition of tig_ma_msgs for values from (%L) to (%L)',
+		'tig_ma_msgs_p' || to_char(_start, 'YYYYMMDD'), _start, _start + interval '1 month');
+	-- following partitions are created up to upcoming months before messages are copied
+	perform Tig_MA_EnsurePartitions(1);
+
+	insert into tig_ma_msgs (msg_id, owner_id, buddy_id, ts, direction, "type", body, msg, stanza_hash, buddy_res)
+		select msg_id, owner_id, buddy_id, ts, direction, "type", body, msg, stanza_hash, buddy_res
+		from tig_ma_msgs_unpartitioned;
+	drop table tig_ma_msgs_unpartitioned;
+end if;
+end$$;
+-- QUERY END:
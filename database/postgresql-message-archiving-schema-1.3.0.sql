@@ -101,6 +101,22 @@ if exists (select 1 where (select to_regclass('public.tig_ma_msgs_owner_id_buddy
 end if;
 end$$;
 -- QUERY END:
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_owner_id_ts_msg_id_index')) is null) then
+	create index tig_ma_msgs_owner_id_ts_msg_id_index on tig_ma_msgs (owner_id, ts, msg_id);
+end if;
+end$$;
+-- QUERY END:
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_owner_id_stanza_hash_index')) is null) then
+	create index tig_ma_msgs_owner_id_stanza_hash_index on tig_ma_msgs (owner_id, stanza_hash);
+end if;
+end$$;
+-- QUERY END:
 
 -- QUERY START:
 create table if not exists tig_ma_tags (
@@ -229,6 +245,133 @@ end if;
 end$$;
 -- QUERY END:
 
+-- summary of collections maintained when messages are stored or removed
+-- QUERY START:
+create table if not exists tig_ma_collections (
+	owner_id bigint not null,
+	buddy_id bigint not null,
+	"day" date not null,
+	"type" varchar(20) not null,
+	first_ts timestamp not null,
+	last_ts timestamp not null,
+
+	primary key (owner_id, buddy_id, "day", "type"),
+	foreign key (owner_id) references tig_ma_jids (jid_id),
+	foreign key (buddy_id) references tig_ma_jids (jid_id)
+);
+-- QUERY END:
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_collections_owner_id_first_ts_index')) is null) then
+	create index tig_ma_collections_owner_id_first_ts_index on tig_ma_collections (owner_id, first_ts);
+end if;
+end$$;
+-- QUERY END:
+
+-- retention periods of messages set by users of domains with user defined retention
+-- QUERY START:
+create table if not exists tig_ma_user_retention (
+	owner_id bigint not null,
+	expire bigint not null,
+
+	primary key (owner_id),
+	foreign key (owner_id) references tig_ma_jids (jid_id)
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_user_retention_expire_owner_id_index')) is null) then
+	create index tig_ma_user_retention_expire_owner_id_index on tig_ma_user_retention (expire, owner_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- old messages moved out of tig_ma_msgs, large values are compressed by TOAST
+-- QUERY START:
+create table if not exists tig_ma_msgs_cold (
+	msg_id bigint not null,
+	owner_id bigint not null,
+	buddy_id bigint not null,
+	buddy_res varchar(1024),
+	ts timestamp not null,
+	direction smallint,
+	"type" varchar(20),
+	body text,
+	msg text,
+	stanza_hash varchar(50),
+
+	primary key (owner_id, ts, msg_id),
+	foreign key (buddy_id) references tig_ma_jids (jid_id),
+	foreign key (owner_id) references tig_ma_jids (jid_id)
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_cold_ts_index')) is null) then
+	create index tig_ma_msgs_cold_ts_index on tig_ma_msgs_cold (ts);
+end if;
+end$$;
+-- QUERY END:
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_cold_msg_id_index')) is null) then
+	create index tig_ma_msgs_cold_msg_id_index on tig_ma_msgs_cold (msg_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- tags of messages in cold storage, which are referenced by id only, as primary key of cold storage starts with owner
+-- QUERY START:
+create table if not exists tig_ma_msgs_cold_tags (
+	msg_id bigint not null,
+	tag_id bigint not null,
+
+	primary key (msg_id, tag_id),
+	foreign key (tag_id) references tig_ma_tags (tag_id) on delete cascade
+);
+-- QUERY END:
+
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_cold_tags_tag_id_index')) is null) then
+	create index tig_ma_msgs_cold_tags_tag_id_index on tig_ma_msgs_cold_tags (tag_id);
+end if;
+end$$;
+-- QUERY END:
+
+-- indexes used to find JIDs which are no longer referenced
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_buddy_id_index')) is null) then
+	create index tig_ma_msgs_buddy_id_index on tig_ma_msgs (buddy_id);
+end if;
+end$$;
+-- QUERY END:
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_msgs_cold_buddy_id_index')) is null) then
+	create index tig_ma_msgs_cold_buddy_id_index on tig_ma_msgs_cold (buddy_id);
+end if;
+end$$;
+-- QUERY END:
+-- QUERY START:
+do $$
+begin
+if exists (select 1 where (select to_regclass('public.tig_ma_collections_buddy_id_index')) is null) then
+	create index tig_ma_collections_buddy_id_index on tig_ma_collections (buddy_id);
+end if;
+end$$;
+-- QUERY END:
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -237,7 +380,19 @@ end$$;
 create or replace function Tig_MA_GetHasTagsQuery(_in_str text) returns text as $$
 begin
 	if _in_str is not null then
-		return ' and exists(select 1 from tig_ma_msgs_tags mt inner join tig_ma_tags t on mt.tag_id = t.tag_id where m.msg_id = mt.msg_id and t.owner_id = o.jid_id and t.tag IN (' || _in_str || '))';
+		return ' and exists(select 1 from tig_ma_msgs_tags mt inner join tig_ma_tags t on mt.tag_id = t.tag_id where m.msg_id = mt.msg_id and t.owner_id = m.owner_id and t.tag IN (' || _in_str || '))';
+	else
+		return '';
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetColdHasTagsQuery(_in_str text) returns text as $$
+begin
+	if _in_str is not null then
+		return ' and exists(select 1 from tig_ma_msgs_cold_tags mt inner join tig_ma_tags t on mt.tag_id = t.tag_id where m.msg_id = mt.msg_id and t.owner_id = m.owner_id and t.tag IN (' || _in_str || '))';
 	else
 		return '';
 	end if;
@@ -271,35 +426,41 @@ create or replace function Tig_MA_GetMessages(_ownerJid varchar(2049), _buddyJid
 	"msg" text, "ts" timestamp, "direction" smallint, "buddyJid" varchar(2049), "stanza_hash" varchar(50)
 ) as $$
 declare 
+	_owner_id bigint;
+	_buddy_id bigint;
 	tags_query text;
 	contains_query text;
 	msgs_query text;
 	pagination_query text;
 	query_sql text;
 begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
 	if _tags is not null or _contains is not null then
 		select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
 		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
 		msgs_query := 'select m.msg, m.ts, m.direction, b.jid, m.stanza_hash
 		from tig_ma_msgs m 
-			inner join tig_ma_jids o on m.owner_id = o.jid_id 
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where 
-			lower(o.jid) = lower(%L)
-			and (%L is null or lower(b.jid) = lower(%L))
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
 			and (%L is null or m.ts >= %L)
 			and (%L is null or m.ts <= %L)';
 		pagination_query := ' limit %s offset %s';
 		query_sql = msgs_query || tags_query || contains_query || ' order by m.ts' || pagination_query;
-		return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to, _limit, _offset);
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to, _limit, _offset);
 	else
 		return query select m.msg, m.ts, m.direction, b.jid, m.stanza_hash
 		from tig_ma_msgs m 
-			inner join tig_ma_jids o on m.owner_id = o.jid_id 
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where 
-			lower(o.jid) = lower(_ownerJid)
-			and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+			m.owner_id = _owner_id
+			and (_buddyJid is null or m.buddy_id = _buddy_id)
 			and (_from is null or m.ts >= _from)
 			and (_to is null or m.ts <= _to)
 		order by m.ts
@@ -314,33 +475,39 @@ create or replace function Tig_MA_GetMessagesCount(_ownerJid varchar(2049), _bud
 	"count" bigint
 ) as $$
 declare 
+	_owner_id bigint;
+	_buddy_id bigint;
 	tags_query text;
 	contains_query text;
 	msgs_query text;
 	query_sql text;
 begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
 	if _tags is not null or _contains is not null then
 		select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
 		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
 		msgs_query := 'select count(m.msg_id)
 		from tig_ma_msgs m 
-			inner join tig_ma_jids o on m.owner_id = o.jid_id 
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where 
-			lower(o.jid) = lower(%L)
-			and (%L is null or lower(b.jid) = lower(%L))
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
 			and (%L is null or m.ts >= %L)
 			and (%L is null or m.ts <= %L)';
 		query_sql = msgs_query || tags_query || contains_query;
-		return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to);
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to);
 	else
 		return query select count(m.msg_id)
 		from tig_ma_msgs m 
-			inner join tig_ma_jids o on m.owner_id = o.jid_id 
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where 
-			lower(o.jid) = lower(_ownerJid)
-			and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+			m.owner_id = _owner_id
+			and (_buddyJid is null or m.buddy_id = _buddy_id)
 			and (_from is null or m.ts >= _from)
 			and (_to is null or m.ts <= _to);
 	end if;
@@ -353,35 +520,41 @@ create or replace function Tig_MA_GetMessagePosition(_ownerJid varchar(2049), _b
 	"position" bigint
 ) as $$
 declare
+	_owner_id bigint;
+	_buddy_id bigint;
 	tags_query text;
 	contains_query text;
 	msgs_query text;
 	query_sql text;
 begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
 	if _tags is not null or _contains is not null then
 		select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
 		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
 		msgs_query := 'select x.position from (
 		select row_number() over (w) as position, m.stanza_hash
 		from tig_ma_msgs m
-			inner join tig_ma_jids o on m.owner_id = o.jid_id
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where
-			lower(o.jid) = lower(%L)
-			and (%L is null or lower(b.jid) = lower(%L))
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
 			and (%L is null or m.ts >= %L)
 			and (%L is null or m.ts <= %L)';
 		query_sql = msgs_query || tags_query || contains_query || ' window w as (order by ts) ) x where x.stanza_hash = %L';
-		return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to, _hash);
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to, _hash);
 	else
 		return query select x.position from (
 		select row_number() over (w) as position, m.stanza_hash
 		from tig_ma_msgs m
-			inner join tig_ma_jids o on m.owner_id = o.jid_id
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where
-			lower(o.jid) = lower(_ownerJid)
-			and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+			m.owner_id = _owner_id
+			and (_buddyJid is null or m.buddy_id = _buddy_id)
 			and (_from is null or m.ts >= _from)
 			and (_to is null or m.ts <= _to)
 		window w as (order by ts)
@@ -391,11 +564,87 @@ end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
+-- QUERY START:
+create or replace function Tig_MA_GetMessagesPage(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _tags text, _contains text, _afterHash varchar(50), _beforeHash varchar(50), _lastPage smallint, _limit int, _offset int, _count bigint) returns table(
+	"msg" text, "ts" timestamp, "direction" smallint, "buddyJid" varchar(2049), "stanza_hash" varchar(50), "position" bigint, "count" bigint, "page_offset" bigint, "page_limit" bigint
+) as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+	tags_query text;
+	contains_query text;
+	msgs_query text;
+	msgs_count bigint;
+	hash_ts timestamp;
+	hash_id bigint;
+	_page_offset bigint;
+	_page_limit bigint;
+begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
+	select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+	msgs_query := format(' from tig_ma_msgs m
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)' || tags_query || contains_query, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to);
+
+	-- number of messages may be already known to the caller
+	if _count is null then
+		execute 'select count(m.msg_id)' || msgs_query into msgs_count;
+	else
+		msgs_count := _count;
+	end if;
+
+	_page_offset := _offset;
+	_page_limit := _limit;
+	if _afterHash is not null or _beforeHash is not null then
+		execute 'select m.ts, m.msg_id' || msgs_query || format(' and m.stanza_hash = %L order by m.ts, m.msg_id limit 1', coalesce(_afterHash, _beforeHash)) into hash_ts, hash_id;
+		-- position of a page next to a message is not counted, -1 is returned if the message was found
+		_page_offset := case when hash_id is null then null else -1 end;
+	elsif _lastPage = 1 then
+		_page_offset := greatest(msgs_count - _limit, 0);
+	end if;
+
+	return query select null::text, null::timestamp, null::smallint, null::varchar(2049), null::varchar(50), 0::bigint, msgs_count, _page_offset, _page_limit;
+	if _page_offset is null then
+		return;
+	end if;
+
+	-- messages around a known message and the last page are found by seeking on (ts, msg_id)
+	-- so the cost of retrieving a page does not depend on its position
+	if _afterHash is not null then
+		return query execute 'select x.msg, x.ts, x.direction, x.jid, x.stanza_hash, row_number() over (), null::bigint, null::bigint, null::bigint from (
+			select m.msg, m.ts, m.direction, b.jid, m.stanza_hash' || msgs_query
+			|| format(' and (m.ts > %L or (m.ts = %L and m.msg_id > %s)) order by m.ts, m.msg_id limit %s) x', hash_ts, hash_ts, hash_id, _page_limit);
+	elsif _beforeHash is not null or _lastPage = 1 then
+		return query execute 'select x.msg, x.ts, x.direction, x.jid, x.stanza_hash, row_number() over (order by x.ts, x.msg_id), null::bigint, null::bigint, null::bigint from (
+			select m.msg, m.ts, m.direction, b.jid, m.stanza_hash, m.msg_id' || msgs_query
+			|| case when _beforeHash is not null then format(' and (m.ts < %L or (m.ts = %L and m.msg_id < %s))', hash_ts, hash_ts, hash_id) else '' end
+			|| format(' order by m.ts desc, m.msg_id desc limit %s) x order by x.ts, x.msg_id', _page_limit);
+	else
+		return query execute 'select x.msg, x.ts, x.direction, x.jid, x.stanza_hash, row_number() over (), null::bigint, null::bigint, null::bigint from (
+			select m.msg, m.ts, m.direction, b.jid, m.stanza_hash' || msgs_query
+			|| format(' order by m.ts, m.msg_id limit %s offset %s) x', _page_limit, _page_offset);
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
 -- QUERY START:
 create or replace function Tig_MA_GetCollections(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _tags text, _contains text, byType smallint, _limit int, _offset int) returns table(
 	"ts" timestamp, "with" varchar(2049), "type" varchar(20)
 ) as $$
 declare 
+	_owner_id bigint;
+	_buddy_id bigint;
 	tags_query text;
 	contains_query text;
 	msgs_query text;
@@ -403,6 +652,12 @@ declare
 	groupby_query text;
 	query_sql text;
 begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
 	if _tags is not null or _contains is not null then
 		select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
 		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
@@ -414,11 +669,10 @@ begin
 		end if;
 		msgs_query := msgs_query ||
 		' from tig_ma_msgs m 
-			inner join tig_ma_jids o on m.owner_id = o.jid_id 
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where 
-			lower(o.jid) = lower(%L)
-			and (%L is null or lower(b.jid) = lower(%L))
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
 			and (%L is null or m.ts >= %L)
 			and (%L is null or m.ts <= %L)';
 		if byType = 1 then
@@ -428,16 +682,15 @@ begin
 		end if;
 		pagination_query := ' limit %s offset %s';
 		query_sql := msgs_query || tags_query || contains_query || groupby_query || ' order by min(m.ts), b.jid' || pagination_query;
-		return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to, _limit, _offset);
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to, _limit, _offset);
 	else
 		if byType = 1 then
 			return query select min(m.ts), b.jid, case when m.type = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end as "type"
 			from tig_ma_msgs m 
-				inner join tig_ma_jids o on m.owner_id = o.jid_id 
 				inner join tig_ma_jids b on b.jid_id = m.buddy_id
 			where 
-				lower(o.jid) = lower(_ownerJid)
-				and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+				m.owner_id = _owner_id
+				and (_buddyJid is null or m.buddy_id = _buddy_id)
 				and (_from is null or m.ts >= _from)
 					and (_to is null or m.ts <= _to)
 			group by date(m.ts), m.buddy_id, b.jid, case when m.type = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end
@@ -446,11 +699,10 @@ begin
 		else
 			return query select min(m.ts), b.jid, cast(null as varchar(20)) as "type"
 			from tig_ma_msgs m 
-				inner join tig_ma_jids o on m.owner_id = o.jid_id 
 				inner join tig_ma_jids b on b.jid_id = m.buddy_id
 			where 
-				lower(o.jid) = lower(_ownerJid)
-				and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+				m.owner_id = _owner_id
+				and (_buddyJid is null or m.buddy_id = _buddy_id)
 				and (_from is null or m.ts >= _from)
 					and (_to is null or m.ts <= _to)
 			group by date(m.ts), m.buddy_id, b.jid
@@ -467,12 +719,20 @@ create or replace function Tig_MA_GetCollectionsCount(_ownerJid varchar(2049), _
 	"count" bigint
 ) as $$
 declare 
+	_owner_id bigint;
+	_buddy_id bigint;
 	tags_query text;
 	contains_query text;
 	msgs_query text;
 	groupby_query text;
 	query_sql text;
 begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
 	if _tags is not null or _contains is not null then
 		select Tig_MA_GetHasTagsQuery(_tags) into tags_query;
 		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
@@ -484,11 +744,10 @@ begin
 		end if;
 		msgs_query := msgs_query ||
 		' from tig_ma_msgs m 
-			inner join tig_ma_jids o on m.owner_id = o.jid_id 
 			inner join tig_ma_jids b on b.jid_id = m.buddy_id
 		where 
-			o.jid = %L
-			and (%L is null or b.jid = %L)
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
 			and (%L is null or m.ts >= %L)
 			and (%L is null or m.ts <= %L)';
 		if byType = 1 then
@@ -497,27 +756,25 @@ begin
 			groupby_query := ' group by date(m.ts), m.buddy_id, b.jid';
 		end if;
 		query_sql := msgs_query || tags_query || contains_query || groupby_query || ') x';
-		return query execute format(query_sql, _ownerJid, _buddyJid, _buddyJid, _from, _from, _to, _to);
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to);
 	else
 		if byType = 1 then
 			return query select count(1) from (select min(m.ts), b.jid, case when m.type = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end as "type"
 			from tig_ma_msgs m 
-				inner join tig_ma_jids o on m.owner_id = o.jid_id 
 				inner join tig_ma_jids b on b.jid_id = m.buddy_id
 			where 
-				lower(o.jid) = lower(_ownerJid)
-				and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+				m.owner_id = _owner_id
+				and (_buddyJid is null or m.buddy_id = _buddy_id)
 				and (_from is null or m.ts >= _from)
 					and (_to is null or m.ts <= _to)
 			group by date(m.ts), m.buddy_id, b.jid, case when m.type = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end) x;
 		else
 			return query select count(1) from (select min(m.ts), b.jid, cast(null as varchar(20)) as "type"
 			from tig_ma_msgs m 
-				inner join tig_ma_jids o on m.owner_id = o.jid_id 
 				inner join tig_ma_jids b on b.jid_id = m.buddy_id
 			where 
-				lower(o.jid) = lower(_ownerJid)
-				and (_buddyJid is null or lower(b.jid) = lower(_buddyJid))
+				m.owner_id = _owner_id
+				and (_buddyJid is null or m.buddy_id = _buddy_id)
 				and (_from is null or m.ts >= _from)
 					and (_to is null or m.ts <= _to)
 			group by date(m.ts), m.buddy_id, b.jid) x;
@@ -528,6 +785,160 @@ $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
 
+-- QUERY START:
+create or replace function Tig_MA_GetStoredCollections(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, byType smallint, _limit int, _offset int) returns table(
+	"ts" timestamp, "with" varchar(2049), "type" varchar(20)
+) as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	return query select y.ts, y.jid, y."type" from (
+		-- start of a collection partially out of range needs to be found within messages
+		select case when _from is null or c.first_ts >= _from then c.first_ts else (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _from and m.ts <= c.last_ts
+					and (_to is null or m.ts <= _to)
+					and (byType = 0 or (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type")
+			) end as ts, b.jid, case when byType = 1 then cast(c."type" as varchar(20)) else cast(null as varchar(20)) end as "type"
+		from (
+			select x.owner_id, x.buddy_id, x."day", case when byType = 1 then x."type" else '' end as "type", min(x.first_ts) as first_ts, max(x.last_ts) as last_ts
+			from tig_ma_collections x
+			where
+				x.owner_id = _owner_id
+				and (_from is null or x.last_ts >= _from)
+				and (_to is null or x.first_ts <= _to)
+			group by x.owner_id, x.buddy_id, x."day", case when byType = 1 then x."type" else '' end
+		) c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		where
+			(_buddyJid is null or c.buddy_id = _buddy_id)
+	) y
+	where y.ts is not null
+	order by y.ts, y.jid
+	limit _limit offset _offset;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetStoredCollectionsCount(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, byType smallint) returns table(
+	"count" bigint
+) as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+begin
+	-- ids of JIDs are resolved once, so messages are filtered using indexes on ids
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	return query select count(1) from (
+		select case when _from is null or c.first_ts >= _from then c.first_ts else (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _from and m.ts <= c.last_ts
+					and (_to is null or m.ts <= _to)
+					and (byType = 0 or (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type")
+			) end as ts
+		from (
+			select x.owner_id, x.buddy_id, x."day", case when byType = 1 then x."type" else '' end as "type", min(x.first_ts) as first_ts, max(x.last_ts) as last_ts
+			from tig_ma_collections x
+			where
+				x.owner_id = _owner_id
+				and (_from is null or x.last_ts >= _from)
+				and (_to is null or x.first_ts <= _to)
+			group by x.owner_id, x.buddy_id, x."day", case when byType = 1 then x."type" else '' end
+		) c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		where
+			(_buddyJid is null or c.buddy_id = _buddy_id)
+	) y
+	where y.ts is not null;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_UpdateCollection(_ownerId bigint, _buddyId bigint, _ts timestamp, _type varchar(20)) returns void as $$
+declare
+	_collection_type varchar(20);
+begin
+	_collection_type := case when _type = 'groupchat' then 'groupchat' else '' end;
+	update tig_ma_collections set first_ts = least(first_ts, _ts), last_ts = greatest(last_ts, _ts)
+		where owner_id = _ownerId and buddy_id = _buddyId and "day" = date(_ts) and "type" = _collection_type;
+	if not found then
+		begin
+			insert into tig_ma_collections (owner_id, buddy_id, "day", "type", first_ts, last_ts)
+				values (_ownerId, _buddyId, date(_ts), _collection_type, _ts, _ts);
+		exception when unique_violation then
+			update tig_ma_collections set first_ts = least(first_ts, _ts), last_ts = greatest(last_ts, _ts)
+				where owner_id = _ownerId and buddy_id = _buddyId and "day" = date(_ts) and "type" = _collection_type;
+		end;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_MoveLateMessageToCold(_msgId bigint, _ownerId bigint, _ts timestamp) returns void as $$
+begin
+	-- message older than messages of its owner in cold storage is moved there at once,
+	-- so messages in cold storage still precede all messages of the owner in tig_ma_msgs
+	if _ts < (select max(ts) from tig_ma_msgs_cold where owner_id = _ownerId) then
+		insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, direction, "type", body, msg, stanza_hash)
+			select msg_id, owner_id, buddy_id, buddy_res, ts, direction, "type", body, msg, stanza_hash
+			from tig_ma_msgs where msg_id = _msgId and ts = _ts;
+		delete from tig_ma_msgs where msg_id = _msgId and ts = _ts;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_BackfillCollections(_lastOwnerId bigint, _limit int) returns bigint as $$
+declare
+	_max_owner_id bigint;
+begin
+	select max(x.jid_id) into _max_owner_id from (
+		select jid_id from tig_ma_jids where jid_id > _lastOwnerId order by jid_id limit _limit
+	) x;
+	if _max_owner_id is null then
+		return null;
+	end if;
+
+	-- collections of messages stored in the meantime are merged with collections of older messages
+	with a as (
+		select owner_id, buddy_id, date(ts) as "day", case when "type" = 'groupchat' then 'groupchat' else '' end as "type", min(ts) as first_ts, max(ts) as last_ts
+		from tig_ma_msgs
+		where owner_id > _lastOwnerId and owner_id <= _max_owner_id
+		group by owner_id, buddy_id, date(ts), case when "type" = 'groupchat' then 'groupchat' else '' end
+	), updated as (
+		update tig_ma_collections c set first_ts = least(c.first_ts, a.first_ts), last_ts = greatest(c.last_ts, a.last_ts)
+		from a
+		where c.owner_id = a.owner_id and c.buddy_id = a.buddy_id and c."day" = a."day" and c."type" = a."type"
+			and (a.first_ts < c.first_ts or a.last_ts > c.last_ts)
+		returning c.owner_id
+	)
+	insert into tig_ma_collections (owner_id, buddy_id, "day", "type", first_ts, last_ts)
+		select a.owner_id, a.buddy_id, a."day", a."type", a.first_ts, a.last_ts from a
+		where not exists (
+			select 1 from tig_ma_collections c
+			where c.owner_id = a.owner_id and c.buddy_id = a.buddy_id and c."day" = a."day" and c."type" = a."type"
+		);
+
+	return _max_owner_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
 -- QUERY START:
 create or replace function Tig_MA_EnsureJid(_jid varchar(2049)) returns bigint as $$
 declare
@@ -591,11 +1002,76 @@ begin
 	exception when unique_violation then
 	end;
 
+	if _msg_id is not null then
+		perform Tig_MA_UpdateCollection(_owner_id, _buddy_id, _ts, _type);
+		perform Tig_MA_MoveLateMessageToCold(_msg_id, _owner_id, _ts);
+	end if;
+
 	return _msg_id;
 end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
+-- QUERY START:
+create or replace function Tig_MA_EnsureJidId(_jid varchar(2049)) returns bigint as $$
+begin
+	return Tig_MA_EnsureJid(_jid);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddMessageById(_ownerId bigint, _buddyId bigint, _buddyRes varchar(1024), _ts timestamp,
+	_direction smallint, _type varchar(20), _body text, _msg text, _hash varchar(50)) returns bigint as $$
+declare
+	_msg_id bigint;
+	_tsFrom timestamp;
+	_tsTo timestamp;
+begin
+    if _type = 'groupchat' then
+        select _ts - interval '30 minutes', _ts + interval '30 minutes' into _tsFrom, _tsTo;
+    else
+        select _ts, _ts into _tsFrom, _tsTo;
+    end if;
+
+    begin
+	    with inserted_msg as (
+		    insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, "type", body, msg, stanza_hash)
+		    select _ownerId, _buddyId, _buddyRes, _ts, _direction, _type, _body, _msg, _hash
+		    where not exists (
+			    select 1
+			    from tig_ma_msgs
+			    where owner_id = _ownerId
+			        and buddy_id = _buddyId
+			        and stanza_hash = _hash
+			        and ts between _tsFrom  and _tsTo
+		    )
+		    returning msg_id
+	    )
+	    select msg_id into _msg_id from inserted_msg;
+	exception when unique_violation then
+	end;
+
+	if _msg_id is not null then
+		perform Tig_MA_UpdateCollection(_ownerId, _buddyId, _ts, _type);
+		perform Tig_MA_MoveLateMessageToCold(_msg_id, _ownerId, _ts);
+	end if;
+
+	return _msg_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+-- same as Tig_MA_AddMessageById but id of the message is not returned, so it may be executed in a batch
+create or replace function Tig_MA_StoreMessageById(_ownerId bigint, _buddyId bigint, _buddyRes varchar(1024), _ts timestamp,
+	_direction smallint, _type varchar(20), _body text, _msg text, _hash varchar(50)) returns void as $$
+begin
+	perform Tig_MA_AddMessageById(_ownerId, _buddyId, _buddyRes, _ts, _direction, _type, _body, _msg, _hash);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
 -- QUERY START:
 create or replace function Tig_MA_AddTagToMessage(_msgId bigint, _tag varchar(255)) returns void as $$
 declare
@@ -603,6 +1079,9 @@ declare
 	_owner_id bigint;
 begin
 	select owner_id into _owner_id from tig_ma_msgs where msg_id = _msgId;
+	if _owner_id is null then
+		select owner_id into _owner_id from tig_ma_msgs_cold where msg_id = _msgId;
+	end if;
 	select tag_id into _tag_id from tig_ma_tags where owner_id = _owner_id and tag = _tag;
 	if _tag_id is null then
 	    begin
@@ -619,9 +1098,50 @@ begin
 			select tag_id into _tag_id  from tig_ma_tags where owner_id = _owner_id and tag = _tag;
 		end if;
 	end if;
-	insert into tig_ma_msgs_tags (msg_id, tag_id) select _msgId, _tag_id where not exists (
-		select 1 from tig_ma_msgs_tags where msg_id = _msgId and tag_id = _tag_id
-	);
+	perform Tig_MA_AddTagToMessageById(_msgId, _tag_id);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_EnsureTagId(_ownerId bigint, _tag varchar(255)) returns bigint as $$
+declare
+	_tag_id bigint;
+begin
+	select tag_id into _tag_id from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+	if _tag_id is null then
+	    begin
+    		with inserted as (
+	    		insert into tig_ma_tags (owner_id, tag) select _ownerId, _tag where not exists(
+				    select 1 from tig_ma_tags where owner_id = _ownerId and tag = _tag
+			    ) returning tag_id
+		    )
+		    select tag_id into _tag_id from inserted;
+		exception when unique_violation then
+		end;
+
+		if _tag_id is null then
+			select tag_id into _tag_id  from tig_ma_tags where owner_id = _ownerId and tag = _tag;
+		end if;
+	end if;
+	return _tag_id;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_AddTagToMessageById(_msgId bigint, _tagId bigint) returns void as $$
+begin
+	-- message stored with an old timestamp may be already in cold storage
+	if exists (select 1 from tig_ma_msgs where msg_id = _msgId) then
+		insert into tig_ma_msgs_tags (msg_id, tag_id) select _msgId, _tagId where not exists (
+			select 1 from tig_ma_msgs_tags where msg_id = _msgId and tag_id = _tagId
+		);
+	else
+		insert into tig_ma_msgs_cold_tags (msg_id, tag_id) select _msgId, _tagId where not exists (
+			select 1 from tig_ma_msgs_cold_tags where msg_id = _msgId and tag_id = _tagId
+		);
+	end if;
 end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
@@ -636,7 +1156,25 @@ begin
 	_buddy_id = 0;
 	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
 	select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+	delete from tig_ma_msgs_tags mt using tig_ma_msgs m
+		where mt.msg_id = m.msg_id and m.owner_id = _owner_id and m.buddy_id = _buddy_id and m.ts >= _from and m.ts <= _to;
 	delete from tig_ma_msgs where owner_id = _owner_id and buddy_id = _buddy_id and ts >= _from and ts <= _to;
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete from tig_ma_msgs_cold_tags mt using tig_ma_msgs_cold m
+		where mt.msg_id = m.msg_id and m.owner_id = _owner_id and m.buddy_id = _buddy_id and m.ts >= _from and m.ts <= _to;
+	delete from tig_ma_msgs_cold where owner_id = _owner_id and buddy_id = _buddy_id and ts >= _from and ts <= _to;
+	-- collections of days of removed messages are calculated again from remaining messages
+	delete from tig_ma_collections where owner_id = _owner_id and buddy_id = _buddy_id and "day" >= date(_from) and "day" <= date(_to);
+	insert into tig_ma_collections (owner_id, buddy_id, "day", "type", first_ts, last_ts)
+		select owner_id, buddy_id, date(ts), case when "type" = 'groupchat' then 'groupchat' else '' end, min(ts), max(ts)
+		from (
+			select owner_id, buddy_id, ts, "type" from tig_ma_msgs
+			union all
+			select owner_id, buddy_id, ts, "type" from tig_ma_msgs_cold
+		) m
+		where owner_id = _owner_id and buddy_id = _buddy_id and ts >= date(_from) and ts < date(_to) + 1
+		group by owner_id, buddy_id, date(ts), case when "type" = 'groupchat' then 'groupchat' else '' end;
 end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
@@ -644,7 +1182,389 @@ $$ LANGUAGE 'plpgsql';
 -- QUERY START:
 create or replace function Tig_MA_DeleteExpiredMessages(_domain varchar(1024), _before timestamp) returns void as $$
 begin
+	-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+	delete from tig_ma_msgs_tags mt using tig_ma_msgs m, tig_ma_jids j
+		where mt.msg_id = m.msg_id and m.ts < _before and j.jid_id = m.owner_id and j."domain" = _domain;
 	delete from tig_ma_msgs where ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and "domain" = _domain);
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete from tig_ma_msgs_cold_tags mt using tig_ma_msgs_cold m, tig_ma_jids j
+		where mt.msg_id = m.msg_id and m.ts < _before and j.jid_id = m.owner_id and j."domain" = _domain;
+	delete from tig_ma_msgs_cold where ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and "domain" = _domain);
+	delete from tig_ma_collections c where c.last_ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = c.owner_id and "domain" = _domain);
+	-- messages in cold storage are older than messages in tig_ma_msgs
+	update tig_ma_collections c set first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+		), c.last_ts)
+	where c.first_ts < _before and exists (select 1 from tig_ma_jids j where j.jid_id = c.owner_id and "domain" = _domain);
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredMessagesChunk(_domain varchar(1024), _before timestamp, _limit int) returns bigint as $$
+declare
+	_chunk_to timestamp;
+	_deleted bigint;
+	_deleted_hot bigint;
+begin
+	-- chunk ends at timestamp of the last of the oldest expired messages, so next chunk starts where it stopped;
+	-- messages in cold storage are older than messages in tig_ma_msgs, so they are removed first
+	select max(x.ts) into _chunk_to from (
+		select m.ts from tig_ma_msgs_cold m inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < _before and j."domain" = _domain
+		order by m.ts
+		limit _limit
+	) x;
+	if _chunk_to is null then
+		select max(x.ts) into _chunk_to from (
+			select m.ts from tig_ma_msgs m inner join tig_ma_jids j on j.jid_id = m.owner_id
+			where m.ts < _before and j."domain" = _domain
+			order by m.ts
+			limit _limit
+		) x;
+	end if;
+	if _chunk_to is null then
+		return 0;
+	end if;
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete from tig_ma_msgs_cold_tags mt using tig_ma_msgs_cold m, tig_ma_jids j
+		where mt.msg_id = m.msg_id and m.ts <= _chunk_to and j.jid_id = m.owner_id and j."domain" = _domain;
+	delete from tig_ma_msgs_cold where ts <= _chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and "domain" = _domain);
+	get diagnostics _deleted = row_count;
+	-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+	delete from tig_ma_msgs_tags mt using tig_ma_msgs m, tig_ma_jids j
+		where mt.msg_id = m.msg_id and m.ts <= _chunk_to and j.jid_id = m.owner_id and j."domain" = _domain;
+	delete from tig_ma_msgs where ts <= _chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and "domain" = _domain);
+	get diagnostics _deleted_hot = row_count;
+	delete from tig_ma_collections c where c.last_ts <= _chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = c.owner_id and "domain" = _domain);
+	update tig_ma_collections c set first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > _chunk_to and m.ts <= c.last_ts
+				and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > _chunk_to and m.ts <= c.last_ts
+				and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+		), c.last_ts)
+	where c.first_ts <= _chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = c.owner_id and "domain" = _domain);
+	return _deleted + _deleted_hot;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_SetUserRetention(_ownerJid varchar(2049), _expire bigint) returns void as $$
+declare
+	_owner_id bigint;
+begin
+	if _expire is null then
+		delete from tig_ma_user_retention r using tig_ma_jids j where j.jid_id = r.owner_id and lower(j.jid) = lower(_ownerJid);
+		return;
+	end if;
+	select Tig_MA_EnsureJid(_ownerJid) into _owner_id;
+	update tig_ma_user_retention set expire = _expire where owner_id = _owner_id;
+	if not found then
+		begin
+			insert into tig_ma_user_retention (owner_id, expire) values (_owner_id, _expire);
+		exception when unique_violation then
+			update tig_ma_user_retention set expire = _expire where owner_id = _owner_id;
+		end;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetUserRetentionBuckets(_domain varchar(1024)) returns table (
+	expire bigint, users bigint
+) as $$
+begin
+	return query select r.expire, count(1)
+		from tig_ma_user_retention r
+		inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where j."domain" = _domain
+		group by r.expire;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteExpiredUserMessages(_domain varchar(1024), _expire bigint, _before timestamp) returns void as $$
+begin
+	-- messages of all users of a domain with the same retention period are removed at once
+	delete from tig_ma_msgs_tags mt using tig_ma_msgs m, tig_ma_user_retention r, tig_ma_jids j
+		where mt.msg_id = m.msg_id and r.owner_id = m.owner_id and j.jid_id = r.owner_id
+			and r.expire = _expire and j."domain" = _domain and m.ts < _before;
+	delete from tig_ma_msgs m using tig_ma_user_retention r, tig_ma_jids j
+		where r.owner_id = m.owner_id and j.jid_id = r.owner_id
+			and r.expire = _expire and j."domain" = _domain and m.ts < _before;
+	delete from tig_ma_msgs_cold_tags mt using tig_ma_msgs_cold m, tig_ma_user_retention r, tig_ma_jids j
+		where mt.msg_id = m.msg_id and r.owner_id = m.owner_id and j.jid_id = r.owner_id
+			and r.expire = _expire and j."domain" = _domain and m.ts < _before;
+	delete from tig_ma_msgs_cold m using tig_ma_user_retention r, tig_ma_jids j
+		where r.owner_id = m.owner_id and j.jid_id = r.owner_id
+			and r.expire = _expire and j."domain" = _domain and m.ts < _before;
+	delete from tig_ma_collections c using tig_ma_user_retention r, tig_ma_jids j
+		where r.owner_id = c.owner_id and j.jid_id = r.owner_id
+			and r.expire = _expire and j."domain" = _domain and c.last_ts < _before;
+	-- messages in cold storage are older than messages in tig_ma_msgs
+	update tig_ma_collections c set first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= _before and m.ts <= c.last_ts
+				and (case when m."type" = 'groupchat' then 'groupchat' else '' end) = c."type"
+		), c.last_ts)
+	from tig_ma_user_retention r, tig_ma_jids j
+	where r.owner_id = c.owner_id and j.jid_id = r.owner_id
+		and r.expire = _expire and j."domain" = _domain and c.first_ts < _before;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_MoveMessagesToCold(_before timestamp, _limit int) returns bigint as $$
+declare
+	_batch_to timestamp;
+	_moved bigint;
+begin
+	-- batch ends at timestamp of the last of the oldest messages, so messages are moved in order of time
+	select max(x.ts) into _batch_to from (
+		select ts from tig_ma_msgs
+		where ts < _before
+		order by ts
+		limit _limit
+	) x;
+	if _batch_to is null then
+		return 0;
+	end if;
+	insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, direction, "type", body, msg, stanza_hash)
+		select msg_id, owner_id, buddy_id, buddy_res, ts, direction, "type", body, msg, stanza_hash
+		from tig_ma_msgs where ts <= _batch_to;
+	get diagnostics _moved = row_count;
+	insert into tig_ma_msgs_cold_tags (msg_id, tag_id)
+		select mt.msg_id, mt.tag_id from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id where m.ts <= _batch_to;
+	-- tags are removed explicitly, as partitioned table of messages has no foreign keys
+	delete from tig_ma_msgs_tags mt using tig_ma_msgs m where mt.msg_id = m.msg_id and m.ts <= _batch_to;
+	delete from tig_ma_msgs where ts <= _batch_to;
+	return _moved;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- functions querying cold storage are filtering by tags and bodies of messages as well
+-- QUERY START:
+drop function if exists Tig_MA_GetColdMessages(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _limit int, _offset int);
+-- QUERY END:
+
+-- QUERY START:
+drop function if exists Tig_MA_GetColdMessagesCount(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp);
+-- QUERY END:
+
+-- QUERY START:
+drop function if exists Tig_MA_GetColdMessagePosition(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _hash varchar(50));
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetColdMessages(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _tags text, _contains text, _limit int, _offset int) returns table(
+	"msg" text, "ts" timestamp, "direction" smallint, "buddyJid" varchar(2049), "stanza_hash" varchar(50)
+) as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+	tags_query text;
+	contains_query text;
+	msgs_query text;
+	query_sql text;
+begin
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	if _tags is not null or _contains is not null then
+		select Tig_MA_GetColdHasTagsQuery(_tags) into tags_query;
+		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+		msgs_query := 'select m.msg, m.ts, m.direction, b.jid, m.stanza_hash
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)';
+		query_sql = msgs_query || tags_query || contains_query || ' order by m.ts limit %s offset %s';
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to, _limit, _offset);
+	else
+		return query select m.msg, m.ts, m.direction, b.jid, m.stanza_hash
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			m.owner_id = _owner_id
+			and (_buddyJid is null or m.buddy_id = _buddy_id)
+			and (_from is null or m.ts >= _from)
+			and (_to is null or m.ts <= _to)
+		order by m.ts
+		limit _limit offset _offset;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetColdMessagesCount(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _tags text, _contains text) returns table(
+	"count" bigint
+) as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+	tags_query text;
+	contains_query text;
+	msgs_query text;
+	query_sql text;
+begin
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	if _tags is not null or _contains is not null then
+		select Tig_MA_GetColdHasTagsQuery(_tags) into tags_query;
+		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+		msgs_query := 'select count(m.msg_id)
+		from tig_ma_msgs_cold m
+		where
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)';
+		query_sql = msgs_query || tags_query || contains_query;
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to);
+	else
+		return query select count(m.msg_id)
+		from tig_ma_msgs_cold m
+		where
+			m.owner_id = _owner_id
+			and (_buddyJid is null or m.buddy_id = _buddy_id)
+			and (_from is null or m.ts >= _from)
+			and (_to is null or m.ts <= _to);
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_GetColdMessagePosition(_ownerJid varchar(2049), _buddyJid varchar(2049), _from timestamp, _to timestamp, _tags text, _contains text, _hash varchar(50)) returns table(
+	"position" bigint
+) as $$
+declare
+	_owner_id bigint;
+	_buddy_id bigint;
+	tags_query text;
+	contains_query text;
+	msgs_query text;
+	query_sql text;
+begin
+	select jid_id into _owner_id from tig_ma_jids where lower(jid) = lower(_ownerJid);
+	if _buddyJid is not null then
+		select jid_id into _buddy_id from tig_ma_jids where lower(jid) = lower(_buddyJid);
+	end if;
+
+	if _tags is not null or _contains is not null then
+		select Tig_MA_GetColdHasTagsQuery(_tags) into tags_query;
+		select Tig_MA_GetBodyContainsQuery(_contains) into contains_query;
+		msgs_query := 'select x.position from (
+		select row_number() over (w) as position, m.stanza_hash
+		from tig_ma_msgs_cold m
+		where
+			m.owner_id = %L
+			and (%L is null or m.buddy_id = %L)
+			and (%L is null or m.ts >= %L)
+			and (%L is null or m.ts <= %L)';
+		query_sql = msgs_query || tags_query || contains_query || ' window w as (order by ts) ) x where x.stanza_hash = %L';
+		return query execute format(query_sql, _owner_id, _buddyJid, _buddy_id, _from, _from, _to, _to, _hash);
+	else
+		return query select x.position from (
+			select row_number() over (w) as position, m.stanza_hash
+			from tig_ma_msgs_cold m
+			where
+				m.owner_id = _owner_id
+				and (_buddyJid is null or m.buddy_id = _buddy_id)
+				and (_from is null or m.ts >= _from)
+				and (_to is null or m.ts <= _to)
+			window w as (order by ts)
+		) x where x.stanza_hash = _hash;
+	end if;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteOrphanedJids(_lastJidId bigint, _limit int) returns table(
+	"last_jid_id" bigint, "deleted" bigint
+) as $$
+declare
+	_max_jid_id bigint;
+	_deleted bigint;
+begin
+	select max(x.jid_id) into _max_jid_id from (
+		select jid_id from tig_ma_jids where jid_id > _lastJidId order by jid_id limit _limit
+	) x;
+	if _max_jid_id is null then
+		return query select null::bigint, 0::bigint;
+		return;
+	end if;
+
+	-- references are checked by the delete itself, so JIDs used in the meantime are kept
+	delete from tig_ma_jids j
+	where j.jid_id > _lastJidId and j.jid_id <= _max_jid_id
+		and not exists (select 1 from tig_ma_msgs m where m.owner_id = j.jid_id)
+		and not exists (select 1 from tig_ma_msgs m where m.buddy_id = j.jid_id)
+		and not exists (select 1 from tig_ma_msgs_cold m where m.owner_id = j.jid_id)
+		and not exists (select 1 from tig_ma_msgs_cold m where m.buddy_id = j.jid_id)
+		and not exists (select 1 from tig_ma_collections c where c.owner_id = j.jid_id)
+		and not exists (select 1 from tig_ma_collections c where c.buddy_id = j.jid_id)
+		and not exists (select 1 from tig_ma_tags t where t.owner_id = j.jid_id)
+		and not exists (select 1 from tig_ma_user_retention r where r.owner_id = j.jid_id);
+	get diagnostics _deleted = row_count;
+
+	return query select _max_jid_id, _deleted;
+end;
+$$ LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function Tig_MA_DeleteOrphanedTags(_lastTagId bigint, _limit int) returns table(
+	"last_tag_id" bigint, "deleted" bigint
+) as $$
+declare
+	_max_tag_id bigint;
+	_deleted bigint;
+begin
+	select max(x.tag_id) into _max_tag_id from (
+		select tag_id from tig_ma_tags where tag_id > _lastTagId order by tag_id limit _limit
+	) x;
+	if _max_tag_id is null then
+		return query select null::bigint, 0::bigint;
+		return;
+	end if;
+
+	-- references are checked by the delete itself, so tags used in the meantime are kept
+	delete from tig_ma_tags t
+	where t.tag_id > _lastTagId and t.tag_id <= _max_tag_id
+		and not exists (select 1 from tig_ma_msgs_tags mt where mt.tag_id = t.tag_id)
+		and not exists (select 1 from tig_ma_msgs_cold_tags mt where mt.tag_id = t.tag_id);
+	get diagnostics _deleted = row_count;
+
+	return query select _max_tag_id, _deleted;
 end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
@@ -677,3 +1597,26 @@ end;
 $$ LANGUAGE 'plpgsql';
 -- QUERY END:
 
+-- retention periods set by users were kept only in the user repository before,
+-- which is available only if it is stored in the same database
+-- QUERY START:
+do $$
+declare
+	_jid varchar(2049);
+	_expire bigint;
+begin
+if (select to_regclass('public.tig_pairs')) is not null then
+	for _jid, _expire in execute 'select u.user_id, cast(p.pval as bigint) from tig_pairs p
+			inner join tig_nodes n on n.nid = p.nid and n.node = ''settings''
+			inner join tig_nodes a on a.nid = n.parent_nid and a.node = ''message-archive''
+			inner join tig_users u on u.uid = p.uid
+			where p.pkey = ''expire'' and p.pval ~ ''^[0-9]{1,18}$'''
+	loop
+		if _expire > 0 and not exists (select 1 from tig_ma_user_retention r inner join tig_ma_jids j on j.jid_id = r.owner_id
+				where lower(j.jid) = lower(_jid)) then
+			perform Tig_MA_SetUserRetention(_jid, _expire);
+		end if;
+	end loop;
+end if;
+end$$;
+-- QUERY END:
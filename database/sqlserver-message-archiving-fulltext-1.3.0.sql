@@ -0,0 +1,42 @@
+ --
+--  Tigase Message Archiving Component
+--  Copyright (C) 2016 "Tigase, Inc." <office@tigase.com>
+--
+--  This program is free software: you can redistribute it and/or modify
+--  it under the terms of the GNU Affero General Public License as published by
+--  the Free Software Foundation, either version 3 of the License.
+--
+--  This program is distributed in the hope that it will be useful,
+--  but WITHOUT ANY WARRANTY; without even the implied warranty of
+--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+--  GNU Affero General Public License for more details.
+--
+--  You should have received a copy of the GNU Affero General Public License
+--  along with this program. Look for COPYING file in the top folder.
+--  If not, see http://www.gnu.org/licenses/.
+
+-- Optional full-text index of bodies of messages used to search messages by text.
+-- Full-text index finds only terms starting at the beginning of a word, so searching with it does not
+-- find terms in the middle of a word. For that reason it is not used by stored procedures until enabled with:
+--
+--   exec sp_addextendedproperty @name = N'tig_ma_fulltext_search', @value = N'prefix',
+--   	@level0type = N'SCHEMA', @level0name = N'dbo', @level1type = N'TABLE', @level1name = N'tig_ma_msgs';
+--
+-- Index is created without stoplist, so terms being stop-words are found as well.
+-- Creation of the index on a large archive takes long time, so it should be scheduled accordingly.
+
+-- QUERY START:
+IF NOT EXISTS (SELECT * FROM sys.fulltext_catalogs WHERE name = 'tig_ma_fulltext_catalog')
+	CREATE FULLTEXT CATALOG tig_ma_fulltext_catalog;
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS (SELECT * FROM sys.fulltext_indexes WHERE object_id = object_id('dbo.tig_ma_msgs'))
+begin
+	declare @_pk_name sysname;
+	select @_pk_name = name from sys.indexes where object_id = object_id('dbo.tig_ma_msgs') and is_primary_key = 1;
+	exec (N'CREATE FULLTEXT INDEX ON [dbo].[tig_ma_msgs] ([body]) KEY INDEX ' + QUOTENAME(@_pk_name) + N' ON tig_ma_fulltext_catalog WITH CHANGE_TRACKING AUTO, STOPLIST OFF');
+end
+-- QUERY END:
+GO
@@ -86,6 +86,16 @@ IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_
 CREATE INDEX IX_tig_ma_msgs_owner_id_buddy_id_stanza_hash_ts_index ON [dbo].[tig_ma_msgs] ([owner_id], [buddy_id], [stanza_hash], [ts]);
 -- QUERY END:
 GO
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs') AND NAME ='IX_tig_ma_msgs_owner_id_ts_msg_id_index')
+CREATE INDEX IX_tig_ma_msgs_owner_id_ts_msg_id_index ON [dbo].[tig_ma_msgs] ([owner_id], [ts], [msg_id]);
+-- QUERY END:
+GO
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs') AND NAME ='IX_tig_ma_msgs_owner_id_stanza_hash_index')
+CREATE INDEX IX_tig_ma_msgs_owner_id_stanza_hash_index ON [dbo].[tig_ma_msgs] ([owner_id], [stanza_hash]);
+-- QUERY END:
+GO
 
 IF NOT EXISTS (select * from sysobjects where name='tig_ma_tags' and xtype='U')
 	CREATE TABLE [dbo].[tig_ma_tags] (
@@ -205,6 +215,125 @@ ALTER TABLE [dbo].[tig_ma_msgs_tags] ADD PRIMARY KEY (msg_id, tag_id);
 -- QUERY END:
 GO
 
+-- summary of collections maintained when messages are stored or removed
+IF NOT EXISTS (select * from sysobjects where name='tig_ma_collections' and xtype='U')
+	CREATE TABLE [dbo].[tig_ma_collections] (
+		[owner_id] [bigint] NOT NULL,
+		[buddy_id] [bigint] NOT NULL,
+		[day] [date] NOT NULL,
+		[type] [varchar](20) NOT NULL,
+		[first_ts] [datetime] NOT NULL,
+		[last_ts] [datetime] NOT NULL,
+
+		PRIMARY KEY ([owner_id], [buddy_id], [day], [type]),
+		CONSTRAINT [FK_tig_ma_collections_owner_id] FOREIGN KEY ([owner_id])
+			REFERENCES [tig_ma_jids] ([jid_id]),
+		CONSTRAINT [FK_tig_ma_collections_buddy_id] FOREIGN KEY ([buddy_id])
+			REFERENCES [tig_ma_jids] ([jid_id])
+	);
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_collections') AND NAME ='IX_tig_ma_collections_owner_id_first_ts_index')
+CREATE INDEX IX_tig_ma_collections_owner_id_first_ts_index ON [dbo].[tig_ma_collections] ([owner_id], [first_ts]);
+-- QUERY END:
+GO
+
+-- retention periods of messages set by users of domains with user defined retention
+-- QUERY START:
+IF NOT EXISTS (select * from sysobjects where name='tig_ma_user_retention' and xtype='U')
+	CREATE TABLE [dbo].[tig_ma_user_retention] (
+		[owner_id] [bigint] NOT NULL,
+		[expire] [bigint] NOT NULL,
+
+		PRIMARY KEY ([owner_id]),
+		CONSTRAINT [FK_tig_ma_user_retention_owner_id] FOREIGN KEY ([owner_id])
+			REFERENCES [tig_ma_jids] ([jid_id])
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_user_retention') AND NAME ='IX_tig_ma_user_retention_expire_owner_id_index')
+CREATE INDEX IX_tig_ma_user_retention_expire_owner_id_index ON [dbo].[tig_ma_user_retention] ([expire], [owner_id]);
+-- QUERY END:
+GO
+
+-- old messages moved out of tig_ma_msgs, clustered by owner and time of a message
+-- QUERY START:
+IF NOT EXISTS (select * from sysobjects where name='tig_ma_msgs_cold' and xtype='U')
+	CREATE TABLE [dbo].[tig_ma_msgs_cold] (
+		[msg_id] [bigint] NOT NULL,
+		[owner_id] [bigint] NOT NULL,
+		[buddy_id] [bigint] NOT NULL,
+		[buddy_res] [nvarchar](1024),
+		[ts] [datetime] NOT NULL,
+		[direction] [smallint],
+		[type] [nvarchar](20),
+		[body] [nvarchar](max),
+		[msg] [nvarchar](max),
+		[stanza_hash] [nvarchar](50),
+
+		PRIMARY KEY CLUSTERED ( [owner_id], [ts], [msg_id] ) WITH (DATA_COMPRESSION = PAGE),
+		CONSTRAINT [FK_tig_ma_msgs_cold_owner_id] FOREIGN KEY ([owner_id])
+			REFERENCES [dbo].[tig_ma_jids]([jid_id]),
+		CONSTRAINT [FK_tig_ma_msgs_cold_buddy_id] FOREIGN KEY ([buddy_id])
+			REFERENCES [dbo].[tig_ma_jids]([jid_id])
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs_cold') AND NAME ='IX_tig_ma_msgs_cold_ts_index')
+CREATE INDEX IX_tig_ma_msgs_cold_ts_index ON [dbo].[tig_ma_msgs_cold] ([ts]) WITH (DATA_COMPRESSION = PAGE);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs_cold') AND NAME ='IX_tig_ma_msgs_cold_msg_id_index')
+CREATE INDEX IX_tig_ma_msgs_cold_msg_id_index ON [dbo].[tig_ma_msgs_cold] ([msg_id]) WITH (DATA_COMPRESSION = PAGE);
+-- QUERY END:
+GO
+
+-- tags of messages in cold storage, which are referenced by id only, as primary key of cold storage starts with owner
+-- QUERY START:
+IF NOT EXISTS (select * from sysobjects where name='tig_ma_msgs_cold_tags' and xtype='U')
+	CREATE TABLE [dbo].[tig_ma_msgs_cold_tags] (
+		[msg_id] [bigint] NOT NULL,
+		[tag_id] [bigint] NOT NULL,
+
+		PRIMARY KEY ([msg_id], [tag_id]),
+		CONSTRAINT [FK_tig_ma_msgs_cold_tags_tag_id] FOREIGN KEY ([tag_id])
+			REFERENCES [tig_ma_tags] ([tag_id]) on delete cascade
+	);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs_cold_tags') AND NAME ='IX_tig_ma_msgs_cold_tags_tag_id')
+CREATE INDEX IX_tig_ma_msgs_cold_tags_tag_id ON [dbo].[tig_ma_msgs_cold_tags] ([tag_id]);
+-- QUERY END:
+GO
+
+-- indexes used to find JIDs which are no longer referenced
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs') AND NAME ='IX_tig_ma_msgs_buddy_id_index')
+CREATE INDEX IX_tig_ma_msgs_buddy_id_index ON [dbo].[tig_ma_msgs] ([buddy_id]);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_msgs_cold') AND NAME ='IX_tig_ma_msgs_cold_buddy_id_index')
+CREATE INDEX IX_tig_ma_msgs_cold_buddy_id_index ON [dbo].[tig_ma_msgs_cold] ([buddy_id]) WITH (DATA_COMPRESSION = PAGE);
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF NOT EXISTS(SELECT * FROM sys.indexes WHERE object_id = object_id('dbo.tig_ma_collections') AND NAME ='IX_tig_ma_collections_buddy_id_index')
+CREATE INDEX IX_tig_ma_collections_buddy_id_index ON [dbo].[tig_ma_collections] ([buddy_id]);
+-- QUERY END:
+GO
+
 -- ---------------------
 -- Stored procedures
 -- ---------------------
@@ -241,10 +370,85 @@ create procedure [dbo].[Tig_MA_GetBodyContainsQuery]
 	@_out_query nvarchar(max) OUTPUT
 AS
 begin
-	if @_in_str is null
+	declare @_terms nvarchar(max),
+			@_term nvarchar(max),
+			@_pos int,
+			@_fulltext int;
+
+	set @_out_query = N'';
+	if @_in_str is not null
+		begin
+		-- full-text index is used only if it was created with sqlserver-message-archiving-fulltext script
+		-- and searching by prefixes of words was enabled, as it does not find terms in the middle of a word
+		set @_fulltext = 0;
+		if exists (select 1 from sys.fulltext_indexes where object_id = object_id('dbo.tig_ma_msgs'))
+			and exists (select 1 from sys.extended_properties where major_id = object_id('dbo.tig_ma_msgs')
+				and minor_id = 0 and name = N'tig_ma_fulltext_search' and CAST(value as nvarchar(128)) = N'prefix')
+			set @_fulltext = 1;
+
+		-- terms are passed as '%term1%','%term2%'
+		set @_terms = SUBSTRING(@_in_str, 3, LEN(@_in_str) - 4);
+		while @_terms is not null
+			begin
+			set @_pos = CHARINDEX(N'%'',''%', @_terms);
+			if @_pos > 0
+				begin
+				set @_term = SUBSTRING(@_terms, 1, @_pos - 1);
+				set @_terms = SUBSTRING(@_terms, @_pos + 5, LEN(@_terms));
+				end
+			else
+				begin
+				set @_term = @_terms;
+				set @_terms = null;
+				end
+
+			set @_out_query = @_out_query + N' and m.body like ''%' + @_term + N'%''';
+			-- full-text index finds only terms starting at the beginning of a word
+			if @_fulltext = 1 and LEN(REPLACE(@_term, N'"', N'')) > 0
+				set @_out_query = @_out_query + N' and contains(m.body, ''"' + REPLACE(@_term, N'"', N'') + N'*"'')';
+			end
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetColdHasTagsQuery')
+	DROP PROCEDURE [dbo].[Tig_MA_GetColdHasTagsQuery]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetColdHasTagsQuery]
+	@_in_str nvarchar(max),
+	@_out_query nvarchar(max) OUTPUT
+AS
+begin
+	if @_in_str is not null
+		set @_out_query = N' and exists(select 1 from tig_ma_msgs_cold_tags mt inner join tig_ma_tags t on mt.tag_id = t.tag_id where m.msg_id = mt.msg_id and t.owner_id = o.jid_id and t.tag IN (' + @_in_str + N'))';
+	else
 		set @_out_query = N'';
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetColdBodyContainsQuery')
+	DROP PROCEDURE [dbo].[Tig_MA_GetColdBodyContainsQuery]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetColdBodyContainsQuery]
+	@_in_str nvarchar(max),
+	@_out_query nvarchar(max) OUTPUT
+AS
+begin
+	-- cold storage has no full-text index, so terms passed as '%term1%','%term2%' are searched with like only
+	if @_in_str is not null
+		set @_out_query = N' and m.body like ' + REPLACE(@_in_str, N'%'',''%', N'%'' and m.body like ''%');
 	else
-		set @_out_query = N' and m.body like ' + replace(@_in_str, N''',''', N''' and m.body like = ''');
+		set @_out_query = N'';
 end
 -- QUERY END:
 GO
@@ -427,6 +631,107 @@ end
 -- QUERY END:
 GO
 
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetMessagesPage')
+	DROP PROCEDURE [dbo].[Tig_MA_GetMessagesPage]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetMessagesPage]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max),
+	@_afterHash nvarchar(50),
+	@_beforeHash nvarchar(50),
+	@_lastPage smallint,
+	@_limit int,
+	@_offset int,
+	@_count bigint = null
+AS
+begin
+	SET NOCOUNT ON;
+	declare
+		@params_def nvarchar(max),
+		@tags_query nvarchar(max),
+		@contains_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max),
+		@hash nvarchar(50),
+		@msgs_count bigint,
+		@hash_ts datetime,
+		@hash_id bigint,
+		@page_offset bigint,
+		@page_limit bigint;
+
+	set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime, @_hash nvarchar(50), @_hash_ts datetime, @_hash_id bigint, @_page_offset bigint, @_page_limit bigint, @_msgs_count bigint, @_out_count bigint output, @_out_ts datetime output, @_out_id bigint output';
+	exec Tig_MA_GetHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+	exec Tig_MA_GetBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+	set @msgs_query = N' from tig_ma_msgs m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)' + @tags_query + @contains_query;
+
+	-- number of messages may be already known to the caller
+	if @_count is null
+		begin
+		set @query_sql = N'select @_out_count = count(m.msg_id)' + @msgs_query;
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to, @_hash=null, @_hash_ts=null, @_hash_id=null, @_page_offset=null, @_page_limit=null, @_msgs_count=null, @_out_count=@msgs_count output, @_out_ts=null, @_out_id=null;
+		end
+	else
+		set @msgs_count = @_count;
+
+	set @page_offset = @_offset;
+	set @page_limit = @_limit;
+	if @_afterHash is not null or @_beforeHash is not null
+		begin
+		set @hash = coalesce(@_afterHash, @_beforeHash);
+		set @query_sql = N'select top 1 @_out_ts = m.ts, @_out_id = m.msg_id' + @msgs_query + N' and m.stanza_hash = @_hash order by m.ts, m.msg_id';
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to, @_hash=@hash, @_hash_ts=null, @_hash_id=null, @_page_offset=null, @_page_limit=null, @_msgs_count=null, @_out_count=null, @_out_ts=@hash_ts output, @_out_id=@hash_id output;
+		-- position of a page next to a message is not counted, -1 is returned if the message was found
+		set @page_offset = case when @hash_id is null then null else -1 end;
+		end
+	else if @_lastPage = 1
+		set @page_offset = case when @msgs_count > @_limit then @msgs_count - @_limit else 0 end;
+
+	if @page_offset is null
+		begin
+		select null as msg, null as ts, null as direction, null as jid, null as stanza_hash, cast(0 as bigint) as position, @msgs_count as msgs_count, @page_offset as page_offset, @page_limit as page_limit;
+		return;
+		end
+
+	-- messages around a known message and the last page are found by seeking on (ts, msg_id)
+	-- so the cost of retrieving a page does not depend on its position
+	if @_afterHash is not null
+		set @query_sql = N'select top (@_page_limit) m.msg, m.ts, m.direction, b.jid, m.stanza_hash, m.msg_id' + @msgs_query
+			+ N' and (m.ts > @_hash_ts or (m.ts = @_hash_ts and m.msg_id > @_hash_id)) order by m.ts, m.msg_id';
+	else if @_beforeHash is not null
+		set @query_sql = N'select top (@_page_limit) m.msg, m.ts, m.direction, b.jid, m.stanza_hash, m.msg_id' + @msgs_query
+			+ N' and (m.ts < @_hash_ts or (m.ts = @_hash_ts and m.msg_id < @_hash_id)) order by m.ts desc, m.msg_id desc';
+	else if @_lastPage = 1
+		set @query_sql = N'select top (@_page_limit) m.msg, m.ts, m.direction, b.jid, m.stanza_hash, m.msg_id' + @msgs_query
+			+ N' order by m.ts desc, m.msg_id desc';
+	else
+		set @query_sql = N'select m.msg, m.ts, m.direction, b.jid, m.stanza_hash, m.msg_id' + @msgs_query
+			+ N' order by m.ts, m.msg_id offset @_page_offset rows fetch next @_page_limit rows only';
+
+	set @query_sql = N'select null as msg, null as ts, null as direction, null as jid, null as stanza_hash, cast(0 as bigint) as position, @_msgs_count as msgs_count, @_page_offset as page_offset, @_page_limit as page_limit
+	union all
+	select x.msg, x.ts, x.direction, x.jid, x.stanza_hash, row_number() over (order by x.ts, x.msg_id), null, null, null
+	from (' + @query_sql + N') x
+	order by position';
+	execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to, @_hash=null, @_hash_ts=@hash_ts, @_hash_id=@hash_id, @_page_offset=@page_offset, @_page_limit=@page_limit, @_msgs_count=@msgs_count, @_out_count=null, @_out_ts=null, @_out_id=null;
+end
+-- QUERY END:
+GO
+
 -- QUERY START:
 IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetCollections')
 	DROP PROCEDURE [dbo].[Tig_MA_GetCollections]
@@ -613,6 +918,206 @@ end
 -- QUERY END:
 GO
 
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetStoredCollections')
+	DROP PROCEDURE [dbo].[Tig_MA_GetStoredCollections]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetStoredCollections]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_byType smallint,
+	@_limit int,
+	@_offset int
+AS
+begin
+	;with results_cte as (
+	select y.ts, y.jid, row_number() over (order by y.ts, y.jid) as row_num, y.type from (
+		-- start of a collection partially out of range needs to be found within messages
+		select case when @_from is null or c.first_ts >= @_from then c.first_ts else (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= @_from and m.ts <= c.last_ts
+					and (@_to is null or m.ts <= @_to)
+					and (@_byType = 0 or (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type)
+			) end as ts, b.jid, case when @_byType = 1 then c.type else null end as type
+		from (
+			select x.owner_id, x.buddy_id, x.[day], case when @_byType = 1 then x.type else '' end as type, min(x.first_ts) as first_ts, max(x.last_ts) as last_ts
+			from tig_ma_collections x
+				inner join tig_ma_jids o on x.owner_id = o.jid_id
+			where
+				o.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid))
+				and (@_from is null or x.last_ts >= @_from)
+				and (@_to is null or x.first_ts <= @_to)
+			group by x.owner_id, x.buddy_id, x.[day], case when @_byType = 1 then x.type else '' end
+		) c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		where
+			(@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+	) y
+	where y.ts is not null
+	)
+	select ts, jid, row_num, type from results_cte where row_num >= @_offset + 1 and row_num < @_offset + 1 + @_limit order by row_num;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetStoredCollectionsCount')
+	DROP PROCEDURE [dbo].[Tig_MA_GetStoredCollectionsCount]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_GetStoredCollectionsCount]
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_byType smallint
+AS
+begin
+	select count(1) from (
+		select case when @_from is null or c.first_ts >= @_from then c.first_ts else (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= @_from and m.ts <= c.last_ts
+					and (@_to is null or m.ts <= @_to)
+					and (@_byType = 0 or (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type)
+			) end as ts
+		from (
+			select x.owner_id, x.buddy_id, x.[day], case when @_byType = 1 then x.type else '' end as type, min(x.first_ts) as first_ts, max(x.last_ts) as last_ts
+			from tig_ma_collections x
+				inner join tig_ma_jids o on x.owner_id = o.jid_id
+			where
+				o.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid))
+				and (@_from is null or x.last_ts >= @_from)
+				and (@_to is null or x.first_ts <= @_to)
+			group by x.owner_id, x.buddy_id, x.[day], case when @_byType = 1 then x.type else '' end
+		) c
+			inner join tig_ma_jids b on b.jid_id = c.buddy_id
+		where
+			(@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+	) y
+	where y.ts is not null;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_UpdateCollection')
+	DROP PROCEDURE [dbo].[Tig_MA_UpdateCollection]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_UpdateCollection]
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_ts datetime,
+	@_type varchar(20)
+AS
+begin
+	declare @_collection_type varchar(20);
+
+	set @_collection_type = case when @_type = 'groupchat' then 'groupchat' else '' end;
+	update tig_ma_collections
+		set first_ts = case when @_ts < first_ts then @_ts else first_ts end,
+			last_ts = case when @_ts > last_ts then @_ts else last_ts end
+		where owner_id = @_ownerId and buddy_id = @_buddyId and [day] = cast(@_ts as date) and type = @_collection_type;
+	if @@ROWCOUNT = 0
+		begin
+		BEGIN TRY
+		insert into tig_ma_collections (owner_id, buddy_id, [day], type, first_ts, last_ts)
+			values (@_ownerId, @_buddyId, cast(@_ts as date), @_collection_type, @_ts, @_ts);
+		END TRY
+		BEGIN CATCH
+			IF ERROR_NUMBER() = 2627
+				update tig_ma_collections
+					set first_ts = case when @_ts < first_ts then @_ts else first_ts end,
+						last_ts = case when @_ts > last_ts then @_ts else last_ts end
+					where owner_id = @_ownerId and buddy_id = @_buddyId and [day] = cast(@_ts as date) and type = @_collection_type;
+			ELSE
+				declare @ErrorMessage nvarchar(max), @ErrorSeverity int, @ErrorState int;
+				select @ErrorMessage = ERROR_MESSAGE() + ' Line ' + cast(ERROR_LINE() as nvarchar(5)), @ErrorSeverity = ERROR_SEVERITY(), @ErrorState = ERROR_STATE();
+				raiserror (@ErrorMessage, @ErrorSeverity, @ErrorState);
+		END CATCH
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_MoveLateMessageToCold')
+	DROP PROCEDURE [dbo].[Tig_MA_MoveLateMessageToCold]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_MoveLateMessageToCold]
+	@_msgId bigint,
+	@_ownerId bigint,
+	@_ts datetime
+AS
+begin
+	SET NOCOUNT ON;
+	-- message older than messages of its owner in cold storage is moved there at once,
+	-- so messages in cold storage still precede all messages of the owner in tig_ma_msgs
+	if @_ts < (select max(ts) from tig_ma_msgs_cold where owner_id = @_ownerId)
+		begin
+		insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, direction, type, body, msg, stanza_hash)
+			select msg_id, owner_id, buddy_id, buddy_res, ts, direction, type, body, msg, stanza_hash
+			from tig_ma_msgs where msg_id = @_msgId;
+		delete from tig_ma_msgs where msg_id = @_msgId;
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_BackfillCollections')
+	DROP PROCEDURE [dbo].[Tig_MA_BackfillCollections]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[Tig_MA_BackfillCollections]
+	@_lastOwnerId bigint,
+	@_limit int
+AS
+begin
+	declare @_max_owner_id bigint;
+
+	select @_max_owner_id = max(x.jid_id) from (
+		select top (@_limit) jid_id from tig_ma_jids where jid_id > @_lastOwnerId order by jid_id
+	) x;
+
+	if @_max_owner_id is not null
+		begin
+		-- collections of messages stored in the meantime are merged with collections of older messages
+		merge tig_ma_collections as c
+		using (
+			select owner_id, buddy_id, cast(ts as date) as [day], case when type = 'groupchat' then 'groupchat' else '' end as type, min(ts) as first_ts, max(ts) as last_ts
+			from tig_ma_msgs
+			where owner_id > @_lastOwnerId and owner_id <= @_max_owner_id
+			group by owner_id, buddy_id, cast(ts as date), case when type = 'groupchat' then 'groupchat' else '' end
+		) as a
+		on c.owner_id = a.owner_id and c.buddy_id = a.buddy_id and c.[day] = a.[day] and c.type = a.type
+		when matched and (a.first_ts < c.first_ts or a.last_ts > c.last_ts) then
+			update set first_ts = case when a.first_ts < c.first_ts then a.first_ts else c.first_ts end,
+				last_ts = case when a.last_ts > c.last_ts then a.last_ts else c.last_ts end
+		when not matched then
+			insert (owner_id, buddy_id, [day], type, first_ts, last_ts)
+				values (a.owner_id, a.buddy_id, a.[day], a.type, a.first_ts, a.last_ts);
+		end
+
+	select @_max_owner_id as last_owner_id
+end
+-- QUERY END:
+GO
+
 -- QUERY START:
 IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_EnsureJid')
 	DROP PROCEDURE Tig_MA_EnsureJid
@@ -675,6 +1180,7 @@ AS
 begin
 	declare @_owner_id bigint;
 	declare @_buddy_id bigint;
+	declare @_msg_id bigint;
 	declare @_tsFrom datetime;
 	declare @_tsTo datetime;
 
@@ -696,42 +1202,224 @@ begin
 			        and stanza_hash = @_hash
 			        and ts between @_tsFrom and @_tsTo
 		);
-	select @@IDENTITY as msg_id
+	-- message which was already stored is not inserted again
+	if @@ROWCOUNT > 0
+		begin
+		set @_msg_id = SCOPE_IDENTITY();
+		exec Tig_MA_UpdateCollection @_ownerId=@_owner_id, @_buddyId=@_buddy_id, @_ts=@_ts, @_type=@_type;
+		exec Tig_MA_MoveLateMessageToCold @_msgId=@_msg_id, @_ownerId=@_owner_id, @_ts=@_ts;
+		end
+	select @_msg_id as msg_id
 end
 -- QUERY END:
 GO
 
 -- QUERY START:
-IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddTagToMessage')
-	DROP PROCEDURE Tig_MA_AddTagToMessage
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_EnsureJidId')
+	DROP PROCEDURE Tig_MA_EnsureJidId
 -- QUERY END:
 GO
 
 -- QUERY START:
-create procedure Tig_MA_AddTagToMessage
-	@_msgId bigint,
-	@_tag nvarchar(255)
+create procedure dbo.Tig_MA_EnsureJidId
+	@_jid nvarchar(2049)
 AS
 begin
-	declare @_owner_id bigint;
-	declare @_tag_id bigint;
-	
-	select @_owner_id = owner_id from tig_ma_msgs where msg_id = @_msgId;
-	select @_tag_id = tag_id from tig_ma_tags where owner_id = @_owner_id and tag = @_tag;
-	if @_tag_id is null
-		begin
-		insert into tig_ma_tags (owner_id, tag) select @_owner_id, @_tag where not exists(
-			select 1 from tig_ma_tags where owner_id = @_owner_id and tag = @_tag
-		)
-		select @_tag_id = @@IDENTITY;
-		if @_tag_id is null
-			begin
-			select @_tag_id = tag_id from tig_ma_tags where owner_id = @_owner_id and tag = @_tag;
+	declare @_jid_id bigint;
+
+	exec Tig_MA_EnsureJid @_jid=@_jid, @_jid_id=@_jid_id output;
+	select @_jid_id as jid_id
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddMessageById')
+	DROP PROCEDURE Tig_MA_AddMessageById
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddMessageById
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_buddyRes nvarchar(1024),
+	@_ts datetime,
+	@_direction smallint,
+	@_type varchar(20),
+	@_body nvarchar(max),
+	@_msg nvarchar(max),
+	@_hash nvarchar(50)
+AS
+begin
+	declare @_msg_id bigint;
+	declare @_tsFrom datetime;
+	declare @_tsTo datetime;
+
+	if @_type = 'groupchat'
+	    select @_tsFrom = DATEADD(minute, -30, @_ts), @_tsTo = DATEADD(minute, 30, @_ts);
+	else
+	    select @_tsFrom = @_ts, @_tsTo = @_ts;
+
+	insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, type, body, msg, stanza_hash)
+		select @_ownerId, @_buddyId, @_buddyRes, @_ts, @_direction, @_type, @_body, @_msg, @_hash
+		where not exists (
+			select 1 from tig_ma_msgs
+			    where owner_id = @_ownerId
+			        and buddy_id = @_buddyId
+			        and stanza_hash = @_hash
+			        and ts between @_tsFrom and @_tsTo
+		);
+	-- message which was already stored is not inserted again
+	if @@ROWCOUNT > 0
+		begin
+		set @_msg_id = SCOPE_IDENTITY();
+		exec Tig_MA_UpdateCollection @_ownerId=@_ownerId, @_buddyId=@_buddyId, @_ts=@_ts, @_type=@_type;
+		exec Tig_MA_MoveLateMessageToCold @_msgId=@_msg_id, @_ownerId=@_ownerId, @_ts=@_ts;
+		end
+	select @_msg_id as msg_id
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_StoreMessageById')
+	DROP PROCEDURE Tig_MA_StoreMessageById
+-- QUERY END:
+GO
+
+-- QUERY START:
+-- same as Tig_MA_AddMessageById but id of the message is not returned, so it may be executed in a batch
+create procedure Tig_MA_StoreMessageById
+	@_ownerId bigint,
+	@_buddyId bigint,
+	@_buddyRes nvarchar(1024),
+	@_ts datetime,
+	@_direction smallint,
+	@_type varchar(20),
+	@_body nvarchar(max),
+	@_msg nvarchar(max),
+	@_hash nvarchar(50)
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_msg_id bigint;
+	declare @_tsFrom datetime;
+	declare @_tsTo datetime;
+
+	if @_type = 'groupchat'
+	    select @_tsFrom = DATEADD(minute, -30, @_ts), @_tsTo = DATEADD(minute, 30, @_ts);
+	else
+	    select @_tsFrom = @_ts, @_tsTo = @_ts;
+
+	insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, type, body, msg, stanza_hash)
+		select @_ownerId, @_buddyId, @_buddyRes, @_ts, @_direction, @_type, @_body, @_msg, @_hash
+		where not exists (
+			select 1 from tig_ma_msgs
+			    where owner_id = @_ownerId
+			        and buddy_id = @_buddyId
+			        and stanza_hash = @_hash
+			        and ts between @_tsFrom and @_tsTo
+		);
+	-- message which was already stored is not inserted again
+	if @@ROWCOUNT > 0
+		begin
+		set @_msg_id = SCOPE_IDENTITY();
+		exec Tig_MA_UpdateCollection @_ownerId=@_ownerId, @_buddyId=@_buddyId, @_ts=@_ts, @_type=@_type;
+		exec Tig_MA_MoveLateMessageToCold @_msgId=@_msg_id, @_ownerId=@_ownerId, @_ts=@_ts;
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddTagToMessage')
+	DROP PROCEDURE Tig_MA_AddTagToMessage
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddTagToMessage
+	@_msgId bigint,
+	@_tag nvarchar(255)
+AS
+begin
+	declare @_owner_id bigint;
+	declare @_tag_id bigint;
+	
+	select @_owner_id = owner_id from tig_ma_msgs where msg_id = @_msgId;
+	if @_owner_id is null
+		select @_owner_id = owner_id from tig_ma_msgs_cold where msg_id = @_msgId;
+	select @_tag_id = tag_id from tig_ma_tags where owner_id = @_owner_id and tag = @_tag;
+	if @_tag_id is null
+		begin
+		insert into tig_ma_tags (owner_id, tag) select @_owner_id, @_tag where not exists(
+			select 1 from tig_ma_tags where owner_id = @_owner_id and tag = @_tag
+		)
+		select @_tag_id = @@IDENTITY;
+		if @_tag_id is null
+			begin
+			select @_tag_id = tag_id from tig_ma_tags where owner_id = @_owner_id and tag = @_tag;
 			end
 		end
-	insert into tig_ma_msgs_tags (msg_id, tag_id) select @_msgId, @_tag_id where not exists (
-		select 1 from tig_ma_msgs_tags where msg_id = @_msgId and tag_id = @_tag_id
-	);
+	exec Tig_MA_AddTagToMessageById @_msgId=@_msgId, @_tagId=@_tag_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_EnsureTagId')
+	DROP PROCEDURE Tig_MA_EnsureTagId
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_EnsureTagId
+	@_ownerId bigint,
+	@_tag nvarchar(255)
+AS
+begin
+	declare @_tag_id bigint;
+
+	select @_tag_id = tag_id from tig_ma_tags where owner_id = @_ownerId and tag = @_tag;
+	if @_tag_id is null
+		begin
+		insert into tig_ma_tags (owner_id, tag) select @_ownerId, @_tag where not exists(
+			select 1 from tig_ma_tags where owner_id = @_ownerId and tag = @_tag
+		)
+		if @@ROWCOUNT > 0
+			select @_tag_id = SCOPE_IDENTITY();
+		if @_tag_id is null
+			begin
+			select @_tag_id = tag_id from tig_ma_tags where owner_id = @_ownerId and tag = @_tag;
+			end
+		end
+	select @_tag_id as tag_id
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_AddTagToMessageById')
+	DROP PROCEDURE Tig_MA_AddTagToMessageById
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_AddTagToMessageById
+	@_msgId bigint,
+	@_tagId bigint
+AS
+begin
+	-- message stored with an old timestamp may be already in cold storage
+	if exists (select 1 from tig_ma_msgs where msg_id = @_msgId)
+		insert into tig_ma_msgs_tags (msg_id, tag_id) select @_msgId, @_tagId where not exists (
+			select 1 from tig_ma_msgs_tags where msg_id = @_msgId and tag_id = @_tagId
+		);
+	else
+		insert into tig_ma_msgs_cold_tags (msg_id, tag_id) select @_msgId, @_tagId where not exists (
+			select 1 from tig_ma_msgs_cold_tags where msg_id = @_msgId and tag_id = @_tagId
+		);
 end
 -- QUERY END:
 GO
@@ -757,6 +1445,21 @@ begin
 	select @_owner_id = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
 	select @_buddy_id = jid_id from tig_ma_jids where jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid));
 	delete from tig_ma_msgs where owner_id = @_owner_id and buddy_id = @_buddy_id and ts >= @_from and ts <= @_to;
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id
+		where m.owner_id = @_owner_id and m.buddy_id = @_buddy_id and m.ts >= @_from and m.ts <= @_to;
+	delete from tig_ma_msgs_cold where owner_id = @_owner_id and buddy_id = @_buddy_id and ts >= @_from and ts <= @_to;
+	-- collections of days of removed messages are calculated again from remaining messages
+	delete from tig_ma_collections where owner_id = @_owner_id and buddy_id = @_buddy_id and [day] >= cast(@_from as date) and [day] <= cast(@_to as date);
+	insert into tig_ma_collections (owner_id, buddy_id, [day], type, first_ts, last_ts)
+		select owner_id, buddy_id, cast(ts as date), case when type = 'groupchat' then 'groupchat' else '' end, min(ts), max(ts)
+		from (
+			select owner_id, buddy_id, ts, type from tig_ma_msgs
+			union all
+			select owner_id, buddy_id, ts, type from tig_ma_msgs_cold
+		) m
+		where owner_id = @_owner_id and buddy_id = @_buddy_id and ts >= cast(cast(@_from as date) as datetime) and ts < dateadd(day, 1, cast(cast(@_to as date) as datetime))
+		group by owner_id, buddy_id, cast(ts as date), case when type = 'groupchat' then 'groupchat' else '' end;
 end
 -- QUERY END:
 GO
@@ -774,6 +1477,473 @@ create procedure Tig_MA_DeleteExpiredMessages
 AS
 begin
 	delete from tig_ma_msgs where ts < @_before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+	-- tags of messages in cold storage are not referencing them by a foreign key
+	delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < @_before and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain;
+	delete from tig_ma_msgs_cold where ts < @_before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+	delete from tig_ma_collections where last_ts < @_before and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+	-- messages in cold storage are older than messages in tig_ma_msgs
+	update c set first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= @_before and m.ts <= c.last_ts
+				and (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= @_before and m.ts <= c.last_ts
+				and (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type
+		), c.last_ts)
+	from tig_ma_collections c
+	where c.first_ts < @_before and exists (select 1 from tig_ma_jids j where j.jid_id = c.owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredMessagesChunk')
+	DROP PROCEDURE Tig_MA_DeleteExpiredMessagesChunk
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredMessagesChunk
+	@_domain nvarchar(1024),
+	@_before datetime,
+	@_limit int
+AS
+begin
+	declare @_chunk_to datetime;
+	declare @_deleted int;
+	set @_deleted = 0;
+	-- chunk ends at timestamp of the last of the oldest expired messages, so next chunk starts where it stopped;
+	-- messages in cold storage are older than messages in tig_ma_msgs, so they are removed first
+	select @_chunk_to = max(x.ts) from (
+		select top (@_limit) m.ts from tig_ma_msgs_cold m inner join tig_ma_jids j on j.jid_id = m.owner_id
+		where m.ts < @_before and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain
+		order by m.ts
+	) x;
+	if @_chunk_to is null
+		select @_chunk_to = max(x.ts) from (
+			select top (@_limit) m.ts from tig_ma_msgs m inner join tig_ma_jids j on j.jid_id = m.owner_id
+			where m.ts < @_before and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain
+			order by m.ts
+		) x;
+	if @_chunk_to is not null
+	begin
+		-- tags of messages in cold storage are not referencing them by a foreign key
+		delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id inner join tig_ma_jids j on j.jid_id = m.owner_id
+			where m.ts <= @_chunk_to and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain;
+		delete from tig_ma_msgs_cold where ts <= @_chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+		set @_deleted = @@ROWCOUNT;
+		delete from tig_ma_msgs where ts <= @_chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+		set @_deleted = @_deleted + @@ROWCOUNT;
+		delete from tig_ma_collections where last_ts <= @_chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+		update c set first_ts = coalesce((
+				select min(m.ts) from tig_ma_msgs_cold m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > @_chunk_to and m.ts <= c.last_ts
+					and (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type
+			), (
+				select min(m.ts) from tig_ma_msgs m
+				where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > @_chunk_to and m.ts <= c.last_ts
+					and (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type
+			), c.last_ts)
+		from tig_ma_collections c
+		where c.first_ts <= @_chunk_to and exists (select 1 from tig_ma_jids j where j.jid_id = c.owner_id and [domain_sha1] = HASHBYTES('SHA1', @_domain) and [domain] = @_domain);
+	end
+	select @_deleted as deleted;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_SetUserRetention')
+	DROP PROCEDURE Tig_MA_SetUserRetention
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_SetUserRetention
+	@_ownerJid nvarchar(2049),
+	@_expire bigint
+AS
+begin
+	declare @_owner_id bigint;
+	if @_expire is null
+		begin
+		delete r from tig_ma_user_retention r inner join tig_ma_jids j on j.jid_id = r.owner_id
+			where j.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid));
+		return;
+		end
+	exec Tig_MA_EnsureJid @_jid=@_ownerJid, @_jid_id=@_owner_id output;
+	update tig_ma_user_retention set expire = @_expire where owner_id = @_owner_id;
+	if @@ROWCOUNT = 0
+		begin
+		BEGIN TRY
+		insert into tig_ma_user_retention (owner_id, expire) values (@_owner_id, @_expire);
+		END TRY
+		BEGIN CATCH
+			IF ERROR_NUMBER() = 2627
+				update tig_ma_user_retention set expire = @_expire where owner_id = @_owner_id;
+			ELSE
+				declare @ErrorMessage nvarchar(max), @ErrorSeverity int, @ErrorState int;
+				select @ErrorMessage = ERROR_MESSAGE() + ' Line ' + cast(ERROR_LINE() as nvarchar(5)), @ErrorSeverity = ERROR_SEVERITY(), @ErrorState = ERROR_STATE();
+				raiserror (@ErrorMessage, @ErrorSeverity, @ErrorState);
+		END CATCH
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetUserRetentionBuckets')
+	DROP PROCEDURE Tig_MA_GetUserRetentionBuckets
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetUserRetentionBuckets
+	@_domain nvarchar(1024)
+AS
+begin
+	select r.expire, count(1) as users
+		from tig_ma_user_retention r
+		inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain
+		group by r.expire;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteExpiredUserMessages')
+	DROP PROCEDURE Tig_MA_DeleteExpiredUserMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteExpiredUserMessages
+	@_domain nvarchar(1024),
+	@_expire bigint,
+	@_before datetime
+AS
+begin
+	-- messages of all users of a domain with the same retention period are removed at once
+	delete m from tig_ma_msgs m
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = @_expire and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and m.ts < @_before;
+	delete mt from tig_ma_msgs_cold_tags mt inner join tig_ma_msgs_cold m on m.msg_id = mt.msg_id
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = @_expire and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and m.ts < @_before;
+	delete m from tig_ma_msgs_cold m
+		inner join tig_ma_user_retention r on r.owner_id = m.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = @_expire and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and m.ts < @_before;
+	delete c from tig_ma_collections c
+		inner join tig_ma_user_retention r on r.owner_id = c.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+		where r.expire = @_expire and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and c.last_ts < @_before;
+	-- messages in cold storage are older than messages in tig_ma_msgs
+	update c set first_ts = coalesce((
+			select min(m.ts) from tig_ma_msgs_cold m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= @_before and m.ts <= c.last_ts
+				and (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type
+		), (
+			select min(m.ts) from tig_ma_msgs m
+			where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= @_before and m.ts <= c.last_ts
+				and (case when m.type = 'groupchat' then 'groupchat' else '' end) = c.type
+		), c.last_ts)
+	from tig_ma_collections c
+		inner join tig_ma_user_retention r on r.owner_id = c.owner_id inner join tig_ma_jids j on j.jid_id = r.owner_id
+	where r.expire = @_expire and j.[domain_sha1] = HASHBYTES('SHA1', @_domain) and j.[domain] = @_domain and c.first_ts < @_before;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_MoveMessagesToCold')
+	DROP PROCEDURE Tig_MA_MoveMessagesToCold
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_MoveMessagesToCold
+	@_before datetime,
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_batch_to datetime;
+	declare @_moved int;
+	set @_moved = 0;
+	-- batch ends at timestamp of the last of the oldest messages, so messages are moved in order of time
+	select @_batch_to = max(x.ts) from (
+		select top (@_limit) ts from tig_ma_msgs where ts < @_before order by ts
+	) x;
+	if @_batch_to is not null
+		begin
+		begin transaction;
+		insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, direction, type, body, msg, stanza_hash)
+			select msg_id, owner_id, buddy_id, buddy_res, ts, direction, type, body, msg, stanza_hash
+			from tig_ma_msgs with (updlock, holdlock) where ts <= @_batch_to;
+		set @_moved = @@ROWCOUNT;
+		insert into tig_ma_msgs_cold_tags (msg_id, tag_id)
+			select mt.msg_id, mt.tag_id from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id where m.ts <= @_batch_to;
+		-- tags of moved messages are removed from tig_ma_msgs_tags by cascade
+		delete from tig_ma_msgs where ts <= @_batch_to;
+		commit transaction;
+		end
+	select @_moved as moved;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetColdMessages')
+	DROP PROCEDURE Tig_MA_GetColdMessages
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessages
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max),
+	@_limit int,
+	@_offset int
+AS
+begin
+	SET NOCOUNT ON;
+	declare
+		@params_def nvarchar(max),
+		@contains_query nvarchar(max),
+		@tags_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max);
+
+	if @_tags is not null or @_contains is not null
+		begin
+		set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime, @_limit int, @_offset int';
+		exec Tig_MA_GetColdHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+		exec Tig_MA_GetColdBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+		set @msgs_query = N'select m.msg, m.ts, m.direction, b.jid, m.stanza_hash, row_number() over (order by m.ts) as row_num
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)';
+		set @query_sql = N';with results_cte as (' + @msgs_query + @tags_query + @contains_query + N') select * from results_cte where row_num >= @_offset + 1 and row_num < @_offset + 1 + @_limit order by row_num'
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to, @_limit=@_limit, @_offset=@_offset
+		end
+	else
+		begin
+		;with results_cte as (
+		select m.msg, m.ts, m.direction, b.jid, m.stanza_hash, row_number() over (order by m.ts) as row_num
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)
+		)
+		select * from results_cte where row_num >= @_offset + 1 and row_num < @_offset + 1 + @_limit order by row_num;
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetColdMessagesCount')
+	DROP PROCEDURE Tig_MA_GetColdMessagesCount
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessagesCount
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max)
+AS
+begin
+	declare
+		@params_def nvarchar(max),
+		@tags_query nvarchar(max),
+		@contains_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max);
+
+	if @_tags is not null or @_contains is not null
+		begin
+		set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime';
+		exec Tig_MA_GetColdHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+		exec Tig_MA_GetColdBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+		set @msgs_query = N'select count(m.msg_id)
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)';
+		set @query_sql = @msgs_query + @tags_query + @contains_query;
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to
+		end
+	else
+		begin
+		select count(m.msg_id)
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_GetColdMessagePosition')
+	DROP PROCEDURE Tig_MA_GetColdMessagePosition
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_GetColdMessagePosition
+	@_ownerJid nvarchar(2049),
+	@_buddyJid nvarchar(2049),
+	@_from datetime,
+	@_to datetime,
+	@_tags nvarchar(max),
+	@_contains nvarchar(max),
+	@_hash nvarchar(50)
+AS
+begin
+	declare
+		@params_def nvarchar(max),
+		@tags_query nvarchar(max),
+		@contains_query nvarchar(max),
+		@msgs_query nvarchar(max),
+		@query_sql nvarchar(max);
+
+	if @_tags is not null or @_contains is not null
+		begin
+		set @params_def = N'@_ownerJid nvarchar(2049), @_buddyJid nvarchar(2049), @_from datetime, @_to datetime, @_hash nvarchar(50)';
+		exec Tig_MA_GetColdHasTagsQuery @_in_str = @_tags, @_out_query = @tags_query output;
+		exec Tig_MA_GetColdBodyContainsQuery @_in_str = @_contains, @_out_query = @contains_query output;
+		set @msgs_query = N'select x.position from (
+		select m.stanza_hash, row_number() over (order by m.ts) as position
+		from tig_ma_msgs_cold m
+			inner join tig_ma_jids o on m.owner_id = o.jid_id
+			inner join tig_ma_jids b on b.jid_id = m.buddy_id
+		where
+			o.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_ownerJid))
+			and (@_buddyJid is null or b.jid_sha1 = HASHBYTES(''SHA1'', LOWER(@_buddyJid)))
+			and (@_from is null or m.ts >= @_from)
+			and (@_to is null or m.ts <= @_to)';
+		set @query_sql = @msgs_query + @tags_query + @contains_query + N') x where x.stanza_hash = @_hash';
+		execute sp_executesql @query_sql, @params_def, @_ownerJid=@_ownerJid, @_buddyJid=@_buddyJid, @_from=@_from, @_to=@_to, @_hash = @_hash
+		end
+	else
+		begin
+		select x.position from (
+			select m.stanza_hash, row_number() over (order by m.ts) as position
+			from tig_ma_msgs_cold m
+				inner join tig_ma_jids o on m.owner_id = o.jid_id
+				inner join tig_ma_jids b on b.jid_id = m.buddy_id
+			where
+				o.jid_sha1 = HASHBYTES('SHA1', LOWER(@_ownerJid))
+				and (@_buddyJid is null or b.jid_sha1 = HASHBYTES('SHA1', LOWER(@_buddyJid)))
+				and (@_from is null or m.ts >= @_from)
+				and (@_to is null or m.ts <= @_to)) x
+		where x.stanza_hash = @_hash
+		end
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteOrphanedJids')
+	DROP PROCEDURE Tig_MA_DeleteOrphanedJids
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteOrphanedJids
+	@_lastJidId bigint,
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_max_jid_id bigint;
+	declare @_deleted int;
+	set @_deleted = 0;
+
+	select @_max_jid_id = max(x.jid_id) from (
+		select top (@_limit) jid_id from tig_ma_jids where jid_id > @_lastJidId order by jid_id
+	) x;
+	if @_max_jid_id is not null
+		begin
+		-- references are checked by the delete itself, so JIDs used in the meantime are kept
+		delete j from tig_ma_jids j
+		where j.jid_id > @_lastJidId and j.jid_id <= @_max_jid_id
+			and not exists (select 1 from tig_ma_msgs m where m.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_msgs m where m.buddy_id = j.jid_id)
+			and not exists (select 1 from tig_ma_msgs_cold m where m.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_msgs_cold m where m.buddy_id = j.jid_id)
+			and not exists (select 1 from tig_ma_collections c where c.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_collections c where c.buddy_id = j.jid_id)
+			and not exists (select 1 from tig_ma_tags t where t.owner_id = j.jid_id)
+			and not exists (select 1 from tig_ma_user_retention r where r.owner_id = j.jid_id);
+		set @_deleted = @@ROWCOUNT;
+		end
+
+	select @_max_jid_id as last_jid_id, @_deleted as deleted;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'Tig_MA_DeleteOrphanedTags')
+	DROP PROCEDURE Tig_MA_DeleteOrphanedTags
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure Tig_MA_DeleteOrphanedTags
+	@_lastTagId bigint,
+	@_limit int
+AS
+begin
+	SET NOCOUNT ON;
+	declare @_max_tag_id bigint;
+	declare @_deleted int;
+	set @_deleted = 0;
+
+	select @_max_tag_id = max(x.tag_id) from (
+		select top (@_limit) tag_id from tig_ma_tags where tag_id > @_lastTagId order by tag_id
+	) x;
+	if @_max_tag_id is not null
+		begin
+		-- references are checked by the delete itself, so tags used in the meantime are kept
+		delete t from tig_ma_tags t
+		where t.tag_id > @_lastTagId and t.tag_id <= @_max_tag_id
+			and not exists (select 1 from tig_ma_msgs_tags mt where mt.tag_id = t.tag_id)
+			and not exists (select 1 from tig_ma_msgs_cold_tags mt where mt.tag_id = t.tag_id);
+		set @_deleted = @@ROWCOUNT;
+		end
+
+	select @_max_tag_id as last_tag_id, @_deleted as deleted;
 end
 -- QUERY END:
 GO
@@ -825,3 +1995,29 @@ GO
 update tig_ma_jids set domain = LOWER(domain), domain_sha1 = HASHBYTES('SHA1', LOWER(domain)), jid_sha1 = HASHBYTES('SHA1', LOWER(jid)) WHERE jid <> LOWER(jid) or domain <> LOWER(domain);
 -- QUERY END:
 GO
+
+-- retention periods set by users were kept only in the user repository before,
+-- which is available only if it is stored in the same database
+-- QUERY START:
+IF OBJECT_ID(N'tig_pairs', N'U') IS NOT NULL
+begin
+	declare @_jid nvarchar(2049), @_expire bigint;
+	declare @_retention table (jid nvarchar(2049), expire bigint);
+	insert into @_retention exec (N'select u.user_id, case when convert(nvarchar(max), p.pval) not like N''%[^0-9]%''
+			and len(convert(nvarchar(max), p.pval)) between 1 and 18 then cast(convert(nvarchar(max), p.pval) as bigint) end
+		from tig_pairs p
+		inner join tig_nodes n on n.nid = p.nid and n.node = N''settings''
+		inner join tig_nodes a on a.nid = n.parent_nid and a.node = N''message-archive''
+		inner join tig_users u on u.uid = p.uid
+		where p.pkey = N''expire''');
+	while exists (select 1 from @_retention)
+		begin
+		select top 1 @_jid = jid, @_expire = expire from @_retention;
+		delete from @_retention where jid = @_jid;
+		if @_expire > 0 and not exists (select 1 from tig_ma_user_retention r inner join tig_ma_jids j on j.jid_id = r.owner_id
+				where j.jid_sha1 = HASHBYTES('SHA1', LOWER(@_jid)))
+			exec Tig_MA_SetUserRetention @_ownerJid = @_jid, @_expire = @_expire;
+		end
+end
+-- QUERY END:
+GO
@@ -0,0 +1,83 @@
+/*
+ * ExpiredMessagesRemoval.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive;
+
+import tigase.stats.StatisticsList;
+
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+
+/**
+ * Progress of the current or result of the last removal of expired messages
+ * of a single vhost.
+ *
+ * Removal of a vhost is executed by a single thread, which reports each
+ * removed chunk, while statistics may be read by any thread at any time.
+ */
+class ExpiredMessagesRemoval
+		implements LongConsumer {
+
+	private volatile long start;
+	private volatile long time = -1;
+	private volatile long removed = -1;
+	private volatile long lastChunk = -1;
+	private volatile boolean completed = false;
+
+	void started(long start) {
+		this.start = start;
+		this.removed = 0;
+		this.lastChunk = -1;
+		this.completed = false;
+	}
+
+	/**
+	 * Records chunk of removed messages, so progress of a long removal is
+	 * visible before it is finished.
+	 */
+	@Override
+	public void accept(long chunk) {
+		this.lastChunk = chunk;
+		this.removed = removed + chunk;
+		this.time = System.currentTimeMillis() - start;
+	}
+
+	long finished(long removed) {
+		this.time = System.currentTimeMillis() - start;
+		this.removed = removed;
+		this.completed = true;
+		return time;
+	}
+
+	void failed() {
+		this.time = System.currentTimeMillis() - start;
+		this.removed = -1;
+		this.completed = false;
+	}
+
+	void getStatistics(String compName, String domain, StatisticsList list) {
+		list.add(compName, "Removal time of expired messages for " + domain, time, Level.FINE);
+		list.add(compName, "Expired messages removed for " + domain, removed, Level.FINER);
+		list.add(compName, "Expired messages removed in last chunk for " + domain, lastChunk, Level.FINER);
+		list.add(compName, "Expired messages removal completed for " + domain, String.valueOf(completed),
+				 Level.FINER);
+	}
+}
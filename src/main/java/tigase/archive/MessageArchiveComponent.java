@@ -26,6 +26,7 @@ package tigase.archive;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.archive.db.ArchiveWriter;
 import tigase.archive.db.MessageArchiveRepository;
 import tigase.component.AbstractKernelBasedComponent;
 import tigase.component.modules.impl.DiscoveryModule;
@@ -43,7 +44,18 @@ import tigase.xmpp.mam.modules.GetFormModule;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,15 +73,18 @@ public class MessageArchiveComponent
 	private static final String			  REMOVE_EXPIRED_MESSAGES_KEY = "remove-expired-messages";
 	private static final String			  REMOVE_EXPIRED_MESSAGES_DELAY_KEY = "remove-expired-messages-delay";
 	private static final String			  REMOVE_EXPIRED_MESSAGES_PERIOD_KEY = "remove-expired-messages-period";
+	private static final String			  REMOVE_EXPIRED_MESSAGES_THREADS_KEY = "remove-expired-messages-threads";
 	
 	//~--- fields ---------------------------------------------------------------
 
 	@Inject
 	protected MessageArchiveRepository msg_repo = null;
+	@Inject
+	private ArchiveWriter archiveWriter;
 
 	@ConfigField(desc = "Tag support enabled", alias = TAGS_SUPPORT_PROP_KEY)
 	private boolean tagsSupport = false;
-	private float expiredMessagesRemovalTimeAvg = -1;
+	private final Map<String, ExpiredMessagesRemoval> expiredMessagesRemovals = new ConcurrentHashMap<>();
 	private RemoveExpiredTask expiredMessagesRemovalTask = null;
 
 	@ConfigField(desc = "Remove expired messages from repository", alias = REMOVE_EXPIRED_MESSAGES_KEY)
@@ -78,6 +93,8 @@ public class MessageArchiveComponent
 	private Duration removeExpiredMessagesDelay = Duration.ofHours(1);
 	@ConfigField(desc = "Period between expired message removals", alias = REMOVE_EXPIRED_MESSAGES_PERIOD_KEY)
 	private Duration removeExpiredMessagesPeriod = Duration.ofDays(1);
+	@ConfigField(desc = "Number of threads removing expired messages of different domains at once", alias = REMOVE_EXPIRED_MESSAGES_THREADS_KEY)
+	private int removeExpiredMessagesThreads = 4;
 
 	//~--- constructors ---------------------------------------------------------
 
@@ -170,7 +187,11 @@ public class MessageArchiveComponent
 	@Override
 	public void getStatistics(StatisticsList list) {
 		super.getStatistics(list);
-		list.add(getName(), "Removal time of expired messages (avg)", expiredMessagesRemovalTimeAvg, Level.FINE);
+		for (Map.Entry<String, ExpiredMessagesRemoval> e : expiredMessagesRemovals.entrySet()) {
+			e.getValue().getStatistics(getName(), e.getKey(), list);
+		}
+		archiveWriter.getStatistics(getName(), list);
+		msg_repo.collectStatistics(getName(), list);
 	}
 	
 	//~--- set methods ----------------------------------------------------------
@@ -185,9 +206,10 @@ public class MessageArchiveComponent
 	public void beanConfigurationChanged(Collection<String> changedFields) {
 		super.beanConfigurationChanged(changedFields);
 		if (changedFields.contains(REMOVE_EXPIRED_MESSAGES_KEY) || changedFields.contains(REMOVE_EXPIRED_MESSAGES_PERIOD_KEY) ||
-				changedFields.contains(REMOVE_EXPIRED_MESSAGES_DELAY_KEY)) {
+				changedFields.contains(REMOVE_EXPIRED_MESSAGES_DELAY_KEY) || changedFields.contains(REMOVE_EXPIRED_MESSAGES_THREADS_KEY)) {
 			if (expiredMessagesRemovalTask != null) {
 				expiredMessagesRemovalTask.cancel();
+				expiredMessagesRemovalTask.shutdown();
 				expiredMessagesRemovalTask = null;
 			}
 
@@ -196,7 +218,7 @@ public class MessageArchiveComponent
 				long period = removeExpiredMessagesPeriod.toMillis();
 				log.log(Level.FINE, "scheduling removal of expired messages to once every {0}ms after initial delay of {1}ms",
 						new Object[]{period, initialDelay});
-				expiredMessagesRemovalTask = new RemoveExpiredTask();
+				expiredMessagesRemovalTask = new RemoveExpiredTask(removeExpiredMessagesThreads);
 				addTimerTask(expiredMessagesRemovalTask, initialDelay, period);
 			}
 		}
@@ -209,44 +231,156 @@ public class MessageArchiveComponent
 		return tagsSupport;
 	}
 
+	/**
+	 * Removes expired messages of all domains using a pool of threads, so
+	 * removal for a single domain does not delay removal for other domains.
+	 * Repositories limit number of domains for which messages are removed
+	 * from the same database at once.
+	 */
 	private class RemoveExpiredTask extends tigase.util.TimerTask {
 
+		private final ExecutorService executor;
+		private final AtomicBoolean inProgress = new AtomicBoolean(false);
+
+		public RemoveExpiredTask(int threads) {
+			AtomicInteger counter = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "message-archive-expired-removal-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		public void shutdown() {
+			executor.shutdownNow();
+		}
+
 		@Override
 		public void run() {
-			float time = 0;
-			float count = 0;
-			for (JID vhost : vHostManager.getAllVHosts()) {
+			if (!inProgress.compareAndSet(false, true)) {
+				log.log(Level.WARNING, "skipping removal of expired messages as previous removal is still in progress");
+				return;
+			}
+			List<JID> vhosts = new ArrayList<>(vHostManager.getAllVHosts());
+			// results of vhosts which are no longer hosted are dropped
+			Set<String> domains = new HashSet<>();
+			for (JID vhost : vhosts) {
+				domains.add(vhost.getDomain());
+			}
+			expiredMessagesRemovals.keySet().retainAll(domains);
+			LocalDateTime partitionsBefore = getPartitionsExpiration(vhosts);
+			AtomicInteger remaining = new AtomicInteger(vhosts.size() + (partitionsBefore == null ? 1 : 2));
+			Runnable completed = () -> {
+				if (remaining.decrementAndGet() == 0) {
+					inProgress.set(false);
+				}
+			};
+			if (partitionsBefore != null) {
 				try {
-					VHostItem item = vHostManager.getVHostItem(vhost.getDomain());
-					RetentionType retentionType = VHostItemHelper.getRetentionType(item);
-					switch (retentionType) {
-						case numberOfDays:
-							Integer days = VHostItemHelper.getRetentionDays(item);
-							if (days != null) {
-								long start = System.currentTimeMillis();
-								LocalDateTime timestamp = LocalDateTime.now(ZoneId.of("Z")).minusDays(days);
-								msg_repo.deleteExpiredMessages(vhost.getBareJID(), timestamp);
-								long stop = System.currentTimeMillis();
-								long executedIn = stop - start;
-								time += executedIn;
-								log.log(Level.FINEST, "removed messsages older than {0} for domain {1} in {2}ms", 
-										new Object[]{timestamp.toString(), vhost.getDomain(), executedIn});
-								count++;
-							}						
-							break;
-						case userDefined:
-						// right now there is no implementation for this so let's handle it in same way as unlimited
-						case unlimited:
-							log.log(Level.FINEST, "skipping removal of expired messages for domain {0}"
-									+ " as removal for retention type {1} is not supported", 
-									new Object[]{vhost.getDomain(), retentionType});
-							break;
-					}
-				} catch (Exception ex) {
-					log.log(Level.FINE, "exception removing expired messages", ex);
+					executor.execute(() -> {
+						try {
+							msg_repo.deleteExpiredPartitions(partitionsBefore);
+						} catch (Exception ex) {
+							log.log(Level.FINE, "exception dropping expired partitions of messages", ex);
+						} finally {
+							completed.run();
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					log.log(Level.FINE, "removal of expired messages was cancelled", ex);
+					completed.run();
 				}
 			}
-			expiredMessagesRemovalTimeAvg = (count > 0) ? (time / count) : -1;
+			for (JID vhost : vhosts) {
+				try {
+					executor.execute(() -> {
+						try {
+							removeExpiredMessages(vhost);
+						} finally {
+							completed.run();
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					log.log(Level.FINE, "removal of expired messages was cancelled", ex);
+					completed.run();
+				}
+			}
+			completed.run();
+		}
+
+		/**
+		 * Returns time before which messages of all domains expired or
+		 * <code>null</code> if messages of any domain are kept for a period
+		 * which is not known, as partitions hold messages of all domains.
+		 */
+		private LocalDateTime getPartitionsExpiration(List<JID> vhosts) {
+			int days = 0;
+			for (JID vhost : vhosts) {
+				VHostItem item = vHostManager.getVHostItem(vhost.getDomain());
+				if (item == null) {
+					return null;
+				}
+				Integer retentionDays = VHostItemHelper.getRetentionType(item) == RetentionType.numberOfDays
+						? VHostItemHelper.getRetentionDays(item)
+						: null;
+				if (retentionDays == null) {
+					return null;
+				}
+				days = Math.max(days, retentionDays);
+			}
+			return vhosts.isEmpty() ? null : LocalDateTime.now(ZoneId.of("Z")).minusDays(days);
+		}
+
+		/**
+		 * Removes expired messages of a domain and records result of the
+		 * removal, unless messages of the domain do not expire.
+		 */
+		private void removeExpiredMessages(JID vhost) {
+			ExpiredMessagesRemoval removal = null;
+			long start = System.currentTimeMillis();
+			try {
+				VHostItem item = vHostManager.getVHostItem(vhost.getDomain());
+				RetentionType retentionType = VHostItemHelper.getRetentionType(item);
+				switch (retentionType) {
+					case numberOfDays:
+						Integer days = VHostItemHelper.getRetentionDays(item);
+						if (days != null) {
+							removal = startExpiredMessagesRemoval(vhost, start);
+							LocalDateTime timestamp = LocalDateTime.now(ZoneId.of("Z")).minusDays(days);
+							long removed = msg_repo.deleteExpiredMessages(vhost.getBareJID(), timestamp, removal);
+							long executedIn = removal.finished(removed);
+							log.log(Level.FINEST, "removed messsages older than {0} for domain {1} in {2}ms", 
+									new Object[]{timestamp.toString(), vhost.getDomain(), executedIn});
+							return;
+						}
+						break;
+					case userDefined:
+						removal = startExpiredMessagesRemoval(vhost, start);
+						msg_repo.deleteExpiredUserMessages(vhost.getBareJID(), LocalDateTime.now(ZoneId.of("Z")));
+						long executedIn = removal.finished(-1);
+						log.log(Level.FINEST, "removed messages older than retention periods set by users for domain {0} in {1}ms",
+								new Object[]{vhost.getDomain(), executedIn});
+						return;
+					case unlimited:
+						log.log(Level.FINEST, "skipping removal of expired messages for domain {0}"
+								+ " as removal for retention type {1} is not supported", 
+								new Object[]{vhost.getDomain(), retentionType});
+						break;
+				}
+				expiredMessagesRemovals.remove(vhost.getDomain());
+			} catch (Exception ex) {
+				log.log(Level.FINE, "exception removing expired messages", ex);
+				if (removal != null) {
+					removal.failed();
+				}
+			}
+		}
+
+		private ExpiredMessagesRemoval startExpiredMessagesRemoval(JID vhost, long start) {
+			ExpiredMessagesRemoval removal = expiredMessagesRemovals.computeIfAbsent(vhost.getDomain(),
+																					 domain -> new ExpiredMessagesRemoval());
+			removal.started(start);
+			return removal;
 		}
 		
 	}
@@ -26,8 +26,6 @@ import tigase.db.DataSource;
 import tigase.xml.Element;
 import tigase.xmpp.RSM;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Map;
@@ -51,34 +49,33 @@ public abstract class AbstractMessageArchiveRepository<Q extends Query, DS exten
 	}
 
 	protected byte[] generateHashOfMessage(Direction direction, Element msg, Date ts, Map<String,Object> additionalData) {
-		try {
-			MessageDigest md = MessageDigest.getInstance("SHA-256");
-
-			String peer = direction == Direction.incoming ? msg.getAttributeStaticStr("from") : msg.getAttributeStaticStr("to");
-			if (peer != null) {
-				md.update(peer.getBytes());
-			}
-			String id = msg.getAttributeStaticStr("id");
-			if (id != null) {
-				md.update(id.getBytes());
-			}
-			String type = msg.getAttributeStaticStr("type");
-			if (type == null || !"groupchat".equals(type)) {
-				md.update(new Long(ts.getTime() / 1000).toString().getBytes());
-			}
-			String body = msg.getChildCData(MSG_BODY_PATH);
-			if (body != null) {
-				md.update(body.getBytes());
-			}
-			String subject = msg.getCData(MSG_SUBJECT_PATH);
-			if (subject != null) {
-				md.update(subject.getBytes());
-			}
-			
-			return md.digest();
-		} catch (NoSuchAlgorithmException ex) {
+		MessageHasher hasher = MessageHasher.get();
+		if (hasher == null) {
 			return null;
 		}
+
+		String peer = direction == Direction.incoming ? msg.getAttributeStaticStr("from") : msg.getAttributeStaticStr("to");
+		if (peer != null) {
+			hasher.update(peer);
+		}
+		String id = msg.getAttributeStaticStr("id");
+		if (id != null) {
+			hasher.update(id);
+		}
+		String type = msg.getAttributeStaticStr("type");
+		if (type == null || !"groupchat".equals(type)) {
+			hasher.update(ts.getTime() / 1000);
+		}
+		String body = msg.getChildCData(MSG_BODY_PATH);
+		if (body != null) {
+			hasher.update(body);
+		}
+		String subject = msg.getCData(MSG_SUBJECT_PATH);
+		if (subject != null) {
+			hasher.update(subject);
+		}
+
+		return hasher.digest();
 	}
 
 	protected void calculateOffsetAndPosition(Q query, int count, Integer before, Integer after) {
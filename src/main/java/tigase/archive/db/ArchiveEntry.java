@@ -0,0 +1,85 @@
+/*
+ * ArchiveEntry.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Message waiting to be stored in a repository with all data required by
+ * {@link MessageArchiveRepository#archiveMessage(BareJID, JID, MessageArchiveRepository.Direction, Date, Element, Set)}.
+ *
+ * @author andrzej
+ */
+public class ArchiveEntry {
+
+	private final BareJID owner;
+	private final JID buddy;
+	private final MessageArchiveRepository.Direction direction;
+	private final Date timestamp;
+	private final Element message;
+	private final Set<String> tags;
+
+	public ArchiveEntry(BareJID owner, JID buddy, MessageArchiveRepository.Direction direction, Date timestamp,
+						Element message, Set<String> tags) {
+		this.owner = owner;
+		this.buddy = buddy;
+		this.direction = direction;
+		this.timestamp = timestamp;
+		this.message = message;
+		this.tags = tags;
+	}
+
+	public BareJID getOwner() {
+		return owner;
+	}
+
+	public JID getBuddy() {
+		return buddy;
+	}
+
+	public MessageArchiveRepository.Direction getDirection() {
+		return direction;
+	}
+
+	public Date getTimestamp() {
+		return timestamp;
+	}
+
+	public Element getMessage() {
+		return message;
+	}
+
+	public Set<String> getTags() {
+		return tags;
+	}
+
+	@Override
+	public String toString() {
+		return "ArchiveEntry[owner=" + owner + ", buddy=" + buddy + ", direction=" + direction + ", timestamp=" +
+				timestamp.getTime() + "]";
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ * ArchiveJournal.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of messages waiting to be stored in a repository, kept
+ * in memory-mapped segment files in a local directory.
+ *
+ * Each record consists of its length, CRC32 checksum of its data and the
+ * data itself. Position of the first record which was not stored in
+ * a repository yet is kept in a checkpoint file, so after restart records
+ * are read from this position. Segments containing only stored records are
+ * removed. As checkpoint is written after records are stored, some of them
+ * may be stored again after a crash - repositories ignore them as duplicates.
+ *
+ * Records are written to memory shared with the operating system, so they
+ * survive crash of the server. To survive crash of the operating system,
+ * journal needs to be synced to the disk after every record is appended.
+ */
+public class ArchiveJournal {
+
+	private static final Logger log = Logger.getLogger(ArchiveJournal.class.getCanonicalName());
+
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	private static final int HEADER_SIZE = 8;
+	private static final byte FORMAT_VERSION = 1;
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	private final File directory;
+	private final int segmentSize;
+	private final boolean sync;
+	private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+	private final AtomicLong appended = new AtomicLong();
+	private long writeSegment;
+	private int writePosition;
+	private Position checkpoint;
+	private boolean closed = false;
+
+	/**
+	 * Opens journal in a directory, recovering records which were not stored
+	 * in a repository.
+	 *
+	 * @param directory directory of a journal
+	 * @param segmentSize size of a new segment file in bytes
+	 * @param sync force writing every record to the disk
+	 */
+	public ArchiveJournal(File directory, int segmentSize, boolean sync) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.sync = sync;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create journal directory " + directory);
+		}
+		recover();
+	}
+
+	/**
+	 * Returns position of the first record which was not stored in
+	 * a repository.
+	 */
+	public synchronized Position getCheckpoint() {
+		return checkpoint;
+	}
+
+	public synchronized int getSegmentsCount() {
+		return segments.size();
+	}
+
+	public long getAppended() {
+		return appended.get();
+	}
+
+	/**
+	 * Appends a message to the journal.
+	 */
+	public void append(ArchiveEntry entry) throws IOException {
+		byte[] data = serialize(entry);
+		if (data.length + HEADER_SIZE > segmentSize) {
+			throw new IOException("Message of " + data.length + " bytes is too big for journal segment");
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data);
+
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Journal " + directory + " is closed");
+			}
+			MappedByteBuffer segment = segments.get(writeSegment);
+			if (writePosition + HEADER_SIZE + data.length > segment.capacity()) {
+				writeSegment++;
+				writePosition = 0;
+				segment = openSegment(writeSegment, segmentSize);
+				segments.put(writeSegment, segment);
+			}
+			ByteBuffer buf = segment.duplicate();
+			buf.position(writePosition + HEADER_SIZE);
+			buf.put(data);
+			buf.putInt(writePosition + 4, (int) crc.getValue());
+			// length is written last, so record is not visible until it is complete
+			buf.putInt(writePosition, data.length);
+			writePosition += HEADER_SIZE + data.length;
+			if (sync) {
+				segment.force();
+			}
+			appended.incrementAndGet();
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Reads up to <code>max</code> records starting from a position. If there
+	 * are no records, waits for them no longer than <code>timeout</code>.
+	 */
+	public synchronized List<Record> read(Position from, int max, long timeout) throws InterruptedException {
+		if (!closed && isEnd(from)) {
+			wait(timeout);
+		}
+
+		List<Record> records = new ArrayList<>();
+		long seq = from.segment;
+		int pos = from.offset;
+		while (records.size() < max && !(seq == writeSegment && pos >= writePosition)) {
+			MappedByteBuffer segment = segments.get(seq);
+			if (segment == null) {
+				Long next = segments.higherKey(seq);
+				if (next == null) {
+					break;
+				}
+				seq = next;
+				pos = 0;
+				continue;
+			}
+			int len = pos + HEADER_SIZE <= segment.capacity() ? segment.getInt(pos) : 0;
+			if (len <= 0 || pos + HEADER_SIZE + len > segment.capacity()) {
+				if (seq == writeSegment) {
+					break;
+				}
+				// end of segment
+				seq = segments.higherKey(seq);
+				pos = 0;
+				continue;
+			}
+
+			byte[] data = new byte[len];
+			ByteBuffer buf = segment.duplicate();
+			buf.position(pos + HEADER_SIZE);
+			buf.get(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if ((int) crc.getValue() != segment.getInt(pos + 4)) {
+				log.log(Level.WARNING, "Corrupted record at {0}:{1} in journal {2}, skipping rest of segment",
+						new Object[]{seq, pos, directory});
+				if (seq == writeSegment) {
+					pos = writePosition;
+				} else {
+					seq = segments.higherKey(seq);
+					pos = 0;
+				}
+				records.add(new Record(null, new Position(seq, pos)));
+				continue;
+			}
+			pos += HEADER_SIZE + len;
+
+			try {
+				records.add(new Record(deserialize(data), new Position(seq, pos)));
+			} catch (IOException | RuntimeException ex) {
+				log.log(Level.WARNING, "Could not read record at " + seq + ":" + (pos - HEADER_SIZE - len) +
+						" in journal " + directory + ", skipping it", ex);
+				records.add(new Record(null, new Position(seq, pos)));
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Marks all records before position as stored in a repository.
+	 */
+	public synchronized void commit(Position position) throws IOException {
+		File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(tmp)) {
+			DataOutputStream out = new DataOutputStream(file);
+			out.writeLong(position.segment);
+			out.writeInt(position.offset);
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(tmp.toPath(), new File(directory, CHECKPOINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+				   StandardCopyOption.ATOMIC_MOVE);
+		checkpoint = position;
+
+		Iterator<Map.Entry<Long, MappedByteBuffer>> it = segments.headMap(position.segment).entrySet().iterator();
+		while (it.hasNext()) {
+			long seq = it.next().getKey();
+			it.remove();
+			File file = segmentFile(seq);
+			if (!file.delete()) {
+				log.log(Level.WARNING, "Could not delete journal segment {0}", file);
+			}
+		}
+	}
+
+	/**
+	 * Returns <code>true</code> if there are no records after a position.
+	 */
+	public synchronized boolean isEnd(Position position) {
+		return position.segment == writeSegment && position.offset >= writePosition;
+	}
+
+	public synchronized void close() {
+		closed = true;
+		for (MappedByteBuffer segment : segments.values()) {
+			segment.force();
+		}
+		notifyAll();
+	}
+
+	private void recover() throws IOException {
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+		TreeSet<Long> found = new TreeSet<>();
+		if (files != null) {
+			for (File file : files) {
+				try {
+					found.add(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException ex) {
+					log.log(Level.WARNING, "Ignoring unknown file {0} in journal directory", file);
+				}
+			}
+		}
+
+		Position start = null;
+		File checkpointFile = new File(directory, CHECKPOINT_FILE);
+		if (checkpointFile.exists()) {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+				start = new Position(in.readLong(), in.readInt());
+			}
+		}
+		if (start == null || !found.contains(start.segment)) {
+			Long first = start == null ? (found.isEmpty() ? null : found.first()) : found.ceiling(start.segment);
+			start = new Position(first == null ? (found.isEmpty() ? 1 : found.last() + 1) : first, 0);
+		}
+
+		for (long seq : found) {
+			if (seq < start.segment) {
+				segmentFile(seq).delete();
+			} else {
+				segments.put(seq, openSegment(seq, 0));
+			}
+		}
+		if (segments.isEmpty()) {
+			segments.put(start.segment, openSegment(start.segment, segmentSize));
+		}
+		checkpoint = start;
+
+		// find end of the last segment and clear remains of incomplete record
+		writeSegment = segments.lastKey();
+		MappedByteBuffer segment = segments.get(writeSegment);
+		int pos = 0;
+		while (pos + HEADER_SIZE <= segment.capacity()) {
+			int len = segment.getInt(pos);
+			if (len <= 0 || pos + HEADER_SIZE + len > segment.capacity()) {
+				break;
+			}
+			byte[] data = new byte[len];
+			ByteBuffer buf = segment.duplicate();
+			buf.position(pos + HEADER_SIZE);
+			buf.get(data);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			if ((int) crc.getValue() != segment.getInt(pos + 4)) {
+				break;
+			}
+			pos += HEADER_SIZE + len;
+		}
+		writePosition = pos;
+		byte[] zeros = new byte[8192];
+		ByteBuffer buf = segment.duplicate();
+		buf.position(pos);
+		while (buf.hasRemaining()) {
+			buf.put(zeros, 0, Math.min(zeros.length, buf.remaining()));
+		}
+		segment.force();
+
+		if (log.isLoggable(Level.CONFIG)) {
+			log.log(Level.CONFIG, "Opened journal {0} with {1} segments, replaying from {2}",
+					new Object[]{directory, segments.size(), checkpoint});
+		}
+	}
+
+	private File segmentFile(long seq) {
+		return new File(directory, String.format("%016d", seq) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Maps segment file to memory, creating it if it does not exist.
+	 *
+	 * @param size size of a new file or 0 to map existing file
+	 */
+	private MappedByteBuffer openSegment(long seq, int size) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(segmentFile(seq), "rw")) {
+			if (size > 0) {
+				file.setLength(size);
+			}
+			return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+		}
+	}
+
+	private static byte[] serialize(ArchiveEntry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(FORMAT_VERSION);
+		writeString(out, entry.getOwner().toString());
+		writeString(out, entry.getBuddy().toString());
+		out.writeShort(entry.getDirection().getValue());
+		out.writeLong(entry.getTimestamp().getTime());
+		writeString(out, entry.getMessage().toString());
+		Set<String> tags = entry.getTags();
+		out.writeInt(tags == null ? -1 : tags.size());
+		if (tags != null) {
+			for (String tag : tags) {
+				writeString(out, tag);
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static ArchiveEntry deserialize(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		byte version = in.readByte();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported format of journal record: " + version);
+		}
+		BareJID owner = BareJID.bareJIDInstanceNS(readString(in));
+		JID buddy = JID.jidInstanceNS(readString(in));
+		MessageArchiveRepository.Direction direction = MessageArchiveRepository.Direction.getDirection(in.readShort());
+		Date timestamp = new Date(in.readLong());
+		String msgStr = readString(in);
+		int tagsCount = in.readInt();
+		Set<String> tags = null;
+		if (tagsCount >= 0) {
+			tags = new HashSet<>(tagsCount);
+			for (int i = 0; i < tagsCount; i++) {
+				tags.add(readString(in));
+			}
+		}
+
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		char[] chars = msgStr.toCharArray();
+		parser.parse(domHandler, chars, 0, chars.length);
+		Element msg = domHandler.getParsedElements().poll();
+		if (msg == null) {
+			throw new IOException("Could not parse message " + msgStr);
+		}
+		return new ArchiveEntry(owner, buddy, direction, timestamp, msg, tags);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] data = str.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Position of a record in the journal.
+	 */
+	public static class Position {
+
+		private final long segment;
+		private final int offset;
+
+		public Position(long segment, int offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		@Override
+		public String toString() {
+			return segment + ":" + offset;
+		}
+	}
+
+	/**
+	 * Message read from the journal with position of the next record. Message
+	 * is <code>null</code> if record could not be read.
+	 */
+	public static class Record {
+
+		private final ArchiveEntry entry;
+		private final Position next;
+
+		private Record(ArchiveEntry entry, Position next) {
+			this.entry = entry;
+			this.next = next;
+		}
+
+		public ArchiveEntry getEntry() {
+			return entry;
+		}
+
+		public Position getNext() {
+			return next;
+		}
+	}
+}
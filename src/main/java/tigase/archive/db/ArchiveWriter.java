@@ -0,0 +1,521 @@
+/*
+ * ArchiveWriter.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.archive.MessageArchiveComponent;
+import tigase.archive.QueryCriteria;
+import tigase.db.DataSource;
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Initializable;
+import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
+import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bean responsible for passing messages to the repository.
+ *
+ * If write-behind is enabled messages are queued and stored by separate
+ * threads in batches, which are flushed when batch size is reached or when
+ * flush interval passes - whichever happens first. Messages of the same
+ * owner are always handled by the same thread, so they are stored in order
+ * in which they were received. If write-behind is disabled messages are
+ * passed to the repository directly.
+ *
+ * If journal is enabled messages are written to a local journal and stored
+ * in batches by a single thread replaying the journal, which retries when
+ * repository is not available. Messages are passed to the repository
+ * directly only if writing to the journal fails.
+ *
+ * When number of queued messages reaches high watermark, overload policy is
+ * applied to new messages until it drops below low watermark: caller is
+ * blocked, message is spilled to the journal or it is dropped.
+ */
+@Bean(name = "archiveWriter", parent = MessageArchiveComponent.class)
+public class ArchiveWriter implements Initializable, UnregisterAware {
+
+	private static final Logger log = Logger.getLogger(ArchiveWriter.class.getCanonicalName());
+
+	private static final String WRITE_BEHIND_KEY = "write-behind";
+	private static final String WRITE_BEHIND_BATCH_SIZE_KEY = "write-behind-batch-size";
+	private static final String WRITE_BEHIND_FLUSH_INTERVAL_KEY = "write-behind-flush-interval";
+	private static final String WRITE_BEHIND_THREADS_KEY = "write-behind-threads";
+	private static final String WRITE_BEHIND_HIGH_WATERMARK_KEY = "write-behind-high-watermark";
+	private static final String WRITE_BEHIND_LOW_WATERMARK_KEY = "write-behind-low-watermark";
+	private static final String WRITE_BEHIND_OVERLOAD_POLICY_KEY = "write-behind-overload-policy";
+	private static final String JOURNAL_KEY = "journal";
+	private static final String JOURNAL_DIRECTORY_KEY = "journal-directory";
+	private static final String JOURNAL_SEGMENT_SIZE_KEY = "journal-segment-size";
+	private static final String JOURNAL_SYNC_KEY = "journal-sync";
+
+	private static final long MAX_REPLAY_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+	private static final int REPLAY_ATTEMPTS_BEFORE_PROBE = 3;
+
+	@Inject
+	private MessageArchiveRepository<QueryCriteria, DataSource> msg_repo;
+
+	@ConfigField(desc = "Store messages asynchronously in batches", alias = WRITE_BEHIND_KEY)
+	private boolean writeBehind = false;
+	@ConfigField(desc = "Maximal number of messages stored in a single batch", alias = WRITE_BEHIND_BATCH_SIZE_KEY)
+	private int batchSize = 100;
+	@ConfigField(desc = "Maximal time message may wait in queue before batch is flushed", alias = WRITE_BEHIND_FLUSH_INTERVAL_KEY)
+	private Duration flushInterval = Duration.ofMillis(50);
+	@ConfigField(desc = "Number of threads storing batches of messages", alias = WRITE_BEHIND_THREADS_KEY)
+	private int threads = 2;
+	@ConfigField(desc = "Number of queued messages above which overload policy is applied", alias = WRITE_BEHIND_HIGH_WATERMARK_KEY)
+	private int highWatermark = 10000;
+	@ConfigField(desc = "Number of queued messages below which overload policy is no longer applied", alias = WRITE_BEHIND_LOW_WATERMARK_KEY)
+	private int lowWatermark = 5000;
+	@ConfigField(desc = "Policy applied to new messages when queue is full", alias = WRITE_BEHIND_OVERLOAD_POLICY_KEY)
+	private OverloadPolicy overloadPolicy = OverloadPolicy.block;
+	@ConfigField(desc = "Write messages to local journal before storing them in repository", alias = JOURNAL_KEY)
+	private boolean journal = false;
+	@ConfigField(desc = "Directory of local journal", alias = JOURNAL_DIRECTORY_KEY)
+	private String journalDirectory = "data/message-archive-journal";
+	@ConfigField(desc = "Size of a single file of local journal in megabytes", alias = JOURNAL_SEGMENT_SIZE_KEY)
+	private int journalSegmentSize = 64;
+	@ConfigField(desc = "Force writing every message in local journal to the disk", alias = JOURNAL_SYNC_KEY)
+	private boolean journalSync = false;
+
+	private final AtomicLong flushedBatches = new AtomicLong();
+	private final AtomicLong flushedMessages = new AtomicLong();
+	private final AtomicLong flushTime = new AtomicLong();
+	private final AtomicLong failedBatches = new AtomicLong();
+	private final AtomicLong replayedMessages = new AtomicLong();
+	private final AtomicLong droppedMessages = new AtomicLong();
+	private final AtomicInteger pending = new AtomicInteger();
+	private final AtomicLong overloads = new AtomicLong();
+	private final AtomicLong blockedTime = new AtomicLong();
+	private final AtomicLong spilledMessages = new AtomicLong();
+	private final AtomicLong shedMessages = new AtomicLong();
+	private final Object overloadLock = new Object();
+	private volatile boolean overloaded = false;
+
+	private volatile Worker[] workers = null;
+	private volatile ArchiveJournal archiveJournal = null;
+	private Replayer replayer = null;
+
+	public void archiveMessage(BareJID owner, JID buddy, MessageArchiveRepository.Direction direction, Date timestamp,
+							   Element msg, Set<String> tags) {
+		ArchiveJournal archiveJournal = this.archiveJournal;
+		if (journal && archiveJournal != null) {
+			try {
+				archiveJournal.append(new ArchiveEntry(owner, buddy, direction, timestamp, msg, tags));
+				return;
+			} catch (IOException ex) {
+				log.log(Level.WARNING, "Could not write message to journal, storing it directly", ex);
+			}
+		}
+
+		Worker[] workers = this.workers;
+		if (workers == null) {
+			msg_repo.archiveMessage(owner, buddy, direction, timestamp, msg, tags);
+			return;
+		}
+
+		ArchiveEntry entry = new ArchiveEntry(owner, buddy, direction, timestamp, msg, tags);
+		if ((overloaded || pending.get() >= highWatermark) && !applyOverloadPolicy(entry)) {
+			return;
+		}
+		pending.incrementAndGet();
+		workers[Math.abs(owner.hashCode() % workers.length)].queue.offer(entry);
+	}
+
+	public boolean isOverloaded() {
+		return overloaded;
+	}
+
+	public int getQueueSize() {
+		Worker[] workers = this.workers;
+		if (workers == null) {
+			return 0;
+		}
+		int size = 0;
+		for (Worker worker : workers) {
+			size += worker.queue.size();
+		}
+		return size;
+	}
+
+	public void getStatistics(String compName, StatisticsList list) {
+		long batches = flushedBatches.get();
+		list.add(compName, "Write-behind queue size", getQueueSize(), Level.FINE);
+		list.add(compName, "Write-behind flushed batches", batches, Level.FINER);
+		list.add(compName, "Write-behind flushed messages", flushedMessages.get(), Level.FINER);
+		list.add(compName, "Write-behind failed batches", failedBatches.get(), Level.FINER);
+		list.add(compName, "Write-behind flush time (avg)", batches > 0 ? ((float) flushTime.get() / batches) : -1,
+				 Level.FINE);
+		list.add(compName, "Write-behind overloaded", overloaded ? 1 : 0, Level.FINE);
+		list.add(compName, "Write-behind overloads", overloads.get(), Level.FINE);
+		list.add(compName, "Write-behind blocked time", blockedTime.get(), Level.FINER);
+		list.add(compName, "Write-behind spilled messages", spilledMessages.get(), Level.FINER);
+		list.add(compName, "Write-behind shed messages", shedMessages.get(), Level.FINE);
+		ArchiveJournal archiveJournal = this.archiveJournal;
+		if (archiveJournal != null) {
+			list.add(compName, "Journal segments", archiveJournal.getSegmentsCount(), Level.FINE);
+			list.add(compName, "Journal appended messages", archiveJournal.getAppended(), Level.FINER);
+			list.add(compName, "Journal replayed messages", replayedMessages.get(), Level.FINER);
+			list.add(compName, "Journal dropped messages", droppedMessages.get(), Level.FINE);
+		}
+	}
+
+	@Override
+	public void initialize() {
+		if (journal || (writeBehind && overloadPolicy == OverloadPolicy.spill)) {
+			try {
+				ArchiveJournal archiveJournal = new ArchiveJournal(new File(journalDirectory),
+																   journalSegmentSize * 1024 * 1024, journalSync);
+				replayer = new Replayer(archiveJournal);
+				replayer.start();
+				this.archiveJournal = archiveJournal;
+			} catch (IOException ex) {
+				log.log(Level.SEVERE, "Could not open journal in " + journalDirectory +
+						", messages will be stored without journal", ex);
+			}
+		}
+		if (writeBehind) {
+			Worker[] workers = new Worker[Math.max(1, threads)];
+			for (int i = 0; i < workers.length; i++) {
+				workers[i] = new Worker(i);
+				workers[i].start();
+			}
+			this.workers = workers;
+		}
+	}
+
+	@Override
+	public void beforeUnregister() {
+		ArchiveJournal archiveJournal = this.archiveJournal;
+		this.archiveJournal = null;
+		if (archiveJournal != null) {
+			// messages remaining in journal will be replayed after restart
+			replayer.running = false;
+			archiveJournal.close();
+			try {
+				replayer.join(TimeUnit.SECONDS.toMillis(30));
+			} catch (InterruptedException ex) {
+				log.log(Level.WARNING, "interrupted while waiting for " + replayer.getName() + " to finish");
+			}
+			replayer = null;
+		}
+
+		Worker[] workers = this.workers;
+		this.workers = null;
+		if (workers == null) {
+			return;
+		}
+		for (Worker worker : workers) {
+			worker.running = false;
+		}
+		for (Worker worker : workers) {
+			try {
+				worker.join(TimeUnit.SECONDS.toMillis(30));
+			} catch (InterruptedException ex) {
+				log.log(Level.WARNING, "interrupted while waiting for " + worker.getName() + " to finish");
+			}
+		}
+	}
+
+	protected void flush(List<ArchiveEntry> batch) {
+		long start = System.currentTimeMillis();
+		try {
+			msg_repo.archiveMessages(batch);
+		} catch (TigaseDBException ex) {
+			failedBatches.incrementAndGet();
+			log.log(Level.WARNING, "Problem storing batch of " + batch.size() + " messages, storing them one by one",
+					ex);
+			// messages which were stored before failure will be ignored
+			// by repository as duplicates
+			for (ArchiveEntry entry : batch) {
+				msg_repo.archiveMessage(entry.getOwner(), entry.getBuddy(), entry.getDirection(),
+										entry.getTimestamp(), entry.getMessage(), entry.getTags());
+			}
+		} catch (Exception ex) {
+			failedBatches.incrementAndGet();
+			log.log(Level.WARNING, "Problem storing batch of " + batch.size() + " messages", ex);
+		}
+		flushTime.addAndGet(System.currentTimeMillis() - start);
+		flushedBatches.incrementAndGet();
+		flushedMessages.addAndGet(batch.size());
+	}
+
+	/**
+	 * Handles message which should be queued while queue is above high
+	 * watermark. Returns <code>true</code> if message should be queued.
+	 */
+	private boolean applyOverloadPolicy(ArchiveEntry entry) {
+		if (!overloaded) {
+			synchronized (overloadLock) {
+				if (!overloaded) {
+					overloaded = true;
+					overloads.incrementAndGet();
+					log.log(Level.WARNING, "{0} messages waiting to be stored, applying {1} policy until it drops to {2}",
+							new Object[]{pending.get(), overloadPolicy, lowWatermark});
+				}
+			}
+		}
+
+		switch (overloadPolicy) {
+			case block:
+				long start = System.currentTimeMillis();
+				synchronized (overloadLock) {
+					while (overloaded) {
+						if (pending.get() <= lowWatermark) {
+							overloaded = false;
+							break;
+						}
+						try {
+							overloadLock.wait(100);
+						} catch (InterruptedException ex) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+				}
+				blockedTime.addAndGet(System.currentTimeMillis() - start);
+				return true;
+			case spill:
+				ArchiveJournal archiveJournal = this.archiveJournal;
+				if (archiveJournal != null) {
+					try {
+						archiveJournal.append(entry);
+						spilledMessages.incrementAndGet();
+						return false;
+					} catch (IOException ex) {
+						log.log(Level.FINE, "Could not spill message to journal, dropping it", ex);
+					}
+				}
+				// if message cannot be spilled it is dropped
+			case drop:
+				shedMessages.incrementAndGet();
+				log.log(Level.FINEST, "Dropping message due to overload: {0}", entry);
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	private void release(int count) {
+		if (pending.addAndGet(-count) <= lowWatermark && overloaded) {
+			synchronized (overloadLock) {
+				if (overloaded) {
+					overloaded = false;
+					overloadLock.notifyAll();
+					log.log(Level.INFO, "{0} messages waiting to be stored, overload policy is no longer applied",
+							pending.get());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stores messages read from the journal. Returns number of records which
+	 * were processed and should not be read again.
+	 *
+	 * If storing a batch fails, messages are stored one by one to find out if
+	 * repository is unavailable - in which case storing is stopped at the
+	 * first failed message, or if some messages cannot be stored at all - in
+	 * which case they are dropped. Messages after the first failure are
+	 * checked only if <code>probe</code> is set, to avoid waiting for each
+	 * of them while repository is unavailable.
+	 */
+	protected int replay(List<ArchiveJournal.Record> records, boolean probe) {
+		List<ArchiveEntry> batch = new ArrayList<>(records.size());
+		for (ArchiveJournal.Record record : records) {
+			if (record.getEntry() != null) {
+				batch.add(record.getEntry());
+			}
+		}
+		if (batch.isEmpty()) {
+			return records.size();
+		}
+
+		long start = System.currentTimeMillis();
+		try {
+			msg_repo.archiveMessages(batch);
+			flushTime.addAndGet(System.currentTimeMillis() - start);
+			flushedBatches.incrementAndGet();
+			replayedMessages.addAndGet(batch.size());
+			return records.size();
+		} catch (Exception ex) {
+			failedBatches.incrementAndGet();
+			log.log(Level.FINE, "Problem storing batch of " + batch.size() + " messages from journal", ex);
+		}
+
+		int firstFailed = -1;
+		boolean anyStored = false;
+		for (int i = 0; i < records.size(); i++) {
+			ArchiveEntry entry = records.get(i).getEntry();
+			if (entry == null) {
+				continue;
+			}
+			try {
+				msg_repo.archiveMessages(Collections.singletonList(entry));
+				replayedMessages.incrementAndGet();
+				anyStored = true;
+				if (firstFailed >= 0) {
+					for (int j = firstFailed; j < i; j++) {
+						if (records.get(j).getEntry() != null) {
+							droppedMessages.incrementAndGet();
+							log.log(Level.WARNING, "Dropping message from journal which could not be stored: {0}",
+									records.get(j).getEntry());
+						}
+					}
+					firstFailed = -1;
+				}
+			} catch (Exception ex) {
+				log.log(Level.FINEST, "Problem storing message from journal: " + entry, ex);
+				if (firstFailed < 0) {
+					firstFailed = i;
+				}
+				if (!anyStored && !probe) {
+					break;
+				}
+			}
+		}
+		return firstFailed < 0 ? records.size() : firstFailed;
+	}
+
+	public enum OverloadPolicy {
+		block,
+		spill,
+		drop
+	}
+
+	private class Replayer
+			extends Thread {
+
+		private final ArchiveJournal archiveJournal;
+		private volatile boolean running = true;
+
+		public Replayer(ArchiveJournal archiveJournal) {
+			super("message-archive-journal-replayer");
+			this.archiveJournal = archiveJournal;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ArchiveJournal.Position position = archiveJournal.getCheckpoint();
+			long backoff = 0;
+			int attempts = 0;
+			while (running) {
+				try {
+					if (backoff > 0) {
+						Thread.sleep(backoff);
+					}
+					List<ArchiveJournal.Record> records = archiveJournal.read(position, batchSize, 100);
+					if (records.isEmpty()) {
+						continue;
+					}
+
+					int processed = replay(records, attempts >= REPLAY_ATTEMPTS_BEFORE_PROBE);
+					if (processed > 0) {
+						position = records.get(processed - 1).getNext();
+						archiveJournal.commit(position);
+					}
+					if (processed < records.size()) {
+						attempts = processed > 0 ? 1 : attempts + 1;
+						backoff = Math.min(MAX_REPLAY_BACKOFF, Math.max(100, backoff * 2));
+						log.log(Level.WARNING, "Could not store messages from journal, retrying in {0}ms", backoff);
+					} else {
+						attempts = 0;
+						backoff = 0;
+					}
+				} catch (InterruptedException ex) {
+					// checking if we should continue
+				} catch (IOException ex) {
+					log.log(Level.WARNING, "Could not update checkpoint of journal", ex);
+				}
+			}
+		}
+	}
+
+	private class Worker
+			extends Thread {
+
+		private final BlockingQueue<ArchiveEntry> queue = new LinkedBlockingQueue<>();
+		private volatile boolean running = true;
+
+		public Worker(int idx) {
+			super("message-archive-writer-" + idx);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			List<ArchiveEntry> batch = new ArrayList<>(batchSize);
+			long flushIntervalNanos = flushInterval.toNanos();
+			while (running || !queue.isEmpty()) {
+				try {
+					ArchiveEntry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+					if (entry == null) {
+						continue;
+					}
+					batch.add(entry);
+
+					long deadline = System.nanoTime() + flushIntervalNanos;
+					while (batch.size() < batchSize) {
+						queue.drainTo(batch, batchSize - batch.size());
+						long wait = deadline - System.nanoTime();
+						if (batch.size() >= batchSize || wait <= 0) {
+							break;
+						}
+						entry = queue.poll(wait, TimeUnit.NANOSECONDS);
+						if (entry == null) {
+							break;
+						}
+						batch.add(entry);
+					}
+				} catch (InterruptedException ex) {
+					// we need to flush what we have and continue
+				}
+
+				if (!batch.isEmpty()) {
+					flush(batch);
+					release(batch.size());
+					batch.clear();
+				}
+			}
+		}
+	}
+}
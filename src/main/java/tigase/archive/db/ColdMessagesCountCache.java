@@ -0,0 +1,123 @@
+/*
+ * ColdMessagesCountCache.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of numbers of all messages of users kept in cold storage, in
+ * which least recently used entries are evicted when the cache is full.
+ * Users without messages in cold storage are cached as well, so queries of
+ * their messages do not need to look into cold storage at all.
+ *
+ * Number counted by a database is put only if no entry was removed and cache
+ * was not cleared since counting started, so a number counted before
+ * messages were moved to or removed from cold storage is not cached.
+ */
+public class ColdMessagesCountCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<String, Integer> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long stamp = 0;
+
+	public ColdMessagesCountCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > ColdMessagesCountCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns number of messages of a user in cold storage or
+	 * <code>null</code> if it is not cached.
+	 */
+	public Integer get(String owner) {
+		Integer count;
+		synchronized (cache) {
+			count = cache.get(key(owner));
+		}
+		if (count == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns stamp which needs to be taken before number of messages is
+	 * counted and passed to {@link #put(String, int, long)}.
+	 */
+	public long startCounting() {
+		synchronized (cache) {
+			return stamp;
+		}
+	}
+
+	public void put(String owner, int count, long stamp) {
+		synchronized (cache) {
+			if (this.stamp == stamp) {
+				cache.put(key(owner), count);
+			}
+		}
+	}
+
+	public void remove(String owner) {
+		synchronized (cache) {
+			stamp++;
+			cache.remove(key(owner));
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			stamp++;
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	/**
+	 * Returns percent of lookups which found number of messages in the cache.
+	 */
+	public float getHitRatio() {
+		long hits = this.hits.get();
+		long all = hits + misses.get();
+		return all == 0 ? 0 : ((float) hits * 100) / all;
+	}
+
+	private static String key(String owner) {
+		return owner.toLowerCase();
+	}
+}
@@ -29,6 +29,7 @@ import tigase.db.DataRepository;
 import tigase.db.Repository;
 import tigase.db.TigaseDBException;
 import tigase.kernel.beans.config.ConfigField;
+import tigase.stats.StatisticsList;
 import tigase.util.Base64;
 import tigase.xml.DomBuilderHandler;
 import tigase.xml.Element;
@@ -44,9 +45,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,19 +73,75 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 
 	private static final String STORE_PLAINTEXT_BODY_KEY = "store-plaintext-body";
 	private static final String GROUP_BY_TYPE_KEY = "group-by-chat-type";
+	private static final String COMPRESS_MESSAGES_KEY = "compress-messages";
 	
 	private static final String DELETE_EXPIRED_QUERY_TIMEOUT_KEY = "remove-expired-messages-query-timeout";
 	private static final int DEF_DELETE_EXPIRED_QUERY_TIMEOUT_VAL = 5 * 60;
 
+	private static final String STATEMENT_LEASE_EXCLUSIVE_KEY = "statement-lease-exclusive";
+	private static final String STATEMENT_LEASE_TIMEOUT_KEY = "statement-lease-timeout";
+	private static final String JID_CACHE_SIZE_KEY = "jid-cache-size";
+	private static final String TAG_CACHE_SIZE_KEY = "tag-cache-size";
+	private static final String DEDUP_FILTER_MEMORY_KEY = "dedup-filter-memory";
+	private static final String DEDUP_FILTER_WINDOW_KEY = "dedup-filter-window";
+	private static final String SINGLE_QUERY_PAGING_KEY = "single-query-paging";
+	private static final String STREAM_ITEMS_KEY = "stream-items";
+	private static final String ITEMS_FETCH_SIZE_KEY = "items-fetch-size";
+	private static final String RAW_MESSAGES_KEY = "raw-messages";
+	private static final String MESSAGE_COUNT_CACHE_SIZE_KEY = "message-count-cache-size";
+	private static final String MESSAGE_COUNT_CACHE_TTL_KEY = "message-count-cache-ttl";
+	private static final String RECENT_ITEMS_PER_CONVERSATION_KEY = "recent-items-per-conversation";
+	private static final String RECENT_ITEMS_MEMORY_KEY = "recent-items-memory";
+	private static final String RECENT_ITEMS_TTL_KEY = "recent-items-ttl";
+	private static final String STORED_COLLECTIONS_KEY = "stored-collections";
+	private static final String COLLECTIONS_BACKFILL_KEY = "collections-backfill";
+	private static final String COLLECTIONS_BACKFILL_BATCH_KEY = "collections-backfill-batch";
+	private static final String MESSAGE_PARTITION_MONTHS_KEY = "message-partition-months";
+	private static final String DROP_EXPIRED_PARTITIONS_KEY = "drop-expired-partitions";
+	private static final String DELETE_EXPIRED_CHUNK_SIZE_KEY = "remove-expired-messages-chunk-size";
+	private static final String DELETE_EXPIRED_CHUNK_PAUSE_KEY = "remove-expired-messages-chunk-pause";
+	private static final String DELETE_EXPIRED_CONCURRENCY_KEY = "remove-expired-messages-concurrency";
+	private static final String COLD_STORAGE_AFTER_KEY = "cold-storage-after";
+	private static final String COLD_STORAGE_BATCH_KEY = "cold-storage-batch";
+	private static final String COLD_STORAGE_INTERVAL_KEY = "cold-storage-interval";
+	private static final String COLD_MESSAGES_COUNT_CACHE_SIZE_KEY = "cold-messages-count-cache-size";
+	private static final String REMOVE_ORPHANS_INTERVAL_KEY = "remove-orphans-interval";
+	private static final String REMOVE_ORPHANS_BATCH_KEY = "remove-orphans-batch";
+	private static final String REMOVE_ORPHANS_PAUSE_KEY = "remove-orphans-pause";
+
+	// index of column with position of a message in a page returned by GET_MESSAGES_PAGE_QUERY
+	private static final int PAGE_POSITION_COLUMN = 6;
+
 	private static final String DEF_GET_MESSAGES_QUERY = "{ call Tig_MA_GetMessages(?,?,?,?,?,?,?,?) }";
 	private static final String DEF_GET_MESSAGES_COUNT_QUERY = "{ call Tig_MA_GetMessagesCount(?,?,?,?,?,?) }";
 	private static final String DEF_GET_MESSAGES_POSITION_QUERY = "{ call Tig_MA_GetMessagePosition(?,?,?,?,?,?,?) }";
+	private static final String DEF_GET_MESSAGES_PAGE_QUERY = "{ call Tig_MA_GetMessagesPage(?,?,?,?,?,?,?,?,?,?,?,?) }";
 	private static final String DEF_GET_COLLECTIONS_QUERY = "{ call Tig_MA_GetCollections(?,?,?,?,?,?,?,?,?) }";
 	private static final String DEF_GET_COLLECTIONS_COUNT_QUERY = "{ call Tig_MA_GetCollectionsCount(?,?,?,?,?,?,?) }";
+	private static final String DEF_GET_STORED_COLLECTIONS_QUERY = "{ call Tig_MA_GetStoredCollections(?,?,?,?,?,?,?) }";
+	private static final String DEF_GET_STORED_COLLECTIONS_COUNT_QUERY = "{ call Tig_MA_GetStoredCollectionsCount(?,?,?,?,?) }";
+	private static final String DEF_BACKFILL_COLLECTIONS_QUERY = "{ call Tig_MA_BackfillCollections(?,?) }";
 	private static final String DEF_ADD_MESSAGE_QUERY = "{ call Tig_MA_AddMessage(?,?,?,?,?,?,?,?,?) }";
+	private static final String DEF_ADD_MESSAGE_BY_ID_QUERY = "{ call Tig_MA_AddMessageById(?,?,?,?,?,?,?,?,?) }";
+	private static final String DEF_STORE_MESSAGE_BY_ID_QUERY = "{ call Tig_MA_StoreMessageById(?,?,?,?,?,?,?,?,?) }";
+	private static final String DEF_ENSURE_JID_ID_QUERY = "{ call Tig_MA_EnsureJidId(?) }";
 	private static final String DEF_ADD_TAG_TO_MESSAGE_QUERY = "{ call Tig_MA_AddTagToMessage(?,?) }";
+	private static final String DEF_ADD_TAG_TO_MESSAGE_BY_ID_QUERY = "{ call Tig_MA_AddTagToMessageById(?,?) }";
+	private static final String DEF_ENSURE_TAG_ID_QUERY = "{ call Tig_MA_EnsureTagId(?,?) }";
 	private static final String DEF_REMOVE_MESSAGES_QUERY = "{ call Tig_MA_RemoveMessages(?,?,?,?) }";
 	private static final String DEF_DELETE_EXPIRED_MESSAGES_QUERY = "{ call Tig_MA_DeleteExpiredMessages(?,?) }";
+	private static final String DEF_DELETE_EXPIRED_MESSAGES_CHUNK_QUERY = "{ call Tig_MA_DeleteExpiredMessagesChunk(?,?,?) }";
+	private static final String DEF_SET_USER_RETENTION_QUERY = "{ call Tig_MA_SetUserRetention(?,?) }";
+	private static final String DEF_GET_USER_RETENTION_BUCKETS_QUERY = "{ call Tig_MA_GetUserRetentionBuckets(?) }";
+	private static final String DEF_DELETE_EXPIRED_USER_MESSAGES_QUERY = "{ call Tig_MA_DeleteExpiredUserMessages(?,?,?) }";
+	private static final String DEF_MOVE_MESSAGES_TO_COLD_QUERY = "{ call Tig_MA_MoveMessagesToCold(?,?) }";
+	private static final String DEF_GET_COLD_MESSAGES_QUERY = "{ call Tig_MA_GetColdMessages(?,?,?,?,?,?,?,?) }";
+	private static final String DEF_GET_COLD_MESSAGES_COUNT_QUERY = "{ call Tig_MA_GetColdMessagesCount(?,?,?,?,?,?) }";
+	private static final String DEF_GET_COLD_MESSAGE_POSITION_QUERY = "{ call Tig_MA_GetColdMessagePosition(?,?,?,?,?,?,?) }";
+	private static final String DEF_DELETE_ORPHANED_JIDS_QUERY = "{ call Tig_MA_DeleteOrphanedJids(?,?) }";
+	private static final String DEF_DELETE_ORPHANED_TAGS_QUERY = "{ call Tig_MA_DeleteOrphanedTags(?,?) }";
+	private static final String DEF_ENSURE_PARTITIONS_QUERY = "{ call Tig_MA_EnsurePartitions(?) }";
+	private static final String DEF_DROP_EXPIRED_PARTITIONS_QUERY = "{ call Tig_MA_DropExpiredPartitions(?) }";
 	private static final String DEF_GET_TAGS_FOR_USER_QUERY = "{ call Tig_MA_GetTagsForUser(?,?,?,?) }";
 	private static final String DEF_GET_TAGS_FOR_USER_COUNT_QUERY = "{ call Tig_MA_GetTagsForUserCount(?,?) }";
 
@@ -89,18 +151,60 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 	protected String GET_MESSAGES_COUNT_QUERY = DEF_GET_MESSAGES_COUNT_QUERY;
 	@ConfigField(desc = "Query to retrieve message possition", alias = "get-message-position-query")
 	protected String GET_MESSAGE_POSITION_QUERY = DEF_GET_MESSAGES_POSITION_QUERY;
+	@ConfigField(desc = "Query to retrieve page of messages with number of messages", alias = "get-messages-page-query")
+	protected String GET_MESSAGES_PAGE_QUERY = DEF_GET_MESSAGES_PAGE_QUERY;
 	@ConfigField(desc = "Query to retrieve list of collections", alias = "get-collections-query")
 	protected String GET_COLLECTIONS_QUERY = DEF_GET_COLLECTIONS_QUERY;
 	@ConfigField(desc = "Query to retrieve number of collections", alias = "get-collections-count-query")
 	protected String GET_COLLECTIONS_COUNT_QUERY = DEF_GET_COLLECTIONS_COUNT_QUERY;
+	@ConfigField(desc = "Query to retrieve list of collections from summary table", alias = "get-stored-collections-query")
+	protected String GET_STORED_COLLECTIONS_QUERY = DEF_GET_STORED_COLLECTIONS_QUERY;
+	@ConfigField(desc = "Query to retrieve number of collections from summary table", alias = "get-stored-collections-count-query")
+	protected String GET_STORED_COLLECTIONS_COUNT_QUERY = DEF_GET_STORED_COLLECTIONS_COUNT_QUERY;
+	@ConfigField(desc = "Query to fill summary table of collections for a batch of users", alias = "backfill-collections-query")
+	protected String BACKFILL_COLLECTIONS_QUERY = DEF_BACKFILL_COLLECTIONS_QUERY;
 	@ConfigField(desc = "Query to add message to store", alias = "add-message-query")
 	protected String ADD_MESSAGE_QUERY = DEF_ADD_MESSAGE_QUERY;
+	@ConfigField(desc = "Query to add message to store using ids of JIDs", alias = "add-message-by-id-query")
+	protected String ADD_MESSAGE_BY_ID_QUERY = DEF_ADD_MESSAGE_BY_ID_QUERY;
+	@ConfigField(desc = "Query to add message to store in a batch using ids of JIDs", alias = "store-message-by-id-query")
+	protected String STORE_MESSAGE_BY_ID_QUERY = DEF_STORE_MESSAGE_BY_ID_QUERY;
+	@ConfigField(desc = "Query to retrieve id of JID", alias = "ensure-jid-id-query")
+	protected String ENSURE_JID_ID_QUERY = DEF_ENSURE_JID_ID_QUERY;
 	@ConfigField(desc = "Query to add tag to message in store", alias = "add-tag-to-message-query")
 	protected String ADD_TAG_TO_MESSAGE_QUERY = DEF_ADD_TAG_TO_MESSAGE_QUERY;
+	@ConfigField(desc = "Query to add tag to message in store using ids", alias = "add-tag-to-message-by-id-query")
+	protected String ADD_TAG_TO_MESSAGE_BY_ID_QUERY = DEF_ADD_TAG_TO_MESSAGE_BY_ID_QUERY;
+	@ConfigField(desc = "Query to retrieve id of tag", alias = "ensure-tag-id-query")
+	protected String ENSURE_TAG_ID_QUERY = DEF_ENSURE_TAG_ID_QUERY;
 	@ConfigField(desc = "Query to remove messages", alias = "remove-messages-query")
 	protected String REMOVE_MESSAGES_QUERY = DEF_REMOVE_MESSAGES_QUERY;
 	@ConfigField(desc = "Query to delete expired messages", alias = "delete-expired-messages-query")
 	protected String DELETE_EXPIRED_MESSAGES_QUERY = DEF_DELETE_EXPIRED_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to delete a chunk of the oldest expired messages", alias = "delete-expired-messages-chunk-query")
+	protected String DELETE_EXPIRED_MESSAGES_CHUNK_QUERY = DEF_DELETE_EXPIRED_MESSAGES_CHUNK_QUERY;
+	@ConfigField(desc = "Query to store retention period of messages set by user", alias = "set-user-retention-query")
+	protected String SET_USER_RETENTION_QUERY = DEF_SET_USER_RETENTION_QUERY;
+	@ConfigField(desc = "Query to retrieve retention periods set by users of a domain", alias = "get-user-retention-buckets-query")
+	protected String GET_USER_RETENTION_BUCKETS_QUERY = DEF_GET_USER_RETENTION_BUCKETS_QUERY;
+	@ConfigField(desc = "Query to delete expired messages of users of a domain with the same retention period", alias = "delete-expired-user-messages-query")
+	protected String DELETE_EXPIRED_USER_MESSAGES_QUERY = DEF_DELETE_EXPIRED_USER_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to move the oldest messages to cold storage", alias = "move-messages-to-cold-query")
+	protected String MOVE_MESSAGES_TO_COLD_QUERY = DEF_MOVE_MESSAGES_TO_COLD_QUERY;
+	@ConfigField(desc = "Query to retrieve list of messages from cold storage", alias = "get-cold-messages-query")
+	protected String GET_COLD_MESSAGES_QUERY = DEF_GET_COLD_MESSAGES_QUERY;
+	@ConfigField(desc = "Query to retrieve number of messages in cold storage", alias = "get-cold-messages-count-query")
+	protected String GET_COLD_MESSAGES_COUNT_QUERY = DEF_GET_COLD_MESSAGES_COUNT_QUERY;
+	@ConfigField(desc = "Query to retrieve position of message in cold storage", alias = "get-cold-message-position-query")
+	protected String GET_COLD_MESSAGE_POSITION_QUERY = DEF_GET_COLD_MESSAGE_POSITION_QUERY;
+	@ConfigField(desc = "Query to delete a batch of JIDs which are no longer referenced", alias = "delete-orphaned-jids-query")
+	protected String DELETE_ORPHANED_JIDS_QUERY = DEF_DELETE_ORPHANED_JIDS_QUERY;
+	@ConfigField(desc = "Query to delete a batch of tags which are no longer referenced", alias = "delete-orphaned-tags-query")
+	protected String DELETE_ORPHANED_TAGS_QUERY = DEF_DELETE_ORPHANED_TAGS_QUERY;
+	@ConfigField(desc = "Query to create partitions of messages for upcoming months", alias = "ensure-partitions-query")
+	protected String ENSURE_PARTITIONS_QUERY = DEF_ENSURE_PARTITIONS_QUERY;
+	@ConfigField(desc = "Query to drop partitions of messages which expired", alias = "drop-expired-partitions-query")
+	protected String DROP_EXPIRED_PARTITIONS_QUERY = DEF_DROP_EXPIRED_PARTITIONS_QUERY;
 	@ConfigField(desc = "Query to retrieve tags used by user", alias = "get-tags-for-user-query")
 	protected String GET_TAGS_FOR_USER_QUERY = DEF_GET_TAGS_FOR_USER_QUERY;
 	@ConfigField(desc = "Query to retrieve number of tags used by user", alias = "get-tags-for-user-count-query")
@@ -111,10 +215,85 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 	protected DataRepository data_repo = null;
 	@ConfigField(desc = "Store plaintext body in separate field", alias = STORE_PLAINTEXT_BODY_KEY)
 	private boolean storePlaintextBody = true;
+	@ConfigField(desc = "Store messages in compressed form", alias = COMPRESS_MESSAGES_KEY)
+	private boolean compressMessages = false;
 	@ConfigField(desc = "Group collections by stanza type", alias = GROUP_BY_TYPE_KEY)
 	private boolean groupByType = false;
 	@ConfigField(desc = "Delete expired messages statement query timeout", alias = DELETE_EXPIRED_QUERY_TIMEOUT_KEY)
 	private int delete_expired_timeout = DEF_DELETE_EXPIRED_QUERY_TIMEOUT_VAL;
+	@ConfigField(desc = "Number of expired messages deleted at once, 0 to delete all of them using a single statement", alias = DELETE_EXPIRED_CHUNK_SIZE_KEY)
+	private int deleteExpiredChunkSize = 0;
+	@ConfigField(desc = "Pause between deletion of chunks of expired messages", alias = DELETE_EXPIRED_CHUNK_PAUSE_KEY)
+	private Duration deleteExpiredChunkPause = Duration.ofSeconds(1);
+	@ConfigField(desc = "Number of domains for which expired messages are removed from database at once", alias = DELETE_EXPIRED_CONCURRENCY_KEY)
+	private int deleteExpiredConcurrency = 1;
+	@ConfigField(desc = "Lease connections of data source exclusively for each repository operation instead of sharing prepared statements", alias = STATEMENT_LEASE_EXCLUSIVE_KEY)
+	private boolean statementLeaseExclusive = true;
+	@ConfigField(desc = "Maximal time to wait for a free connection", alias = STATEMENT_LEASE_TIMEOUT_KEY)
+	private Duration statementLeaseTimeout = Duration.ofSeconds(30);
+	@ConfigField(desc = "Number of ids of JIDs cached by repository, 0 to disable cache", alias = JID_CACHE_SIZE_KEY)
+	private int jidCacheSize = 10000;
+	@ConfigField(desc = "Number of users for which ids of tags are cached by repository, 0 to disable cache", alias = TAG_CACHE_SIZE_KEY)
+	private int tagCacheSize = 1000;
+	@ConfigField(desc = "Memory in megabytes used to remember recently stored messages to drop duplicates, 0 to disable", alias = DEDUP_FILTER_MEMORY_KEY)
+	private int dedupFilterMemory = 8;
+	@ConfigField(desc = "Time after which oldest remembered messages are forgotten", alias = DEDUP_FILTER_WINDOW_KEY)
+	private Duration dedupFilterWindow = Duration.ofMinutes(10);
+	@ConfigField(desc = "Retrieve page of messages with its position and number of messages using a single query", alias = SINGLE_QUERY_PAGING_KEY)
+	private boolean singleQueryPaging = true;
+	@ConfigField(desc = "Pass messages to handler as soon as they are read from database", alias = STREAM_ITEMS_KEY)
+	private boolean streamItems = false;
+	@ConfigField(desc = "Number of messages fetched from database at once, 0 to use default of the driver", alias = ITEMS_FETCH_SIZE_KEY)
+	private int itemsFetchSize = 0;
+	@ConfigField(desc = "Pass retrieved messages to handler as serialized XML without parsing them", alias = RAW_MESSAGES_KEY)
+	private boolean rawMessages = false;
+	@ConfigField(desc = "Number of owners for which numbers of messages are cached, 0 to disable", alias = MESSAGE_COUNT_CACHE_SIZE_KEY)
+	private int messageCountCacheSize = 0;
+	@ConfigField(desc = "Time after which cached number of messages is counted again", alias = MESSAGE_COUNT_CACHE_TTL_KEY)
+	private Duration messageCountCacheTtl = Duration.ofMinutes(1);
+	@ConfigField(desc = "Number of the latest messages of a conversation kept in memory, 0 to disable", alias = RECENT_ITEMS_PER_CONVERSATION_KEY)
+	private int recentItemsPerConversation = 0;
+	@ConfigField(desc = "Memory in megabytes used to keep the latest messages of conversations", alias = RECENT_ITEMS_MEMORY_KEY)
+	private int recentItemsMemory = 16;
+	@ConfigField(desc = "Time after which the latest messages of a conversation are retrieved from database again", alias = RECENT_ITEMS_TTL_KEY)
+	private Duration recentItemsTtl = Duration.ofMinutes(5);
+	@ConfigField(desc = "Retrieve collections from summary table maintained when messages are stored", alias = STORED_COLLECTIONS_KEY)
+	private boolean storedCollections = false;
+	@ConfigField(desc = "Fill summary table of collections with collections of already stored messages", alias = COLLECTIONS_BACKFILL_KEY)
+	private boolean collectionsBackfill = false;
+	@ConfigField(desc = "Number of users for which summary table of collections is filled at once", alias = COLLECTIONS_BACKFILL_BATCH_KEY)
+	private int collectionsBackfillBatch = 100;
+	@ConfigField(desc = "Number of months of messages stored in a single partition, 0 if messages are not partitioned", alias = MESSAGE_PARTITION_MONTHS_KEY)
+	private int messagePartitionMonths = 0;
+	@ConfigField(desc = "Drop partitions of messages which expired instead of deleting messages", alias = DROP_EXPIRED_PARTITIONS_KEY)
+	private boolean dropExpiredPartitions = false;
+	@ConfigField(desc = "Age after which messages are moved to cold storage, 0 to keep all messages in table of messages", alias = COLD_STORAGE_AFTER_KEY)
+	private Duration coldStorageAfter = Duration.ZERO;
+	@ConfigField(desc = "Number of messages moved to cold storage at once", alias = COLD_STORAGE_BATCH_KEY)
+	private int coldStorageBatch = 1000;
+	@ConfigField(desc = "Interval between runs moving old messages to cold storage", alias = COLD_STORAGE_INTERVAL_KEY)
+	private Duration coldStorageInterval = Duration.ofHours(1);
+	@ConfigField(desc = "Number of owners for which numbers of messages in cold storage are cached, 0 to disable", alias = COLD_MESSAGES_COUNT_CACHE_SIZE_KEY)
+	private int coldMessagesCountCacheSize = 10000;
+	@ConfigField(desc = "Interval between runs removing JIDs and tags which are no longer referenced, 0 to disable removal", alias = REMOVE_ORPHANS_INTERVAL_KEY)
+	private Duration removeOrphansInterval = Duration.ZERO;
+	@ConfigField(desc = "Number of JIDs or tags checked at once during removal of unreferenced ones", alias = REMOVE_ORPHANS_BATCH_KEY)
+	private int removeOrphansBatch = 1000;
+	@ConfigField(desc = "Pause between batches of removal of unreferenced JIDs and tags", alias = REMOVE_ORPHANS_PAUSE_KEY)
+	private Duration removeOrphansPause = Duration.ofSeconds(1);
+
+	private StatementLeasePool leasePool = null;
+	private JidCache jidCache = null;
+	private TagCache tagCache = null;
+	private MessageCountCache messageCountCache = null;
+	private ColdMessagesCountCache coldMessagesCountCache = null;
+	private RecentItemsCache recentItems = null;
+	private RecentMessagesFilter recentMessages = null;
+	private CollectionsBackfill backfill = null;
+	private ColdStorageMover coldStorageMover = null;
+	private OrphansRemoval orphansRemoval = null;
+	private Semaphore expiredMessagesRemovalPermits = null;
+	private final Map<PreparedStatement, Lock> statementLocks = SharedStatementLease.newLocksMap();
 
 	//~--- methods --------------------------------------------------------------
 
@@ -126,18 +305,194 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		} catch (SQLException ex) {
 			throw new RuntimeException("MessageArchiveDB initialization exception", ex);
 		}
+		StatementLeasePool oldPool = leasePool;
+		leasePool = statementLeaseExclusive ? new StatementLeasePool(data_repo, statementLeaseTimeout.toMillis()) : null;
+		if (oldPool != null) {
+			oldPool.close();
+		}
+		jidCache = jidCacheSize > 0 ? new JidCache(jidCacheSize) : null;
+		tagCache = tagCacheSize > 0 ? new TagCache(tagCacheSize) : null;
+		messageCountCache = messageCountCacheSize > 0 ? new MessageCountCache(messageCountCacheSize,
+																			  messageCountCacheTtl.toMillis()) : null;
+		coldMessagesCountCache = isColdStorageEnabled() && coldMessagesCountCacheSize > 0
+								 ? new ColdMessagesCountCache(coldMessagesCountCacheSize)
+								 : null;
+		recentItems = recentItemsPerConversation > 0 ? new RecentItemsCache(recentItemsPerConversation,
+																			recentItemsMemory * 1024L * 1024L,
+																			recentItemsTtl.toMillis()) : null;
+		recentMessages = dedupFilterMemory > 0 ? new RecentMessagesFilter(dedupFilterMemory * 1024L * 1024L,
+																		  dedupFilterWindow.toMillis()) : null;
+		expiredMessagesRemovalPermits = new Semaphore(Math.max(deleteExpiredConcurrency, 1));
+		if (backfill != null) {
+			backfill.shutdown();
+			backfill = null;
+		}
+		if (collectionsBackfill) {
+			backfill = new CollectionsBackfill();
+			backfill.start();
+		}
+		if (coldStorageMover != null) {
+			coldStorageMover.shutdown();
+			coldStorageMover = null;
+		}
+		if (isColdStorageEnabled()) {
+			coldStorageMover = new ColdStorageMover();
+			coldStorageMover.start();
+		}
+		if (orphansRemoval != null) {
+			orphansRemoval.shutdown();
+			orphansRemoval = null;
+		}
+		if (isOrphansRemovalEnabled()) {
+			orphansRemoval = new OrphansRemoval();
+			orphansRemoval.start();
+		}
+		if (messagePartitionMonths > 0) {
+			try (StatementLease lease = leaseStatements(null)) {
+				ensurePartitions(lease);
+			} catch (SQLException ex) {
+				log.log(Level.WARNING, "could not create partitions of messages for upcoming months", ex);
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (backfill != null) {
+			backfill.shutdown();
+			backfill = null;
+		}
+		if (coldStorageMover != null) {
+			coldStorageMover.shutdown();
+			coldStorageMover = null;
+		}
+		if (orphansRemoval != null) {
+			orphansRemoval.shutdown();
+			orphansRemoval = null;
+		}
+		if (leasePool != null) {
+			leasePool.close();
+			leasePool = null;
+		}
+	}
+
+	@Override
+	public void collectStatistics(String compName, StatisticsList list) {
+		StatementLeasePool pool = leasePool;
+		if (pool != null) {
+			list.add(compName, "Leased connections", pool.getLeased(), Level.FINER);
+			list.add(compName, "Connection leases", pool.getLeases(), Level.FINER);
+			list.add(compName, "Connection lease waits", pool.getWaits(), Level.FINER);
+			list.add(compName, "Connection lease wait time (avg)", pool.getWaitTimeAvg(), Level.FINER);
+		}
+		JidCache cache = jidCache;
+		if (cache != null) {
+			list.add(compName, "JID cache size", cache.size(), Level.FINER);
+			list.add(compName, "JID cache hits", cache.getHits(), Level.FINER);
+			list.add(compName, "JID cache misses", cache.getMisses(), Level.FINER);
+			list.add(compName, "JID cache hit ratio", cache.getHitRatio(), Level.FINE);
+		}
+		TagCache tags = tagCache;
+		if (tags != null) {
+			list.add(compName, "Tag cache size", tags.size(), Level.FINER);
+			list.add(compName, "Tag cache hit ratio", tags.getHitRatio(), Level.FINE);
+		}
+		MessageCountCache counts = messageCountCache;
+		if (counts != null) {
+			list.add(compName, "Message count cache size", counts.size(), Level.FINER);
+			list.add(compName, "Message count cache hit ratio", counts.getHitRatio(), Level.FINE);
+		}
+		ColdMessagesCountCache coldCounts = coldMessagesCountCache;
+		if (coldCounts != null) {
+			list.add(compName, "Cold messages count cache size", coldCounts.size(), Level.FINER);
+			list.add(compName, "Cold messages count cache hit ratio", coldCounts.getHitRatio(), Level.FINE);
+		}
+		RecentItemsCache recent = recentItems;
+		if (recent != null) {
+			list.add(compName, "Recent messages in memory", recent.size(), Level.FINER);
+			list.add(compName, "Recent messages memory", recent.getMemory(), Level.FINER);
+			list.add(compName, "Recent messages hit ratio", recent.getHitRatio(), Level.FINE);
+		}
+		RecentMessagesFilter filter = recentMessages;
+		if (filter != null) {
+			list.add(compName, "Recently stored messages", filter.size(), Level.FINER);
+			list.add(compName, "Duplicated messages dropped", filter.getDropped(), Level.FINE);
+		}
+		CollectionsBackfill collections = backfill;
+		if (collections != null) {
+			list.add(compName, "Collections backfill last user id", collections.lastOwnerId, Level.FINER);
+			list.add(compName, "Collections backfill completed", String.valueOf(collections.completed), Level.FINE);
+		}
+		ColdStorageMover mover = coldStorageMover;
+		if (mover != null) {
+			list.add(compName, "Messages moved to cold storage", mover.moved, Level.FINE);
+		}
+		OrphansRemoval orphans = orphansRemoval;
+		if (orphans != null) {
+			list.add(compName, "Unreferenced JIDs removed", orphans.jids, Level.FINE);
+			list.add(compName, "Unreferenced tags removed", orphans.tags, Level.FINE);
+		}
+	}
+
+	/**
+	 * Returns lease of statements which needs to be used to execute statements
+	 * and closed after operation is completed.
+	 *
+	 * @param owner JID of a user for which statements will be executed - used as a hint to select connection
+	 */
+	protected StatementLease leaseStatements(BareJID owner) throws SQLException {
+		StatementLeasePool pool = leasePool;
+		if (pool != null) {
+			return pool.lease(owner);
+		}
+		return new SharedStatementLease(data_repo, statementLocks);
 	}
 
 	protected void initPreparedStatements(DataRepository data_repo) throws SQLException {
 		data_repo.initPreparedStatement(GET_MESSAGES_QUERY, GET_MESSAGES_QUERY);
 		data_repo.initPreparedStatement(GET_MESSAGES_COUNT_QUERY, GET_MESSAGES_COUNT_QUERY);
 		data_repo.initPreparedStatement(GET_MESSAGE_POSITION_QUERY, GET_MESSAGE_POSITION_QUERY);
+		data_repo.initPreparedStatement(GET_MESSAGES_PAGE_QUERY, GET_MESSAGES_PAGE_QUERY);
 		data_repo.initPreparedStatement(GET_COLLECTIONS_QUERY, GET_COLLECTIONS_QUERY);
 		data_repo.initPreparedStatement(GET_COLLECTIONS_COUNT_QUERY, GET_COLLECTIONS_COUNT_QUERY);
+		if (storedCollections) {
+			data_repo.initPreparedStatement(GET_STORED_COLLECTIONS_QUERY, GET_STORED_COLLECTIONS_QUERY);
+			data_repo.initPreparedStatement(GET_STORED_COLLECTIONS_COUNT_QUERY, GET_STORED_COLLECTIONS_COUNT_QUERY);
+		}
+		if (collectionsBackfill) {
+			data_repo.initPreparedStatement(BACKFILL_COLLECTIONS_QUERY, BACKFILL_COLLECTIONS_QUERY);
+		}
+		if (deleteExpiredChunkSize > 0) {
+			data_repo.initPreparedStatement(DELETE_EXPIRED_MESSAGES_CHUNK_QUERY, DELETE_EXPIRED_MESSAGES_CHUNK_QUERY);
+		}
+		if (isColdStorageEnabled()) {
+			data_repo.initPreparedStatement(MOVE_MESSAGES_TO_COLD_QUERY, MOVE_MESSAGES_TO_COLD_QUERY);
+			data_repo.initPreparedStatement(GET_COLD_MESSAGES_QUERY, GET_COLD_MESSAGES_QUERY);
+			data_repo.initPreparedStatement(GET_COLD_MESSAGES_COUNT_QUERY, GET_COLD_MESSAGES_COUNT_QUERY);
+			data_repo.initPreparedStatement(GET_COLD_MESSAGE_POSITION_QUERY, GET_COLD_MESSAGE_POSITION_QUERY);
+		}
+		if (isOrphansRemovalEnabled()) {
+			data_repo.initPreparedStatement(DELETE_ORPHANED_JIDS_QUERY, DELETE_ORPHANED_JIDS_QUERY);
+			data_repo.initPreparedStatement(DELETE_ORPHANED_TAGS_QUERY, DELETE_ORPHANED_TAGS_QUERY);
+		}
+		if (messagePartitionMonths > 0) {
+			data_repo.initPreparedStatement(ENSURE_PARTITIONS_QUERY, ENSURE_PARTITIONS_QUERY);
+			if (dropExpiredPartitions) {
+				data_repo.initPreparedStatement(DROP_EXPIRED_PARTITIONS_QUERY, DROP_EXPIRED_PARTITIONS_QUERY);
+			}
+		}
 		data_repo.initPreparedStatement(ADD_MESSAGE_QUERY, ADD_MESSAGE_QUERY);
+		data_repo.initPreparedStatement(ADD_MESSAGE_BY_ID_QUERY, ADD_MESSAGE_BY_ID_QUERY);
+		data_repo.initPreparedStatement(STORE_MESSAGE_BY_ID_QUERY, STORE_MESSAGE_BY_ID_QUERY);
+		data_repo.initPreparedStatement(ENSURE_JID_ID_QUERY, ENSURE_JID_ID_QUERY);
 		data_repo.initPreparedStatement(ADD_TAG_TO_MESSAGE_QUERY, ADD_TAG_TO_MESSAGE_QUERY);
+		data_repo.initPreparedStatement(ADD_TAG_TO_MESSAGE_BY_ID_QUERY, ADD_TAG_TO_MESSAGE_BY_ID_QUERY);
+		data_repo.initPreparedStatement(ENSURE_TAG_ID_QUERY, ENSURE_TAG_ID_QUERY);
 		data_repo.initPreparedStatement(REMOVE_MESSAGES_QUERY, REMOVE_MESSAGES_QUERY);
 		data_repo.initPreparedStatement(DELETE_EXPIRED_MESSAGES_QUERY, DELETE_EXPIRED_MESSAGES_QUERY);
+		data_repo.initPreparedStatement(SET_USER_RETENTION_QUERY, SET_USER_RETENTION_QUERY);
+		data_repo.initPreparedStatement(GET_USER_RETENTION_BUCKETS_QUERY, GET_USER_RETENTION_BUCKETS_QUERY);
+		data_repo.initPreparedStatement(DELETE_EXPIRED_USER_MESSAGES_QUERY, DELETE_EXPIRED_USER_MESSAGES_QUERY);
 		data_repo.initPreparedStatement(GET_TAGS_FOR_USER_QUERY, GET_TAGS_FOR_USER_QUERY);
 		data_repo.initPreparedStatement(GET_TAGS_FOR_USER_COUNT_QUERY, GET_TAGS_FOR_USER_COUNT_QUERY);
 	}
@@ -160,76 +515,502 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		
 	protected void archiveMessage(BareJID owner, JID buddy, Direction direction, Date timestamp, Element msg, Set<String> tags, Map<String,Object> additionalData) {
 		try {
-			ResultSet rs = null;
-			java.sql.Timestamp mtime = new java.sql.Timestamp(timestamp.getTime());
-			msg.addAttribute("time", String.valueOf(mtime.getTime()));
-
-			String type                      = msg.getAttributeStaticStr("type");
-			String msgStr                    = msg.toString();
-			String body                      = storePlaintextBody ? msg.getChildCData(MSG_BODY_PATH) : null;
-			String hash						 = generateHashOfMessageAsString(direction, msg, mtime, additionalData);
-			PreparedStatement add_message_st = data_repo.getPreparedStatement(owner,
-					ADD_MESSAGE_QUERY);
+			storeMessage(owner, buddy, direction, timestamp, msg, tags, additionalData);
+		} catch (SQLException ex) {
+			// retry once without ids which might be cached within failed transaction
+			log.log(Level.FINE, "Problem adding new entry to DB, retrying: " + msg, ex);
+			evictCachedIds(owner, buddy, tags);
+			try {
+				storeMessage(owner, buddy, direction, timestamp, msg, tags, additionalData);
+			} catch (SQLException ex1) {
+				log.log(Level.WARNING, "Problem adding new entry to DB: " + msg, ex1);
+				forgetRecentItems(owner);
+			}
+		}
+	}
 
-			Long msgId = null;
-			
-			synchronized (add_message_st) {
-				try {
-					int i = 1;
-					add_message_st.setString(i++, owner.toString());
-					add_message_st.setString(i++, buddy.getBareJID().toString());
-					add_message_st.setString(i++, buddy.getResource());
-					add_message_st.setTimestamp(i++, mtime);
-					add_message_st.setShort(i++, direction.getValue());
-					add_message_st.setString(i++, type);
-					add_message_st.setString(i++, body);
-					add_message_st.setString(i++, msgStr);
-					add_message_st.setString(i++, hash);
-
-					i = addMessageAdditionalInfo(add_message_st, i, additionalData);
-
-					// works for MSSQL, MySQL and PostgreSQL
-					rs = add_message_st.executeQuery();
-					if (tags != null) {
-						if (rs.next()) {
-								msgId = rs.getLong(1);
-						}
-					}
+	/**
+	 * Stores message with its tags. If lease is exclusive and message has
+	 * tags, message and its tags are stored in a single transaction. Otherwise message is already stored when its tags
+	 * are added, so storing tags is retried on its own.
+	 */
+	private void storeMessage(BareJID owner, JID buddy, Direction direction, Date timestamp, Element msg, Set<String> tags, Map<String,Object> additionalData) throws SQLException {
+		try (StatementLease lease = leaseStatements(owner)) {
+			boolean transaction = lease.isExclusive() && tags != null && !tags.isEmpty();
+			List<Runnable> uncommitted = null;
+			if (transaction) {
+				lease.startTransaction();
+				uncommitted = new ArrayList<>(1);
+			}
 
-					// below works for MySQL and PostgreSQL
-//					add_message_st.executeUpdate();
-//					if (tags != null) {
-//						rs = add_message_st.getResultSet();
-//						if (rs.next()) {
-//								msgId = rs.getLong(1);
-//						}
-//					}
+			Long msgId = addMessage(lease, owner, buddy, direction, timestamp, msg, tags != null, additionalData, uncommitted);
 
-				} finally {
-					data_repo.release(null, rs);
-				}
-			}
-			
 			// in case we tried to archive message which was already archived (ie. by other 
 			// session or cluster node) server may ignore insert so it will not return id of inserted
 			// record as insert was not executed 
-			// in this case we need to exit from this function
-			if (msgId == null)
-				return;
-			
-			if (tags != null && !tags.isEmpty()) {
-				PreparedStatement add_message_tag_st = data_repo.getPreparedStatement(owner, ADD_TAG_TO_MESSAGE_QUERY);
-				synchronized (add_message_tag_st) {
-					for (String tag : tags) {
-						add_message_tag_st.setLong(1, msgId);
-						add_message_tag_st.setString(2, tag);
-						add_message_tag_st.addBatch();
+			// in this case we need to skip adding tags
+			if (msgId != null) {
+				if (transaction) {
+					addTags(lease, owner, msgId, tags);
+				} else {
+					addTagsToStoredMessage(lease, owner, buddy, msgId, tags);
+				}
+			}
+
+			if (transaction) {
+				lease.commit();
+				rememberStored(uncommitted);
+			}
+		}
+	}
+
+	/**
+	 * Stores messages using a single lease of statements. If lease is exclusive
+	 * all messages are stored in a single transaction. Messages without tags
+	 * are inserted using a batch of statements, as their ids are not needed.
+	 * Messages with tags are inserted one by one to retrieve their ids, and
+	 * their tags are added in batches of tags of each owner.
+	 *
+	 * @param entries
+	 * @throws TigaseDBException
+	 */
+	@Override
+	public void archiveMessages(List<ArchiveEntry> entries) throws TigaseDBException {
+		try (StatementLease lease = leaseStatements(entries.isEmpty() ? null : entries.get(0).getOwner())) {
+			boolean transaction = lease.isExclusive();
+			if (transaction) {
+				lease.startTransaction();
+			}
+			// actions remembering messages as stored are run when all messages are stored
+			List<Runnable> stored = new ArrayList<>(entries.size());
+			List<ArchiveEntry> batch = new ArrayList<>(entries.size());
+			Map<BareJID, List<long[]>> tagLinks = new LinkedHashMap<>();
+			for (ArchiveEntry entry : entries) {
+				if (entry.getTags() == null || entry.getTags().isEmpty()) {
+					batch.add(entry);
+					continue;
+				}
+				// messages are inserted in order in which they were received
+				addMessagesBatch(lease, batch, stored);
+				Long msgId = addMessage(lease, entry.getOwner(), entry.getBuddy(), entry.getDirection(),
+										entry.getTimestamp(), entry.getMessage(), true, null,
+										transaction ? stored : null);
+				if (msgId == null) {
+					continue;
+				}
+				if (transaction) {
+					addTagsToMessage(lease, entry.getOwner(), msgId, entry.getTags(),
+									 tagLinks.computeIfAbsent(entry.getOwner(), owner -> new ArrayList<>()));
+				} else {
+					addTagsToStoredMessage(lease, entry.getOwner(), entry.getBuddy(), msgId, entry.getTags());
+				}
+			}
+			addMessagesBatch(lease, batch, stored);
+			for (Map.Entry<BareJID, List<long[]>> links : tagLinks.entrySet()) {
+				addTagLinks(lease, links.getKey(), links.getValue());
+			}
+			if (transaction) {
+				lease.commit();
+			}
+			rememberStored(stored);
+		} catch (SQLException ex) {
+			// ids resolved within transaction which was rolled back are not valid
+			for (ArchiveEntry entry : entries) {
+				evictCachedIds(entry.getOwner(), entry.getBuddy(), entry.getTags());
+				forgetMessagesCount(entry.getOwner());
+			}
+			throw new TigaseDBException("Could not store batch of " + entries.size() + " messages", ex);
+		}
+	}
+
+	/**
+	 * Inserts messages using a single batch of statements, which do not return
+	 * ids of messages. Messages which were recently stored are dropped without
+	 * accessing the database. It is not known which messages were inserted and
+	 * which were ignored as already stored, so cached numbers and pages of
+	 * messages of their owners are forgotten. Batch is cleared afterwards.
+	 *
+	 * @param stored actions remembering messages as stored, which need to be run by the caller after messages are committed
+	 */
+	protected void addMessagesBatch(StatementLease lease, List<ArchiveEntry> batch, List<Runnable> stored) throws SQLException {
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		RecentMessagesFilter filter = recentMessages;
+		MessageCountCache counts = messageCountCache;
+		RecentItemsCache recent = recentItems;
+		List<ArchiveEntry> entries = new ArrayList<>(batch.size());
+		List<String> hashes = new ArrayList<>(batch.size());
+		List<long[]> jidIds = new ArrayList<>(batch.size());
+		Map<String, Long> resolved = new HashMap<>();
+		// ids are resolved before statement of the batch is obtained, as shared lease allows to use only one statement at once
+		for (ArchiveEntry entry : batch) {
+			BareJID owner = entry.getOwner();
+			String buddyJid = entry.getBuddy().getBareJID().toString();
+			String hash = generateHashOfMessageAsString(entry.getDirection(), entry.getMessage(), entry.getTimestamp(),
+														null);
+			if (filter != null && hash != null) {
+				RecentMessagesFilter.Key key = RecentMessagesFilter.key(owner.toString(), buddyJid, hash,
+																		entry.getMessage().getAttributeStaticStr("type"),
+																		entry.getTimestamp().getTime());
+				if (filter.isDuplicate(key)) {
+					continue;
+				}
+				stored.add(() -> filter.add(key));
+			}
+			if (counts != null) {
+				counts.startAdding(owner.toString());
+			}
+			if (isLateMessage(entry.getTimestamp())) {
+				stored.add(() -> forgetColdMessagesCount(owner));
+			}
+			if (counts != null || recent != null) {
+				stored.add(() -> {
+					forgetMessagesCount(owner);
+					forgetRecentItems(owner);
+				});
+			}
+			entries.add(entry);
+			hashes.add(hash);
+			jidIds.add(new long[]{getJidId(lease, owner, owner.toString(), resolved),
+								  getJidId(lease, owner, buddyJid, resolved)});
+		}
+		batch.clear();
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		PreparedStatement store_message_st = lease.getStatement(entries.get(0).getOwner(), STORE_MESSAGE_BY_ID_QUERY);
+		for (int i = 0; i < entries.size(); i++) {
+			ArchiveEntry entry = entries.get(i);
+			store_message_st.setLong(1, jidIds.get(i)[0]);
+			store_message_st.setLong(2, jidIds.get(i)[1]);
+			setMessageParams(store_message_st, 3, entry.getBuddy(), entry.getDirection(), entry.getTimestamp(),
+							 entry.getMessage(), hashes.get(i), null);
+			store_message_st.addBatch();
+		}
+		store_message_st.executeBatch();
+	}
+
+	private long getJidId(StatementLease lease, BareJID owner, String jid, Map<String, Long> resolved) throws SQLException {
+		Long jidId = resolved.get(jid);
+		if (jidId == null) {
+			jidId = getJidId(lease, owner, jid);
+			resolved.put(jid, jidId);
+		}
+		return jidId;
+	}
+
+	/**
+	 * Adds message to the repository using statements from a lease. Message
+	 * which was recently stored is dropped without accessing the database.
+	 * If ids of owner and buddy are cached, message is added using those ids,
+	 * otherwise database resolves them from JIDs.
+	 *
+	 * @param uncommitted if not <code>null</code>, message is stored within transaction and actions
+	 * remembering it as stored need to be run by the caller after transaction is committed
+	 * @return id of inserted message if <code>readId</code> is set and message was inserted
+	 */
+	protected Long addMessage(StatementLease lease, BareJID owner, JID buddy, Direction direction, Date timestamp, Element msg, boolean readId, Map<String,Object> additionalData, List<Runnable> uncommitted) throws SQLException {
+		String buddyJid = buddy.getBareJID().toString();
+		String hash = generateHashOfMessageAsString(direction, msg, timestamp, additionalData);
+
+		RecentMessagesFilter filter = recentMessages;
+		RecentMessagesFilter.Key key = null;
+		if (filter != null && hash != null) {
+			key = RecentMessagesFilter.key(owner.toString(), buddyJid, hash, msg.getAttributeStaticStr("type"),
+										   timestamp.getTime());
+			if (filter.isDuplicate(key)) {
+				return null;
+			}
+		}
+
+		MessageCountCache counts = messageCountCache;
+		RecentItemsCache recent = recentItems;
+		boolean late = isLateMessage(timestamp);
+		long countStamp = counts == null ? 0 : counts.startAdding(owner.toString());
+		// id is returned only if message was inserted, so it tells if cached messages need to be changed
+		Long msgId = addMessage(lease, owner, buddy, buddyJid, direction, timestamp, msg, hash,
+								readId || late || counts != null || recent != null, additionalData);
+		if (msgId != null) {
+			Runnable action = () -> {
+				if (late) {
+					forgetMessagesCount(owner);
+					forgetColdMessagesCount(owner);
+					forgetRecentItems(owner);
+					return;
+				}
+				if (counts != null) {
+					counts.added(owner.toString(), buddyJid, countStamp);
+				}
+				if (recent != null) {
+					if (hash != null) {
+						recent.add(owner.toString(), buddyJid,
+								   () -> new RecentItemsCache.Entry(hash, timestamp, direction, msg.toString()));
+					} else {
+						recent.remove(owner.toString());
 					}
-					add_message_tag_st.executeBatch();
 				}
+			};
+			if (uncommitted != null) {
+				uncommitted.add(action);
+			} else {
+				action.run();
+			}
+		}
+
+		if (key != null) {
+			RecentMessagesFilter.Key stored = key;
+			if (uncommitted != null) {
+				uncommitted.add(() -> filter.add(stored));
+			} else {
+				filter.add(key);
+			}
+		}
+		return readId ? msgId : null;
+	}
+
+	private Long addMessage(StatementLease lease, BareJID owner, JID buddy, String buddyJid, Direction direction, Date timestamp, Element msg, String hash, boolean readId, Map<String,Object> additionalData) throws SQLException {
+		JidCache cache = jidCache;
+		if (cache != null) {
+			try {
+				long ownerId = getJidId(lease, owner, owner.toString());
+				long buddyId = getJidId(lease, owner, buddyJid);
+
+				PreparedStatement add_message_st = lease.getStatement(owner, ADD_MESSAGE_BY_ID_QUERY);
+				add_message_st.setLong(1, ownerId);
+				add_message_st.setLong(2, buddyId);
+				return addMessage(add_message_st, 3, buddy, direction, timestamp, msg, hash, readId, additionalData);
+			} catch (SQLException ex) {
+				// cached id may point to JID which no longer exists
+				cache.remove(owner.toString());
+				cache.remove(buddyJid);
+				if (lease.isTransaction()) {
+					// we cannot retry within a transaction which failed
+					throw ex;
+				}
+				log.log(Level.FINE, "Could not add message using cached ids of JIDs, retrying using JIDs", ex);
+			}
+		}
+
+		PreparedStatement add_message_st = lease.getStatement(owner, ADD_MESSAGE_QUERY);
+		add_message_st.setString(1, owner.toString());
+		add_message_st.setString(2, buddyJid);
+		return addMessage(add_message_st, 3, buddy, direction, timestamp, msg, hash, readId, additionalData);
+	}
+
+	/**
+	 * Executes statement adding message to the repository. Statement needs to
+	 * be leased by the caller and needs to have parameters identifying owner
+	 * and buddy already set.
+	 *
+	 * @return id of inserted message if <code>readId</code> is set and message was inserted
+	 */
+	protected Long addMessage(PreparedStatement add_message_st, int i, JID buddy, Direction direction, Date timestamp, Element msg, String hash, boolean readId, Map<String,Object> additionalData) throws SQLException {
+		ResultSet rs = null;
+		Long msgId = null;
+		try {
+			setMessageParams(add_message_st, i, buddy, direction, timestamp, msg, hash, additionalData);
+
+			// works for MSSQL, MySQL and PostgreSQL
+			rs = add_message_st.executeQuery();
+			if (readId) {
+				if (rs.next()) {
+						msgId = rs.getLong(1);
+				}
+			}
+
+			// below works for MySQL and PostgreSQL
+//			add_message_st.executeUpdate();
+//			if (readId) {
+//				rs = add_message_st.getResultSet();
+//				if (rs.next()) {
+//						msgId = rs.getLong(1);
+//				}
+//			}
+
+		} finally {
+			data_repo.release(null, rs);
+		}
+		return msgId;
+	}
+
+	/**
+	 * Sets parameters of statement adding message, which follow parameters
+	 * identifying owner and buddy.
+	 *
+	 * @return index of the next parameter
+	 */
+	protected int setMessageParams(PreparedStatement add_message_st, int i, JID buddy, Direction direction, Date timestamp, Element msg, String hash, Map<String,Object> additionalData) throws SQLException {
+		java.sql.Timestamp mtime = new java.sql.Timestamp(timestamp.getTime());
+		msg.addAttribute("time", String.valueOf(mtime.getTime()));
+
+		String type                      = msg.getAttributeStaticStr("type");
+		String msgStr                    = compressMessages ? MessageCompression.encode(msg.toString()) : msg.toString();
+		String body                      = storePlaintextBody ? msg.getChildCData(MSG_BODY_PATH) : null;
+
+		add_message_st.setString(i++, buddy.getResource());
+		add_message_st.setTimestamp(i++, mtime);
+		add_message_st.setShort(i++, direction.getValue());
+		add_message_st.setString(i++, type);
+		add_message_st.setString(i++, body);
+		add_message_st.setString(i++, msgStr);
+		add_message_st.setString(i++, hash);
+
+		return addMessageAdditionalInfo(add_message_st, i, additionalData);
+	}
+
+	/**
+	 * Returns id of a JID from the cache or from the database if it is not
+	 * cached. If JID is not stored in the database it will be added.
+	 */
+	protected long getJidId(StatementLease lease, BareJID owner, String jid) throws SQLException {
+		JidCache cache = jidCache;
+		Long jidId = cache == null ? null : cache.get(jid);
+		if (jidId != null) {
+			return jidId;
+		}
+
+		ResultSet rs = null;
+		PreparedStatement ensure_jid_st = lease.getStatement(owner, ENSURE_JID_ID_QUERY);
+		try {
+			ensure_jid_st.setString(1, jid);
+			rs = ensure_jid_st.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("Could not retrieve id of JID " + jid);
+			}
+			jidId = rs.getLong(1);
+		} finally {
+			data_repo.release(null, rs);
+		}
+		if (cache != null) {
+			cache.put(jid, jidId);
+		}
+		return jidId;
+	}
+
+	/**
+	 * Adds tags to the message. If cache of tags is enabled, ids of tags are
+	 * resolved and pairs of message id and tag id are added to
+	 * <code>tagLinks</code>, which needs to be stored by the caller using
+	 * {@link #addTagLinks(StatementLease, BareJID, List)}. Otherwise tags are
+	 * added to the message immediately.
+	 */
+	protected void addTagsToMessage(StatementLease lease, BareJID owner, long msgId, Set<String> tags, List<long[]> tagLinks) throws SQLException {
+		if (tags == null || tags.isEmpty()) {
+			return;
+		}
+
+		if (tagCache != null) {
+			long ownerId = getJidId(lease, owner, owner.toString());
+			for (String tag : tags) {
+				tagLinks.add(new long[]{msgId, getTagId(lease, owner, ownerId, tag)});
 			}
+			return;
+		}
+
+		PreparedStatement add_message_tag_st = lease.getStatement(owner, ADD_TAG_TO_MESSAGE_QUERY);
+		for (String tag : tags) {
+			add_message_tag_st.setLong(1, msgId);
+			add_message_tag_st.setString(2, tag);
+			add_message_tag_st.addBatch();
+		}
+		add_message_tag_st.executeBatch();
+	}
+
+	/**
+	 * Stores pairs of message id and tag id in a single batch.
+	 */
+	protected void addTagLinks(StatementLease lease, BareJID owner, List<long[]> tagLinks) throws SQLException {
+		if (tagLinks.isEmpty()) {
+			return;
+		}
+		PreparedStatement add_tag_link_st = lease.getStatement(owner, ADD_TAG_TO_MESSAGE_BY_ID_QUERY);
+		for (long[] link : tagLinks) {
+			add_tag_link_st.setLong(1, link[0]);
+			add_tag_link_st.setLong(2, link[1]);
+			add_tag_link_st.addBatch();
+		}
+		add_tag_link_st.executeBatch();
+	}
+
+	private void addTags(StatementLease lease, BareJID owner, long msgId, Set<String> tags) throws SQLException {
+		List<long[]> tagLinks = new ArrayList<>();
+		addTagsToMessage(lease, owner, msgId, tags, tagLinks);
+		addTagLinks(lease, owner, tagLinks);
+	}
+
+	/**
+	 * Adds tags to the message which was stored outside of a transaction.
+	 * Message would be ignored as a duplicate if it was stored again, so
+	 * adding tags is retried without cached ids instead.
+	 */
+	private void addTagsToStoredMessage(StatementLease lease, BareJID owner, JID buddy, long msgId, Set<String> tags) throws SQLException {
+		try {
+			addTags(lease, owner, msgId, tags);
 		} catch (SQLException ex) {
-			log.log(Level.WARNING, "Problem adding new entry to DB: " + msg, ex);
+			log.log(Level.FINE, "Problem adding tags to message " + msgId + ", retrying", ex);
+			evictCachedIds(owner, buddy, tags);
+			try {
+				addTags(lease, owner, msgId, tags);
+			} catch (SQLException ex1) {
+				log.log(Level.WARNING, "Problem adding tags " + tags + " to message " + msgId, ex1);
+				throw ex1;
+			}
+		}
+	}
+
+	/**
+	 * Returns id of a tag of the owner from the cache or from the database if
+	 * it is not cached. If tag is not stored in the database it will be added.
+	 */
+	protected long getTagId(StatementLease lease, BareJID owner, long ownerId, String tag) throws SQLException {
+		TagCache cache = tagCache;
+		Long tagId = cache == null ? null : cache.get(ownerId, tag);
+		if (tagId != null) {
+			return tagId;
+		}
+
+		ResultSet rs = null;
+		PreparedStatement ensure_tag_st = lease.getStatement(owner, ENSURE_TAG_ID_QUERY);
+		try {
+			ensure_tag_st.setLong(1, ownerId);
+			ensure_tag_st.setString(2, tag);
+			rs = ensure_tag_st.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("Could not retrieve id of tag " + tag);
+			}
+			tagId = rs.getLong(1);
+		} finally {
+			data_repo.release(null, rs);
+		}
+		if (cache != null) {
+			cache.put(ownerId, tag, tagId);
+		}
+		return tagId;
+	}
+
+	private void rememberStored(List<Runnable> stored) {
+		if (stored != null) {
+			stored.forEach(Runnable::run);
+		}
+	}
+
+	/**
+	 * Removes cached ids and recent messages related to the message, which
+	 * may not be valid if storing message failed.
+	 */
+	private void evictCachedIds(BareJID owner, JID buddy, Set<String> tags) {
+		forgetRecentItems(owner);
+		JidCache jids = jidCache;
+		if (jids != null) {
+			jids.remove(owner.toString());
+			jids.remove(buddy.getBareJID().toString());
+		}
+		TagCache tagsCache = tagCache;
+		if (tagsCache != null && tags != null && !tags.isEmpty()) {
+			tagsCache.clear();
 		}
 	}
 
@@ -238,33 +1019,199 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 	}	
 	
 	@Override
-	public void deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException {
+	public long deleteExpiredMessages(BareJID owner, LocalDateTime before, LongConsumer chunkRemoved)
+			throws TigaseDBException {
+		long timestamp_long = before.toEpochSecond(ZoneOffset.UTC) * 1000;
+		Timestamp ts = new java.sql.Timestamp(timestamp_long);
+		Semaphore permits = acquireExpiredMessagesRemovalPermit();
 		try {
-			PreparedStatement delete_expired_msgs_st = data_repo.getPreparedStatement(owner, DELETE_EXPIRED_MESSAGES_QUERY);
-			long timestamp_long = before.toEpochSecond(ZoneOffset.UTC) * 1000;
-			Timestamp ts = new java.sql.Timestamp(timestamp_long);
-			synchronized (delete_expired_msgs_st) {
-				if (log.isLoggable(Level.FINEST)) {
-					log.log(Level.FINEST, "executing removal of expired messages for domain {0} with timeout set to {1} seconds", 
-							new Object[]{owner, delete_expired_timeout});
+			if (messagePartitionMonths > 0) {
+				try (StatementLease lease = leaseStatements(owner)) {
+					ensurePartitions(lease);
 				}
-				delete_expired_msgs_st.setQueryTimeout(delete_expired_timeout);
-				delete_expired_msgs_st.setString(1, owner.toString());
-				delete_expired_msgs_st.setTimestamp(2, ts);
-				delete_expired_msgs_st.executeUpdate();
+			}
+			if (deleteExpiredChunkSize > 0) {
+				return deleteExpiredMessagesInChunks(owner, ts, chunkRemoved);
+			} else {
+				try (StatementLease lease = leaseStatements(owner)) {
+					PreparedStatement delete_expired_msgs_st = lease.getStatement(owner, DELETE_EXPIRED_MESSAGES_QUERY);
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "executing removal of expired messages for domain {0} with timeout set to {1} seconds",
+								new Object[]{owner, delete_expired_timeout});
+					}
+					delete_expired_msgs_st.setQueryTimeout(delete_expired_timeout);
+					delete_expired_msgs_st.setString(1, owner.toString());
+					delete_expired_msgs_st.setTimestamp(2, ts);
+					delete_expired_msgs_st.executeUpdate();
+				}
+				// number of rows reported for a procedure is not reliable
+				return -1;
 			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Could not remove expired messages", ex);
+		} finally {
+			permits.release();
+			// some messages could be removed even if removal failed
+			clearCachedMessages();
 		}
 	}
+
+	@Override
+	public void deleteExpiredPartitions(LocalDateTime before) throws TigaseDBException {
+		if (messagePartitionMonths <= 0 || !dropExpiredPartitions) {
+			return;
+		}
+		Timestamp ts = new Timestamp(before.toEpochSecond(ZoneOffset.UTC) * 1000);
+		Semaphore permits = acquireExpiredMessagesRemovalPermit();
+		try (StatementLease lease = leaseStatements(null)) {
+			ensurePartitions(lease);
+			// whole partitions older than expiration time are dropped, remaining
+			// expired messages are deleted for each domain
+			PreparedStatement drop_partitions_st = lease.getStatement(null, DROP_EXPIRED_PARTITIONS_QUERY);
+			drop_partitions_st.setQueryTimeout(delete_expired_timeout);
+			drop_partitions_st.setTimestamp(1, ts);
+			drop_partitions_st.executeUpdate();
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not drop expired partitions of messages", ex);
+		} finally {
+			permits.release();
+			clearCachedMessages();
+		}
+	}
+
+	@Override
+	public void setUserRetention(BareJID owner, Long expire) throws TigaseDBException {
+		try (StatementLease lease = leaseStatements(owner)) {
+			PreparedStatement set_retention_st = lease.getStatement(owner, SET_USER_RETENTION_QUERY);
+			set_retention_st.setString(1, owner.toString());
+			if (expire == null) {
+				set_retention_st.setObject(2, null);
+			} else {
+				set_retention_st.setLong(2, expire);
+			}
+			set_retention_st.executeUpdate();
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not store retention period of messages for " + owner, ex);
+		}
+	}
+
+	/**
+	 * Users of a domain are grouped by retention periods they set, so expired
+	 * messages are deleted by a single statement for each distinct retention
+	 * period instead of a statement for each user.
+	 */
+	@Override
+	public void deleteExpiredUserMessages(BareJID domain, LocalDateTime now) throws TigaseDBException {
+		Semaphore permits = acquireExpiredMessagesRemovalPermit();
+		try {
+			Map<Long, Long> buckets = new TreeMap<>();
+			try (StatementLease lease = leaseStatements(domain)) {
+				PreparedStatement get_buckets_st = lease.getStatement(domain, GET_USER_RETENTION_BUCKETS_QUERY);
+				get_buckets_st.setString(1, domain.toString());
+				ResultSet rs = null;
+				try {
+					rs = get_buckets_st.executeQuery();
+					while (rs.next()) {
+						buckets.put(rs.getLong(1), rs.getLong(2));
+					}
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+			for (Map.Entry<Long, Long> bucket : buckets.entrySet()) {
+				LocalDateTime before = now.minusSeconds(bucket.getKey());
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "removing messages older than {0} of {1} users of domain {2}",
+							new Object[]{before, bucket.getValue(), domain});
+				}
+				try (StatementLease lease = leaseStatements(domain)) {
+					PreparedStatement delete_expired_st = lease.getStatement(domain, DELETE_EXPIRED_USER_MESSAGES_QUERY);
+					delete_expired_st.setQueryTimeout(delete_expired_timeout);
+					delete_expired_st.setString(1, domain.toString());
+					delete_expired_st.setLong(2, bucket.getKey());
+					delete_expired_st.setTimestamp(3, new Timestamp(before.toEpochSecond(ZoneOffset.UTC) * 1000));
+					delete_expired_st.executeUpdate();
+				}
+			}
+		} catch (SQLException ex) {
+			throw new TigaseDBException("Could not remove expired messages of users", ex);
+		} finally {
+			permits.release();
+			clearCachedMessages();
+		}
+	}
+
+	/**
+	 * Acquires permit to remove expired messages, so domains using the same
+	 * database are not removing messages all at once.
+	 */
+	private Semaphore acquireExpiredMessagesRemovalPermit() throws TigaseDBException {
+		Semaphore permits = expiredMessagesRemovalPermits;
+		try {
+			permits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new TigaseDBException("Interrupted while waiting to remove expired messages", ex);
+		}
+		return permits;
+	}
+
+	/**
+	 * Deletes expired messages of a domain in chunks with a pause between them,
+	 * so locks are held only for a short time and messages may be stored in the
+	 * meantime. Each chunk deletes the oldest expired messages and updates
+	 * collections of the domain, so removal which failed continues where it
+	 * stopped on the next run. Chunks are deleted until no expired message is
+	 * left.
+	 *
+	 * @return number of removed messages
+	 */
+	private long deleteExpiredMessagesInChunks(BareJID domain, Timestamp before, LongConsumer chunkRemoved)
+			throws SQLException {
+		long removed = 0;
+		int deleted;
+		do {
+			try (StatementLease lease = leaseStatements(domain)) {
+				PreparedStatement delete_chunk_st = lease.getStatement(domain, DELETE_EXPIRED_MESSAGES_CHUNK_QUERY);
+				delete_chunk_st.setQueryTimeout(delete_expired_timeout);
+				delete_chunk_st.setString(1, domain.toString());
+				delete_chunk_st.setTimestamp(2, before);
+				delete_chunk_st.setInt(3, deleteExpiredChunkSize);
+				ResultSet rs = null;
+				try {
+					rs = delete_chunk_st.executeQuery();
+					deleted = rs.next() ? rs.getInt(1) : 0;
+				} finally {
+					data_repo.release(null, rs);
+				}
+			}
+			removed += deleted;
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "removed {0} expired messages of domain {1}, {2} in total",
+						new Object[]{deleted, domain, removed});
+			}
+			if (deleted > 0) {
+				chunkRemoved.accept(deleted);
+			}
+			if (deleted > 0 && !deleteExpiredChunkPause.isZero()) {
+				try {
+					Thread.sleep(deleteExpiredChunkPause.toMillis());
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while removing expired messages of domain " + domain, ex);
+				}
+			}
+		} while (deleted > 0);
+		return removed;
+	}
 		
 	//~--- get methods ----------------------------------------------------------
 
 	@Override
 	public void queryCollections(Q crit, CollectionHandler<Q> collectionHandler)
 					 throws TigaseDBException {
-		try {
-			Integer count = getCollectionsCount(crit);
+		try (StatementLease lease = leaseStatements(crit.getQuestionerJID().getBareJID())) {
+			Integer count = getCollectionsCount(lease, crit);
 			if (count == null)
 				count = 0;
 
@@ -273,7 +1220,7 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 
 			calculateOffsetAndPosition(crit, count, before, after);
 
-			getCollectionsItems(crit, collectionHandler);
+			getCollectionsItems(lease, crit, collectionHandler);
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not retrieve collections", ex);
 		}		
@@ -282,18 +1229,77 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 	@Override
 	public void queryItems(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler)
 					 throws TigaseDBException, ComponentException {
-		try {
-			Integer count = getItemsCount(crit);
-			if (count == null) {
-				count = 0;
+		RSM rsm = crit.getRsm();
+		int coldCount = 0;
+		if (isColdStorageQuery(crit)) {
+			try (StatementLease lease = leaseStatements(crit.getQuestionerJID().getBareJID())) {
+				// cold storage is skipped for owners without messages in it and table of messages is checked next,
+				// so cold storage is not counted for pages which do not reach it
+				if (getOwnerColdItemsCount(lease, crit.getQuestionerJID().getBareJID()) > 0 &&
+						isColdStoragePage(lease, crit)) {
+					coldCount = getColdItemsCount(lease, crit);
+					if (coldCount > 0 && !(isIndexedPage(crit) && rsm.getIndex() >= coldCount)) {
+						getItemsWithColdStorage(lease, crit, itemHandler, coldCount);
+						return;
+					}
+				}
+			} catch (SQLException ex) {
+				throw new TigaseDBException("Cound not retrieve items", ex);
 			}
+		}
+
+		if (coldCount > 0 && rsm.getIndex() != null) {
+			// page is retrieved from table of messages only, so its position is relative to it
+			rsm.setIndex(rsm.getIndex() - coldCount);
+		}
 
-			Integer after = getItemPosition(crit.getRsm().getAfter(), crit);
-			Integer before = getItemPosition(crit.getRsm().getBefore(), crit);
+		getHotItems(crit, itemHandler);
 
-			calculateOffsetAndPosition(crit, count, before, after);
+		if (coldCount > 0) {
+			// messages in cold storage precede the page
+			if (rsm.getIndex() != null) {
+				rsm.setIndex(rsm.getIndex() + coldCount);
+			}
+			if (rsm.getCount() != null) {
+				rsm.setCount(rsm.getCount() + coldCount);
+			}
+		}
+	}
+
+	private void getHotItems(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler)
+			throws TigaseDBException, ComponentException {
+		RecentItemsCache.Page recentPage = getRecentItemsPage(crit);
+		if (recentPage != null) {
+			processRecentItems(crit, recentPage, itemHandler);
+			return;
+		}
+
+		try (StatementLease lease = leaseStatements(crit.getQuestionerJID().getBareJID())) {
+			// some drivers fetch rows in batches only within a transaction
+			boolean transaction = streamItems && itemsFetchSize > 0 && lease.isExclusive();
+			if (transaction) {
+				lease.startTransaction();
+			}
+
+			if (singleQueryPaging) {
+				getItemsPage(lease, crit, itemHandler);
+			} else {
+				Integer count = getItemsCount(lease, crit);
+				if (count == null) {
+					count = 0;
+				}
+
+				Integer after = getItemPosition(lease, crit.getRsm().getAfter(), crit);
+				Integer before = getItemPosition(lease, crit.getRsm().getBefore(), crit);
 
-			getItemsItems(crit, itemHandler);
+				calculateOffsetAndPosition(crit, count, before, after);
+
+				getItemsItems(lease, crit, itemHandler);
+			}
+
+			if (transaction) {
+				lease.commit();
+			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not retrieve items", ex);
 		}		
@@ -314,16 +1320,17 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 
 			java.sql.Timestamp start_ = new java.sql.Timestamp(start.getTime());
 			java.sql.Timestamp end_ = new java.sql.Timestamp(end.getTime());
-			PreparedStatement remove_msgs_st = data_repo.getPreparedStatement(owner, REMOVE_MESSAGES_QUERY);
-
-			synchronized (remove_msgs_st) {
-				synchronized (remove_msgs_st) {
-					remove_msgs_st.setString(1, owner.toString());
-					remove_msgs_st.setString(2, withJid);
-					remove_msgs_st.setTimestamp(3, start_);
-					remove_msgs_st.setTimestamp(4, end_);
-					remove_msgs_st.executeUpdate();
-				}
+			try (StatementLease lease = leaseStatements(owner)) {
+				PreparedStatement remove_msgs_st = lease.getStatement(owner, REMOVE_MESSAGES_QUERY);
+				remove_msgs_st.setString(1, owner.toString());
+				remove_msgs_st.setString(2, withJid);
+				remove_msgs_st.setTimestamp(3, start_);
+				remove_msgs_st.setTimestamp(4, end_);
+				remove_msgs_st.executeUpdate();
+				clearRecentMessages();
+				forgetMessagesCount(owner);
+				forgetColdMessagesCount(owner);
+				forgetRecentItems(owner);
 			}
 		} catch (SQLException ex) {
 			throw new TigaseDBException("Cound not remove items", ex);
@@ -333,46 +1340,42 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 	@Override
 	public List<String> getTags(BareJID owner, String startsWith, Q crit) throws TigaseDBException {
 		List<String> results = new ArrayList<String>();
-		try {
+		try (StatementLease lease = leaseStatements(owner)) {
 			ResultSet rs = null;
 			int count = 0;
 			startsWith = startsWith + "%";
 			
-			PreparedStatement get_tags_count_st = data_repo.getPreparedStatement(owner, GET_TAGS_FOR_USER_COUNT_QUERY);
-			synchronized (get_tags_count_st) {
-				try {
-					get_tags_count_st.setString(1, owner.toString());
-					get_tags_count_st.setString(2, startsWith);
+			PreparedStatement get_tags_count_st = lease.getStatement(owner, GET_TAGS_FOR_USER_COUNT_QUERY);
+			try {
+				get_tags_count_st.setString(1, owner.toString());
+				get_tags_count_st.setString(2, startsWith);
 
-					rs = get_tags_count_st.executeQuery();
-					if (rs.next()) {
-						count = rs.getInt(1);
-					}
-				} finally {
-					data_repo.release(null, rs);
+				rs = get_tags_count_st.executeQuery();
+				if (rs.next()) {
+					count = rs.getInt(1);
 				}
+			} finally {
+				data_repo.release(null, rs);
 			}
 			String beforeStr = crit.getRsm().getBefore();
 			String afterStr = crit.getRsm().getAfter();
 			calculateOffsetAndPosition(crit, count, beforeStr == null ? null : Integer.parseInt(beforeStr), afterStr == null ? null : Integer.parseInt(afterStr));
 
-			PreparedStatement get_tags_st = data_repo.getPreparedStatement(owner, GET_TAGS_FOR_USER_QUERY);
-			synchronized (get_tags_st) {
-				try {
-					int i = 1;
-					get_tags_st.setString(i++, owner.toString());
-					get_tags_st.setString(i++, startsWith);
+			PreparedStatement get_tags_st = lease.getStatement(owner, GET_TAGS_FOR_USER_QUERY);
+			try {
+				int i = 1;
+				get_tags_st.setString(i++, owner.toString());
+				get_tags_st.setString(i++, startsWith);
 
-					get_tags_st.setInt(i++, crit.getRsm().getMax());
-					get_tags_st.setInt(i++, crit.getRsm().getIndex());
+				get_tags_st.setInt(i++, crit.getRsm().getMax());
+				get_tags_st.setInt(i++, crit.getRsm().getIndex());
 
-					rs = get_tags_st.executeQuery();
-					while (rs.next()) {
-						results.add(rs.getString(1));
-					}
-				} finally {
-					data_repo.release(null, rs);
+				rs = get_tags_st.executeQuery();
+				while (rs.next()) {
+					results.add(rs.getString(1));
 				}
+			} finally {
+				data_repo.release(null, rs);
 			}
 			
 			RSM rsm = crit.getRsm();
@@ -388,112 +1391,561 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		return results;
 	}
 
-	private void getCollectionsItems(Q crit, CollectionHandler<Q> collectionHandler)
+	private void getCollectionsItems(StatementLease lease, Q crit, CollectionHandler<Q> collectionHandler)
 					throws SQLException {
 		ResultSet selectRs = null;
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_collections_st = data_repo.getPreparedStatement(owner, GET_COLLECTIONS_QUERY);
+		boolean stored = isStoredCollectionsQuery(crit);
+		PreparedStatement get_collections_st = lease.getStatement(owner, stored
+																		 ? GET_STORED_COLLECTIONS_QUERY
+																		 : GET_COLLECTIONS_QUERY);
 
-		int i = 2;
-		synchronized (get_collections_st) {
-			try {
+		try {
+			if (stored) {
+				int i = setStoredCollectionsQueryParams(get_collections_st, owner.toString(), crit);
+				get_collections_st.setInt(i++, crit.getRsm().getMax());
+				get_collections_st.setInt(i++, crit.getRsm().getIndex());
+			} else {
 				setItemsQueryParams(get_collections_st, owner.toString(), crit, groupByType);
+			}
+
+			selectRs = get_collections_st.executeQuery();
+			while (selectRs.next()) {
+				Timestamp startTs = selectRs.getTimestamp(1);
+				String with = selectRs.getString(2);
+				String type = selectRs.getString(3);
+				collectionHandler.collectionFound(crit, with, startTs, type);
+			}
+		} finally {
+			data_repo.release(null, selectRs);
+		}
+
+		List<Element> collections = crit.getCollections();
+		if (collections != null) {
+			int first = crit.getRsm().getIndex();
+			crit.getRsm().setFirst(String.valueOf(first));
+			crit.getRsm().setLast(String.valueOf(first + collections.size() - 1));
+		}
+	}
+	
+	private Integer getCollectionsCount(StatementLease lease, Q crit) throws SQLException {
+		ResultSet countRs = null;
+		Integer count = null;
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		boolean stored = isStoredCollectionsQuery(crit);
+		PreparedStatement get_collections_count = lease.getStatement(owner, stored
+																			? GET_STORED_COLLECTIONS_COUNT_QUERY
+																			: GET_COLLECTIONS_COUNT_QUERY);
+		try {
+			if (stored) {
+				setStoredCollectionsQueryParams(get_collections_count, owner.toString(), crit);
+			} else {
+				setCountQueryParams(get_collections_count, owner.toString(), crit, groupByType);
+			}
+			countRs = get_collections_count.executeQuery();
+			if (countRs.next()) {
+				count = countRs.getInt(1);
+			}
+		} finally {
+			data_repo.release(null, countRs);
+		}
+		return count;
+	}
+
+	/**
+	 * Checks if collections may be retrieved from the summary table, which
+	 * does not know tags nor bodies of messages.
+	 */
+	private boolean isStoredCollectionsQuery(Q crit) {
+		return storedCollections && crit.getTags().isEmpty() && crit.getContains().isEmpty();
+	}
+
+	private int setStoredCollectionsQueryParams(PreparedStatement stmt, String ownerJid, Q crit) throws SQLException {
+		int i = 1;
+		stmt.setString(i++, ownerJid);
+		if (crit.getWith() != null) {
+			stmt.setString(i++, crit.getWith().getBareJID().toString());
+		} else {
+			stmt.setObject(i++, null);
+		}
+		if (crit.getStart() != null) {
+			stmt.setTimestamp(i++, convertToTimestamp(crit.getStart()));
+		} else {
+			stmt.setObject(i++, null);
+		}
+		if (crit.getEnd() != null) {
+			stmt.setTimestamp(i++, convertToTimestamp(crit.getEnd()));
+		} else {
+			stmt.setObject(i++, null);
+		}
+		stmt.setShort(i++, (short) (groupByType ? 1 : 0));
+		return i;
+	}
+
+	private Integer getColletionPosition(String uid, Q query) {
+		if (uid == null || uid.isEmpty())
+			return null;
 
-				selectRs = get_collections_st.executeQuery();
-				while (selectRs.next()) {
-					Timestamp startTs = selectRs.getTimestamp(1);
-					String with = selectRs.getString(2);
-					String type = selectRs.getString(3);
-					collectionHandler.collectionFound(crit, with, startTs, type);
+		return Integer.parseInt(uid);
+	}
+	
+	private void getItemsItems(StatementLease lease, Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler) throws SQLException {
+		ResultSet rs      = null;		
+		Queue<Item> results = new ArrayDeque<Item>();
+		ItemsProcessor processor = streamItems ? new ItemsProcessor(crit, itemHandler) : null;
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		PreparedStatement get_messages_st = lease.getStatement(owner, GET_MESSAGES_QUERY);
+		try {
+			setItemsQueryParams(get_messages_st, owner.toString(), crit, null);
+			if (itemsFetchSize > 0) {
+				get_messages_st.setFetchSize(itemsFetchSize);
+			}
+
+			rs = get_messages_st.executeQuery();
+			while (rs.next()) {
+				Item item = newItemInstance();
+				item.read(rs, crit);
+				if (processor != null) {
+					processor.process(item);
+				} else {
+					results.offer(item);
+				}
+			}
+		} finally {
+			data_repo.release(null, rs);
+		}
+
+		if (processor != null) {
+			processor.finish();
+		} else {
+			processItems(crit, results, itemHandler);
+		}
+	}
+
+	/**
+	 * Retrieves page of messages together with number of messages and
+	 * position of the page using a single query. Position of the page is
+	 * calculated by the database if it depends on number of messages or on
+	 * position of a message with id passed in RSM.
+	 */
+	private void getItemsPage(StatementLease lease, Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler)
+			throws SQLException, ComponentException {
+		RSM rsm = crit.getRsm();
+		int index = rsm.getIndex() == null ? 0 : rsm.getIndex();
+		int limit = rsm.getMax();
+		String afterId = null;
+		String beforeId = null;
+		boolean lastPage = false;
+		if (rsm.getAfter() != null && !rsm.getAfter().isEmpty()) {
+			if (crit.getUseMessageIdInRsm()) {
+				afterId = rsm.getAfter();
+			} else {
+				index = Integer.parseInt(rsm.getAfter()) + 1;
+			}
+		} else if (rsm.getBefore() != null && !rsm.getBefore().isEmpty()) {
+			if (crit.getUseMessageIdInRsm()) {
+				beforeId = rsm.getBefore();
+			} else {
+				int before = Integer.parseInt(rsm.getBefore());
+				index = before - limit;
+				if (index < 0) {
+					index = 0;
+					limit = before;
+				}
+			}
+		} else if (rsm.hasBefore()) {
+			lastPage = true;
+		}
+
+		MessageCountCache counts = isMessagesCountCacheable(crit) ? messageCountCache : null;
+		Integer knownCount = counts == null ? null : counts.get(crit.getQuestionerJID().getBareJID().toString(), getWithJid(crit));
+		long stamp = counts == null ? 0 : counts.getStamp(crit.getQuestionerJID().getBareJID().toString());
+
+		// the last page of a conversation is kept in memory to retrieve it again without accessing the database
+		RecentItemsCache recent = lastPage && crit.getWith() != null && crit.getUseMessageIdInRsm() &&
+				isMessagesCountCacheable(crit) ? recentItems : null;
+		List<RecentItemsCache.Entry> recentEntries = recent == null ? null : new ArrayList<>();
+		long recentStamp = recent == null ? 0 : recent.getStamp(crit.getQuestionerJID().getBareJID().toString());
+
+		Integer count = null;
+		Integer pageOffset = null;
+		int pageLimit = limit;
+		Queue<Item> results = new ArrayDeque<Item>();
+		ItemsProcessor processor = streamItems ? new ItemsProcessor(crit, itemHandler) : null;
+		ResultSet rs = null;
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		PreparedStatement get_messages_page_st = lease.getStatement(owner, GET_MESSAGES_PAGE_QUERY);
+		try {
+			int i = setCountQueryParams(get_messages_page_st, owner.toString(), crit, null);
+			if (afterId != null) {
+				get_messages_page_st.setString(i++, afterId);
+			} else {
+				get_messages_page_st.setObject(i++, null);
+			}
+			if (beforeId != null) {
+				get_messages_page_st.setString(i++, beforeId);
+			} else {
+				get_messages_page_st.setObject(i++, null);
+			}
+			get_messages_page_st.setShort(i++, (short) (lastPage ? 1 : 0));
+			get_messages_page_st.setInt(i++, limit);
+			get_messages_page_st.setInt(i++, index);
+			if (knownCount != null) {
+				get_messages_page_st.setLong(i++, knownCount);
+			} else {
+				get_messages_page_st.setObject(i++, null);
+			}
+			if (itemsFetchSize > 0) {
+				get_messages_page_st.setFetchSize(itemsFetchSize);
+			}
+
+			rs = get_messages_page_st.executeQuery();
+			while (rs.next()) {
+				// first row contains only number of messages and position of the page
+				if (rs.getLong(PAGE_POSITION_COLUMN) == 0) {
+					count = rs.getInt(PAGE_POSITION_COLUMN + 1);
+					pageOffset = rs.getInt(PAGE_POSITION_COLUMN + 2);
+					if (rs.wasNull()) {
+						pageOffset = null;
+					}
+					pageLimit = rs.getInt(PAGE_POSITION_COLUMN + 3);
+					if (pageOffset == null) {
+						throw new ComponentException(Authorization.BAD_REQUEST, "Item with " +
+								(afterId != null ? afterId : beforeId) + " not found");
+					}
+
+					// position of a page next to a message is not counted, so its index is not known
+					if (pageOffset < 0) {
+						pageOffset = null;
+					}
+					rsm.setIndex(pageOffset);
+					rsm.setMax(pageLimit);
+					rsm.setCount(count);
+					if (counts != null && knownCount == null) {
+						counts.put(owner.toString(), getWithJid(crit), count, stamp);
+					}
+					continue;
+				}
+				Item item = newItemInstance();
+				item.read(rs, crit);
+				if (recentEntries != null) {
+					if (item.id != null) {
+						recentEntries.add(
+								new RecentItemsCache.Entry(item.id, item.timestamp, item.direction, item.messageStr));
+					} else {
+						recentEntries = null;
+					}
+				}
+				if (processor != null) {
+					processor.process(item);
+				} else {
+					results.offer(item);
 				}
-			} finally {
-				data_repo.release(null, selectRs);
 			}
+		} finally {
+			data_repo.release(null, rs);
+		}
+
+		if (count == null) {
+			throw new SQLException("Number of messages was not returned by " + GET_MESSAGES_PAGE_QUERY);
+		}
+
+		if (recentEntries != null && pageOffset != null && pageOffset + recentEntries.size() == count) {
+			recent.put(owner.toString(), getWithJid(crit), recentEntries, count, recentStamp);
+		}
+
+		if (processor != null) {
+			processor.finish();
+		} else {
+			processItems(crit, results, itemHandler);
+		}
+	}
+
+	/**
+	 * Retrieves page of messages from cold storage and table of messages as if
+	 * they were kept in a single table. Messages are moved to cold storage in
+	 * order of time, so messages in cold storage are placed before messages
+	 * remaining in table of messages.
+	 */
+	private void getItemsWithColdStorage(StatementLease lease, Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler,
+										 int coldCount) throws SQLException, ComponentException {
+		BareJID owner = crit.getQuestionerJID().getBareJID();
+		Integer count = getItemsCount(lease, crit);
+		if (count == null) {
+			count = 0;
+		}
+
+		Integer after = getColdStorageItemPosition(lease, crit.getRsm().getAfter(), crit, coldCount);
+		Integer before = getColdStorageItemPosition(lease, crit.getRsm().getBefore(), crit, coldCount);
+
+		calculateOffsetAndPosition(crit, coldCount + count, before, after);
+
+		int index = crit.getRsm().getIndex();
+		int limit = crit.getRsm().getMax();
+		ItemsProcessor processor = streamItems ? new ItemsProcessor(crit, itemHandler) : null;
+		Queue<Item> results = processor == null ? new ArrayDeque<Item>() : null;
+		// some drivers fetch rows in batches only within a transaction
+		boolean transaction = processor != null && itemsFetchSize > 0 && lease.isExclusive() && !lease.isTransaction();
+		if (transaction) {
+			lease.startTransaction();
+		}
+		int read = 0;
+		if (index < coldCount && limit > 0) {
+			PreparedStatement get_cold_messages_st = lease.getStatement(owner, GET_COLD_MESSAGES_QUERY);
+			int i = setColdQueryParams(get_cold_messages_st, owner.toString(), crit);
+			get_cold_messages_st.setInt(i++, Math.min(limit, coldCount - index));
+			get_cold_messages_st.setInt(i++, index);
+			read = readItems(get_cold_messages_st, crit, processor, results);
+		}
+		int remaining = limit - read;
+		if (remaining > 0) {
+			PreparedStatement get_messages_st = lease.getStatement(owner, GET_MESSAGES_QUERY);
+			int i = setCountQueryParams(get_messages_st, owner.toString(), crit, null);
+			get_messages_st.setInt(i++, remaining);
+			get_messages_st.setInt(i++, Math.max(index - coldCount, 0));
+			readItems(get_messages_st, crit, processor, results);
+		}
+		if (transaction) {
+			lease.commit();
 		}
 
-		List<Element> collections = crit.getCollections();
-		if (collections != null) {
-			int first = crit.getRsm().getIndex();
-			crit.getRsm().setFirst(String.valueOf(first));
-			crit.getRsm().setLast(String.valueOf(first + collections.size() - 1));
+		if (processor != null) {
+			processor.finish();
+		} else {
+			processItems(crit, results, itemHandler);
 		}
 	}
-	
-	private Integer getCollectionsCount(Q crit) throws SQLException {
-		ResultSet countRs = null;
-		Integer count = null;
+
+	private int getColdItemsCount(StatementLease lease, Q crit) throws SQLException {
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_collections_count = data_repo.getPreparedStatement(owner, GET_COLLECTIONS_COUNT_QUERY);
-		synchronized (get_collections_count) {
-			try {
-				setCountQueryParams(get_collections_count, owner.toString(), crit, groupByType);
-				countRs = get_collections_count.executeQuery();
-				if (countRs.next()) {
-					count = countRs.getInt(1);
-				}
-			} finally {
-				data_repo.release(null, countRs);
-			}
+		if (crit.getWith() == null && crit.getStart() == null && crit.getEnd() == null && crit.getTags().isEmpty() &&
+				crit.getContains().isEmpty()) {
+			return getOwnerColdItemsCount(lease, owner);
+		}
+		ResultSet rs = null;
+		PreparedStatement get_cold_count_st = lease.getStatement(owner, GET_COLD_MESSAGES_COUNT_QUERY);
+		try {
+			setColdQueryParams(get_cold_count_st, owner.toString(), crit);
+			rs = get_cold_count_st.executeQuery();
+			return rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			data_repo.release(null, rs);
+		}
+	}
+
+	/**
+	 * Returns number of all messages of an owner in cold storage, which is
+	 * cached, so queries of owners without messages in cold storage do not
+	 * need to look into it.
+	 */
+	private int getOwnerColdItemsCount(StatementLease lease, BareJID owner) throws SQLException {
+		ColdMessagesCountCache counts = coldMessagesCountCache;
+		Integer count = counts == null ? null : counts.get(owner.toString());
+		if (count != null) {
+			return count;
+		}
+		long stamp = counts == null ? 0 : counts.startCounting();
+		ResultSet rs = null;
+		PreparedStatement get_cold_count_st = lease.getStatement(owner, GET_COLD_MESSAGES_COUNT_QUERY);
+		try {
+			get_cold_count_st.setString(1, owner.toString());
+			get_cold_count_st.setObject(2, null);
+			get_cold_count_st.setObject(3, null);
+			get_cold_count_st.setObject(4, null);
+			get_cold_count_st.setObject(5, null);
+			get_cold_count_st.setObject(6, null);
+			rs = get_cold_count_st.executeQuery();
+			count = rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			data_repo.release(null, rs);
+		}
+		if (counts != null) {
+			counts.put(owner.toString(), count, stamp);
 		}
 		return count;
 	}
 
-	private Integer getColletionPosition(String uid, Q query) {
+	/**
+	 * Checks if requested page may contain messages from cold storage using
+	 * table of messages only. Pages containing only messages from table of
+	 * messages are retrieved as if there was no cold storage, so their count
+	 * and position do not include messages in cold storage. Positions passed
+	 * in RSM by XEP-0136 refer to both tables, so these pages are always
+	 * retrieved from both. Page at a given index may be compared with number
+	 * of messages in cold storage only, so it is checked after counting them.
+	 */
+	private boolean isColdStoragePage(StatementLease lease, Q crit) throws SQLException {
+		if (!crit.getUseMessageIdInRsm()) {
+			return true;
+		}
+		RSM rsm = crit.getRsm();
+		if (rsm.getAfter() != null && !rsm.getAfter().isEmpty()) {
+			return getHotItemPosition(lease, rsm.getAfter(), crit) == null;
+		}
+		if (rsm.getBefore() != null && !rsm.getBefore().isEmpty()) {
+			Integer position = getHotItemPosition(lease, rsm.getBefore(), crit);
+			return position == null || position - 1 < rsm.getMax();
+		}
+		if (rsm.hasBefore()) {
+			Integer count = getItemsCount(lease, crit);
+			return count == null || count < rsm.getMax();
+		}
+		return true;
+	}
+
+	private boolean isIndexedPage(Q crit) {
+		RSM rsm = crit.getRsm();
+		return crit.getUseMessageIdInRsm() && (rsm.getAfter() == null || rsm.getAfter().isEmpty()) &&
+				(rsm.getBefore() == null || rsm.getBefore().isEmpty()) && !rsm.hasBefore() && rsm.getIndex() != null;
+	}
+
+	/**
+	 * Returns position of a message in table of messages (starting from 1)
+	 * or <code>null</code> if it is not there.
+	 */
+	private Integer getHotItemPosition(StatementLease lease, String uid, Q query) throws SQLException {
+		BareJID owner = query.getQuestionerJID().getBareJID();
+		PreparedStatement get_message_position_st = lease.getStatement(owner, GET_MESSAGE_POSITION_QUERY);
+		int i = setCountQueryParams(get_message_position_st, owner.toString(), query, null);
+		get_message_position_st.setString(i++, uid);
+		return readPosition(get_message_position_st);
+	}
+
+	private Integer getColdStorageItemPosition(StatementLease lease, String uid, Q query, int coldCount)
+			throws SQLException, ComponentException {
 		if (uid == null || uid.isEmpty())
 			return null;
 
-		return Integer.parseInt(uid);
+		if (!query.getUseMessageIdInRsm())
+			return Integer.parseInt(uid);
+
+		// message is looked up in cold storage only if it is not in table of messages, as that needs to number all of them
+		Integer position = getHotItemPosition(lease, uid, query);
+		if (position != null) {
+			return coldCount + position - 1;
+		}
+
+		BareJID owner = query.getQuestionerJID().getBareJID();
+		PreparedStatement get_cold_position_st = lease.getStatement(owner, GET_COLD_MESSAGE_POSITION_QUERY);
+		int i = setColdQueryParams(get_cold_position_st, owner.toString(), query);
+		get_cold_position_st.setString(i++, uid);
+		position = readPosition(get_cold_position_st);
+		if (position != null) {
+			return position - 1;
+		}
+
+		throw new ComponentException(Authorization.BAD_REQUEST, "Item with " + uid + " not found");
 	}
-	
-	private void getItemsItems(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler) throws SQLException {
-		ResultSet rs      = null;		
-		Queue<Item> results = new ArrayDeque<Item>();
-		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_messages_st = data_repo.getPreparedStatement(owner, GET_MESSAGES_QUERY);
-		synchronized (get_messages_st) {
-			try {
-				setItemsQueryParams(get_messages_st, owner.toString(), crit, null);
 
-				rs = get_messages_st.executeQuery();
-				while (rs.next()) {
-					Item item = newItemInstance();
-					item.read(rs, crit);
+	private Integer readPosition(PreparedStatement stmt) throws SQLException {
+		ResultSet rs = null;
+		try {
+			rs = stmt.executeQuery();
+			if (rs.next()) {
+				int position = rs.getInt(1);
+				return position < 1 ? null : position;
+			}
+			return null;
+		} finally {
+			data_repo.release(null, rs);
+		}
+	}
+
+	/**
+	 * Reads messages and passes them to the processor if items are streamed
+	 * or adds them to results otherwise.
+	 *
+	 * @return number of read messages
+	 */
+	private int readItems(PreparedStatement stmt, Q crit, ItemsProcessor processor, Queue<Item> results)
+			throws SQLException {
+		int read = 0;
+		ResultSet rs = null;
+		try {
+			if (itemsFetchSize > 0) {
+				stmt.setFetchSize(itemsFetchSize);
+			}
+			rs = stmt.executeQuery();
+			while (rs.next()) {
+				Item item = newItemInstance();
+				item.read(rs, crit);
+				if (processor != null) {
+					processor.process(item);
+				} else {
 					results.offer(item);
 				}
-			} finally {
-				data_repo.release(null, rs);
+				read++;
 			}
+		} finally {
+			data_repo.release(null, rs);
 		}
+		return read;
+	}
 
-		if (!results.isEmpty()) {
-			DomBuilderHandler domHandler = new DomBuilderHandler();
+	private int setColdQueryParams(PreparedStatement stmt, String ownerJid, Q crit) throws SQLException {
+		return setCountQueryParams(stmt, ownerJid, crit, null);
+	}
 
-			Date startTimestamp = crit.getStart();
-			Item item = null;
-			int idx = crit.getRsm().getIndex();
-			int i = 0;
-			while ((item = results.poll()) != null) {
-				// workaround for case in which start was not specified
-				if (startTimestamp == null)
-					startTimestamp = item.timestamp;
-				
-				parser.parse(domHandler, item.messageStr.toCharArray(), 0, item.messageStr.length());
+	private boolean isColdStorageEnabled() {
+		return !coldStorageAfter.isZero() && !coldStorageAfter.isNegative();
+	}
+
+	private boolean isOrphansRemovalEnabled() {
+		return !removeOrphansInterval.isZero() && !removeOrphansInterval.isNegative();
+	}
 
-				Queue<Element> queue = domHandler.getParsedElements();
-				Element msg = null;
+	/**
+	 * Checks if message is old enough to be already moved to cold storage.
+	 * Database stores such message in cold storage at once if owner has newer
+	 * messages there, so cached numbers of messages of both tables and recent
+	 * messages of the owner may not be updated by adding it.
+	 */
+	private boolean isLateMessage(Date timestamp) {
+		return isColdStorageEnabled() && timestamp.getTime() < System.currentTimeMillis() - coldStorageAfter.toMillis();
+	}
 
-				item.messageStr = null;
-				item.messageEl = queue.poll();
-				if (!crit.getUseMessageIdInRsm()) {
-					item.id = String.valueOf(idx + i);
-				}
-				itemHandler.itemFound(crit, item);
-				queue.clear();
-				i++;
+	/**
+	 * Checks if query may reach messages moved to cold storage.
+	 */
+	private boolean isColdStorageQuery(Q crit) {
+		return isColdStorageEnabled() &&
+				(crit.getStart() == null || crit.getStart().getTime() < System.currentTimeMillis() - coldStorageAfter.toMillis());
+	}
+
+	/**
+	 * Moves a batch of the oldest messages to cold storage.
+	 *
+	 * @return number of moved messages
+	 */
+	private int moveMessagesToCold(Timestamp before) throws SQLException {
+		int moved = 0;
+		try (StatementLease lease = leaseStatements(null)) {
+			PreparedStatement move_messages_st = lease.getStatement(null, MOVE_MESSAGES_TO_COLD_QUERY);
+			move_messages_st.setQueryTimeout(delete_expired_timeout);
+			move_messages_st.setTimestamp(1, before);
+			move_messages_st.setInt(2, coldStorageBatch);
+			ResultSet rs = null;
+			try {
+				rs = move_messages_st.executeQuery();
+				moved = rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				data_repo.release(null, rs);
 			}
+		}
+		if (moved > 0) {
+			// cached numbers and pages of messages are counted from table of messages only
+			clearCachedMessages();
+		}
+		return moved;
+	}
 
-			crit.setStart(startTimestamp);
+	private void processItems(Q crit, Queue<Item> results, ItemHandler<Q, MAMRepository.Item> itemHandler) {
+		ItemsProcessor processor = new ItemsProcessor(crit, itemHandler);
+		Item item = null;
+		while ((item = results.poll()) != null) {
+			processor.process(item);
 		}
+		processor.finish();
 	}
 	
 	protected Timestamp convertToTimestamp(Date date) {
@@ -562,27 +2014,108 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		return new Item();
 	}
 	
-	private Integer getItemsCount(Q crit) throws SQLException {
-		Integer count = null;
+	private Integer getItemsCount(StatementLease lease, Q crit) throws SQLException {
+		MessageCountCache counts = isMessagesCountCacheable(crit) ? messageCountCache : null;
+		Integer count = counts == null ? null : counts.get(crit.getQuestionerJID().getBareJID().toString(), getWithJid(crit));
+		if (count != null) {
+			return count;
+		}
+		long stamp = counts == null ? 0 : counts.getStamp(crit.getQuestionerJID().getBareJID().toString());
+
 		ResultSet rs = null;
 		BareJID owner = crit.getQuestionerJID().getBareJID();
-		PreparedStatement get_messages_st = data_repo.getPreparedStatement(owner, GET_MESSAGES_COUNT_QUERY);
-		synchronized (get_messages_st) {
-			try {
-				setCountQueryParams(get_messages_st, owner.toString(), crit, null);
+		PreparedStatement get_messages_st = lease.getStatement(owner, GET_MESSAGES_COUNT_QUERY);
+		try {
+			setCountQueryParams(get_messages_st, owner.toString(), crit, null);
 
-				rs = get_messages_st.executeQuery();
-				if (rs.next()) {
-					count = rs.getInt(1);
-				}
-			} finally {
-				data_repo.release(null, rs);
+			rs = get_messages_st.executeQuery();
+			if (rs.next()) {
+				count = rs.getInt(1);
 			}
+		} finally {
+			data_repo.release(null, rs);
+		}
+		if (counts != null && count != null) {
+			counts.put(owner.toString(), getWithJid(crit), count, stamp);
 		}
 		return count;
 	}
 
-	private Integer getItemPosition(String uid, Q query) throws SQLException, ComponentException {
+	/**
+	 * Checks if number of messages matching criteria may be cached, which is
+	 * possible only if messages are not filtered by anything else than a buddy.
+	 */
+	private boolean isMessagesCountCacheable(Q crit) {
+		return crit.getStart() == null && crit.getEnd() == null && crit.getTags().isEmpty() &&
+				crit.getContains().isEmpty();
+	}
+
+	private String getWithJid(Q crit) {
+		return crit.getWith() == null ? null : crit.getWith().getBareJID().toString();
+	}
+
+	private void forgetMessagesCount(BareJID owner) {
+		MessageCountCache counts = messageCountCache;
+		if (counts != null) {
+			counts.remove(owner.toString());
+		}
+	}
+
+	private void forgetColdMessagesCount(BareJID owner) {
+		ColdMessagesCountCache coldCounts = coldMessagesCountCache;
+		if (coldCounts != null) {
+			coldCounts.remove(owner.toString());
+		}
+	}
+
+	private void forgetRecentItems(BareJID owner) {
+		RecentItemsCache recent = recentItems;
+		if (recent != null) {
+			recent.remove(owner.toString());
+		}
+	}
+
+	/**
+	 * Returns page of the latest messages of a conversation kept in memory
+	 * or <code>null</code> if page needs to be retrieved from the database.
+	 * Only the last page and pages next to a recent message, which are not
+	 * filtered by anything else than a buddy, may be kept in memory.
+	 */
+	private RecentItemsCache.Page getRecentItemsPage(Q crit) {
+		RecentItemsCache recent = recentItems;
+		if (recent == null || crit.getWith() == null || !crit.getUseMessageIdInRsm() ||
+				!isMessagesCountCacheable(crit)) {
+			return null;
+		}
+		RSM rsm = crit.getRsm();
+		String afterId = rsm.getAfter() != null && !rsm.getAfter().isEmpty() ? rsm.getAfter() : null;
+		String beforeId = rsm.getBefore() != null && !rsm.getBefore().isEmpty() ? rsm.getBefore() : null;
+		if (afterId == null && beforeId == null && !rsm.hasBefore()) {
+			return null;
+		}
+		return recent.getPage(crit.getQuestionerJID().getBareJID().toString(), getWithJid(crit), afterId, beforeId,
+							  rsm.getMax());
+	}
+
+	private void processRecentItems(Q crit, RecentItemsCache.Page page, ItemHandler<Q, MAMRepository.Item> itemHandler) {
+		RSM rsm = crit.getRsm();
+		rsm.setIndex(page.getOffset());
+		rsm.setMax(page.getLimit());
+		rsm.setCount(page.getCount());
+
+		Queue<Item> results = new ArrayDeque<Item>();
+		for (RecentItemsCache.Entry entry : page.getItems()) {
+			Item item = newItemInstance();
+			item.id = entry.getId();
+			item.messageStr = entry.getMessage();
+			item.timestamp = entry.getTimestamp();
+			item.direction = entry.getDirection();
+			results.offer(item);
+		}
+		processItems(crit, results, itemHandler);
+	}
+
+	private Integer getItemPosition(StatementLease lease, String uid, Q query) throws SQLException, ComponentException {
 		if (uid == null || uid.isEmpty())
 			return null;
 
@@ -592,19 +2125,17 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		Integer position = null;
 		ResultSet rs = null;
 		BareJID owner = query.getQuestionerJID().getBareJID();
-		PreparedStatement get_message_position_st = data_repo.getPreparedStatement(owner, GET_MESSAGE_POSITION_QUERY);
-		synchronized (get_message_position_st) {
-			try {
-				int i = setCountQueryParams(get_message_position_st, owner.toString(), query, null);
-				get_message_position_st.setString(i++, uid);
+		PreparedStatement get_message_position_st = lease.getStatement(owner, GET_MESSAGE_POSITION_QUERY);
+		try {
+			int i = setCountQueryParams(get_message_position_st, owner.toString(), query, null);
+			get_message_position_st.setString(i++, uid);
 
-				rs = get_message_position_st.executeQuery();
-				if (rs.next()) {
-					position = rs.getInt(1);
-				}
-			} finally {
-				data_repo.release(null, rs);
+			rs = get_message_position_st.executeQuery();
+			if (rs.next()) {
+				position = rs.getInt(1);
 			}
+		} finally {
+			data_repo.release(null, rs);
 		}
 
 		if (position == null || position < 1)
@@ -613,6 +2144,61 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		return position - 1;
 	}
 
+	/**
+	 * Removed message may be archived again, so it cannot be treated as
+	 * a duplicate anymore.
+	 */
+	private void clearRecentMessages() {
+		RecentMessagesFilter filter = recentMessages;
+		if (filter != null) {
+			filter.clear();
+		}
+	}
+
+	/**
+	 * Removes all cached ids of JIDs and tags, which may point to removed rows.
+	 */
+	private void clearCachedIds() {
+		JidCache jids = jidCache;
+		if (jids != null) {
+			jids.clear();
+		}
+		TagCache tags = tagCache;
+		if (tags != null) {
+			tags.clear();
+		}
+	}
+
+	/**
+	 * Removes cached numbers and pages of messages. Filter of recent messages
+	 * is kept, as it is used only to drop duplicates of messages which are
+	 * just being archived.
+	 */
+	private void clearCachedMessages() {
+		MessageCountCache counts = messageCountCache;
+		if (counts != null) {
+			counts.clear();
+		}
+		ColdMessagesCountCache coldCounts = coldMessagesCountCache;
+		if (coldCounts != null) {
+			coldCounts.clear();
+		}
+		RecentItemsCache recent = recentItems;
+		if (recent != null) {
+			recent.clear();
+		}
+	}
+
+	/**
+	 * Creates partitions of messages for upcoming months, so there is always
+	 * a partition ready for newly stored messages.
+	 */
+	private void ensurePartitions(StatementLease lease) throws SQLException {
+		PreparedStatement ensure_partitions_st = lease.getStatement(null, ENSURE_PARTITIONS_QUERY);
+		ensure_partitions_st.setInt(1, messagePartitionMonths);
+		ensure_partitions_st.executeUpdate();
+	}
+
 	private String generateHashOfMessageAsString(Direction direction, Element msg, Date ts, Map<String,Object> additionalData) {
 		byte[] result = generateHashOfMessage(direction, msg, ts, additionalData);
 		return result != null ? Base64.encode(result) : null;
@@ -623,6 +2209,57 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		return (Q) new QueryCriteria();
 	}
 
+	/**
+	 * Parses messages of retrieved items and passes them to the handler in
+	 * order in which they were retrieved.
+	 */
+	private class ItemsProcessor {
+
+		private final Q crit;
+		private final ItemHandler<Q, MAMRepository.Item> itemHandler;
+		private final DomBuilderHandler domHandler = new DomBuilderHandler();
+		private Date startTimestamp;
+		private int i = 0;
+
+		private ItemsProcessor(Q crit, ItemHandler<Q, MAMRepository.Item> itemHandler) {
+			this.crit = crit;
+			this.itemHandler = itemHandler;
+			this.startTimestamp = crit.getStart();
+		}
+
+		private void process(Item item) {
+			// workaround for case in which start was not specified
+			if (startTimestamp == null)
+				startTimestamp = item.timestamp;
+
+			Queue<Element> queue = null;
+			if (rawMessages) {
+				item.messageEl = RawMessageElement.fromXml(item.messageStr);
+			}
+			if (item.messageEl == null) {
+				parser.parse(domHandler, item.messageStr.toCharArray(), 0, item.messageStr.length());
+				queue = domHandler.getParsedElements();
+				item.messageEl = queue.poll();
+			}
+
+			item.messageStr = null;
+			if (!crit.getUseMessageIdInRsm()) {
+				item.id = String.valueOf(crit.getRsm().getIndex() + i);
+			}
+			itemHandler.itemFound(crit, item);
+			if (queue != null) {
+				queue.clear();
+			}
+			i++;
+		}
+
+		private void finish() {
+			if (i > 0) {
+				crit.setStart(startTimestamp);
+			}
+		}
+	}
+
 	public static class Item<Q extends QueryCriteria> implements MessageArchiveRepository.Item {
 		String id;
 		String messageStr;
@@ -633,7 +2270,7 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		
 		protected int read(ResultSet rs, Q crit) throws SQLException {
 			int i = 1;
-			messageStr = rs.getString(i++);
+			String value = rs.getString(i++);
 			timestamp = rs.getTimestamp(i++);
 			direction = Direction.getDirection(rs.getShort(i++));
 			if (crit.getWith() == null) {
@@ -641,6 +2278,13 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 			}
 			i++;
 			id = rs.getString(i++);
+			try {
+				messageStr = MessageCompression.decode(value);
+			} catch (IllegalArgumentException ex) {
+				// corrupted message is passed as stored, so it is not parsed as any other invalid message
+				log.log(Level.WARNING, "Could not decompress message " + id + " of " + crit.getQuestionerJID(), ex);
+				messageStr = value;
+			}
 			return i;
 		}
 
@@ -670,6 +2314,208 @@ public class JDBCMessageArchiveRepository<Q extends QueryCriteria> extends Abstr
 		}
 	}
 	
+	/**
+	 * Periodically moves messages older than configured age to cold storage in
+	 * batches, until there are no more old messages in table of messages.
+	 */
+	private class ColdStorageMover
+			extends Thread {
+
+		private volatile boolean running = true;
+		private volatile long moved = 0;
+
+		public ColdStorageMover() {
+			super("message-archive-cold-storage");
+			setDaemon(true);
+		}
+
+		public void shutdown() {
+			running = false;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				Timestamp before = new Timestamp(System.currentTimeMillis() - coldStorageAfter.toMillis());
+				try {
+					int count;
+					do {
+						count = moveMessagesToCold(before);
+						moved += count;
+					} while (running && count >= coldStorageBatch);
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "moved messages older than {0} to cold storage, {1} in total",
+								new Object[]{before, moved});
+					}
+				} catch (SQLException ex) {
+					log.log(Level.WARNING, "Could not move messages to cold storage", ex);
+				}
+				try {
+					Thread.sleep(coldStorageInterval.toMillis());
+				} catch (InterruptedException e) {
+					// checking if we should continue
+				}
+			}
+		}
+	}
+
+	/**
+	 * Periodically removes JIDs and tags which are no longer referenced by any
+	 * message, collection or setting. Rows are checked in batches ordered by
+	 * their ids with a pause between batches, so stored messages do not wait
+	 * for the removal. Each batch checks references while deleting rows, so a
+	 * JID or tag used again in the meantime is kept, and cached ids are dropped
+	 * afterwards. Message stored concurrently with removal of its JID is caught
+	 * by a foreign key (and retried if cached id was used), so JIDs are not
+	 * removed from databases without foreign keys of messages.
+	 */
+	private class OrphansRemoval
+			extends Thread {
+
+		private volatile boolean running = true;
+		private volatile long jids = 0;
+		private volatile long tags = 0;
+
+		public OrphansRemoval() {
+			super("message-archive-orphans-removal");
+			setDaemon(true);
+		}
+
+		public void shutdown() {
+			running = false;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					// tags are removed first, as they reference JIDs of their owners
+					long removedTags = deleteOrphans(DELETE_ORPHANED_TAGS_QUERY);
+					tags += removedTags;
+					long removedJids = deleteOrphans(DELETE_ORPHANED_JIDS_QUERY);
+					jids += removedJids;
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "removed {0} unreferenced JIDs and {1} unreferenced tags",
+								new Object[]{removedJids, removedTags});
+					}
+				} catch (SQLException ex) {
+					log.log(Level.WARNING, "Could not remove unreferenced JIDs and tags", ex);
+				}
+				try {
+					Thread.sleep(removeOrphansInterval.toMillis());
+				} catch (InterruptedException e) {
+					// checking if we should continue
+				}
+			}
+		}
+
+		private long deleteOrphans(String query) throws SQLException {
+			long deleted = 0;
+			long lastId = 0;
+			while (running) {
+				Long next = null;
+				int count = 0;
+				try (StatementLease lease = leaseStatements(null)) {
+					PreparedStatement delete_orphans_st = lease.getStatement(null, query);
+					delete_orphans_st.setQueryTimeout(delete_expired_timeout);
+					ResultSet rs = null;
+					try {
+						delete_orphans_st.setLong(1, lastId);
+						delete_orphans_st.setInt(2, removeOrphansBatch);
+						rs = delete_orphans_st.executeQuery();
+						if (rs.next()) {
+							long id = rs.getLong(1);
+							next = rs.wasNull() ? null : id;
+							count = rs.getInt(2);
+						}
+					} finally {
+						data_repo.release(null, rs);
+					}
+				}
+				if (count > 0) {
+					deleted += count;
+					clearCachedIds();
+				}
+				if (next == null) {
+					break;
+				}
+				lastId = next;
+				if (!removeOrphansPause.isZero()) {
+					try {
+						Thread.sleep(removeOrphansPause.toMillis());
+					} catch (InterruptedException e) {
+						// checking if we should continue
+					}
+				}
+			}
+			return deleted;
+		}
+	}
+
+	/**
+	 * Fills summary table of collections with collections of messages stored
+	 * before the table was maintained, processing users in batches ordered by
+	 * their ids. Collections of a batch are merged with collections already
+	 * present, so it is safe to run it again or while messages are stored.
+	 */
+	private class CollectionsBackfill
+			extends Thread {
+
+		private volatile boolean running = true;
+		private volatile long lastOwnerId = 0;
+		private volatile boolean completed = false;
+
+		public CollectionsBackfill() {
+			super("message-archive-collections-backfill");
+			setDaemon(true);
+		}
+
+		public void shutdown() {
+			running = false;
+			interrupt();
+		}
+
+		@Override
+		public void run() {
+			log.log(Level.INFO, "filling summary table of collections");
+			while (running) {
+				try (StatementLease lease = leaseStatements(null)) {
+					PreparedStatement backfill_st = lease.getStatement(null, BACKFILL_COLLECTIONS_QUERY);
+					ResultSet rs = null;
+					Long next = null;
+					try {
+						backfill_st.setLong(1, lastOwnerId);
+						backfill_st.setInt(2, collectionsBackfillBatch);
+						rs = backfill_st.executeQuery();
+						if (rs.next()) {
+							long id = rs.getLong(1);
+							next = rs.wasNull() ? null : id;
+						}
+					} finally {
+						data_repo.release(null, rs);
+					}
+					if (next == null) {
+						completed = true;
+						log.log(Level.INFO, "summary table of collections filled");
+						return;
+					}
+					lastOwnerId = next;
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "summary table of collections filled up to user with id {0}", next);
+					}
+				} catch (SQLException ex) {
+					log.log(Level.WARNING, "Could not fill summary table of collections, retrying in 1 minute", ex);
+					try {
+						Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+					} catch (InterruptedException e) {
+						// checking if we should continue
+					}
+				}
+			}
+		}
+	}
 }
 
 
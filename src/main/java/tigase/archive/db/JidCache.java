@@ -0,0 +1,117 @@
+/*
+ * JidCache.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of ids of JIDs stored in a database, in which least recently
+ * used entries are evicted when the cache is full. JIDs are compared ignoring
+ * case as it is done by the database.
+ *
+ * Cache never resolves ids on its own, so it is safe when the same JID is
+ * resolved by many threads at once - each of them will put the same id.
+ */
+public class JidCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<String, Long> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public JidCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.cache = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > JidCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Returns id of a JID or <code>null</code> if id of a JID is not cached.
+	 */
+	public Long get(String jid) {
+		Long id;
+		synchronized (cache) {
+			id = cache.get(key(jid));
+		}
+		if (id == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return id;
+	}
+
+	public void put(String jid, long id) {
+		synchronized (cache) {
+			cache.put(key(jid), id);
+		}
+	}
+
+	public void remove(String jid) {
+		synchronized (cache) {
+			cache.remove(key(jid));
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns percent of lookups which found id in the cache.
+	 */
+	public float getHitRatio() {
+		long hits = this.hits.get();
+		long all = hits + misses.get();
+		return all == 0 ? 0 : ((float) hits * 100) / all;
+	}
+
+	private static String key(String jid) {
+		return jid.toLowerCase();
+	}
+}
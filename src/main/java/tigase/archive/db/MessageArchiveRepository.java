@@ -24,6 +24,7 @@ package tigase.archive.db;
 import tigase.db.DataSource;
 import tigase.db.DataSourceAware;
 import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
@@ -34,6 +35,7 @@ import java.time.LocalDateTime;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.function.LongConsumer;
 
 /**
  *
@@ -87,13 +89,82 @@ public interface MessageArchiveRepository<Q extends tigase.archive.xep0136.Query
 	}
 	
 	void archiveMessage(BareJID owner, JID buddy, Direction direction, Date timestamp, Element msg, Set<String> tags);
+
+	/**
+	 * Stores multiple messages at once. Implementations may override this method to store messages in batches,
+	 * default implementation stores them one by one.
+	 *
+	 * @param entries messages to store
+	 * @throws TigaseDBException if storing of messages failed
+	 */
+	default void archiveMessages(List<ArchiveEntry> entries) throws TigaseDBException {
+		for (ArchiveEntry entry : entries) {
+			archiveMessage(entry.getOwner(), entry.getBuddy(), entry.getDirection(), entry.getTimestamp(),
+						   entry.getMessage(), entry.getTags());
+		}
+	}
 	
-	void deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException;
+	/**
+	 * Deletes messages of a domain which are older than a given time.
+	 *
+	 * @param owner domain of users
+	 * @param before time before which messages expired
+	 * @return number of removed messages or <code>-1</code> if it is not known
+	 */
+	default long deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException {
+		return deleteExpiredMessages(owner, before, removed -> {});
+	}
+
+	/**
+	 * Deletes messages of a domain which are older than a given time and
+	 * reports progress of the removal, if messages are removed in chunks.
+	 *
+	 * @param owner domain of users
+	 * @param before time before which messages expired
+	 * @param chunkRemoved called with number of removed messages after each removed chunk
+	 * @return number of removed messages or <code>-1</code> if it is not known
+	 */
+	long deleteExpiredMessages(BareJID owner, LocalDateTime before, LongConsumer chunkRemoved)
+			throws TigaseDBException;
+
+	/**
+	 * Drops partitions holding only messages older than a given time, if
+	 * messages are kept in partitions. Partitions hold messages of all domains,
+	 * so messages of all domains need to be expired before this time.
+	 *
+	 * @param before time before which messages of all domains expired
+	 */
+	default void deleteExpiredPartitions(LocalDateTime before) throws TigaseDBException {}
+
+	/**
+	 * Stores retention period of messages set by a user.
+	 *
+	 * @param owner JID of a user
+	 * @param expire retention period in seconds or <code>null</code> to remove it
+	 */
+	void setUserRetention(BareJID owner, Long expire) throws TigaseDBException;
+
+	/**
+	 * Deletes messages of users of a domain which are older than retention
+	 * periods set by those users.
+	 *
+	 * @param domain domain of users
+	 * @param now current time, retention periods are counted back from it
+	 */
+	void deleteExpiredUserMessages(BareJID domain, LocalDateTime now) throws TigaseDBException;
 	
 	/**
 	 * Destroys instance of this repository and releases resources allocated if possible
 	 */
 	default void destroy() {};
+
+	/**
+	 * Adds statistics of this repository to the list of statistics of a component
+	 *
+	 * @param compName name of a component
+	 * @param list list of statistics
+	 */
+	default void collectStatistics(String compName, StatisticsList list) {}
 	
 	void removeItems(BareJID owner, String withJid, Date start, Date end) throws TigaseDBException;
 	
@@ -32,6 +32,7 @@ import tigase.db.TigaseDBException;
 import tigase.db.beans.MDRepositoryBeanWithStatistics;
 import tigase.kernel.beans.Bean;
 import tigase.server.BasicComponent;
+import tigase.stats.StatisticsList;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
 import tigase.xmpp.JID;
@@ -40,7 +41,10 @@ import tigase.xmpp.mam.MAMRepository;
 import java.time.LocalDateTime;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -76,8 +80,35 @@ public class MessageArchiveRepositoryPool<Q extends QueryCriteria, R extends Mes
 	}
 
 	@Override
-	public void deleteExpiredMessages(BareJID owner, LocalDateTime before) throws TigaseDBException {
-		getRepository(owner.getDomain()).deleteExpiredMessages(owner, before);
+	public void archiveMessages(List<ArchiveEntry> entries) throws TigaseDBException {
+		Map<String, List<ArchiveEntry>> entriesByDomain = entries.stream()
+				.collect(Collectors.groupingBy(entry -> entry.getOwner().getDomain()));
+		for (Map.Entry<String, List<ArchiveEntry>> e : entriesByDomain.entrySet()) {
+			getRepository(e.getKey()).archiveMessages(e.getValue());
+		}
+	}
+
+	@Override
+	public long deleteExpiredMessages(BareJID owner, LocalDateTime before, LongConsumer chunkRemoved)
+			throws TigaseDBException {
+		return getRepository(owner.getDomain()).deleteExpiredMessages(owner, before, chunkRemoved);
+	}
+
+	@Override
+	public void deleteExpiredPartitions(LocalDateTime before) throws TigaseDBException {
+		for (R repo : repositoriesStream().distinct().collect(Collectors.toList())) {
+			repo.deleteExpiredPartitions(before);
+		}
+	}
+
+	@Override
+	public void setUserRetention(BareJID owner, Long expire) throws TigaseDBException {
+		getRepository(owner.getDomain()).setUserRetention(owner, expire);
+	}
+
+	@Override
+	public void deleteExpiredUserMessages(BareJID domain, LocalDateTime now) throws TigaseDBException {
+		getRepository(domain.getDomain()).deleteExpiredUserMessages(domain, now);
 	}
 
 	@Override
@@ -106,6 +137,11 @@ public class MessageArchiveRepositoryPool<Q extends QueryCriteria, R extends Mes
 		return getRepository(owner.getDomain()).getTags(owner, startsWith, criteria);
 	}
 
+	@Override
+	public void collectStatistics(String compName, StatisticsList list) {
+		repositoriesStream().distinct().forEach(repo -> repo.collectStatistics(compName, list));
+	}
+
 	@Override
 	public void setDataSource(DataSource dataSource) {
 		// nothing to do
@@ -0,0 +1,154 @@
+/*
+ * MessageCompression.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of serialized messages stored in a text column of a database.
+ *
+ * Message is compressed using Deflate with a preset dictionary of strings
+ * commonly found in XMPP messages and stored as Base64 with a prefix
+ * identifying format and dictionary. Compressed form is used only if it is
+ * shorter than the message, so stored value may still be a plain XML, which
+ * is also the case for all messages stored before compression was enabled.
+ * As XML always starts with <code>&lt;</code>, both forms may be read
+ * without any additional information.
+ */
+public class MessageCompression {
+
+	/**
+	 * Prefix of messages compressed with dictionary version 1. Dictionary of
+	 * a version must never be changed, a new version needs to be added instead.
+	 */
+	private static final String PREFIX_V1 = "$D1:";
+
+	// most common strings should be at the end of the dictionary
+	private static final byte[] DICTIONARY_V1 = ("<x xmlns=\"jabber:x:conference\" jid=\"" +
+			"<x xmlns=\"http://jabber.org/protocol/muc#user\">" + "<no-copy xmlns=\"urn:xmpp:hints\"/>" +
+			"<no-store xmlns=\"urn:xmpp:hints\"/>" + "<store xmlns=\"urn:xmpp:hints\"/>" +
+			"<encrypted xmlns=\"urn:xmpp:eme:0\" namespace=\"eu.siacs.conversations.axolotl\"/>" +
+			"<x xmlns=\"jabber:x:oob\"><url>https://</url></x>" +
+			"<composing xmlns=\"http://jabber.org/protocol/chatstates\"/>" +
+			"<addresses xmlns=\"http://jabber.org/protocol/address\"><address type=\"ofrom\" jid=\"" +
+			"<delay xmlns=\"urn:xmpp:delay\" from=\"" + "\" stamp=\"" +
+			"<received xmlns=\"urn:xmpp:receipts\" id=\"" + "<request xmlns=\"urn:xmpp:receipts\"/>" +
+			"<markable xmlns=\"urn:xmpp:chat-markers:0\"/>" + "<displayed xmlns=\"urn:xmpp:chat-markers:0\" id=\"" +
+			"<origin-id xmlns=\"urn:xmpp:sid:0\" id=\"" + "<stanza-id xmlns=\"urn:xmpp:sid:0\" by=\"" +
+			"<thread>" + "</thread>" + "<subject>" + "</subject>" +
+			"<active xmlns=\"http://jabber.org/protocol/chatstates\"/>" + "&quot;&apos;&amp;&lt;&gt;" +
+			"<message xmlns=\"jabber:client\" type=\"groupchat\" " + "<message xmlns=\"jabber:client\" type=\"chat\" " +
+			"<message type=\"chat\" id=\"" + "\" from=\"" + "\" to=\"" + "\" id=\"" + "\" time=\"" + "\"><body>" +
+			"</body></message>").getBytes(StandardCharsets.UTF_8);
+
+	private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(
+			() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+	private static final int MAX_CACHED_BUFFER_SIZE = 64 * 1024;
+	private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[4096]);
+
+	/**
+	 * Returns compressed form of a message if it is shorter than the message
+	 * or the message itself otherwise.
+	 */
+	public static String encode(String msg) {
+		if (msg == null) {
+			return null;
+		}
+		byte[] data = msg.getBytes(StandardCharsets.UTF_8);
+		// Base64 increases size by 1/3, so compressed data needs to be smaller than 3/4 of the message
+		int limit = ((msg.length() - PREFIX_V1.length()) * 3) / 4;
+		if (limit <= 0) {
+			return msg;
+		}
+
+		Deflater deflater = DEFLATERS.get();
+		byte[] buf = BUFFERS.get();
+		if (buf.length < limit + 1) {
+			buf = new byte[limit + 1];
+			if (buf.length <= MAX_CACHED_BUFFER_SIZE) {
+				BUFFERS.set(buf);
+			}
+		}
+		int len;
+		try {
+			deflater.setDictionary(DICTIONARY_V1);
+			deflater.setInput(data);
+			deflater.finish();
+			len = 0;
+			while (!deflater.finished() && len <= limit) {
+				len += deflater.deflate(buf, len, limit + 1 - len);
+			}
+			if (!deflater.finished() || len > limit) {
+				return msg;
+			}
+		} finally {
+			deflater.reset();
+		}
+
+		byte[] compressed = new byte[len];
+		System.arraycopy(buf, 0, compressed, 0, len);
+		return PREFIX_V1 + Base64.getEncoder().encodeToString(compressed);
+	}
+
+	/**
+	 * Returns message from a stored value, which may be compressed or not.
+	 */
+	public static String decode(String value) {
+		if (value == null || !value.startsWith(PREFIX_V1)) {
+			return value;
+		}
+
+		byte[] compressed = Base64.getDecoder().decode(value.substring(PREFIX_V1.length()));
+		Inflater inflater = INFLATERS.get();
+		byte[] buf = BUFFERS.get();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 3);
+		try {
+			inflater.setDictionary(DICTIONARY_V1);
+			inflater.setInput(compressed);
+			boolean padded = false;
+			while (!inflater.finished()) {
+				int len = inflater.inflate(buf);
+				if (len == 0 && inflater.needsInput()) {
+					if (padded) {
+						throw new IllegalArgumentException("Truncated compressed message");
+					}
+					// raw deflate stream may need an additional dummy byte to finish
+					inflater.setInput(new byte[1]);
+					padded = true;
+				}
+				out.write(buf, 0, len);
+			}
+		} catch (DataFormatException ex) {
+			throw new IllegalArgumentException("Invalid compressed message", ex);
+		} finally {
+			inflater.reset();
+		}
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+}
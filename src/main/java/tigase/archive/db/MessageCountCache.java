@@ -0,0 +1,233 @@
+/*
+ * MessageCountCache.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cache of numbers of messages stored for an owner, in total and with each
+ * of the buddies, grouped by JID of the owner. Numbers of least recently
+ * used owners are evicted when the cache is full.
+ *
+ * Numbers cached for an owner are incremented when a message of this owner
+ * is added and forgotten when any message of this owner is removed. As
+ * messages may also be changed by other cluster nodes, each number is
+ * forgotten after a configured time as well.
+ *
+ * Number counted concurrently with a change of messages could already be out
+ * of date, so it is cached only if no messages of the owner were changed since
+ * the counting started, which is verified using a stamp of the owner returned
+ * by {@link #getStamp(String)} before counting. Number cached while a message
+ * was being added may or may not include it, so it is forgotten instead of
+ * being incremented.
+ */
+public class MessageCountCache {
+
+	private static final int MAX_BUDDIES_PER_OWNER = 256;
+	private static final int STAMP_STRIPES = 1024;
+
+	private final int maxOwners;
+	private final long ttl;
+	private final LinkedHashMap<String, OwnerCounts> cache;
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxOwners maximal number of owners with cached numbers of messages
+	 * @param ttl time in milliseconds after which cached number is forgotten
+	 */
+	public MessageCountCache(int maxOwners, long ttl) {
+		this.maxOwners = maxOwners;
+		this.ttl = ttl;
+		this.cache = new LinkedHashMap<String, OwnerCounts>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, OwnerCounts> eldest) {
+				return size() > MessageCountCache.this.maxOwners;
+			}
+		};
+	}
+
+	private int stripe(String owner) {
+		return (owner.toLowerCase().hashCode() & Integer.MAX_VALUE) % STAMP_STRIPES;
+	}
+
+	/**
+	 * Returns stamp which needs to be obtained before counting messages of
+	 * an owner and passed to {@link #put(String, String, int, long)}.
+	 */
+	public long getStamp(String owner) {
+		return stamps.get(stripe(owner));
+	}
+
+	/**
+	 * Returns number of messages of an owner or <code>null</code> if it is not cached.
+	 *
+	 * @param owner JID of an owner
+	 * @param buddy bare JID of a buddy or <code>null</code> for all messages of an owner
+	 */
+	public Integer get(String owner, String buddy) {
+		Integer count = null;
+		long now = System.currentTimeMillis();
+		synchronized (cache) {
+			OwnerCounts counts = cache.get(owner.toLowerCase());
+			if (counts != null) {
+				Counter counter = counts.get(buddy == null ? null : buddy.toLowerCase());
+				if (counter != null && counter.expiresAt > now) {
+					count = counter.count;
+				}
+			}
+		}
+		if (count == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return count;
+	}
+
+	/**
+	 * Caches number of messages of an owner if no messages of the owner were
+	 * changed since the stamp was obtained.
+	 */
+	public void put(String owner, String buddy, int count, long stamp) {
+		synchronized (cache) {
+			if (stamps.get(stripe(owner)) != stamp) {
+				return;
+			}
+			OwnerCounts counts = cache.computeIfAbsent(owner.toLowerCase(), key -> new OwnerCounts());
+			if (counts.size() >= MAX_BUDDIES_PER_OWNER) {
+				counts.clear();
+			}
+			counts.put(buddy == null ? null : buddy.toLowerCase(),
+					   new Counter(count, System.currentTimeMillis() + ttl, stamp));
+		}
+	}
+
+	/**
+	 * Needs to be called before a message of an owner is added. Returned stamp
+	 * needs to be passed to {@link #added(String, String, long)} after message
+	 * is added.
+	 */
+	public long startAdding(String owner) {
+		return stamps.incrementAndGet(stripe(owner));
+	}
+
+	/**
+	 * Increments numbers of messages of an owner after a message was added,
+	 * needs to be called only if message was actually stored.
+	 *
+	 * @param owner JID of an owner
+	 * @param buddy bare JID of a buddy
+	 * @param stamp stamp returned by {@link #startAdding(String)} before message was added
+	 */
+	public void added(String owner, String buddy, long stamp) {
+		synchronized (cache) {
+			stamps.incrementAndGet(stripe(owner));
+			OwnerCounts counts = cache.get(owner.toLowerCase());
+			if (counts == null) {
+				return;
+			}
+			counts.increment(null, stamp);
+			counts.increment(buddy.toLowerCase(), stamp);
+			if (counts.isEmpty()) {
+				cache.remove(owner.toLowerCase());
+			}
+		}
+	}
+
+	/**
+	 * Forgets numbers of messages of an owner, needs to be called whenever
+	 * a message of an owner is added or removed.
+	 */
+	public void remove(String owner) {
+		synchronized (cache) {
+			stamps.incrementAndGet(stripe(owner));
+			cache.remove(owner.toLowerCase());
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			for (int i = 0; i < STAMP_STRIPES; i++) {
+				stamps.incrementAndGet(i);
+			}
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.values().stream().mapToInt(Map::size).sum();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns percent of lookups which found number of messages in the cache.
+	 */
+	public float getHitRatio() {
+		long hits = this.hits.get();
+		long all = hits + misses.get();
+		return all == 0 ? 0 : ((float) hits * 100) / all;
+	}
+
+	private static class OwnerCounts
+			extends HashMap<String, Counter> {
+
+		private void increment(String buddy, long stamp) {
+			Counter counter = get(buddy);
+			if (counter == null) {
+				return;
+			}
+			if (counter.stamp < stamp) {
+				put(buddy, new Counter(counter.count + 1, counter.expiresAt, counter.stamp));
+			} else {
+				remove(buddy);
+			}
+		}
+	}
+
+	private static class Counter {
+
+		private final int count;
+		private final long expiresAt;
+		private final long stamp;
+
+		private Counter(int count, long expiresAt, long stamp) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+			this.stamp = stamp;
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * MessageHasher.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 digest of strings and numbers encoded in the platform default
+ * charset, which reuses the same digest and buffers for every calculated
+ * hash. Instances are bound to a thread and are not thread-safe.
+ *
+ * Hashes are the same as hashes of bytes returned by
+ * <code>String.getBytes()</code> and <code>Long.toString(value).getBytes()</code>,
+ * so hashes of already stored messages do not change. Strings are encoded
+ * without allocations only if the default charset is UTF-8, with any other
+ * charset <code>String.getBytes()</code> is used.
+ */
+public class MessageHasher {
+
+	private static final ThreadLocal<MessageHasher> HASHERS = ThreadLocal.withInitial(() -> {
+		try {
+			return new MessageHasher(MessageDigest.getInstance("SHA-256"));
+		} catch (NoSuchAlgorithmException ex) {
+			return null;
+		}
+	});
+
+	private static final boolean DEFAULT_UTF8 = StandardCharsets.UTF_8.equals(Charset.defaultCharset());
+
+	private static final int CHUNK_SIZE = 256;
+	private static final int MAX_LONG_LENGTH = 20;
+
+	private final MessageDigest md;
+	private final char[] chars = new char[CHUNK_SIZE];
+	// every character is encoded as at most 3 bytes, pair of surrogates as 4
+	private final byte[] buffer = new byte[CHUNK_SIZE * 3 + 1];
+	private final byte[] digits = new byte[MAX_LONG_LENGTH];
+
+	/**
+	 * Returns instance bound to the current thread ready to calculate a new
+	 * hash or <code>null</code> if SHA-256 is not supported.
+	 */
+	public static MessageHasher get() {
+		MessageHasher hasher = HASHERS.get();
+		if (hasher != null) {
+			hasher.md.reset();
+		}
+		return hasher;
+	}
+
+	private MessageHasher(MessageDigest md) {
+		this.md = md;
+	}
+
+	public MessageHasher update(String str) {
+		if (!DEFAULT_UTF8) {
+			md.update(str.getBytes());
+			return this;
+		}
+		final char[] chars = this.chars;
+		final byte[] buf = buffer;
+		final int len = str.length();
+		int i = 0;
+		while (i < len) {
+			final int n = Math.min(CHUNK_SIZE, len - i);
+			str.getChars(i, i + n, chars, 0);
+			i += n;
+			int pos = 0;
+			for (int j = 0; j < n; j++) {
+				char c = chars[j];
+				if (c < 0x80) {
+					buf[pos++] = (byte) c;
+				} else if (c < 0x800) {
+					buf[pos++] = (byte) (0xC0 | (c >> 6));
+					buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					char next = 0;
+					if (Character.isHighSurrogate(c)) {
+						// low surrogate may be the first character of the next chunk
+						if (j + 1 < n) {
+							next = chars[j + 1];
+						} else if (i < len) {
+							next = str.charAt(i);
+						}
+					}
+					if (Character.isLowSurrogate(next)) {
+						int cp = Character.toCodePoint(c, next);
+						buf[pos++] = (byte) (0xF0 | (cp >> 18));
+						buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+						buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+						buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+						if (j + 1 < n) {
+							j++;
+						} else {
+							i++;
+						}
+					} else {
+						buf[pos++] = '?';
+					}
+				} else {
+					buf[pos++] = (byte) (0xE0 | (c >> 12));
+					buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buf[pos++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			md.update(buf, 0, pos);
+		}
+		return this;
+	}
+
+	/**
+	 * Updates digest with decimal representation of a number.
+	 */
+	public MessageHasher update(long value) {
+		if (value == Long.MIN_VALUE || !DEFAULT_UTF8) {
+			return update(Long.toString(value));
+		}
+		final byte[] buf = digits;
+		boolean negative = value < 0;
+		if (negative) {
+			value = -value;
+		}
+		int pos = MAX_LONG_LENGTH;
+		do {
+			buf[--pos] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		if (negative) {
+			buf[--pos] = '-';
+		}
+		md.update(buf, pos, MAX_LONG_LENGTH - pos);
+		return this;
+	}
+
+	public byte[] digest() {
+		return md.digest();
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * RawMessageElement.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stored message passed to handlers without building its DOM.
+ *
+ * Only the start tag of a stored message is scanned, so name and attributes
+ * of the element are available as usual, while everything between start and
+ * end tag is kept as already serialized XML, which is written out exactly as
+ * it was stored when element is added to a response. Handlers which need
+ * access to child elements need to call {@link #parse()}.
+ */
+public class RawMessageElement
+		extends RawXmlElement {
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	private final String xml;
+
+	/**
+	 * Creates element from a serialized message.
+	 *
+	 * @param xml serialized message
+	 * @return element or <code>null</code> if start tag of a message could not be scanned
+	 */
+	public static RawMessageElement fromXml(String xml) {
+		final int len = xml.length();
+		int pos = skipWhitespaces(xml, 0);
+		if (pos >= len || xml.charAt(pos) != '<') {
+			return null;
+		}
+		int nameStart = ++pos;
+		while (pos < len && !isNameEnd(xml.charAt(pos))) {
+			pos++;
+		}
+		if (pos == nameStart || pos >= len) {
+			return null;
+		}
+		String name = xml.substring(nameStart, pos);
+		if (name.charAt(0) == '?' || name.charAt(0) == '!') {
+			return null;
+		}
+
+		List<String> attNames = new ArrayList<>();
+		List<String> attValues = new ArrayList<>();
+		boolean empty = false;
+		while (true) {
+			pos = skipWhitespaces(xml, pos);
+			if (pos >= len) {
+				return null;
+			}
+			char c = xml.charAt(pos);
+			if (c == '>') {
+				pos++;
+				break;
+			}
+			if (c == '/') {
+				if (pos + 1 >= len || xml.charAt(pos + 1) != '>') {
+					return null;
+				}
+				pos += 2;
+				empty = true;
+				break;
+			}
+			int attStart = pos;
+			while (pos < len && xml.charAt(pos) != '=' && !isNameEnd(xml.charAt(pos))) {
+				pos++;
+			}
+			if (pos == attStart) {
+				return null;
+			}
+			String attName = xml.substring(attStart, pos);
+			pos = skipWhitespaces(xml, pos);
+			if (pos >= len || xml.charAt(pos) != '=') {
+				return null;
+			}
+			pos = skipWhitespaces(xml, pos + 1);
+			if (pos >= len) {
+				return null;
+			}
+			char quote = xml.charAt(pos);
+			if (quote != '"' && quote != '\'') {
+				return null;
+			}
+			int valueEnd = xml.indexOf(quote, pos + 1);
+			if (valueEnd < 0) {
+				return null;
+			}
+			attNames.add(attName.intern());
+			attValues.add(xml.substring(pos + 1, valueEnd));
+			pos = valueEnd + 1;
+		}
+
+		String innerXml = null;
+		int end = xml.length();
+		while (end > pos && Character.isWhitespace(xml.charAt(end - 1))) {
+			end--;
+		}
+		if (empty) {
+			if (end != pos) {
+				return null;
+			}
+		} else {
+			String endTag = "</" + name + ">";
+			if (end - pos < endTag.length() || !xml.startsWith(endTag, end - endTag.length())) {
+				return null;
+			}
+			innerXml = xml.substring(pos, end - endTag.length());
+		}
+
+		return new RawMessageElement(name.intern(), attNames.toArray(new String[attNames.size()]),
+									 attValues.toArray(new String[attValues.size()]), xml, innerXml);
+	}
+
+	private static boolean isNameEnd(char c) {
+		return c == '>' || c == '/' || Character.isWhitespace(c);
+	}
+
+	private static int skipWhitespaces(String xml, int pos) {
+		while (pos < xml.length() && Character.isWhitespace(xml.charAt(pos))) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private RawMessageElement(String name, String[] attNames, String[] attValues, String xml, String innerXml) {
+		super(name, attNames, attValues, innerXml);
+		this.xml = xml;
+	}
+
+	/**
+	 * Returns message as it was stored.
+	 */
+	public String getXml() {
+		return xml;
+	}
+
+	/**
+	 * Parses stored message and returns its DOM. Each call parses message
+	 * again, so returned element may be modified by a caller.
+	 */
+	public Element parse() {
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, xml.toCharArray(), 0, xml.length());
+		return domHandler.getParsedElements().poll();
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * RawXmlElement.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.xml.DomBuilderHandler;
+import tigase.xml.Element;
+import tigase.xml.SimpleParser;
+import tigase.xml.SingletonFactory;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Element which content is already serialized XML.
+ *
+ * Name and attributes of the element are kept as usual, while content is
+ * not parsed and is written out verbatim by {@link #toString()}, so it is
+ * not escaped again and does not depend on serialization of CData. Content
+ * is not available as child elements, callers which need DOM of the content
+ * need to call {@link #parseChildren()}.
+ */
+public class RawXmlElement
+		extends Element {
+
+	private static final SimpleParser parser = SingletonFactory.getParserInstance();
+
+	private final String innerXml;
+
+	/**
+	 * @param name name of the element
+	 * @param innerXml serialized content of the element or <code>null</code> if element is empty
+	 */
+	public RawXmlElement(String name, String innerXml) {
+		super(name);
+		this.innerXml = innerXml;
+	}
+
+	protected RawXmlElement(String name, String[] attNames, String[] attValues, String innerXml) {
+		super(name, attNames, attValues);
+		this.innerXml = innerXml;
+	}
+
+	/**
+	 * Returns serialized content of the element between its start and end
+	 * tag or <code>null</code> if element has no content.
+	 */
+	public String getInnerXml() {
+		return innerXml;
+	}
+
+	/**
+	 * Parses content of the element and returns its child elements. Each call
+	 * parses content again, so returned elements may be modified by a caller.
+	 */
+	public List<Element> parseChildren() {
+		if (innerXml == null || innerXml.isEmpty()) {
+			return Collections.emptyList();
+		}
+		// content may hold many elements, so it is parsed wrapped in a single element
+		String xml = "<" + getName() + ">" + innerXml + "</" + getName() + ">";
+		DomBuilderHandler domHandler = new DomBuilderHandler();
+		parser.parse(domHandler, xml.toCharArray(), 0, xml.length());
+		Queue<Element> parsed = domHandler.getParsedElements();
+		Element wrapper = parsed.poll();
+		if (wrapper == null || wrapper.getChildren() == null) {
+			return Collections.emptyList();
+		}
+		return new LinkedList<>(wrapper.getChildren());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append('<').append(getName());
+		Map<String, String> attributes = getAttributes();
+		if (attributes != null) {
+			for (Map.Entry<String, String> e : attributes.entrySet()) {
+				sb.append(' ').append(e.getKey()).append("=\"").append(e.getValue()).append('"');
+			}
+		}
+		if (innerXml == null || innerXml.isEmpty()) {
+			sb.append("/>");
+		} else {
+			sb.append('>').append(innerXml).append("</").append(getName()).append('>');
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toStringPretty() {
+		return toString();
+	}
+
+}
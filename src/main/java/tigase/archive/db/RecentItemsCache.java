@@ -0,0 +1,409 @@
+/*
+ * RecentItemsCache.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the latest messages of recently active conversations, used to
+ * retrieve the last page of a conversation, or pages around a recent
+ * message, without accessing the database.
+ *
+ * Conversation is cached when its last page is retrieved from the database
+ * and messages archived later are appended to it. Each conversation keeps
+ * a limited number of its latest messages together with the number of all
+ * its messages, so positions of cached messages are known. Memory used by
+ * all cached messages is limited and least recently used conversations are
+ * evicted when the limit is exceeded. As messages may also be archived by
+ * other cluster nodes, conversation is forgotten after a configured time
+ * since it was retrieved from the database.
+ *
+ * Page retrieved from the database could be out of date if messages of the
+ * owner were changed while it was retrieved, so it is cached only if the
+ * stamp of the owner returned by {@link #getStamp(String)} before retrieval
+ * did not change.
+ */
+public class RecentItemsCache {
+
+	private static final int STAMP_STRIPES = 1024;
+
+	private final int maxItems;
+	private final long maxMemory;
+	private final long ttl;
+	private final LinkedHashMap<String, Conversation> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private long memory = 0;
+
+	/**
+	 * @param maxItems maximal number of messages cached for a conversation
+	 * @param maxMemory maximal memory in bytes used by all cached messages
+	 * @param ttl time in milliseconds after which cached conversation is forgotten
+	 */
+	public RecentItemsCache(int maxItems, long maxMemory, long ttl) {
+		this.maxItems = maxItems;
+		this.maxMemory = maxMemory;
+		this.ttl = ttl;
+	}
+
+	private static String key(String owner, String buddy) {
+		return owner.toLowerCase() + "\n" + buddy.toLowerCase();
+	}
+
+	private int stripe(String owner) {
+		return (owner.toLowerCase().hashCode() & Integer.MAX_VALUE) % STAMP_STRIPES;
+	}
+
+	/**
+	 * Returns stamp which needs to be obtained before retrieval of a page
+	 * of messages and passed to {@link #put(String, String, List, int, long)}.
+	 */
+	public long getStamp(String owner) {
+		return stamps.get(stripe(owner));
+	}
+
+	/**
+	 * Caches the last page of a conversation retrieved from the database if no
+	 * messages of the owner were changed since the stamp was obtained.
+	 *
+	 * @param items the last messages of a conversation in order of retrieval
+	 * @param count number of all messages of a conversation
+	 */
+	public void put(String owner, String buddy, List<Entry> items, int count, long stamp) {
+		if (items.isEmpty() || items.size() > count) {
+			return;
+		}
+		synchronized (cache) {
+			if (stamps.get(stripe(owner)) != stamp) {
+				return;
+			}
+			Conversation conversation = new Conversation(count, System.currentTimeMillis() + ttl);
+			for (Entry item : items) {
+				conversation.add(item);
+			}
+			replace(key(owner, buddy), conversation);
+		}
+	}
+
+	/**
+	 * Appends message archived in a conversation, if the conversation is cached.
+	 * Needs to be called only if message was actually stored, as number of
+	 * messages of a conversation is incremented.
+	 *
+	 * @param item supplier of a message called only if the conversation is cached
+	 */
+	public void add(String owner, String buddy, Supplier<Entry> item) {
+		synchronized (cache) {
+			stamps.incrementAndGet(stripe(owner));
+			String key = key(owner, buddy);
+			Conversation conversation = cache.get(key);
+			if (conversation == null) {
+				return;
+			}
+			add(key, conversation, item.get());
+		}
+	}
+
+	private void add(String key, Conversation conversation, Entry item) {
+		Entry last = conversation.items.peekLast();
+		if (last != null && last.timestamp.getTime() > item.timestamp.getTime()) {
+			// message would not be the latest one, positions of cached messages are not known anymore
+			replace(key, null);
+			return;
+		}
+		for (Entry cached : conversation.items) {
+			if (cached.id.equals(item.id)) {
+				// message stored concurrently with retrieval of the cached page is already included in it
+				return;
+			}
+		}
+		conversation.count++;
+		memory -= conversation.memory;
+		conversation.add(item);
+		memory += conversation.memory;
+		evict();
+	}
+
+	/**
+	 * Forgets all conversations of an owner, needs to be called whenever
+	 * messages of an owner are changed without {@link #add(String, String, Supplier)}.
+	 */
+	public void remove(String owner) {
+		String prefix = owner.toLowerCase() + "\n";
+		synchronized (cache) {
+			stamps.incrementAndGet(stripe(owner));
+			Iterator<Map.Entry<String, Conversation>> it = cache.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Conversation> e = it.next();
+				if (e.getKey().startsWith(prefix)) {
+					memory -= e.getValue().memory;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			for (int i = 0; i < STAMP_STRIPES; i++) {
+				stamps.incrementAndGet(i);
+			}
+			cache.clear();
+			memory = 0;
+		}
+	}
+
+	/**
+	 * Returns page of cached messages of a conversation or <code>null</code>
+	 * if any message of a page is not cached.
+	 *
+	 * @param afterId id of message after which page starts or <code>null</code>
+	 * @param beforeId id of message before which page ends or <code>null</code>
+	 * @param limit maximal number of messages in a page
+	 * @return page of messages or <code>null</code>
+	 */
+	public Page getPage(String owner, String buddy, String afterId, String beforeId, int limit) {
+		Page page = null;
+		synchronized (cache) {
+			String key = key(owner, buddy);
+			Conversation conversation = cache.get(key);
+			if (conversation != null && conversation.expiresAt <= System.currentTimeMillis()) {
+				replace(key, null);
+			} else if (conversation != null) {
+				page = conversation.getPage(afterId, beforeId, limit);
+			}
+		}
+		if (page == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return page;
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.values().stream().mapToInt(c -> c.items.size()).sum();
+		}
+	}
+
+	/**
+	 * Returns memory in bytes used by cached messages.
+	 */
+	public long getMemory() {
+		synchronized (cache) {
+			return memory;
+		}
+	}
+
+	/**
+	 * Returns percent of lookups which found page in the cache.
+	 */
+	public float getHitRatio() {
+		long hits = this.hits.get();
+		long all = hits + misses.get();
+		return all == 0 ? 0 : ((float) hits * 100) / all;
+	}
+
+	private void replace(String key, Conversation conversation) {
+		Conversation old = conversation == null ? cache.remove(key) : cache.put(key, conversation);
+		if (old != null) {
+			memory -= old.memory;
+		}
+		if (conversation != null) {
+			memory += conversation.memory;
+			evict();
+		}
+	}
+
+	private void evict() {
+		Iterator<Conversation> it = cache.values().iterator();
+		while (memory > maxMemory && it.hasNext()) {
+			memory -= it.next().memory;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Cached message.
+	 */
+	public static class Entry {
+
+		private final String id;
+		private final Date timestamp;
+		private final MessageArchiveRepository.Direction direction;
+		private final String message;
+
+		/**
+		 * @param id id of a message used in RSM
+		 * @param timestamp timestamp of a message
+		 * @param direction direction of a message
+		 * @param message serialized message
+		 */
+		public Entry(String id, Date timestamp, MessageArchiveRepository.Direction direction, String message) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.direction = direction;
+			this.message = message;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public Date getTimestamp() {
+			return timestamp;
+		}
+
+		public MessageArchiveRepository.Direction getDirection() {
+			return direction;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		private long memory() {
+			// rough estimate of memory used by strings and objects
+			return 2L * (id.length() + message.length()) + 128;
+		}
+	}
+
+	/**
+	 * Page of cached messages with its position in a conversation.
+	 */
+	public static class Page {
+
+		private final List<Entry> items;
+		private final int count;
+		private final int offset;
+		private final int limit;
+
+		private Page(List<Entry> items, int count, int offset, int limit) {
+			this.items = items;
+			this.count = count;
+			this.offset = offset;
+			this.limit = limit;
+		}
+
+		public List<Entry> getItems() {
+			return items;
+		}
+
+		/**
+		 * Returns number of all messages of a conversation.
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns position of the first message of a page.
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Returns maximal number of messages in a page, which may be lower
+		 * than requested for a page preceding a message.
+		 */
+		public int getLimit() {
+			return limit;
+		}
+	}
+
+	private class Conversation {
+
+		private final ArrayDeque<Entry> items = new ArrayDeque<>();
+		private final long expiresAt;
+		private int count;
+		private long memory = 0;
+
+		private Conversation(int count, long expiresAt) {
+			this.count = count;
+			this.expiresAt = expiresAt;
+		}
+
+		private void add(Entry item) {
+			items.addLast(item);
+			memory += item.memory();
+			if (items.size() > maxItems) {
+				memory -= items.removeFirst().memory();
+			}
+		}
+
+		private Page getPage(String afterId, String beforeId, int limit) {
+			List<Entry> list = new ArrayList<>(items);
+			// position of the first cached message
+			int first = count - list.size();
+			int offset;
+			int pageLimit = limit;
+			if (afterId != null) {
+				int idx = indexOf(list, afterId);
+				if (idx < 0) {
+					return null;
+				}
+				offset = first + idx + 1;
+			} else if (beforeId != null) {
+				int idx = indexOf(list, beforeId);
+				if (idx < 0) {
+					return null;
+				}
+				int position = first + idx;
+				if (position >= limit) {
+					offset = position - limit;
+				} else {
+					offset = 0;
+					pageLimit = position;
+				}
+			} else {
+				offset = Math.max(count - limit, 0);
+			}
+			if (offset < first) {
+				return null;
+			}
+			int from = offset - first;
+			int to = Math.min(from + pageLimit, list.size());
+			return new Page(new ArrayList<>(list.subList(from, Math.max(from, to))), count, offset, pageLimit);
+		}
+
+		private int indexOf(List<Entry> list, String id) {
+			for (int i = list.size() - 1; i >= 0; i--) {
+				if (list.get(i).id.equals(id)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * RecentMessagesFilter.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set of recently stored messages used to drop duplicates before they reach
+ * the database. Message is a duplicate if it has the same owner, buddy and hash
+ * as a stored message and the same timestamp, or - for groupchat messages -
+ * timestamp within 30 minutes of the stored one. This is the same rule which
+ * is used by the database, so message dropped here would be ignored by the
+ * database as well.
+ *
+ * Messages are kept in two generations. When the current generation is full
+ * or older than the configured window, it replaces the previous generation,
+ * which is dropped. Number of remembered messages is limited by the estimated
+ * memory usage.
+ */
+public class RecentMessagesFilter {
+
+	/** Rough estimate of memory used by a single entry, including key and hash */
+	private static final int ESTIMATED_ENTRY_SIZE = 512;
+	private static final long GROUPCHAT_WINDOW = TimeUnit.MINUTES.toMillis(30);
+
+	private final int generationSize;
+	private final long window;
+	private Map<Key, Long> current;
+	private Map<Key, Long> previous;
+	private long currentCreated;
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param memory maximal memory in bytes used by remembered messages
+	 * @param window time in milliseconds after which generation is replaced
+	 */
+	public RecentMessagesFilter(long memory, long window) {
+		this.generationSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memory / ESTIMATED_ENTRY_SIZE / 2));
+		this.window = window;
+		this.current = new HashMap<>();
+		this.previous = new HashMap<>();
+		this.currentCreated = System.currentTimeMillis();
+	}
+
+	public static Key key(String owner, String buddy, String hash, String type, long ts) {
+		return new Key(owner, buddy, hash, "groupchat".equals(type), ts);
+	}
+
+	/**
+	 * Checks if message was already stored, counting it as dropped if it was.
+	 */
+	public boolean isDuplicate(Key key) {
+		Long ts;
+		synchronized (this) {
+			ts = current.get(key);
+			if (ts == null) {
+				ts = previous.get(key);
+			}
+		}
+		if (ts == null) {
+			return false;
+		}
+		if (key.groupchat && Math.abs(ts - key.ts) > GROUPCHAT_WINDOW) {
+			return false;
+		}
+		dropped.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Marks message as stored. Should be called only after message was
+	 * committed to the database.
+	 */
+	public synchronized void add(Key key) {
+		long now = System.currentTimeMillis();
+		if (current.size() >= generationSize || now - currentCreated > window) {
+			previous = current;
+			current = new HashMap<>();
+			currentCreated = now;
+		}
+		current.put(key, key.ts);
+	}
+
+	public synchronized void clear() {
+		current.clear();
+		previous.clear();
+	}
+
+	public synchronized int size() {
+		return current.size() + previous.size();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public static class Key {
+
+		private final String owner;
+		private final String buddy;
+		private final String hash;
+		private final boolean groupchat;
+		private final long ts;
+		private final int hashCode;
+
+		private Key(String owner, String buddy, String hash, boolean groupchat, long ts) {
+			this.owner = owner;
+			this.buddy = buddy;
+			this.hash = hash;
+			this.groupchat = groupchat;
+			this.ts = ts;
+			int result = owner.hashCode();
+			result = 31 * result + buddy.hashCode();
+			result = 31 * result + hash.hashCode();
+			if (!groupchat) {
+				result = 31 * result + Long.hashCode(ts);
+			}
+			this.hashCode = result;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			// timestamps of groupchat messages are compared by the filter
+			return groupchat == key.groupchat && (groupchat || ts == key.ts) && hash.equals(key.hash) &&
+					owner.equals(key.owner) && buddy.equals(key.buddy);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * SharedStatementLease.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.db.DataRepository;
+import tigase.xmpp.BareJID;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lease of statements shared by all users of a <code>DataRepository</code>.
+ * Lease holds a lock of the last statement returned, so it may be used only
+ * by a single thread at once.
+ */
+class SharedStatementLease
+		implements StatementLease {
+
+	private final DataRepository data_repo;
+	private final Map<PreparedStatement, Lock> locks;
+	private Lock lock = null;
+
+	/**
+	 * Creates map of statement locks which needs to be shared by all leases
+	 * created for the same <code>DataRepository</code>.
+	 */
+	static Map<PreparedStatement, Lock> newLocksMap() {
+		return Collections.synchronizedMap(new WeakHashMap<>());
+	}
+
+	SharedStatementLease(DataRepository data_repo, Map<PreparedStatement, Lock> locks) {
+		this.data_repo = data_repo;
+		this.locks = locks;
+	}
+
+	@Override
+	public PreparedStatement getStatement(BareJID owner, String query) throws SQLException {
+		releaseLock();
+		PreparedStatement stmt = data_repo.getPreparedStatement(owner, query);
+		Lock lock = locks.computeIfAbsent(stmt, st -> new ReentrantLock());
+		lock.lock();
+		this.lock = lock;
+		return stmt;
+	}
+
+	@Override
+	public boolean isExclusive() {
+		return false;
+	}
+
+	@Override
+	public void startTransaction() throws SQLException {
+		throw new SQLException("Transaction requires exclusive lease of a connection");
+	}
+
+	@Override
+	public void commit() throws SQLException {
+		throw new SQLException("Transaction requires exclusive lease of a connection");
+	}
+
+	@Override
+	public boolean isTransaction() {
+		return false;
+	}
+
+	@Override
+	public void close() {
+		releaseLock();
+	}
+
+	private void releaseLock() {
+		if (lock != null) {
+			lock.unlock();
+			lock = null;
+		}
+	}
+}
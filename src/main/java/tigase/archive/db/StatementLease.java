@@ -0,0 +1,74 @@
+/*
+ * StatementLease.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.xmpp.BareJID;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Grants exclusive use of prepared statements for a duration of a single
+ * repository operation. Lease needs to be closed when operation is completed.
+ *
+ * Statements returned by a lease which is not exclusive are shared with
+ * other leases - in this case only the statement returned by the last call
+ * to {@link #getStatement(BareJID, String)} may be used.
+ */
+public interface StatementLease
+		extends AutoCloseable {
+
+	/**
+	 * Returns prepared statement for a query.
+	 *
+	 * @param owner JID of a user for which statement will be executed - used as a hint to select connection
+	 * @param query query of a statement
+	 */
+	PreparedStatement getStatement(BareJID owner, String query) throws SQLException;
+
+	/**
+	 * Returns <code>true</code> if lease is backed by a connection used
+	 * exclusively by this lease, so its statements may be executed within
+	 * a transaction.
+	 */
+	boolean isExclusive();
+
+	/**
+	 * Starts transaction, which is rolled back if it is not committed before
+	 * lease is closed. Lease needs to be exclusive.
+	 */
+	void startTransaction() throws SQLException;
+
+	/**
+	 * Commits transaction started by {@link #startTransaction()}.
+	 */
+	void commit() throws SQLException;
+
+	/**
+	 * Returns <code>true</code> if transaction was started and not committed yet.
+	 */
+	boolean isTransaction();
+
+	@Override
+	void close();
+
+}
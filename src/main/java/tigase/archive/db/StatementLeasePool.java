@@ -0,0 +1,188 @@
+/*
+ * StatementLeasePool.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import tigase.db.DataRepository;
+import tigase.xmpp.BareJID;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Leases connections of a data source exclusively to a single repository
+ * operation. Connection is represented by a handle returned by
+ * {@link DataRepository#takeRepositoryHandle(BareJID)}, so connections are
+ * opened, limited and validated by the data source and no connections are
+ * opened in addition to them. Operations of a user are given the handle
+ * selected for this user by the data source and wait if it is leased by
+ * other operation.
+ */
+public class StatementLeasePool {
+
+	private static final Logger log = Logger.getLogger(StatementLeasePool.class.getCanonicalName());
+
+	private final DataRepository data_repo;
+	private final long timeout;
+	private final Map<DataRepository, Lock> locks = Collections.synchronizedMap(new WeakHashMap<>());
+	private final AtomicInteger leased = new AtomicInteger();
+	private final AtomicLong leases = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param data_repo data source providing connections
+	 * @param timeout maximal time in milliseconds to wait for a connection
+	 */
+	public StatementLeasePool(DataRepository data_repo, long timeout) {
+		this.data_repo = data_repo;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Leases connection selected by the data source for a user.
+	 *
+	 * @param owner JID of a user for which statements will be executed or <code>null</code>
+	 */
+	public StatementLease lease(BareJID owner) throws SQLException {
+		if (closed) {
+			throw new SQLException("Pool of connections to " + data_repo.getResourceUri() + " is closed");
+		}
+		leases.incrementAndGet();
+		DataRepository handle = data_repo.takeRepositoryHandle(owner);
+		Lock lock = locks.computeIfAbsent(handle, repo -> new ReentrantLock());
+		if (!lock.tryLock()) {
+			waits.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				if (!lock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+					throw new SQLException("Timeout while waiting for a connection to " + data_repo.getResourceUri());
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a connection to " + data_repo.getResourceUri(), ex);
+			} finally {
+				waitTime.addAndGet(System.nanoTime() - start);
+			}
+		}
+		leased.incrementAndGet();
+		return new ExclusiveStatementLease(handle, lock);
+	}
+
+	/**
+	 * Stops leasing connections, which are closed by the data source.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	public int getLeased() {
+		return leased.get();
+	}
+
+	public long getLeases() {
+		return leases.get();
+	}
+
+	public long getWaits() {
+		return waits.get();
+	}
+
+	/**
+	 * Returns average time of waiting for a connection in milliseconds.
+	 */
+	public float getWaitTimeAvg() {
+		long waits = this.waits.get();
+		return waits == 0 ? 0 : ((float) waitTime.get()) / (waits * 1000000);
+	}
+
+	private class ExclusiveStatementLease
+			implements StatementLease {
+
+		private final DataRepository handle;
+		private final Lock lock;
+		private boolean transaction = false;
+
+		private ExclusiveStatementLease(DataRepository handle, Lock lock) {
+			this.handle = handle;
+			this.lock = lock;
+		}
+
+		@Override
+		public PreparedStatement getStatement(BareJID owner, String query) throws SQLException {
+			return handle.getPreparedStatement(owner, query);
+		}
+
+		@Override
+		public boolean isExclusive() {
+			return true;
+		}
+
+		@Override
+		public void startTransaction() throws SQLException {
+			handle.startTransaction();
+			transaction = true;
+		}
+
+		@Override
+		public void commit() throws SQLException {
+			handle.commit();
+			transaction = false;
+			handle.endTransaction();
+		}
+
+		@Override
+		public boolean isTransaction() {
+			return transaction;
+		}
+
+		@Override
+		public void close() {
+			if (transaction) {
+				// transaction was not completed properly
+				transaction = false;
+				try {
+					handle.rollback();
+				} catch (SQLException ex) {
+					log.log(Level.FINE, "could not roll back transaction on " + data_repo.getResourceUri(), ex);
+				}
+				try {
+					handle.endTransaction();
+				} catch (SQLException ex) {
+					log.log(Level.FINE, "could not end transaction on " + data_repo.getResourceUri(), ex);
+				}
+			}
+			leased.decrementAndGet();
+			lock.unlock();
+		}
+	}
+}
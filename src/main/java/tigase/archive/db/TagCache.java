@@ -0,0 +1,117 @@
+/*
+ * TagCache.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of ids of tags grouped by id of their owner. Tags of least recently
+ * used owners are evicted when the cache is full. Number of cached tags of
+ * a single owner is limited as well, if owner uses more tags, cached tags of
+ * this owner are forgotten and cached again when they are used.
+ */
+public class TagCache {
+
+	private static final int MAX_TAGS_PER_OWNER = 256;
+
+	private final int maxOwners;
+	private final LinkedHashMap<Long, Map<String, Long>> cache;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public TagCache(int maxOwners) {
+		this.maxOwners = maxOwners;
+		this.cache = new LinkedHashMap<Long, Map<String, Long>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Map<String, Long>> eldest) {
+				return size() > TagCache.this.maxOwners;
+			}
+		};
+	}
+
+	/**
+	 * Returns id of a tag or <code>null</code> if id of a tag is not cached.
+	 */
+	public Long get(long ownerId, String tag) {
+		Long id = null;
+		synchronized (cache) {
+			Map<String, Long> tags = cache.get(ownerId);
+			if (tags != null) {
+				id = tags.get(tag);
+			}
+		}
+		if (id == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return id;
+	}
+
+	public void put(long ownerId, String tag, long id) {
+		synchronized (cache) {
+			Map<String, Long> tags = cache.computeIfAbsent(ownerId, key -> new HashMap<>());
+			if (tags.size() >= MAX_TAGS_PER_OWNER) {
+				tags.clear();
+			}
+			tags.put(tag, id);
+		}
+	}
+
+	public void remove(long ownerId) {
+		synchronized (cache) {
+			cache.remove(ownerId);
+		}
+	}
+
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.values().stream().mapToInt(Map::size).sum();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns percent of lookups which found id in the cache.
+	 */
+	public float getHitRatio() {
+		long hits = this.hits.get();
+		long all = hits + misses.get();
+		return all == 0 ? 0 : ((float) hits * 100) / all;
+	}
+}
@@ -28,6 +28,7 @@ import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.util.Calendar;
 import java.util.logging.Logger;
 
 /**
@@ -44,16 +45,18 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
 			StringBuilder sb = new StringBuilder();
 			
 			sb.append("select m.msg, m.ts, m.direction, b.jid, m.stanza_hash" +
 				" from tig_ma_msgs m" +
-				" inner join tig_ma_jids o on m.owner_id = o.jid_id" +
 				" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
 				" where " +
-				" o.jid_sha1 = ?");
-			if (buddyJid != null)
-				sb.append(" and b.jid_sha1 = ?");
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
 			if (from != null)
 				sb.append(" and m.ts >= ?");
 			if (to != null)
@@ -67,9 +70,9 @@ public class StoredProcedures {
 			PreparedStatement ps = conn.prepareStatement(sb.toString());
 
 			int i=0;
-			ps.setString(++i, sha1OfLower(ownerJid));
-			if (buddyJid != null)
-				ps.setString(++i, sha1OfLower(buddyJid));
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
 			if (from != null)
 				ps.setTimestamp(++i, from);
 			if (to != null)
@@ -90,16 +93,18 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
 			StringBuilder sb = new StringBuilder();
 			
 			sb.append("select count(m.msg_id)" +
 				" from tig_ma_msgs m" +
-				" inner join tig_ma_jids o on m.owner_id = o.jid_id" +
 				" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
 				" where " +
-				" o.jid_sha1 = ?");
-			if (buddyJid != null)
-				sb.append(" and b.jid_sha1 = ?");
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
 			if (from != null)
 				sb.append(" and m.ts >= ?");
 			if (to != null)
@@ -110,9 +115,9 @@ public class StoredProcedures {
 			PreparedStatement ps = conn.prepareStatement(sb.toString());
 
 			int i=0;
-			ps.setString(++i, sha1OfLower(ownerJid));
-			if (buddyJid != null)
-				ps.setString(++i, sha1OfLower(buddyJid));
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
 			if (from != null)
 				ps.setTimestamp(++i, from);
 			if (to != null)
@@ -131,16 +136,18 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
 			StringBuilder sb = new StringBuilder();
 
 			sb.append("select m.stanza_hash, row_number() over () as position" +
 					" from tig_ma_msgs m" +
-					" inner join tig_ma_jids o on m.owner_id = o.jid_id" +
 					" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
 					" where " +
-					" o.jid_sha1 = ?");
-			if (buddyJid != null)
-				sb.append(" and b.jid_sha1 = ?");
+					" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
 			if (from != null)
 				sb.append(" and m.ts >= ?");
 			if (to != null)
@@ -152,9 +159,9 @@ public class StoredProcedures {
 			PreparedStatement ps = conn.prepareStatement(sb.toString());
 
 			int i=0;
-			ps.setString(++i, sha1OfLower(ownerJid));
-			if (buddyJid != null)
-				ps.setString(++i, sha1OfLower(buddyJid));
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
 			if (from != null)
 				ps.setTimestamp(++i, from);
 			if (to != null)
@@ -179,12 +186,148 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void getMessagesPage(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags, String contains, String afterHash, String beforeHash, short lastPage, Integer limit, Integer offset, Long knownCount, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append(" from tig_ma_msgs m" +
+				" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
+				" where " +
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
+			if (from != null)
+				sb.append(" and m.ts >= ?");
+			if (to != null)
+				sb.append(" and m.ts <= ?");
+			appendTagsQuery(sb, tags);
+			appendContainsQuery(sb, contains);
+			String msgsQuery = sb.toString();
+
+			// number of messages may be already known to the caller
+			int count = 0;
+			PreparedStatement ps;
+			ResultSet rs;
+			if (knownCount == null) {
+				ps = conn.prepareStatement("select count(m.msg_id)" + msgsQuery);
+				setMessagesQueryParams(ps, ownerId, buddyId, from, to);
+				rs = ps.executeQuery();
+				if (rs.next()) {
+					count = rs.getInt(1);
+				}
+				rs.close();
+			} else {
+				count = knownCount.intValue();
+			}
+
+			Timestamp hashTs = null;
+			long hashId = 0;
+			String hash = afterHash != null ? afterHash : beforeHash;
+			if (hash != null) {
+				ps = conn.prepareStatement("select m.ts, m.msg_id" + msgsQuery + " and m.stanza_hash = ? order by m.ts, m.msg_id fetch first 1 rows only");
+				int i = setMessagesQueryParams(ps, ownerId, buddyId, from, to);
+				ps.setString(++i, hash);
+				rs = ps.executeQuery();
+				if (rs.next()) {
+					hashTs = rs.getTimestamp(1);
+					hashId = rs.getLong(2);
+				}
+				rs.close();
+			}
+
+			Integer pageOffset = offset;
+			int pageLimit = limit;
+			if (hash != null) {
+				// position of a page next to a message is not counted, -1 is returned if the message was found
+				pageOffset = hashTs == null ? null : -1;
+			} else if (lastPage == 1) {
+				pageOffset = Math.max(count - limit, 0);
+			}
+
+			sb = new StringBuilder();
+			sb.append("select cast(null as varchar(32672)) as msg, cast(null as timestamp) as ts, cast(null as smallint) as direction," +
+				" cast(null as varchar(2049)) as jid, cast(null as varchar(50)) as stanza_hash, cast(0 as bigint) as position," +
+				" cast(? as int) as msgs_count, cast(? as int) as page_offset, cast(? as int) as page_limit" +
+				" from SYSIBM.SYSDUMMY1");
+			if (pageOffset != null) {
+				// messages around a known message and the last page are found by seeking on (ts, msg_id)
+				// so the cost of retrieving a page does not depend on its position
+				sb.append(" union all select y.msg, y.ts, y.direction, y.jid, y.stanza_hash, row_number() over ()," +
+					" cast(null as int), cast(null as int), cast(null as int)" +
+					" from (select x.msg, x.ts, x.direction, x.jid, x.stanza_hash from (select m.msg, m.ts, m.direction, b.jid, m.stanza_hash, m.msg_id")
+					.append(msgsQuery);
+				if (afterHash != null) {
+					sb.append(" and (m.ts > ? or (m.ts = ? and m.msg_id > ?)) order by m.ts, m.msg_id");
+				} else if (beforeHash != null) {
+					sb.append(" and (m.ts < ? or (m.ts = ? and m.msg_id < ?)) order by m.ts desc, m.msg_id desc");
+				} else if (lastPage == 1) {
+					sb.append(" order by m.ts desc, m.msg_id desc");
+				} else {
+					sb.append(" order by m.ts, m.msg_id offset ? rows");
+				}
+				sb.append(" fetch next ? rows only) x order by x.ts, x.msg_id) y");
+			}
+			// order of rows of union is not defined, so the summary row is returned first only if ordered
+			sb.append(" order by position");
+
+			ps = conn.prepareStatement(sb.toString());
+			ps.setInt(1, count);
+			if (pageOffset != null) {
+				ps.setInt(2, pageOffset);
+			} else {
+				ps.setNull(2, Types.INTEGER);
+			}
+			ps.setInt(3, pageLimit);
+			if (pageOffset != null) {
+				int i = setMessagesQueryParams(ps, 3, ownerId, buddyId, from, to);
+				if (hash != null) {
+					ps.setTimestamp(++i, hashTs);
+					ps.setTimestamp(++i, hashTs);
+					ps.setLong(++i, hashId);
+				} else if (lastPage != 1) {
+					ps.setInt(++i, pageOffset);
+				}
+				ps.setInt(++i, pageLimit);
+			}
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static int setMessagesQueryParams(PreparedStatement ps, long ownerId, Long buddyId, Timestamp from, Timestamp to) throws SQLException {
+		return setMessagesQueryParams(ps, 0, ownerId, buddyId, from, to);
+	}
+
+	private static int setMessagesQueryParams(PreparedStatement ps, int i, long ownerId, Long buddyId, Timestamp from, Timestamp to) throws SQLException {
+		ps.setLong(++i, ownerId);
+		if (buddyId != null)
+			ps.setLong(++i, buddyId);
+		if (from != null)
+			ps.setTimestamp(++i, from);
+		if (to != null)
+			ps.setTimestamp(++i, to);
+		return i;
+	}
+
 	public static void getCollections(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags, String contains, short byType, Integer limit, Integer offset, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
 			StringBuilder sb = new StringBuilder();
 			
 			sb.append("select min(m.ts), b.jid");
@@ -194,12 +337,11 @@ public class StoredProcedures {
 				sb.append(", cast(null as varchar(20)) as \"type\"");
 			
 			sb.append(" from tig_ma_msgs m" +
-				" inner join tig_ma_jids o on m.owner_id = o.jid_id" +
 				" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
 				" where " +
-				" o.jid_sha1 = ?");
-			if (buddyJid != null)
-				sb.append(" and b.jid_sha1 = ?");
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
 			if (from != null)
 				sb.append(" and m.ts >= ?");
 			if (to != null)
@@ -217,9 +359,9 @@ public class StoredProcedures {
 			PreparedStatement ps = conn.prepareStatement(sb.toString());
 
 			int i=0;
-			ps.setString(++i, sha1OfLower(ownerJid));
-			if (buddyJid != null)
-				ps.setString(++i, sha1OfLower(buddyJid));
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
 			if (from != null)
 				ps.setTimestamp(++i, from);
 			if (to != null)
@@ -240,6 +382,9 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
 			StringBuilder sb = new StringBuilder();
 			
 			sb.append("select count(1) from (select min(m.ts), b.jid");
@@ -249,12 +394,11 @@ public class StoredProcedures {
 				sb.append(", cast(null as varchar(20)) as \"type\"");
 			
 			sb.append(" from tig_ma_msgs m" +
-				" inner join tig_ma_jids o on m.owner_id = o.jid_id" +
 				" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
 				" where " +
-				" o.jid_sha1 = ?");
-			if (buddyJid != null)
-				sb.append(" and b.jid_sha1 = ?");
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
 			if (from != null)
 				sb.append(" and m.ts >= ?");
 			if (to != null)
@@ -271,9 +415,9 @@ public class StoredProcedures {
 			PreparedStatement ps = conn.prepareStatement(sb.toString());
 
 			int i=0;
-			ps.setString(++i, sha1OfLower(ownerJid));
-			if (buddyJid != null)
-				ps.setString(++i, sha1OfLower(buddyJid));
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
 			if (from != null)
 				ps.setTimestamp(++i, from);
 			if (to != null)
@@ -286,6 +430,211 @@ public class StoredProcedures {
 		}		
 	}
 
+	public static void getStoredCollections(String ownerJid, String buddyJid, Timestamp from, Timestamp to, short byType, Integer limit, Integer offset, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select y.ts, y.jid, y.\"type\" from (");
+			appendStoredCollectionsQuery(sb, buddyId, from, to, byType);
+			sb.append(") y where y.ts is not null order by y.ts, y.jid");
+			sb.append(" offset ? rows fetch next ? rows only");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i = setStoredCollectionsQueryParams(ps, ownerId, buddyId, from, to);
+			ps.setInt(++i, offset);
+			ps.setInt(++i, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getStoredCollectionsCount(String ownerJid, String buddyJid, Timestamp from, Timestamp to, short byType, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select count(1) from (");
+			appendStoredCollectionsQuery(sb, buddyId, from, to, byType);
+			sb.append(") y where y.ts is not null");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			setStoredCollectionsQueryParams(ps, ownerId, buddyId, from, to);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void appendStoredCollectionsQuery(StringBuilder sb, Long buddyId, Timestamp from, Timestamp to, short byType) {
+		if (from != null) {
+			// start of a collection partially out of range needs to be found within messages
+			sb.append("select case when c.first_ts >= ? then c.first_ts else (" +
+					"select min(m.ts) from tig_ma_msgs m" +
+					" where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= ? and m.ts <= c.last_ts");
+			if (to != null)
+				sb.append(" and m.ts <= ?");
+			if (byType == 1)
+				sb.append(" and case when m.\"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end = c.\"type\"");
+			sb.append(") end as ts");
+		} else {
+			sb.append("select c.first_ts as ts");
+		}
+		if (byType == 1)
+			sb.append(", b.jid, c.\"type\" as \"type\"");
+		else
+			sb.append(", b.jid, cast(null as varchar(20)) as \"type\"");
+
+		sb.append(" from (select x.owner_id, x.buddy_id, x.\"day\"");
+		if (byType == 1)
+			sb.append(", x.\"type\"");
+		sb.append(", min(x.first_ts) as first_ts, max(x.last_ts) as last_ts" +
+				" from tig_ma_collections x" +
+				" where x.owner_id = ?");
+		if (from != null)
+			sb.append(" and x.last_ts >= ?");
+		if (to != null)
+			sb.append(" and x.first_ts <= ?");
+		sb.append(" group by x.owner_id, x.buddy_id, x.\"day\"");
+		if (byType == 1)
+			sb.append(", x.\"type\"");
+		sb.append(") c inner join tig_ma_jids b on b.jid_id = c.buddy_id");
+		if (buddyId != null)
+			sb.append(" where c.buddy_id = ?");
+	}
+
+	private static int setStoredCollectionsQueryParams(PreparedStatement ps, long ownerId, Long buddyId, Timestamp from, Timestamp to) throws SQLException {
+		int i = 0;
+		if (from != null) {
+			ps.setTimestamp(++i, from);
+			ps.setTimestamp(++i, from);
+			if (to != null)
+				ps.setTimestamp(++i, to);
+		}
+		ps.setLong(++i, ownerId);
+		if (from != null)
+			ps.setTimestamp(++i, from);
+		if (to != null)
+			ps.setTimestamp(++i, to);
+		if (buddyId != null)
+			ps.setLong(++i, buddyId);
+		return i;
+	}
+
+	public static void backfillCollections(long lastOwnerId, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select jid_id from tig_ma_jids where jid_id > ? order by jid_id offset 0 rows fetch next ? rows only");
+			ps.setLong(1, lastOwnerId);
+			ps.setInt(2, limit);
+			ResultSet rs = ps.executeQuery();
+			Long maxOwnerId = null;
+			while (rs.next()) {
+				maxOwnerId = rs.getLong(1);
+			}
+			rs.close();
+
+			if (maxOwnerId != null) {
+				// collections of messages stored in the meantime are merged with collections of older messages
+				ps = conn.prepareStatement("select owner_id, buddy_id, date(ts), case when \"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end, min(ts), max(ts)" +
+						" from tig_ma_msgs where owner_id > ? and owner_id <= ?" +
+						" group by owner_id, buddy_id, date(ts), case when \"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end");
+				ps.setLong(1, lastOwnerId);
+				ps.setLong(2, maxOwnerId);
+				rs = ps.executeQuery();
+				while (rs.next()) {
+					mergeCollection(conn, rs.getLong(1), rs.getLong(2), rs.getDate(3), rs.getString(4), rs.getTimestamp(5), rs.getTimestamp(6));
+				}
+				rs.close();
+			}
+
+			ps = conn.prepareStatement("select cast(? as bigint) as last_owner_id from SYSIBM.SYSDUMMY1");
+			if (maxOwnerId == null)
+				ps.setNull(1, Types.BIGINT);
+			else
+				ps.setLong(1, maxOwnerId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void mergeCollection(Connection conn, long ownerId, long buddyId, Date day, String type, Timestamp firstTs, Timestamp lastTs) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("update tig_ma_collections" +
+				" set first_ts = case when first_ts > ? then ? else first_ts end, last_ts = case when last_ts < ? then ? else last_ts end" +
+				" where owner_id = ? and buddy_id = ? and \"day\" = ? and \"type\" = ?");
+		int i = 0;
+		ps.setTimestamp(++i, firstTs);
+		ps.setTimestamp(++i, firstTs);
+		ps.setTimestamp(++i, lastTs);
+		ps.setTimestamp(++i, lastTs);
+		ps.setLong(++i, ownerId);
+		ps.setLong(++i, buddyId);
+		ps.setDate(++i, day);
+		ps.setString(++i, type);
+		if (ps.executeUpdate() == 0) {
+			ps = conn.prepareStatement("insert into tig_ma_collections (owner_id, buddy_id, \"day\", \"type\", first_ts, last_ts) values (?, ?, ?, ?, ?, ?)");
+			i = 0;
+			ps.setLong(++i, ownerId);
+			ps.setLong(++i, buddyId);
+			ps.setDate(++i, day);
+			ps.setString(++i, type);
+			ps.setTimestamp(++i, firstTs);
+			ps.setTimestamp(++i, lastTs);
+			ps.executeUpdate();
+		}
+	}
+
+	private static Timestamp startOfDay(Timestamp ts) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(ts);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		return new Timestamp(cal.getTimeInMillis());
+	}
+
+	/**
+	 * Returns id of a JID or 0 if JID is not known, so no message matches it.
+	 * Ids are resolved once using index on jid_sha1, so messages may be
+	 * filtered by ids using indexes of tig_ma_msgs.
+	 */
+	private static long findJidId(Connection conn, String jid) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("select jid_id from tig_ma_jids where jid_sha1 = ?");
+		ps.setString(1, sha1OfLower(jid));
+		ResultSet rs = ps.executeQuery();
+		try {
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			rs.close();
+		}
+	}
+
 	public static Long ensureJid(String jid) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -327,21 +676,37 @@ public class StoredProcedures {
 		return -1;
 	}
 
+	public static void ensureJidId(String jid, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long jidId = ensureJid(jid);
+			PreparedStatement ps = conn.prepareStatement("select jid_id from tig_ma_jids where jid_id = ?");
+			ps.setLong(1, jidId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void addMessage(String ownerJid, String buddyJid, String buddyRes, Timestamp ts, short direction, String type, String body, String msg, String hash, ResultSet[] data) throws SQLException {
+		long ownerId = ensureJid(ownerJid);
+		long buddyId = ensureJid(buddyJid);
+		addMessageById(ownerId, buddyId, buddyRes, ts, direction, type, body, msg, hash, data);
+	}
+
+	public static void addMessageById(long ownerId, long buddyId, String buddyRes, Timestamp ts, short direction, String type, String body, String msg, String hash, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			long ownerId = ensureJid(ownerJid);
-			long buddyId = ensureJid(buddyJid);
-			PreparedStatement ps = conn.prepareStatement("" +
-					"insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, \"type\", body, msg, stanza_hash)" +
-					" select ?, ?, ?, ?, ?, ?, ?, ?, ?" +
-					" from SYSIBM.SYSDUMMY1" +
-					" where not exists (" +
-					" select 1 from tig_ma_msgs where owner_id = ? and buddy_id = ? and stanza_hash = ? and ts between ? and ?" +
-					")", Statement.RETURN_GENERATED_KEYS);
+			// message which was already stored is not inserted again and its id is not returned
+			boolean inserted = insertMessage(conn, ownerId, buddyId, buddyRes, ts, direction, type, body, msg, hash);
 
 			Timestamp from = ts;
 			Timestamp to = ts;
@@ -351,32 +716,20 @@ public class StoredProcedures {
 				to = new Timestamp(ts.getTime() + 30 * 60 * 1000);
 			}
 
-			int i=0;
-			ps.setLong(++i, ownerId);
-			ps.setLong(++i, buddyId);
-			ps.setString(++i, buddyRes);
-			ps.setTimestamp(++i, ts);
-			ps.setShort(++i, direction);
-			ps.setString(++i, type);
-			ps.setString(++i, body);
-			ps.setString(++i, msg);
-			ps.setString(++i, hash);
-
+			// message stored with an old timestamp may be already moved to cold storage
+			String notInserted = inserted ? "" : " and 1 = 0";
+			PreparedStatement ps = conn.prepareStatement("select msg_id from tig_ma_msgs where owner_id = ? and buddy_id = ? and stanza_hash = ? and ts between ? and ?" + notInserted +
+					" union all select msg_id from tig_ma_msgs_cold where owner_id = ? and buddy_id = ? and stanza_hash = ? and ts = ?" + notInserted);
+			int i = 0;
 			ps.setLong(++i, ownerId);
 			ps.setLong(++i, buddyId);
 			ps.setString(++i, hash);
 			ps.setTimestamp(++i, from);
 			ps.setTimestamp(++i, to);
-
-			ps.execute();
-
-			ps = conn.prepareStatement("select msg_id from tig_ma_msgs where owner_id = ? and buddy_id = ? and stanza_hash = ? and ts between ? and ?");
-			i = 0;
 			ps.setLong(++i, ownerId);
 			ps.setLong(++i, buddyId);
 			ps.setString(++i, hash);
-			ps.setTimestamp(++i, from);
-			ps.setTimestamp(++i, to);
+			ps.setTimestamp(++i, ts);
 
 			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
@@ -386,85 +739,119 @@ public class StoredProcedures {
 		}		
 	}
 
-	public static void addTagToMessage(long msgId, String tag) throws SQLException {
+	public static void storeMessageById(long ownerId, long buddyId, String buddyRes, Timestamp ts, short direction, String type, String body, String msg, String hash) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps =
-				conn.prepareStatement("select owner_id from tig_ma_msgs where msg_id = ?");
-
-			ps.setLong(1, msgId);
-			ResultSet rs = ps.executeQuery();
-			rs.next();
-			long ownerId = rs.getLong(1);
-			rs.close();
-
-			ps = conn.prepareStatement("select tag_id from tig_ma_tags where owner_id = ? and tag = ?");
-			
-			ps.setLong(1, ownerId);
-			ps.setString(2, tag);
-			
-			rs = ps.executeQuery();
-			long tagId = -1;
-			if (!rs.next()) {
-				rs.close();
-				ps = conn.prepareStatement("insert into tig_ma_tags (owner_id, tag) values (?,?)", Statement.RETURN_GENERATED_KEYS);
-				ps.setLong(1, ownerId);
-				ps.setString(2, tag);
-				ps.execute();
-				rs = ps.getGeneratedKeys();
-				rs.next();
-			}
-			tagId = rs.getLong(1);
-			rs.close();
-			
-			ps = conn.prepareStatement("insert into tig_ma_msgs_tags (msg_id, tag_id) select ?, ? from SYSIBM.SYSDUMMY1"
-					+ " where not exists (select 1 from tig_ma_msgs_tags mt where mt.msg_id = ? and mt.tag_id = ?)");
-			
-			ps.setLong(1, msgId);
-			ps.setLong(2, tagId);
-			ps.setLong(3, msgId);
-			ps.setLong(4, tagId);
-
-			ps.executeUpdate();
+			insertMessage(conn, ownerId, buddyId, buddyRes, ts, direction, type, body, msg, hash);
 		} catch (SQLException e) {
 			throw e;
 		} finally {
 			conn.close();
-		}		
+		}
 	}
-	
-	public static void removeMessages(String ownerJid, String buddyJid, Timestamp from, Timestamp to) throws SQLException {
+
+	/**
+	 * Inserts message unless it was already stored and updates its collection.
+	 *
+	 * @return <code>true</code> if message was inserted
+	 */
+	private static boolean insertMessage(Connection conn, long ownerId, long buddyId, String buddyRes, Timestamp ts, short direction, String type, String body, String msg, String hash) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("" +
+				"insert into tig_ma_msgs (owner_id, buddy_id, buddy_res, ts, direction, \"type\", body, msg, stanza_hash)" +
+				" select ?, ?, ?, ?, ?, ?, ?, ?, ?" +
+				" from SYSIBM.SYSDUMMY1" +
+				" where not exists (" +
+				" select 1 from tig_ma_msgs where owner_id = ? and buddy_id = ? and stanza_hash = ? and ts between ? and ?" +
+				")", Statement.RETURN_GENERATED_KEYS);
+
+		Timestamp from = ts;
+		Timestamp to = ts;
+
+		if ("groupchat".equals(type)) {
+			from = new Timestamp(ts.getTime() - 30 * 60 * 1000);
+			to = new Timestamp(ts.getTime() + 30 * 60 * 1000);
+		}
+
+		int i=0;
+		ps.setLong(++i, ownerId);
+		ps.setLong(++i, buddyId);
+		ps.setString(++i, buddyRes);
+		ps.setTimestamp(++i, ts);
+		ps.setShort(++i, direction);
+		ps.setString(++i, type);
+		ps.setString(++i, body);
+		ps.setString(++i, msg);
+		ps.setString(++i, hash);
+
+		ps.setLong(++i, ownerId);
+		ps.setLong(++i, buddyId);
+		ps.setString(++i, hash);
+		ps.setTimestamp(++i, from);
+		ps.setTimestamp(++i, to);
+
+		boolean inserted = ps.executeUpdate() > 0;
+		if (inserted) {
+			Timestamp day = startOfDay(ts);
+			mergeCollection(conn, ownerId, buddyId, new Date(day.getTime()), "groupchat".equals(type) ? "groupchat" : "", ts, ts);
+			moveLateMessageToCold(conn, ownerId, buddyId, ts, hash);
+		}
+		return inserted;
+	}
+
+	/**
+	 * Moves inserted message to cold storage at once if it is older than
+	 * messages of its owner in cold storage, so messages in cold storage
+	 * still precede all messages of the owner in tig_ma_msgs.
+	 */
+	private static void moveLateMessageToCold(Connection conn, long ownerId, long buddyId, Timestamp ts, String hash) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("select max(ts) from tig_ma_msgs_cold where owner_id = ?");
+		ps.setLong(1, ownerId);
+		ResultSet rs = ps.executeQuery();
+		Timestamp coldTo = rs.next() ? rs.getTimestamp(1) : null;
+		rs.close();
+		if (coldTo == null || !ts.before(coldTo)) {
+			return;
+		}
+
+		String message = " from tig_ma_msgs where owner_id = ? and buddy_id = ? and stanza_hash = ? and ts = ?";
+		ps = conn.prepareStatement("insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, direction, \"type\", body, msg, stanza_hash)" +
+				" select msg_id, owner_id, buddy_id, buddy_res, ts, direction, \"type\", body, msg, stanza_hash" + message);
+		ps.setLong(1, ownerId);
+		ps.setLong(2, buddyId);
+		ps.setString(3, hash);
+		ps.setTimestamp(4, ts);
+		ps.executeUpdate();
+
+		ps = conn.prepareStatement("delete" + message);
+		ps.setLong(1, ownerId);
+		ps.setLong(2, buddyId);
+		ps.setString(3, hash);
+		ps.setTimestamp(4, ts);
+		ps.executeUpdate();
+	}
+
+	public static void addTagToMessage(long msgId, String tag) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
 			PreparedStatement ps =
-				conn.prepareStatement("select jid_id from tig_ma_jids where jid_sha1 = ?");
+				conn.prepareStatement("select owner_id from tig_ma_msgs where msg_id = ?" +
+						" union all select owner_id from tig_ma_msgs_cold where msg_id = ?");
 
-			ps.setString(1, sha1OfLower(ownerJid));
+			ps.setLong(1, msgId);
+			ps.setLong(2, msgId);
 			ResultSet rs = ps.executeQuery();
 			rs.next();
 			long ownerId = rs.getLong(1);
 			rs.close();
-			
-			ps.setString(1, sha1OfLower(buddyJid));
-			rs = ps.executeQuery();
-			rs.next();
-			long buddyId = rs.getLong(1);
-			rs.close();
-			
-			ps = conn.prepareStatement("delete from tig_ma_msgs where owner_id = ? and buddy_id = ? and ts >= ? and ts <= ?");
-			
-			ps.setLong(1, ownerId);
-			ps.setLong(2, buddyId);
-			ps.setTimestamp(3, from);
-			ps.setTimestamp(4, to);
-			
-			ps.execute();
+
+			long tagId = ensureTag(conn, ownerId, tag);
+			addTagToMessage(conn, msgId, tagId);
 		} catch (SQLException e) {
 			throw e;
 		} finally {
@@ -472,17 +859,146 @@ public class StoredProcedures {
 		}		
 	}
 
-	public static void deleteExpiredMessages(String domain, Timestamp before) throws SQLException {
+	public static void ensureTagId(long ownerId, String tag, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("delete from tig_ma_msgs where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
-			
-			ps.setTimestamp(1, before);
-			ps.setString(2, domain);
-			
+			long tagId = ensureTag(conn, ownerId, tag);
+			PreparedStatement ps = conn.prepareStatement("select tag_id from tig_ma_tags where tag_id = ?");
+			ps.setLong(1, tagId);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void addTagToMessageById(long msgId, long tagId) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			addTagToMessage(conn, msgId, tagId);
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static long ensureTag(Connection conn, long ownerId, String tag) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("select tag_id from tig_ma_tags where owner_id = ? and tag = ?");
+
+		ps.setLong(1, ownerId);
+		ps.setString(2, tag);
+
+		ResultSet rs = ps.executeQuery();
+		if (!rs.next()) {
+			rs.close();
+			ps = conn.prepareStatement("insert into tig_ma_tags (owner_id, tag) values (?,?)", Statement.RETURN_GENERATED_KEYS);
+			ps.setLong(1, ownerId);
+			ps.setString(2, tag);
+			ps.execute();
+			rs = ps.getGeneratedKeys();
+			rs.next();
+		}
+		long tagId = rs.getLong(1);
+		rs.close();
+		return tagId;
+	}
+
+	private static void addTagToMessage(Connection conn, long msgId, long tagId) throws SQLException {
+		// message stored with an old timestamp may be already in cold storage
+		PreparedStatement ps = conn.prepareStatement("select 1 from tig_ma_msgs where msg_id = ?");
+		ps.setLong(1, msgId);
+		ResultSet rs = ps.executeQuery();
+		String table = rs.next() ? "tig_ma_msgs_tags" : "tig_ma_msgs_cold_tags";
+		rs.close();
+
+		ps = conn.prepareStatement("insert into " + table + " (msg_id, tag_id) select ?, ? from SYSIBM.SYSDUMMY1"
+				+ " where not exists (select 1 from " + table + " mt where mt.msg_id = ? and mt.tag_id = ?)");
+
+		ps.setLong(1, msgId);
+		ps.setLong(2, tagId);
+		ps.setLong(3, msgId);
+		ps.setLong(4, tagId);
+
+		ps.executeUpdate();
+	}
+	
+	public static void removeMessages(String ownerJid, String buddyJid, Timestamp from, Timestamp to) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps =
+				conn.prepareStatement("select jid_id from tig_ma_jids where jid_sha1 = ?");
+
+			ps.setString(1, sha1OfLower(ownerJid));
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			long ownerId = rs.getLong(1);
+			rs.close();
+			
+			ps.setString(1, sha1OfLower(buddyJid));
+			rs = ps.executeQuery();
+			rs.next();
+			long buddyId = rs.getLong(1);
+			rs.close();
+			
+			ps = conn.prepareStatement("delete from tig_ma_msgs where owner_id = ? and buddy_id = ? and ts >= ? and ts <= ?");
+			
+			ps.setLong(1, ownerId);
+			ps.setLong(2, buddyId);
+			ps.setTimestamp(3, from);
+			ps.setTimestamp(4, to);
+			
+			ps.execute();
+
+			// tags of messages in cold storage are not referencing them by a foreign key
+			ps = conn.prepareStatement("delete from tig_ma_msgs_cold_tags where msg_id in (select m.msg_id from tig_ma_msgs_cold m" +
+					" where m.owner_id = ? and m.buddy_id = ? and m.ts >= ? and m.ts <= ?)");
+			ps.setLong(1, ownerId);
+			ps.setLong(2, buddyId);
+			ps.setTimestamp(3, from);
+			ps.setTimestamp(4, to);
+			ps.execute();
+
+			ps = conn.prepareStatement("delete from tig_ma_msgs_cold where owner_id = ? and buddy_id = ? and ts >= ? and ts <= ?");
+			ps.setLong(1, ownerId);
+			ps.setLong(2, buddyId);
+			ps.setTimestamp(3, from);
+			ps.setTimestamp(4, to);
+			ps.execute();
+
+			// collections of days of removed messages are calculated again from remaining messages
+			Timestamp fromDay = startOfDay(from);
+			Timestamp toDay = startOfDay(to);
+			ps = conn.prepareStatement("delete from tig_ma_collections where owner_id = ? and buddy_id = ? and \"day\" >= ? and \"day\" <= ?");
+			ps.setLong(1, ownerId);
+			ps.setLong(2, buddyId);
+			ps.setDate(3, new Date(fromDay.getTime()));
+			ps.setDate(4, new Date(toDay.getTime()));
+			ps.execute();
+
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(toDay);
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+			ps = conn.prepareStatement("insert into tig_ma_collections (owner_id, buddy_id, \"day\", \"type\", first_ts, last_ts)" +
+					" select owner_id, buddy_id, date(ts), case when \"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end, min(ts), max(ts)" +
+					" from (select owner_id, buddy_id, ts, \"type\" from tig_ma_msgs" +
+					" union all select owner_id, buddy_id, ts, \"type\" from tig_ma_msgs_cold) m" +
+					" where owner_id = ? and buddy_id = ? and ts >= ? and ts < ?" +
+					" group by owner_id, buddy_id, date(ts), case when \"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end");
+			ps.setLong(1, ownerId);
+			ps.setLong(2, buddyId);
+			ps.setTimestamp(3, fromDay);
+			ps.setTimestamp(4, new Timestamp(cal.getTimeInMillis()));
 			ps.execute();
 		} catch (SQLException e) {
 			throw e;
@@ -491,6 +1007,558 @@ public class StoredProcedures {
 		}		
 	}
 
+	public static void deleteExpiredMessages(String domain, Timestamp before) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("delete from tig_ma_msgs where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+			
+			ps.setTimestamp(1, before);
+			ps.setString(2, domain);
+			
+			ps.execute();
+
+			deleteColdTagsOfExpiredMessages(conn, domain, before);
+
+			ps = conn.prepareStatement("delete from tig_ma_msgs_cold where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+			ps.setTimestamp(1, before);
+			ps.setString(2, domain);
+			ps.execute();
+
+			updateCollectionsOfExpiredMessages(conn, domain, before);
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}		
+	}
+
+	public static void deleteExpiredMessagesChunk(String domain, Timestamp before, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			// chunk ends at timestamp of the last of the oldest expired messages, so next chunk starts where it stopped;
+			// messages in cold storage are older than messages in tig_ma_msgs, so they are removed first
+			Timestamp chunkTo = getExpiredMessagesChunkEnd(conn, "tig_ma_msgs_cold", domain, before, limit);
+			if (chunkTo == null) {
+				chunkTo = getExpiredMessagesChunkEnd(conn, "tig_ma_msgs", domain, before, limit);
+			}
+
+			int deleted = 0;
+			PreparedStatement ps;
+			if (chunkTo != null) {
+				deleteColdTagsOfExpiredMessages(conn, domain, chunkTo);
+
+				ps = conn.prepareStatement("delete from tig_ma_msgs_cold where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+				ps.setTimestamp(1, chunkTo);
+				ps.setString(2, domain);
+				deleted = ps.executeUpdate();
+
+				ps = conn.prepareStatement("delete from tig_ma_msgs where ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+				ps.setTimestamp(1, chunkTo);
+				ps.setString(2, domain);
+				deleted += ps.executeUpdate();
+
+				updateCollectionsOfExpiredMessages(conn, domain, chunkTo);
+			}
+
+			ps = conn.prepareStatement("select cast(? as int) as deleted from SYSIBM.SYSDUMMY1");
+			ps.setInt(1, deleted);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static Timestamp getExpiredMessagesChunkEnd(Connection conn, String table, String domain, Timestamp before, int limit) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("select m.ts from " + table + " m inner join tig_ma_jids o on m.owner_id = o.jid_id" +
+				" where m.ts <= ? and o.\"domain\" = ? order by m.ts offset 0 rows fetch next ? rows only");
+		ps.setTimestamp(1, before);
+		ps.setString(2, domain);
+		ps.setInt(3, limit);
+		ResultSet rs = ps.executeQuery();
+		Timestamp chunkTo = null;
+		while (rs.next()) {
+			chunkTo = rs.getTimestamp(1);
+		}
+		rs.close();
+		return chunkTo;
+	}
+
+	/**
+	 * Removes tags of expired messages in cold storage, which are not referencing them by a foreign key.
+	 */
+	private static void deleteColdTagsOfExpiredMessages(Connection conn, String domain, Timestamp before) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("delete from tig_ma_msgs_cold_tags where msg_id in (select m.msg_id from tig_ma_msgs_cold m" +
+				" inner join tig_ma_jids o on m.owner_id = o.jid_id where m.ts <= ? and o.\"domain\" = ?)");
+		ps.setTimestamp(1, before);
+		ps.setString(2, domain);
+		ps.execute();
+	}
+
+	private static void updateCollectionsOfExpiredMessages(Connection conn, String domain, Timestamp before) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement("delete from tig_ma_collections where last_ts <= ? and exists (select 1 from tig_ma_jids o where owner_id = o.jid_id and o.\"domain\" = ?)");
+		ps.setTimestamp(1, before);
+		ps.setString(2, domain);
+		ps.execute();
+
+		// messages in cold storage are older than messages in tig_ma_msgs
+		ps = conn.prepareStatement("update tig_ma_collections c set first_ts = coalesce((" +
+				"select min(m.ts) from tig_ma_msgs_cold m" +
+				" where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > ? and m.ts <= c.last_ts" +
+				" and case when m.\"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end = c.\"type\"" +
+				"), (" +
+				"select min(m.ts) from tig_ma_msgs m" +
+				" where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts > ? and m.ts <= c.last_ts" +
+				" and case when m.\"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end = c.\"type\"" +
+				"), c.last_ts) where c.first_ts <= ? and exists (select 1 from tig_ma_jids o where c.owner_id = o.jid_id and o.\"domain\" = ?)");
+		ps.setTimestamp(1, before);
+		ps.setTimestamp(2, before);
+		ps.setTimestamp(3, before);
+		ps.setString(4, domain);
+		ps.execute();
+	}
+
+	public static void setUserRetention(String ownerJid, Long expire) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps;
+			if (expire == null) {
+				ps = conn.prepareStatement("delete from tig_ma_user_retention where owner_id = (select jid_id from tig_ma_jids where jid_sha1 = ?)");
+				ps.setString(1, sha1OfLower(ownerJid));
+				ps.executeUpdate();
+				return;
+			}
+
+			long ownerId = ensureJid(ownerJid);
+			ps = conn.prepareStatement("update tig_ma_user_retention set expire = ? where owner_id = ?");
+			ps.setLong(1, expire);
+			ps.setLong(2, ownerId);
+			if (ps.executeUpdate() == 0) {
+				ps = conn.prepareStatement("insert into tig_ma_user_retention (owner_id, expire) values (?, ?)");
+				ps.setLong(1, ownerId);
+				ps.setLong(2, expire);
+				ps.executeUpdate();
+			}
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void migrateUserRetention() throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			ResultSet rs = conn.getMetaData().getTables(null, null, "TIG_PAIRS", null);
+			boolean userRepository = rs.next();
+			rs.close();
+			if (!userRepository) {
+				return;
+			}
+
+			PreparedStatement ps = conn.prepareStatement("select u.user_id, p.pval from tig_pairs p" +
+					" inner join tig_nodes n on n.nid = p.nid and n.node = 'settings'" +
+					" inner join tig_nodes a on a.nid = n.parent_nid and a.node = 'message-archive'" +
+					" inner join tig_users u on u.uid = p.uid where p.pkey = 'expire'");
+			PreparedStatement stored = conn.prepareStatement("select 1 from tig_ma_user_retention r" +
+					" inner join tig_ma_jids j on j.jid_id = r.owner_id where j.jid_sha1 = ?");
+			rs = ps.executeQuery();
+			while (rs.next()) {
+				String jid = rs.getString(1);
+				String value = rs.getString(2);
+				long expire;
+				try {
+					expire = value == null ? 0 : Long.parseLong(value.trim());
+				} catch (NumberFormatException ex) {
+					continue;
+				}
+				if (expire <= 0) {
+					continue;
+				}
+				stored.setString(1, sha1OfLower(jid));
+				ResultSet srs = stored.executeQuery();
+				boolean exists = srs.next();
+				srs.close();
+				if (!exists) {
+					setUserRetention(jid, expire);
+				}
+			}
+			rs.close();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getUserRetentionBuckets(String domain, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select r.expire, count(1) as users from tig_ma_user_retention r" +
+					" inner join tig_ma_jids o on r.owner_id = o.jid_id where o.\"domain\" = ? group by r.expire");
+			ps.setString(1, domain);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void deleteExpiredUserMessages(String domain, long expire, Timestamp before) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			// messages of all users of a domain with the same retention period are removed at once
+			String owners = "select r.owner_id from tig_ma_user_retention r inner join tig_ma_jids o on r.owner_id = o.jid_id" +
+					" where r.expire = ? and o.\"domain\" = ?";
+
+			PreparedStatement ps = conn.prepareStatement("delete from tig_ma_msgs where ts < ? and owner_id in (" + owners + ")");
+			ps.setTimestamp(1, before);
+			ps.setLong(2, expire);
+			ps.setString(3, domain);
+			ps.execute();
+
+			ps = conn.prepareStatement("delete from tig_ma_msgs_cold_tags where msg_id in (select m.msg_id from tig_ma_msgs_cold m" +
+					" where m.ts < ? and m.owner_id in (" + owners + "))");
+			ps.setTimestamp(1, before);
+			ps.setLong(2, expire);
+			ps.setString(3, domain);
+			ps.execute();
+
+			ps = conn.prepareStatement("delete from tig_ma_msgs_cold where ts < ? and owner_id in (" + owners + ")");
+			ps.setTimestamp(1, before);
+			ps.setLong(2, expire);
+			ps.setString(3, domain);
+			ps.execute();
+
+			ps = conn.prepareStatement("delete from tig_ma_collections where last_ts < ? and owner_id in (" + owners + ")");
+			ps.setTimestamp(1, before);
+			ps.setLong(2, expire);
+			ps.setString(3, domain);
+			ps.execute();
+
+			// messages in cold storage are older than messages in tig_ma_msgs
+			ps = conn.prepareStatement("update tig_ma_collections c set first_ts = coalesce((" +
+					"select min(m.ts) from tig_ma_msgs_cold m" +
+					" where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= ? and m.ts <= c.last_ts" +
+					" and case when m.\"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end = c.\"type\"" +
+					"), (" +
+					"select min(m.ts) from tig_ma_msgs m" +
+					" where m.owner_id = c.owner_id and m.buddy_id = c.buddy_id and m.ts >= ? and m.ts <= c.last_ts" +
+					" and case when m.\"type\" = 'groupchat' then cast('groupchat' as varchar(20)) else cast('' as varchar(20)) end = c.\"type\"" +
+					"), c.last_ts) where c.first_ts < ? and c.owner_id in (" + owners + ")");
+			ps.setTimestamp(1, before);
+			ps.setTimestamp(2, before);
+			ps.setTimestamp(3, before);
+			ps.setLong(4, expire);
+			ps.setString(5, domain);
+			ps.execute();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void moveMessagesToCold(Timestamp before, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			// batch ends at timestamp of the last of the oldest messages, so messages are moved in order of time
+			PreparedStatement ps = conn.prepareStatement("select ts from tig_ma_msgs where ts < ? order by ts offset 0 rows fetch next ? rows only");
+			ps.setTimestamp(1, before);
+			ps.setInt(2, limit);
+			ResultSet rs = ps.executeQuery();
+			Timestamp batchTo = null;
+			while (rs.next()) {
+				batchTo = rs.getTimestamp(1);
+			}
+			rs.close();
+
+			int moved = 0;
+			if (batchTo != null) {
+				ps = conn.prepareStatement("insert into tig_ma_msgs_cold (msg_id, owner_id, buddy_id, buddy_res, ts, direction, \"type\", body, msg, stanza_hash)" +
+						" select msg_id, owner_id, buddy_id, buddy_res, ts, direction, \"type\", body, msg, stanza_hash from tig_ma_msgs where ts <= ?");
+				ps.setTimestamp(1, batchTo);
+				moved = ps.executeUpdate();
+
+				ps = conn.prepareStatement("insert into tig_ma_msgs_cold_tags (msg_id, tag_id)" +
+						" select mt.msg_id, mt.tag_id from tig_ma_msgs_tags mt inner join tig_ma_msgs m on m.msg_id = mt.msg_id where m.ts <= ?");
+				ps.setTimestamp(1, batchTo);
+				ps.executeUpdate();
+
+				// tags of moved messages are removed from tig_ma_msgs_tags by cascade
+				ps = conn.prepareStatement("delete from tig_ma_msgs where ts <= ?");
+				ps.setTimestamp(1, batchTo);
+				ps.executeUpdate();
+			}
+
+			ps = conn.prepareStatement("select cast(? as int) as moved from SYSIBM.SYSDUMMY1");
+			ps.setInt(1, moved);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getColdMessages(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags, String contains, Integer limit, Integer offset, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select m.msg, m.ts, m.direction, b.jid, m.stanza_hash" +
+				" from tig_ma_msgs_cold m" +
+				" inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
+				" where " +
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
+			if (from != null)
+				sb.append(" and m.ts >= ?");
+			if (to != null)
+				sb.append(" and m.ts <= ?");
+			appendTagsQuery(sb, "tig_ma_msgs_cold_tags", tags);
+			appendContainsQuery(sb, contains);
+
+			sb.append(" order by m.ts");
+			sb.append(" offset ? rows fetch next ? rows only");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i=0;
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
+			if (from != null)
+				ps.setTimestamp(++i, from);
+			if (to != null)
+				ps.setTimestamp(++i, to);
+			ps.setInt(++i, offset);
+			ps.setInt(++i, limit);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getColdMessagesCount(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags, String contains, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select count(m.msg_id)" +
+				" from tig_ma_msgs_cold m" +
+				" where " +
+				" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
+			if (from != null)
+				sb.append(" and m.ts >= ?");
+			if (to != null)
+				sb.append(" and m.ts <= ?");
+			appendTagsQuery(sb, "tig_ma_msgs_cold_tags", tags);
+			appendContainsQuery(sb, contains);
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i=0;
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
+			if (from != null)
+				ps.setTimestamp(++i, from);
+			if (to != null)
+				ps.setTimestamp(++i, to);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void getColdMessagePosition(String ownerJid, String buddyJid, Timestamp from, Timestamp to, String tags, String contains, String hash, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			long ownerId = findJidId(conn, ownerJid);
+			Long buddyId = buddyJid == null ? null : findJidId(conn, buddyJid);
+
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("select m.stanza_hash" +
+					" from tig_ma_msgs_cold m" +
+					" where " +
+					" m.owner_id = ?");
+			if (buddyId != null)
+				sb.append(" and m.buddy_id = ?");
+			if (from != null)
+				sb.append(" and m.ts >= ?");
+			if (to != null)
+				sb.append(" and m.ts <= ?");
+			appendTagsQuery(sb, "tig_ma_msgs_cold_tags", tags);
+			appendContainsQuery(sb, contains);
+			sb.append(" order by m.ts");
+
+			PreparedStatement ps = conn.prepareStatement(sb.toString());
+
+			int i=0;
+			ps.setLong(++i, ownerId);
+			if (buddyId != null)
+				ps.setLong(++i, buddyId);
+			if (from != null)
+				ps.setTimestamp(++i, from);
+			if (to != null)
+				ps.setTimestamp(++i, to);
+
+			int position = 0;
+			i=0;
+			ResultSet rs = ps.executeQuery();
+			while (rs.next()) {
+				i++;
+				if (hash.equals(rs.getString(1))) {
+					position = i;
+					break;
+				}
+			}
+			rs.close();
+
+			String q = "select " + position + " as position from SYSIBM.SYSDUMMY1 where " + position + " <> 0";
+			data[0] = conn.prepareStatement(q).executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void deleteOrphanedJids(long lastJidId, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select jid_id from tig_ma_jids where jid_id > ? order by jid_id offset 0 rows fetch next ? rows only");
+			ps.setLong(1, lastJidId);
+			ps.setInt(2, limit);
+			ResultSet rs = ps.executeQuery();
+			Long maxId = null;
+			while (rs.next()) {
+				maxId = rs.getLong(1);
+			}
+			rs.close();
+
+			int deleted = 0;
+			if (maxId != null) {
+				// references are checked by the delete itself, so JIDs used in the meantime are kept
+				ps = conn.prepareStatement("delete from tig_ma_jids where jid_id > ? and jid_id <= ?" +
+						" and not exists (select 1 from tig_ma_msgs x where x.owner_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_msgs x where x.buddy_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_msgs_cold x where x.owner_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_msgs_cold x where x.buddy_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_collections x where x.owner_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_collections x where x.buddy_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_tags x where x.owner_id = tig_ma_jids.jid_id)" +
+						" and not exists (select 1 from tig_ma_user_retention x where x.owner_id = tig_ma_jids.jid_id)");
+				ps.setLong(1, lastJidId);
+				ps.setLong(2, maxId);
+				deleted = ps.executeUpdate();
+			}
+
+			ps = conn.prepareStatement("select cast(? as bigint) as last_jid_id, cast(? as int) as deleted from SYSIBM.SYSDUMMY1");
+			if (maxId == null)
+				ps.setNull(1, Types.BIGINT);
+			else
+				ps.setLong(1, maxId);
+			ps.setInt(2, deleted);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void deleteOrphanedTags(long lastTagId, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select tag_id from tig_ma_tags where tag_id > ? order by tag_id offset 0 rows fetch next ? rows only");
+			ps.setLong(1, lastTagId);
+			ps.setInt(2, limit);
+			ResultSet rs = ps.executeQuery();
+			Long maxId = null;
+			while (rs.next()) {
+				maxId = rs.getLong(1);
+			}
+			rs.close();
+
+			int deleted = 0;
+			if (maxId != null) {
+				// references are checked by the delete itself, so tags used in the meantime are kept
+				ps = conn.prepareStatement("delete from tig_ma_tags where tag_id > ? and tag_id <= ?" +
+						" and not exists (select 1 from tig_ma_msgs_tags x where x.tag_id = tig_ma_tags.tag_id)" +
+						" and not exists (select 1 from tig_ma_msgs_cold_tags x where x.tag_id = tig_ma_tags.tag_id)");
+				ps.setLong(1, lastTagId);
+				ps.setLong(2, maxId);
+				deleted = ps.executeUpdate();
+			}
+
+			ps = conn.prepareStatement("select cast(? as bigint) as last_tag_id, cast(? as int) as deleted from SYSIBM.SYSDUMMY1");
+			if (maxId == null)
+				ps.setNull(1, Types.BIGINT);
+			else
+				ps.setLong(1, maxId);
+			ps.setInt(2, deleted);
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void getTagsForUser(String ownerJid, String tagStartsWith, Integer limit, Integer offset, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -532,10 +1600,14 @@ public class StoredProcedures {
 	}
 	
 	protected static StringBuilder appendTagsQuery(StringBuilder sb, String tags) {
+		return appendTagsQuery(sb, "tig_ma_msgs_tags", tags);
+	}
+
+	protected static StringBuilder appendTagsQuery(StringBuilder sb, String tagsTable, String tags) {
 		if (tags != null) {
-			sb.append(" and exists(select 1 from tig_ma_msgs_tags mt "
+			sb.append(" and exists(select 1 from ").append(tagsTable).append(" mt "
 					+ "inner join tig_ma_tags t on mt.tag_id = t.tag_id "
-					+ "where m.msg_id = mt.msg_id and t.owner_id = o.jid_id and t.tag IN (")
+					+ "where m.msg_id = mt.msg_id and t.owner_id = m.owner_id and t.tag IN (")
 				.append(tags).append("))");
 		}
 		return sb;
@@ -23,10 +23,12 @@ package tigase.archive.modules;
 
 import tigase.archive.MessageArchiveComponent;
 import tigase.archive.TagsHelper;
+import tigase.archive.db.ArchiveWriter;
 import tigase.archive.db.MessageArchiveRepository;
 import tigase.component.exceptions.ComponentException;
 import tigase.criteria.Criteria;
 import tigase.kernel.beans.Bean;
+import tigase.kernel.beans.Inject;
 import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.util.TigaseStringprepException;
@@ -53,6 +55,9 @@ public class ArchivingModule extends AbstractModule {
 
 	private final TimestampHelper timestampHelper = new TimestampHelper();
 
+	@Inject
+	private ArchiveWriter archiveWriter;
+
 	@Override
 	public String[] getFeatures() {
 		return new String[0];
@@ -99,7 +104,7 @@ public class ArchivingModule extends AbstractModule {
 			if (config.isTagSupportEnabled())
 				tags = TagsHelper.extractTags(msg);
 
-			msg_repo.archiveMessage(owner, buddy, direction, timestamp, msg, tags);
+			archiveWriter.archiveMessage(owner, buddy, direction, timestamp, msg, tags);
 		} else {
 			log.log(Level.INFO, "Owner attribute missing from packet: {0}", packet);
 		}
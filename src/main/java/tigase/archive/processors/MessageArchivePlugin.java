@@ -82,6 +82,8 @@ public class MessageArchivePlugin
 			.getCanonicalName());
 	private static final String AUTO = "auto";
 	public static final String OWNER_JID = "owner";
+	// JID of the owner of preferences forwarded to the component by the session manager
+	public static final String PREFS_OWNER_JID = "prefs-owner";
 	public static final String ARCHIVE = "message-archive";
 	protected static final String SETTINGS = ARCHIVE + "/settings";
 
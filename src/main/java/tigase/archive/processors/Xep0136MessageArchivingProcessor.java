@@ -43,6 +43,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static tigase.archive.processors.MessageArchivePlugin.ARCHIVE;
+import static tigase.archive.processors.MessageArchivePlugin.PREFS_OWNER_JID;
 
 /**
  * MessageArchingPlugin is implementation of plugin which forwards messages
@@ -157,6 +158,11 @@ public class Xep0136MessageArchivingProcessor
 		}
 		try {
 			if (messageArchivePlugin.getComponentJid().equals(packet.getPacketFrom())) {
+				if (packet.getType() == StanzaType.error && packet.getElement().getChild("pref") != null) {
+					// preferences were already confirmed, so failure to store retention period is only logged
+					log.log(Level.WARNING, "Failed to store retention period of messages: {0}", packet);
+					return;
+				}
 				JID connId = session.getConnectionId(packet.getStanzaTo());
 				Packet result = packet.copyElementOnly();
 
@@ -277,9 +283,11 @@ public class Xep0136MessageArchivingProcessor
 		String errorMsg = null;
 		String expire = null;
 		String storeMuc = null;
+		boolean defaultSet = false;
 		for (Element elem : pref.getChildren()) {
 			switch (elem.getName()) {
 				case "default":
+					defaultSet = true;
 					String storeMethodStr = elem.getAttributeStaticStr("save");
 					if (storeMethodStr != null) {
 						try {
@@ -374,6 +382,8 @@ public class Xep0136MessageArchivingProcessor
 				}
 				if (expire != null) {
 					session.setData(SETTINGS, EXPIRE, expire);
+				} else if (defaultSet) {
+					session.removeData(SETTINGS, EXPIRE);
 				}
 				if (storeMuc != null) {
 					settings.setArchiveMucMessages(Boolean.parseBoolean(storeMuc));
@@ -384,6 +394,16 @@ public class Xep0136MessageArchivingProcessor
 
 				results.offer(packet.okResult((String) null, 0));
 
+				if (defaultSet) {
+					// component removes expired messages, so it needs to know retention period set by user
+					// or that it was removed - component does not respond unless it fails to store it
+					Packet result = packet.copyElementOnly();
+
+					result.getElement().addAttribute(PREFS_OWNER_JID, session.getBareJID().toString());
+					result.setPacketTo(messageArchivePlugin.getComponentJid());
+					results.offer(result);
+				}
+
 				// shouldn't we notify other connected resources? see section 2.4.of XEP-0136
 			}
 			catch (TigaseDBException ex) {
@@ -24,6 +24,8 @@ package tigase.archive.xep0136.modules;
 import tigase.archive.MessageArchiveComponent;
 import tigase.archive.QueryCriteria;
 import tigase.archive.db.MessageArchiveRepository;
+import tigase.archive.db.RawMessageElement;
+import tigase.archive.db.RawXmlElement;
 import tigase.archive.modules.AbstractModule;
 import tigase.archive.xep0136.Xep0136QueryParser;
 import tigase.component.exceptions.ComponentException;
@@ -122,14 +124,22 @@ public class RetrieveItemsModule extends AbstractModule {
 		}
 
 		public void itemFound(Q query, I item) {
-			Element itemEl = new Element(item.getDirection().toElementName());
-
 			// Now we should send all elements of a message so as we can store not only <body/>
 			// element. If we will store only <body/> element then only this element will
 			// be available in store
 			//item.addChild(msg.getChild("body"));
 			Element msg = item.getMessage();
-			itemEl.addChildren(msg.getChildren());
+			Element itemEl;
+			if (msg instanceof RawMessageElement) {
+				// content of a message is already serialized, so it is written out without parsing
+				itemEl = new RawXmlElement(item.getDirection().toElementName(),
+										   ((RawMessageElement) msg).getInnerXml());
+			} else {
+				itemEl = new Element(item.getDirection().toElementName());
+				if (msg.getChildren() != null) {
+					itemEl.addChildren(msg.getChildren());
+				}
+			}
 
 			if (query.getStart() == null) {
 				query.setStart(item.getTimestamp());
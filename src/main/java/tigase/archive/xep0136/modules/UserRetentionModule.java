@@ -0,0 +1,113 @@
+/*
+ * UserRetentionModule.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.xep0136.modules;
+
+import tigase.archive.MessageArchiveComponent;
+import tigase.archive.modules.AbstractModule;
+import tigase.component.exceptions.ComponentException;
+import tigase.criteria.Criteria;
+import tigase.db.TigaseDBException;
+import tigase.kernel.beans.Bean;
+import tigase.server.Packet;
+import tigase.util.TigaseStringprepException;
+import tigase.xml.Element;
+import tigase.xmpp.Authorization;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.StanzaType;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static tigase.archive.processors.MessageArchivePlugin.PREFS_OWNER_JID;
+
+/**
+ * Stores retention period of messages set by a user, so messages of users
+ * of domains with user defined retention may be removed by the component.
+ * Default preferences without retention period remove the stored one.
+ *
+ * Preferences are validated, stored and confirmed by the session manager,
+ * which forwards them to the component afterwards marked with JID of the
+ * owner. Preferences sent directly to the component are not accepted, as they
+ * were not validated. Component does not confirm stored retention period and
+ * error of the component is only logged by the session manager.
+ */
+@Bean(name = "userRetention", parent = MessageArchiveComponent.class)
+public class UserRetentionModule extends AbstractModule {
+
+	private static final Logger log = Logger.getLogger(UserRetentionModule.class.getCanonicalName());
+
+	private static final String PREF_ELEM = "pref";
+	private static final String DEFAULT_ELEM = "default";
+	private static final String EXPIRE_ATTR = "expire";
+
+	@Override
+	public String[] getFeatures() {
+		return new String[0];
+	}
+
+	@Override
+	public Criteria getModuleCriteria() {
+		return null;
+	}
+
+	@Override
+	public void process(Packet packet) throws ComponentException, TigaseStringprepException {
+		String ownerStr = packet.getAttributeStaticStr(PREFS_OWNER_JID);
+		BareJID owner = packet.getStanzaFrom() == null ? null : packet.getStanzaFrom().getBareJID();
+		// preferences forwarded by the session manager are addressed to the user, not to the component
+		if (ownerStr == null || owner == null || !owner.equals(BareJID.bareJIDInstance(ownerStr)) ||
+				(packet.getStanzaTo() != null && !owner.equals(packet.getStanzaTo().getBareJID()))) {
+			throw new ComponentException(Authorization.NOT_ALLOWED,
+					"Preferences may be changed only using the session manager");
+		}
+		packet.getElement().removeAttribute(PREFS_OWNER_JID);
+
+		Element defaultEl = packet.getElement().getChild(PREF_ELEM, MA_XMLNS).getChild(DEFAULT_ELEM);
+		if (defaultEl == null) {
+			throw new ComponentException(Authorization.BAD_REQUEST, "Missing default element");
+		}
+		String expireStr = defaultEl.getAttributeStaticStr(EXPIRE_ATTR);
+
+		Long expire;
+		try {
+			// default preferences without expire attribute remove retention period set by a user
+			expire = expireStr == null ? null : Long.parseLong(expireStr);
+		} catch (NumberFormatException ex) {
+			throw new ComponentException(Authorization.BAD_REQUEST, "Value of expire attribute must be a number");
+		}
+		if (expire != null && expire <= 0) {
+			throw new ComponentException(Authorization.NOT_ACCEPTABLE, "Value of expire attribute must be bigger than 0");
+		}
+
+		try {
+			msg_repo.setUserRetention(owner, expire);
+		} catch (TigaseDBException e) {
+			log.log(Level.WARNING, "Error storing retention period of messages of " + owner, e);
+			throw new ComponentException(Authorization.INTERNAL_SERVER_ERROR, "Error storing retention period of messages");
+		}
+	}
+
+	@Override
+	public boolean canHandle(Packet packet) {
+		return packet.getType() == StanzaType.set && packet.getElement().getChild(PREF_ELEM, MA_XMLNS) != null;
+	}
+}
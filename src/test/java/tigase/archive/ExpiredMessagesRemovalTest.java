@@ -0,0 +1,82 @@
+/*
+ * ExpiredMessagesRemovalTest.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive;
+
+import org.junit.Test;
+import tigase.stats.StatisticsList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+
+import static org.junit.Assert.assertEquals;
+
+public class ExpiredMessagesRemovalTest {
+
+	@Test
+	public void testStatisticsDuringRemoval() {
+		ExpiredMessagesRemoval removal = new ExpiredMessagesRemoval();
+		removal.started(System.currentTimeMillis());
+
+		List<Long> removedDuringRun = new ArrayList<>();
+		List<Long> lastChunkDuringRun = new ArrayList<>();
+		List<String> completedDuringRun = new ArrayList<>();
+		// statistics are read after each chunk, as they would be while repository is still removing messages
+		LongConsumer chunkRemoved = chunk -> {
+			removal.accept(chunk);
+			StatisticsList list = getStatistics(removal);
+			removedDuringRun.add(list.getValue("test", "Expired messages removed for example.com", -2L));
+			lastChunkDuringRun.add(list.getValue("test", "Expired messages removed in last chunk for example.com", -2L));
+			completedDuringRun.add(list.getValue("test", "Expired messages removal completed for example.com", (String) null));
+		};
+		chunkRemoved.accept(100);
+		chunkRemoved.accept(100);
+		chunkRemoved.accept(30);
+
+		assertEquals(3, removedDuringRun.size());
+		assertEquals(Long.valueOf(100), removedDuringRun.get(0));
+		assertEquals(Long.valueOf(200), removedDuringRun.get(1));
+		assertEquals(Long.valueOf(230), removedDuringRun.get(2));
+		assertEquals(Long.valueOf(30), lastChunkDuringRun.get(2));
+		for (String completed : completedDuringRun) {
+			assertEquals("false", completed);
+		}
+
+		removal.finished(230);
+		StatisticsList list = getStatistics(removal);
+		assertEquals(230, list.getValue("test", "Expired messages removed for example.com", -2L));
+		assertEquals("true", list.getValue("test", "Expired messages removal completed for example.com", (String) null));
+
+		// next run starts counting again
+		removal.started(System.currentTimeMillis());
+		list = getStatistics(removal);
+		assertEquals(0, list.getValue("test", "Expired messages removed for example.com", -2L));
+		assertEquals("false", list.getValue("test", "Expired messages removal completed for example.com", (String) null));
+	}
+
+	private static StatisticsList getStatistics(ExpiredMessagesRemoval removal) {
+		StatisticsList list = new StatisticsList(Level.ALL);
+		removal.getStatistics("test", "example.com", list);
+		return list;
+	}
+}
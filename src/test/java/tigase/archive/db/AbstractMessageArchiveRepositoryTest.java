@@ -27,9 +27,14 @@ import org.junit.runner.Description;
 import org.junit.runners.MethodSorters;
 import org.junit.runners.model.Statement;
 import tigase.archive.QueryCriteria;
+import tigase.component.DSLBeanConfigurator;
 import tigase.component.exceptions.ComponentException;
 import tigase.component.exceptions.RepositoryException;
 import tigase.db.*;
+import tigase.kernel.DefaultTypesConverter;
+import tigase.kernel.beans.config.AbstractBeanConfigurator;
+import tigase.kernel.core.Kernel;
+import tigase.stats.StatisticsList;
 import tigase.util.TigaseStringprepException;
 import tigase.xml.Element;
 import tigase.xmpp.BareJID;
@@ -37,11 +42,17 @@ import tigase.xmpp.JID;
 import tigase.xmpp.StanzaType;
 import tigase.xmpp.mam.MAMRepository;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 
 /**
  *
@@ -314,6 +325,241 @@ public abstract class AbstractMessageArchiveRepositoryTest {
 		Assert.assertTrue("Incorrect number of message", msgs.size() >= 1);
 	}
 
+	@Test
+	public void test3_getStoredCollections() throws Exception {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-3");
+		LocalDate today = LocalDate.now(ZoneOffset.UTC);
+		Date start = new Date(today.minusDays(3).atStartOfDay().toEpochSecond(ZoneOffset.UTC) * 1000);
+		Date end = new Date(today.atStartOfDay().toEpochSecond(ZoneOffset.UTC) * 1000);
+		for (int days = 3; days > 0; days--) {
+			LocalDateTime time = today.minusDays(days).atTime(10, 0);
+			archiveMessage(buddy, new Date(time.toEpochSecond(ZoneOffset.UTC) * 1000), "Collections test " + days, null);
+			time = time.plusMinutes(30);
+			archiveMessage(buddy, new Date(time.toEpochSecond(ZoneOffset.UTC) * 1000), "Collections test " + days + " again", null);
+		}
+
+		MessageArchiveRepository<QueryCriteria, DataSource> storedRepo = newRepository("storedCollections", true);
+		try {
+			QueryCriteria crit = newQuery(repo, buddy);
+			List<String> collections = getCollections(repo, crit);
+			Assert.assertEquals("Incorrect number of collections", 3, collections.size());
+			QueryCriteria storedCrit = newQuery(storedRepo, buddy);
+			Assert.assertEquals("Incorrect collections", collections, getCollections(storedRepo, storedCrit));
+			Assert.assertEquals("Incorrect number of collections", crit.getRsm().getCount(),
+								storedCrit.getRsm().getCount());
+
+			QueryCriteria allCrit = repo.newQuery();
+			allCrit.setQuestionerJID(owner.copyWithoutResource());
+			allCrit.setStart(start);
+			allCrit.setEnd(end);
+			QueryCriteria storedAllCrit = storedRepo.newQuery();
+			storedAllCrit.setQuestionerJID(owner.copyWithoutResource());
+			storedAllCrit.setStart(start);
+			storedAllCrit.setEnd(end);
+			Assert.assertEquals("Incorrect collections", getCollections(repo, allCrit), getCollections(storedRepo, storedAllCrit));
+
+			// summary of a day is updated when messages of this day are removed
+			Date dayStart = new Date(today.minusDays(2).atStartOfDay().toEpochSecond(ZoneOffset.UTC) * 1000);
+			Date dayEnd = new Date(today.minusDays(1).atStartOfDay().toEpochSecond(ZoneOffset.UTC) * 1000 - 1000);
+			repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), dayStart, dayEnd);
+			collections = getCollections(repo, newQuery(repo, buddy));
+			Assert.assertEquals("Incorrect number of collections", 2, collections.size());
+			Assert.assertEquals("Incorrect collections", collections, getCollections(storedRepo, newQuery(storedRepo, buddy)));
+		} finally {
+			storedRepo.destroy();
+		}
+
+		// filling summary table again does not change collections which are already there
+		MessageArchiveRepository<QueryCriteria, DataSource> backfillRepo = newRepository("storedCollections", true,
+																						 "collectionsBackfill", true);
+		try {
+			long deadline = System.currentTimeMillis() + 60 * 1000;
+			while (true) {
+				StatisticsList list = new StatisticsList(Level.ALL);
+				backfillRepo.collectStatistics("test", list);
+				if ("true".equals(list.getValue("test", "Collections backfill completed", (String) null))) {
+					break;
+				}
+				Assert.assertTrue("Timeout waiting for summary table of collections", System.currentTimeMillis() < deadline);
+				Thread.sleep(100);
+			}
+			Assert.assertEquals("Incorrect collections", getCollections(repo, newQuery(repo, buddy)),
+								getCollections(backfillRepo, newQuery(backfillRepo, buddy)));
+		} finally {
+			backfillRepo.destroy();
+			repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), start, end);
+		}
+	}
+
+	@Test
+	public void test4_getItems_pagesWithUID() throws RepositoryException, ComponentException {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-3");
+		long start = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (int i = 0; i < 8; i++) {
+			Element msg = new Element("message", new String[] { "from", "to", "type"}, new String[] { owner.toString(), buddy.toString(), StanzaType.chat.name()});
+			msg.addChild(new Element("body", "Page test " + i));
+			repo.archiveMessage(owner.getBareJID(), buddy, MessageArchiveRepository.Direction.outgoing, new Date(start + i * 1000), msg, null);
+		}
+
+		List<String> ids = new ArrayList<>();
+		List<String> bodies = new ArrayList<>();
+		for (int index = 0; index < 8; index += 3) {
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(owner.copyWithoutResource());
+			crit.setWith(buddy.copyWithoutResource());
+			crit.getRsm().setIndex(index);
+			crit.getRsm().setMax(3);
+			repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> {
+				ids.add(item.getId());
+				bodies.add(item.getMessage().getChild("body").getCData());
+			});
+		}
+		Assert.assertEquals("Incorrect number of messages", 8, ids.size());
+		for (int i = 0; i < 8; i++) {
+			Assert.assertEquals("Incorrect message body", "Page test " + i, bodies.get(i));
+		}
+
+		// pages after a message are retrieved in the same order as pages at given index
+		List<String> afterIds = new ArrayList<>();
+		String after = null;
+		while (true) {
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(owner.copyWithoutResource());
+			crit.setWith(buddy.copyWithoutResource());
+			if (after != null) {
+				crit.getRsm().setAfter(after);
+			}
+			crit.getRsm().setMax(3);
+			List<String> page = new ArrayList<>();
+			repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> page.add(item.getId()));
+			Assert.assertEquals("Incorrect number of messages", Integer.valueOf(8), crit.getRsm().getCount());
+			if (after != null) {
+				Assert.assertNull("Index of page after a message should not be counted", crit.getRsm().getIndex());
+			}
+			if (page.isEmpty()) {
+				break;
+			}
+			afterIds.addAll(page);
+			after = page.get(page.size() - 1);
+		}
+		Assert.assertEquals("Incorrect messages in pages after a message", ids, afterIds);
+
+		// pages before a message are retrieved in the same order as pages at given index
+		List<String> beforeIds = new ArrayList<>();
+		beforeIds.add(ids.get(ids.size() - 1));
+		String before = ids.get(ids.size() - 1);
+		while (true) {
+			QueryCriteria crit = repo.newQuery();
+			crit.setQuestionerJID(owner.copyWithoutResource());
+			crit.setWith(buddy.copyWithoutResource());
+			crit.getRsm().setBefore(before);
+			crit.getRsm().setMax(3);
+			List<String> page = new ArrayList<>();
+			repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> page.add(item.getId()));
+			if (page.isEmpty()) {
+				break;
+			}
+			beforeIds.addAll(0, page);
+			before = page.get(0);
+		}
+		Assert.assertEquals("Incorrect messages in pages before a message", ids, beforeIds);
+
+		repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(start - 1000), new Date());
+	}
+
+	@Test
+	public void test4_getItems_singleQueryPaging() throws Exception {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-3");
+		long start = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (int i = 0; i < 7; i++) {
+			archiveMessage(buddy, new Date(start + i * 1000), "Single query test " + i, null);
+		}
+
+		MessageArchiveRepository<QueryCriteria, DataSource> multiQueryRepo = newRepository("singleQueryPaging", false);
+		try {
+			List<String> items = getItems(multiQueryRepo, newQuery(multiQueryRepo, buddy));
+			Assert.assertEquals("Incorrect number of messages", 7, items.size());
+			String second = items.get(1).split(" ")[0];
+			String sixth = items.get(5).split(" ")[0];
+			String third = items.get(2).split(" ")[0];
+
+			for (int index : new int[] { 0, 3, 6 }) {
+				assertSamePage(multiQueryRepo, repo, buddy, crit -> {
+					crit.getRsm().setIndex(index);
+					crit.getRsm().setMax(3);
+				});
+				assertSamePage(multiQueryRepo, repo, buddy, crit -> {
+					crit.setUseMessageIdInRsm(false);
+					crit.getRsm().setIndex(index);
+					crit.getRsm().setMax(3);
+				});
+			}
+			assertSamePage(multiQueryRepo, repo, buddy, crit -> {
+				crit.getRsm().setAfter(second);
+				crit.getRsm().setMax(3);
+			});
+			assertSamePage(multiQueryRepo, repo, buddy, crit -> {
+				crit.getRsm().setBefore(sixth);
+				crit.getRsm().setMax(3);
+			});
+			assertSamePage(multiQueryRepo, repo, buddy, crit -> {
+				crit.getRsm().setBefore(third);
+				crit.getRsm().setMax(3);
+			});
+			assertSamePage(multiQueryRepo, repo, buddy, crit -> {
+				Element query = new Element("query");
+				query.addChild(new Element("set", new Element[] { new Element("max", "3"), new Element("before") },
+										   new String[] { "xmlns" }, new String[] { "http://jabber.org/protocol/rsm" }));
+				crit.getRsm().fromElement(query);
+			});
+		} finally {
+			multiQueryRepo.destroy();
+			repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(start - 1000), new Date());
+		}
+	}
+
+	@Test
+	public void test4_getItems_streaming() throws Exception {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-3");
+		long start = System.currentTimeMillis() - 60 * 60 * 1000;
+		for (int i = 0; i < 7; i++) {
+			archiveMessage(buddy, new Date(start + i * 1000), "Streaming test " + i, null);
+		}
+
+		// messages are fetched in smaller chunks than a page, so handler is called while they are read
+		MessageArchiveRepository<QueryCriteria, DataSource> streamingRepo = newRepository("streamItems", true,
+																						  "itemsFetchSize", 2);
+		try {
+			List<String> items = getItems(repo, newQuery(repo, buddy));
+			Assert.assertEquals("Incorrect number of messages", 7, items.size());
+			Assert.assertEquals("Incorrect messages", items, getItems(streamingRepo, newQuery(streamingRepo, buddy)));
+			String third = items.get(2).split(" ")[0];
+
+			for (int index : new int[] { 0, 5 }) {
+				assertSamePage(repo, streamingRepo, buddy, crit -> {
+					crit.getRsm().setIndex(index);
+					crit.getRsm().setMax(3);
+				});
+				assertSamePage(repo, streamingRepo, buddy, crit -> {
+					crit.setUseMessageIdInRsm(false);
+					crit.getRsm().setIndex(index);
+					crit.getRsm().setMax(3);
+				});
+			}
+			assertSamePage(repo, streamingRepo, buddy, crit -> {
+				crit.getRsm().setAfter(third);
+				crit.getRsm().setMax(3);
+			});
+			assertSamePage(repo, streamingRepo, buddy, crit -> {
+				crit.getRsm().setBefore(third);
+				crit.getRsm().setMax(3);
+			});
+		} finally {
+			streamingRepo.destroy();
+			repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(start - 1000), new Date());
+		}
+	}
+
 	@Test
 	public void test4_getItemsWithTag_withIndex() throws InterruptedException, RepositoryException, ComponentException {
 		QueryCriteria crit = repo.newQuery();
@@ -434,6 +680,32 @@ public abstract class AbstractMessageArchiveRepositoryTest {
 		Assert.assertEquals("Incorrect number of collections", 0, chats.size());	
 	}
 	
+	@Test
+	public void test5_getItemsContainsSubstrings() throws Exception {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-5");
+		Date start = new Date();
+		archiveMessage(buddy, new Date(start.getTime()), "alpha-bravo charlie", null);
+		archiveMessage(buddy, new Date(start.getTime() + 1000), "charliebravo", null);
+		archiveMessage(buddy, new Date(start.getTime() + 2000), "delta", null);
+
+		// terms are matched as parts of words, including short terms and punctuation
+		Assert.assertEquals(Arrays.asList("charliebravo"), getBodies(buddy, "liebr"));
+		Assert.assertEquals(Arrays.asList("alpha-bravo charlie", "charliebravo"), getBodies(buddy, "li"));
+		Assert.assertEquals(Arrays.asList("alpha-bravo charlie"), getBodies(buddy, "alpha-bravo"));
+		// all terms need to be matched
+		Assert.assertEquals(Arrays.asList("alpha-bravo charlie"), getBodies(buddy, "bravo", "alpha"));
+		Assert.assertEquals(Collections.emptyList(), getBodies(buddy, "delta", "alpha"));
+
+		QueryCriteria crit = newQuery(repo, buddy);
+		crit.addContains("ta");
+		Assert.assertEquals("Incorrect number of collections", 1, getCollections(repo, crit).size());
+		crit = newQuery(repo, buddy);
+		crit.addContains("echo");
+		Assert.assertEquals("Incorrect number of collections", 0, getCollections(repo, crit).size());
+
+		repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(start.getTime() - 1000), new Date());
+	}
+
 	@Test
 	public void test6_getItems() throws InterruptedException, RepositoryException, ComponentException {
 		QueryCriteria crit = repo.newQuery();
@@ -470,6 +742,46 @@ public abstract class AbstractMessageArchiveRepositoryTest {
 		Assert.assertEquals("Still some messages, while in this duration all should be deleted", 0, msgs.size());
 	}
 
+	@Test
+	public void test7_removeOrphans() throws Exception {
+		String uuid = UUID.randomUUID().toString();
+		JID removedBuddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-7");
+		JID keptBuddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-7");
+		Date start = new Date();
+		archiveMessage(removedBuddy, start, "Removed " + uuid, new HashSet<>(Arrays.asList("#orphan" + uuid)));
+		archiveMessage(keptBuddy, start, "Kept " + uuid, new HashSet<>(Arrays.asList("#kept" + uuid)));
+		repo.removeItems(owner.getBareJID(), removedBuddy.getBareJID().toString(), new Date(start.getTime() - 1000),
+						 new Date());
+		Assert.assertEquals(Arrays.asList("#orphan" + uuid), repo.getTags(owner.getBareJID(), "#orphan" + uuid, repo.newQuery()));
+
+		MessageArchiveRepository<QueryCriteria, DataSource> orphansRepo = newRepository("removeOrphansInterval",
+																						Duration.ofHours(1),
+																						"removeOrphansPause",
+																						Duration.ZERO);
+		try {
+			long deadline = System.currentTimeMillis() + 10 * 1000;
+			while (!repo.getTags(owner.getBareJID(), "#orphan" + uuid, repo.newQuery()).isEmpty()) {
+				Assert.assertTrue("Timeout waiting for removal of unreferenced tag", System.currentTimeMillis() < deadline);
+				Thread.sleep(100);
+			}
+			Assert.assertEquals(Arrays.asList("#kept" + uuid), repo.getTags(owner.getBareJID(), "#kept" + uuid, repo.newQuery()));
+
+			if (dataSource instanceof DataRepository) {
+				// JIDs are removed after tags, so it may take a while
+				while (countJids(removedBuddy) > 0) {
+					Assert.assertTrue("Timeout waiting for removal of unreferenced JID", System.currentTimeMillis() < deadline);
+					Thread.sleep(100);
+				}
+				Assert.assertEquals("JID still referenced by a message was removed", 1, countJids(keptBuddy));
+				Assert.assertTrue("JID of an owner was removed", countJids(owner) > 0);
+			}
+		} finally {
+			orphansRepo.destroy();
+			repo.removeItems(owner.getBareJID(), keptBuddy.getBareJID().toString(), new Date(start.getTime() - 1000),
+							 new Date());
+		}
+	}
+
 	@Test
 	public void test8_removeExpiredItems() throws RepositoryException, TigaseStringprepException, ComponentException {
 		Date date = new Date();
@@ -520,6 +832,189 @@ public abstract class AbstractMessageArchiveRepositoryTest {
 		Assert.assertEquals("Incorrect number of messages", 0, msgs.size());
 	}
 
+	@Test
+	public void test8_removeExpiredItemsInChunks() throws Exception {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-8");
+		LocalDateTime time = LocalDateTime.now(ZoneOffset.UTC).minusDays(2);
+		for (int i = 0; i < 5; i++) {
+			archiveMessage(buddy, new Date(time.plusMinutes(i).toEpochSecond(ZoneOffset.UTC) * 1000), "Expired " + i, null);
+		}
+		Date now = new Date();
+		archiveMessage(buddy, now, "Not expired", null);
+
+		MessageArchiveRepository<QueryCriteria, DataSource> chunksRepo = newRepository("deleteExpiredChunkSize", 2,
+																					   "deleteExpiredChunkPause",
+																					   Duration.ofMillis(10));
+		try {
+			BareJID domain = BareJID.bareJIDInstance(owner.getDomain());
+			List<Long> chunks = new ArrayList<>();
+			long removed = chunksRepo.deleteExpiredMessages(domain, LocalDateTime.now(ZoneOffset.UTC).minusDays(1),
+															chunks::add);
+			Assert.assertTrue("Incorrect number of removed messages", removed >= 5);
+			// progress is reported after each chunk, before removal is finished
+			Assert.assertTrue("Incorrect number of reported chunks", chunks.size() >= 3);
+			Assert.assertEquals("Incorrect number of reported messages", removed,
+								chunks.stream().mapToLong(Long::longValue).sum());
+
+			List<String> items = getItems(repo, newQuery(repo, buddy));
+			Assert.assertEquals("Incorrect number of messages", 1, items.size());
+			Assert.assertTrue("Incorrect message left", items.get(0).endsWith(" Not expired"));
+
+			// collections are updated by chunks, without removal using a single statement
+			List<String> collections = getCollections(repo, newQuery(repo, buddy));
+			Assert.assertEquals("Incorrect number of collections", 1, collections.size());
+			long collectionStart = Long.parseLong(collections.get(0).substring(collections.get(0).indexOf(' ') + 1));
+			Assert.assertTrue("Collection starts at expired message", collectionStart > now.getTime() - 2000);
+		} finally {
+			chunksRepo.destroy();
+			repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(now.getTime() - 1000), new Date());
+		}
+	}
+
+	@Test
+	public void test8_removeExpiredUserItems() throws RepositoryException, TigaseStringprepException, ComponentException {
+		String uuid = UUID.randomUUID().toString();
+		String body = "Test 1 " + uuid;
+		Element msg = new Element("message", new String[] { "from", "to", "type"}, new String[] { owner.toString(), buddy.toString(), StanzaType.chat.name()});
+		msg.addChild(new Element("body", body));
+		LocalDateTime time = LocalDateTime.now().minusHours(2);
+		Date originalTime = new Date(time.toEpochSecond(ZoneOffset.UTC) * 1000);
+		repo.archiveMessage(owner.getBareJID(), buddy, MessageArchiveRepository.Direction.outgoing, originalTime, msg, null);
+
+		QueryCriteria crit = repo.newQuery();
+		crit.setQuestionerJID(owner.copyWithoutResource());
+		crit.setWith(buddy.copyWithoutResource());
+		crit.addContains(uuid);
+		crit.getRsm().setIndex(0);
+		crit.getRsm().setMax(1);
+		List<Element> msgs = new ArrayList<>();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> msgs.add(item.getMessage()));
+		Assert.assertEquals("Incorrect number of messages", 1, msgs.size());
+
+		// retention period longer than age of a message
+		repo.setUserRetention(owner.getBareJID(), 3 * 60 * 60L);
+		repo.deleteExpiredUserMessages(BareJID.bareJIDInstance(owner.getDomain()), LocalDateTime.now());
+		msgs.clear();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> msgs.add(item.getMessage()));
+		Assert.assertEquals("Incorrect number of messages", 1, msgs.size());
+
+		repo.setUserRetention(owner.getBareJID(), 60 * 60L);
+		repo.deleteExpiredUserMessages(BareJID.bareJIDInstance(owner.getDomain()), LocalDateTime.now());
+		msgs.clear();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> msgs.add(item.getMessage()));
+		Assert.assertEquals("Incorrect number of messages", 0, msgs.size());
+
+		repo.setUserRetention(owner.getBareJID(), null);
+	}
+
+	@Test
+	public void test9_archiveMessagesInBatch() throws Exception {
+		JID batchBuddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-9");
+		JID otherOwner = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-1");
+		Date date = new Date();
+		Set<String> tags = new HashSet<>(Arrays.asList("#Batch"));
+		List<ArchiveEntry> entries = new ArrayList<>();
+		entries.add(newEntry(owner, batchBuddy, date, "Batch 1", null));
+		entries.add(newEntry(otherOwner, batchBuddy, new Date(date.getTime() + 1000), "Batch 2", tags));
+		entries.add(newEntry(owner, batchBuddy, new Date(date.getTime() + 2000), "Batch 3", tags));
+		// message which is already in the batch is stored only once
+		entries.add(newEntry(owner, batchBuddy, date, "Batch 1", null));
+		repo.archiveMessages(entries);
+
+		List<String> items = getItems(repo, newQuery(repo, batchBuddy));
+		Assert.assertEquals("Incorrect number of messages", 2, items.size());
+		Assert.assertTrue("Incorrect message body", items.get(0).endsWith(" Batch 1"));
+		Assert.assertTrue("Incorrect message body", items.get(1).endsWith(" Batch 3"));
+
+		// tags are added to messages of their owners
+		QueryCriteria crit = newQuery(repo, batchBuddy);
+		crit.addTag("#Batch");
+		items = getItems(repo, crit);
+		Assert.assertEquals("Incorrect number of messages", 1, items.size());
+		Assert.assertTrue("Incorrect message body", items.get(0).endsWith(" Batch 3"));
+		crit = repo.newQuery();
+		crit.setQuestionerJID(otherOwner.copyWithoutResource());
+		crit.setWith(batchBuddy.copyWithoutResource());
+		crit.addTag("#Batch");
+		items = getItems(repo, crit);
+		Assert.assertEquals("Incorrect number of messages", 1, items.size());
+		Assert.assertTrue("Incorrect message body", items.get(0).endsWith(" Batch 2"));
+
+		repo.removeItems(owner.getBareJID(), batchBuddy.getBareJID().toString(), new Date(0), new Date());
+		repo.removeItems(otherOwner.getBareJID(), batchBuddy.getBareJID().toString(), new Date(0), new Date());
+	}
+
+	@Test
+	public void test9_coldStorage() throws Exception {
+		JID buddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-9");
+		LocalDateTime time = LocalDateTime.now(ZoneOffset.UTC).minusDays(3);
+		archiveMessage(buddy, new Date(time.toEpochSecond(ZoneOffset.UTC) * 1000), "Cold 0",
+					   new HashSet<>(Arrays.asList("#Cold")));
+		archiveMessage(buddy, new Date(time.plusMinutes(2).toEpochSecond(ZoneOffset.UTC) * 1000), "Cold 2", null);
+		Date now = new Date();
+		archiveMessage(buddy, now, "Hot", null);
+
+		// old messages are moved when repository is started, next run is not expected during the test
+		MessageArchiveRepository<QueryCriteria, DataSource> coldRepo = newRepository("coldStorageAfter",
+																					  Duration.ofDays(1),
+																					  "coldStorageInterval",
+																					  Duration.ofHours(1));
+		try {
+			for (int i = 0; i < 100 && countColdMessages(buddy) < 2; i++) {
+				Thread.sleep(100);
+			}
+			Assert.assertEquals("Messages not moved to cold storage", 2, countColdMessages(buddy));
+
+			// message archived late is stored in cold storage, so it is still returned in order of time
+			archiveMessage(coldRepo, buddy, new Date(time.plusMinutes(1).toEpochSecond(ZoneOffset.UTC) * 1000),
+						   "Cold 1", new HashSet<>(Arrays.asList("#Late")));
+			Assert.assertEquals("Late message not stored in cold storage", 3, countColdMessages(buddy));
+
+			List<String> bodies = new ArrayList<>();
+			String after = null;
+			while (true) {
+				QueryCriteria crit = newQuery(coldRepo, buddy);
+				if (after != null) {
+					crit.getRsm().setAfter(after);
+				}
+				crit.getRsm().setMax(2);
+				List<String> page = getItems(coldRepo, crit);
+				if (page.isEmpty()) {
+					break;
+				}
+				Assert.assertEquals("Incorrect number of messages", Integer.valueOf(4), crit.getRsm().getCount());
+				for (String item : page) {
+					bodies.add(item.substring(item.indexOf(' ') + 1));
+				}
+				String last = page.get(page.size() - 1);
+				after = last.substring(0, last.indexOf(' '));
+			}
+			Assert.assertEquals("Incorrect messages in pages", Arrays.asList("Cold 0", "Cold 1", "Cold 2", "Hot"),
+								bodies);
+
+			// tags and bodies of messages are searched in cold storage as well
+			QueryCriteria crit = newQuery(coldRepo, buddy);
+			crit.addTag("#Cold");
+			List<String> items = getItems(coldRepo, crit);
+			Assert.assertEquals("Incorrect number of messages", 1, items.size());
+			Assert.assertTrue("Incorrect message body", items.get(0).endsWith(" Cold 0"));
+			crit = newQuery(coldRepo, buddy);
+			crit.addTag("#Late");
+			items = getItems(coldRepo, crit);
+			Assert.assertEquals("Incorrect number of messages", 1, items.size());
+			Assert.assertTrue("Incorrect message body", items.get(0).endsWith(" Cold 1"));
+			crit = newQuery(coldRepo, buddy);
+			crit.addContains("old 2");
+			items = getItems(coldRepo, crit);
+			Assert.assertEquals("Incorrect number of messages", 1, items.size());
+			Assert.assertTrue("Incorrect message body", items.get(0).endsWith(" Cold 2"));
+		} finally {
+			coldRepo.destroy();
+			repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(0), new Date());
+		}
+		Assert.assertEquals("Messages not removed from cold storage", 0, countColdMessages(buddy));
+	}
+
 	@Test
 	public void test9_jidComparison() throws TigaseStringprepException, ComponentException, RepositoryException {
 		Date date = new Date();
@@ -548,6 +1043,159 @@ public abstract class AbstractMessageArchiveRepositoryTest {
 		repo.removeItems(owner.getBareJID(), buddy.getBareJID().toString(), new Date(date.getTime() - 1000), new Date());
 	}
 
+	@Test
+	public void test9_unknownJids() throws Exception {
+		JID unknownBuddy = JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", "tigase-9");
+		QueryCriteria crit = newQuery(repo, unknownBuddy);
+		Assert.assertEquals("Incorrect number of messages", 0, getItems(repo, crit).size());
+		Assert.assertEquals("Incorrect number of messages", Integer.valueOf(0), crit.getRsm().getCount());
+		crit = newQuery(repo, unknownBuddy);
+		Assert.assertEquals("Incorrect number of collections", 0, getCollections(repo, crit).size());
+
+		// messages of a buddy are not returned to an owner who never archived any message
+		archiveMessage(unknownBuddy, new Date(), "Test 1", null);
+		crit = repo.newQuery();
+		crit.setQuestionerJID(JID.jidInstanceNS("UA-" + UUID.randomUUID(), "test", null));
+		crit.setWith(unknownBuddy.copyWithoutResource());
+		Assert.assertEquals("Incorrect number of messages", 0, getItems(repo, crit).size());
+		Assert.assertEquals("Incorrect number of messages", Integer.valueOf(0), crit.getRsm().getCount());
+		Assert.assertEquals("Incorrect number of messages", 1, getItems(repo, newQuery(repo, unknownBuddy)).size());
+
+		repo.removeItems(owner.getBareJID(), unknownBuddy.getBareJID().toString(), new Date(0), new Date());
+	}
+
+	/**
+	 * Creates another instance of repository within a kernel, which sets given
+	 * values of its configuration fields, ie. to enable features which are
+	 * disabled by default.
+	 */
+	protected MessageArchiveRepository<QueryCriteria, DataSource> newRepository(Object... config) throws Exception {
+		Map<String, Object> repoConfig = new HashMap<>();
+		for (int i = 0; i < config.length; i += 2) {
+			repoConfig.put((String) config[i], config[i + 1]);
+		}
+		Map<String, Object> props = new HashMap<>();
+		props.put("repo", repoConfig);
+
+		Kernel kernel = new Kernel();
+		kernel.registerBean("defaultTypesConverter").asClass(DefaultTypesConverter.class).exportable().exec();
+		kernel.registerBean(AbstractBeanConfigurator.DEFAULT_CONFIGURATOR_NAME)
+				.asClass(DSLBeanConfigurator.class)
+				.exportable()
+				.exec();
+		kernel.getInstance(DSLBeanConfigurator.class).setProperties(props);
+		kernel.registerBean("repo")
+				.asClass(DataSourceHelper.getDefaultClass(MessageArchiveRepository.class, uri))
+				.setActive(true)
+				.exec();
+
+		MessageArchiveRepository<QueryCriteria, DataSource> repo = kernel.getInstance("repo");
+		repo.setDataSource(dataSource);
+		return repo;
+	}
+
+	private int countColdMessages(JID buddy) throws SQLException {
+		DataRepository dataRepo = (DataRepository) dataSource;
+		ResultSet rs = null;
+		try (Statement stmt = dataRepo.createStatement(null)) {
+			rs = stmt.executeQuery("select count(1) from tig_ma_msgs_cold m inner join tig_ma_jids b on b.jid_id = m.buddy_id" +
+										   " where lower(b.jid) = '" + buddy.getBareJID().toString().toLowerCase() + "'");
+			return rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			dataRepo.release(null, rs);
+		}
+	}
+
+	private int countJids(JID jid) throws SQLException {
+		DataRepository dataRepo = (DataRepository) dataSource;
+		ResultSet rs = null;
+		try (Statement stmt = dataRepo.createStatement(null)) {
+			rs = stmt.executeQuery("select count(1) from tig_ma_jids where lower(jid) = '" +
+										   jid.getBareJID().toString().toLowerCase() + "'");
+			return rs.next() ? rs.getInt(1) : 0;
+		} finally {
+			dataRepo.release(null, rs);
+		}
+	}
+
+	private void archiveMessage(JID buddy, Date date, String body, Set<String> tags) {
+		archiveMessage(repo, buddy, date, body, tags);
+	}
+
+	private void archiveMessage(MessageArchiveRepository<QueryCriteria, DataSource> repo, JID buddy, Date date,
+								String body, Set<String> tags) {
+		Element msg = new Element("message", new String[] { "from", "to", "type"}, new String[] { owner.toString(), buddy.toString(), StanzaType.chat.name()});
+		msg.addChild(new Element("body", body));
+		repo.archiveMessage(owner.getBareJID(), buddy, MessageArchiveRepository.Direction.outgoing, date, msg, tags);
+	}
+
+	private ArchiveEntry newEntry(JID owner, JID buddy, Date date, String body, Set<String> tags) {
+		Element msg = new Element("message", new String[] { "from", "to", "type"}, new String[] { owner.toString(), buddy.toString(), StanzaType.chat.name()});
+		msg.addChild(new Element("body", body));
+		return new ArchiveEntry(owner.getBareJID(), buddy, MessageArchiveRepository.Direction.outgoing, date, msg, tags);
+	}
+
+	private QueryCriteria newQuery(MessageArchiveRepository<QueryCriteria, DataSource> repo, JID buddy) {
+		QueryCriteria crit = repo.newQuery();
+		crit.setQuestionerJID(owner.copyWithoutResource());
+		crit.setWith(buddy.copyWithoutResource());
+		return crit;
+	}
+
+	/**
+	 * Returns bodies of messages exchanged with a buddy which contain all terms.
+	 */
+	private List<String> getBodies(JID buddy, String... contains) throws TigaseDBException {
+		QueryCriteria crit = newQuery(repo, buddy);
+		for (String contain : contains) {
+			crit.addContains(contain);
+		}
+		List<String> bodies = new ArrayList<>();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> bodies.add(
+				item.getMessage().getChildCData("message/body")));
+		return bodies;
+	}
+
+	/**
+	 * Returns JIDs of buddies of found collections followed by their timestamps.
+	 */
+	private List<String> getCollections(MessageArchiveRepository<QueryCriteria, DataSource> repo, QueryCriteria crit)
+			throws TigaseDBException {
+		List<String> collections = new ArrayList<>();
+		repo.queryCollections(crit, (QueryCriteria qc, String with, Date ts, String type) -> collections.add(
+				BareJID.bareJIDInstanceNS(with) + " " + ts.getTime()));
+		return collections;
+	}
+
+	/**
+	 * Returns ids of found messages followed by their bodies.
+	 */
+	private List<String> getItems(MessageArchiveRepository<QueryCriteria, DataSource> repo, QueryCriteria crit)
+			throws ComponentException, TigaseDBException {
+		List<String> items = new ArrayList<>();
+		repo.queryItems(crit, (QueryCriteria qc, MAMRepository.Item item) -> items.add(
+				item.getId() + " " + item.getMessage().getChild("body").getCData()));
+		return items;
+	}
+
+	/**
+	 * Checks if both repositories return the same page of messages for the same
+	 * query. Index of a page is compared only if it is returned by both of them.
+	 */
+	private void assertSamePage(MessageArchiveRepository<QueryCriteria, DataSource> expectedRepo,
+								MessageArchiveRepository<QueryCriteria, DataSource> actualRepo, JID buddy,
+								Consumer<QueryCriteria> query) throws ComponentException, TigaseDBException {
+		QueryCriteria expected = newQuery(expectedRepo, buddy);
+		query.accept(expected);
+		QueryCriteria actual = newQuery(actualRepo, buddy);
+		query.accept(actual);
+		Assert.assertEquals("Incorrect messages", getItems(expectedRepo, expected), getItems(actualRepo, actual));
+		Assert.assertEquals("Incorrect number of messages", expected.getRsm().getCount(), actual.getRsm().getCount());
+		if (expected.getRsm().getIndex() != null && actual.getRsm().getIndex() != null) {
+			Assert.assertEquals("Incorrect index of page", expected.getRsm().getIndex(), actual.getRsm().getIndex());
+		}
+	}
+
 	private class ColItem {
 		private String with;
 		private Date ts;
@@ -0,0 +1,254 @@
+/*
+ * ArchiveJournalTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tigase.archive.QueryCriteria;
+import tigase.db.DataSource;
+import tigase.db.TigaseDBException;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ArchiveJournalTest {
+
+	private static final int HEADER_SIZE = 8;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testAppendAndRead() throws Exception {
+		ArchiveJournal journal = new ArchiveJournal(folder.getRoot(), 64 * 1024, false);
+		ArchiveEntry first = newEntry(1, new HashSet<>(Arrays.asList("#work", "@user")));
+		ArchiveEntry second = newEntry(2, null);
+		journal.append(first);
+		journal.append(second);
+		assertEquals(2, journal.getAppended());
+
+		List<ArchiveJournal.Record> records = journal.read(journal.getCheckpoint(), 10, 1);
+		assertEquals(2, records.size());
+		assertEntryEquals(first, records.get(0).getEntry());
+		assertEntryEquals(second, records.get(1).getEntry());
+		assertTrue(journal.isEnd(records.get(1).getNext()));
+
+		records = journal.read(journal.getCheckpoint(), 1, 1);
+		assertEquals(1, records.size());
+		assertEntryEquals(first, records.get(0).getEntry());
+		journal.close();
+	}
+
+	@Test
+	public void testRolloverToNewSegment() throws Exception {
+		ArchiveJournal journal = new ArchiveJournal(folder.getRoot(), 1024, false);
+		List<ArchiveEntry> entries = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			ArchiveEntry entry = newEntry(i, null);
+			entries.add(entry);
+			journal.append(entry);
+		}
+		assertTrue(journal.getSegmentsCount() > 1);
+		assertEquals(journal.getSegmentsCount(), segmentFiles().length);
+
+		List<ArchiveJournal.Record> records = journal.read(journal.getCheckpoint(), 100, 1);
+		assertEquals(entries.size(), records.size());
+		for (int i = 0; i < entries.size(); i++) {
+			assertEntryEquals(entries.get(i), records.get(i).getEntry());
+		}
+
+		// segments containing only stored records are removed
+		journal.commit(records.get(records.size() - 1).getNext());
+		assertEquals(1, journal.getSegmentsCount());
+		assertEquals(1, segmentFiles().length);
+		journal.close();
+	}
+
+	@Test
+	public void testRecoveryFromCheckpoint() throws Exception {
+		ArchiveJournal journal = new ArchiveJournal(folder.getRoot(), 1024, false);
+		for (int i = 0; i < 5; i++) {
+			journal.append(newEntry(i, null));
+		}
+		List<ArchiveJournal.Record> records = journal.read(journal.getCheckpoint(), 2, 1);
+		ArchiveJournal.Position position = records.get(1).getNext();
+		journal.commit(position);
+		journal.close();
+
+		journal = new ArchiveJournal(folder.getRoot(), 1024, false);
+		assertEquals(position.toString(), journal.getCheckpoint().toString());
+		journal.append(newEntry(5, null));
+
+		records = journal.read(journal.getCheckpoint(), 100, 1);
+		assertEquals(4, records.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEntryEquals(newEntry(i + 2, null), records.get(i).getEntry());
+		}
+		journal.close();
+	}
+
+	@Test
+	public void testTruncatedTailIsSkipped() throws Exception {
+		ArchiveJournal journal = new ArchiveJournal(folder.getRoot(), 64 * 1024, false);
+		journal.append(newEntry(0, null));
+		journal.append(newEntry(1, null));
+		List<ArchiveJournal.Record> records = journal.read(journal.getCheckpoint(), 10, 1);
+		int end = offset(records.get(1).getNext());
+		journal.close();
+
+		// record of which only a part was written before crash
+		try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+			file.seek(end);
+			file.writeInt(200);
+			file.writeInt(12345);
+			file.write(new byte[50]);
+		}
+
+		journal = new ArchiveJournal(folder.getRoot(), 64 * 1024, false);
+		journal.append(newEntry(2, null));
+		records = journal.read(journal.getCheckpoint(), 10, 1);
+		assertEquals(3, records.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEntryEquals(newEntry(i, null), records.get(i).getEntry());
+		}
+		journal.close();
+	}
+
+	@Test
+	public void testCorruptedTailIsNotReplayed() throws Exception {
+		ArchiveJournal journal = new ArchiveJournal(folder.getRoot(), 64 * 1024, false);
+		for (int i = 0; i < 3; i++) {
+			journal.append(newEntry(i, null));
+		}
+		List<ArchiveJournal.Record> records = journal.read(journal.getCheckpoint(), 10, 1);
+		int start = offset(records.get(1).getNext());
+
+		// data of the last record no longer matches its checksum
+		try (RandomAccessFile file = new RandomAccessFile(segmentFiles()[0], "rw")) {
+			file.seek(start + HEADER_SIZE + 1);
+			int b = file.read();
+			file.seek(start + HEADER_SIZE + 1);
+			file.write(b ^ 0xFF);
+		}
+
+		records = journal.read(journal.getCheckpoint(), 10, 1);
+		assertEquals(3, records.size());
+		assertNull(records.get(2).getEntry());
+		assertTrue(journal.isEnd(records.get(2).getNext()));
+
+		List<ArchiveEntry> stored = new ArrayList<>();
+		ArchiveWriter writer = newWriter(stored);
+		assertEquals(3, writer.replay(records, false));
+		assertEquals(2, stored.size());
+		assertEntryEquals(newEntry(0, null), stored.get(0));
+		assertEntryEquals(newEntry(1, null), stored.get(1));
+		journal.close();
+
+		// after restart corrupted record is not replayed again
+		journal = new ArchiveJournal(folder.getRoot(), 64 * 1024, false);
+		records = journal.read(journal.getCheckpoint(), 10, 1);
+		assertEquals(2, records.size());
+		stored.clear();
+		assertEquals(2, writer.replay(records, false));
+		assertEquals(2, stored.size());
+		journal.close();
+	}
+
+	@Test
+	public void testReplayStopsWhenRepositoryIsUnavailable() throws Exception {
+		ArchiveJournal journal = new ArchiveJournal(folder.getRoot(), 64 * 1024, false);
+		for (int i = 0; i < 3; i++) {
+			journal.append(newEntry(i, null));
+		}
+		List<ArchiveJournal.Record> records = journal.read(journal.getCheckpoint(), 10, 1);
+
+		ArchiveWriter writer = newWriter(null);
+		assertEquals(0, writer.replay(records, false));
+		assertEquals(0, writer.replay(records, true));
+		journal.close();
+	}
+
+	private static ArchiveEntry newEntry(int i, Set<String> tags) {
+		Element msg = new Element("message", new String[]{"type"}, new String[]{"chat"});
+		msg.addChild(new Element("body", "Message " + i));
+		return new ArchiveEntry(BareJID.bareJIDInstanceNS("user@example.com"),
+								JID.jidInstanceNS("buddy@example.com/res-" + i),
+								i % 2 == 0 ? MessageArchiveRepository.Direction.incoming : MessageArchiveRepository.Direction.outgoing,
+								new Date(1000000L + i), msg, tags);
+	}
+
+	private static void assertEntryEquals(ArchiveEntry expected, ArchiveEntry actual) {
+		assertNotNull(actual);
+		assertEquals(expected.getOwner(), actual.getOwner());
+		assertEquals(expected.getBuddy(), actual.getBuddy());
+		assertEquals(expected.getDirection(), actual.getDirection());
+		assertEquals(expected.getTimestamp(), actual.getTimestamp());
+		assertEquals(expected.getMessage().toString(), actual.getMessage().toString());
+		assertEquals(expected.getTags(), actual.getTags());
+	}
+
+	private static int offset(ArchiveJournal.Position position) {
+		return Integer.parseInt(position.toString().split(":")[1]);
+	}
+
+	private File[] segmentFiles() {
+		File[] files = folder.getRoot().listFiles((dir, name) -> name.endsWith(".journal"));
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Creates writer storing messages in a list, or failing to store them if
+	 * list is <code>null</code>.
+	 */
+	@SuppressWarnings("unchecked")
+	private static ArchiveWriter newWriter(List<ArchiveEntry> stored) throws Exception {
+		MessageArchiveRepository<QueryCriteria, DataSource> repo = (MessageArchiveRepository<QueryCriteria, DataSource>) Proxy
+				.newProxyInstance(ArchiveJournalTest.class.getClassLoader(),
+								  new Class[]{MessageArchiveRepository.class}, (proxy, method, args) -> {
+							if (method.getName().equals("archiveMessages")) {
+								if (stored == null) {
+									throw new TigaseDBException("Repository is not available");
+								}
+								stored.addAll((List<ArchiveEntry>) args[0]);
+								return null;
+							}
+							throw new UnsupportedOperationException(method.getName());
+						});
+
+		ArchiveWriter writer = new ArchiveWriter();
+		Field f = ArchiveWriter.class.getDeclaredField("msg_repo");
+		f.setAccessible(true);
+		f.set(writer, repo);
+		return writer;
+	}
+
+}
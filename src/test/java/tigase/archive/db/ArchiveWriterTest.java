@@ -0,0 +1,241 @@
+/*
+ * ArchiveWriterTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tigase.archive.QueryCriteria;
+import tigase.db.DataSource;
+import tigase.xml.Element;
+import tigase.xmpp.BareJID;
+import tigase.xmpp.JID;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Messages are stored by a single thread, one per batch, and each batch
+ * waits for a permit, so number of queued messages is controlled by tests.
+ * High watermark is 3 messages and low watermark is 1 message.
+ */
+public class ArchiveWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Semaphore permits = new Semaphore(0);
+	private final List<ArchiveEntry> stored = Collections.synchronizedList(new ArrayList<>());
+	private ArchiveWriter writer;
+
+	@After
+	public void tearDown() {
+		permits.release(1000);
+		if (writer != null) {
+			writer.beforeUnregister();
+		}
+	}
+
+	@Test
+	public void testDropPolicy() throws Exception {
+		writer = newWriter(ArchiveWriter.OverloadPolicy.drop);
+		fillQueue();
+
+		archive(3);
+		archive(4);
+		assertTrue(writer.isOverloaded());
+		assertEquals(1, counter("overloads"));
+		assertEquals(2, counter("shedMessages"));
+		assertEquals(3, pending());
+		assertEquals(2, writer.getQueueSize());
+
+		permits.release(3);
+		waitFor(() -> stored.size() == 3 && pending() == 0);
+		assertFalse(writer.isOverloaded());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("Message " + i, stored.get(i).getMessage().getChild("body").getCData());
+		}
+	}
+
+	@Test
+	public void testOverloadEndsBelowLowWatermark() throws Exception {
+		writer = newWriter(ArchiveWriter.OverloadPolicy.drop);
+		fillQueue();
+		archive(3);
+		assertTrue(writer.isOverloaded());
+
+		// below high watermark, but still above low watermark
+		permits.release(1);
+		waitFor(() -> pending() == 2);
+		assertTrue(writer.isOverloaded());
+		archive(4);
+		assertEquals(2, counter("shedMessages"));
+		assertEquals(2, pending());
+
+		permits.release(1);
+		waitFor(() -> pending() == 1);
+		assertFalse(writer.isOverloaded());
+		archive(5);
+		assertEquals(2, counter("shedMessages"));
+		assertEquals(2, pending());
+		assertEquals(1, counter("overloads"));
+	}
+
+	@Test
+	public void testSpillPolicy() throws Exception {
+		writer = newWriter(ArchiveWriter.OverloadPolicy.spill);
+		fillQueue();
+
+		archive(3);
+		assertTrue(writer.isOverloaded());
+		assertEquals(1, counter("spilledMessages"));
+		assertEquals(0, counter("shedMessages"));
+		assertEquals(3, pending());
+		assertEquals(1, journal().getAppended());
+
+		// spilled message is stored from the journal
+		permits.release(4);
+		waitFor(() -> stored.size() == 4 && pending() == 0);
+		assertFalse(writer.isOverloaded());
+		waitFor(() -> counter("replayedMessages") == 1);
+	}
+
+	@Test
+	public void testBlockPolicy() throws Exception {
+		writer = newWriter(ArchiveWriter.OverloadPolicy.block);
+		fillQueue();
+
+		Thread sender = new Thread(() -> archive(3));
+		sender.start();
+		waitFor(() -> writer.isOverloaded());
+		sender.join(200);
+		assertTrue(sender.isAlive());
+		assertEquals(3, pending());
+
+		// sender is released when queue drops to low watermark
+		permits.release(2);
+		sender.join(5000);
+		assertFalse(sender.isAlive());
+		assertFalse(writer.isOverloaded());
+		assertEquals(2, pending());
+		assertEquals(0, counter("shedMessages"));
+		assertTrue(counter("blockedTime") > 0);
+
+		permits.release(2);
+		waitFor(() -> stored.size() == 4);
+		assertEquals("Message 3", stored.get(3).getMessage().getChild("body").getCData());
+	}
+
+	/**
+	 * Queues messages up to high watermark, with the first of them being
+	 * stored by a worker.
+	 */
+	private void fillQueue() throws Exception {
+		archive(0);
+		waitFor(permits::hasQueuedThreads);
+		archive(1);
+		archive(2);
+		assertFalse(writer.isOverloaded());
+		assertEquals(3, pending());
+		assertEquals(2, writer.getQueueSize());
+	}
+
+	private void archive(int i) {
+		Element msg = new Element("message", new String[]{"type"}, new String[]{"chat"});
+		msg.addChild(new Element("body", "Message " + i));
+		writer.archiveMessage(BareJID.bareJIDInstanceNS("user@example.com"), JID.jidInstanceNS("buddy@example.com"),
+							  MessageArchiveRepository.Direction.incoming, new Date(), msg, null);
+	}
+
+	private int pending() {
+		try {
+			return ((AtomicInteger) field("pending").get(writer)).get();
+		} catch (ReflectiveOperationException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private long counter(String name) {
+		try {
+			return ((AtomicLong) field(name).get(writer)).get();
+		} catch (ReflectiveOperationException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	private ArchiveJournal journal() throws ReflectiveOperationException {
+		return (ArchiveJournal) field("archiveJournal").get(writer);
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean()) {
+			assertTrue("Timeout waiting for condition", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static Field field(String name) throws NoSuchFieldException {
+		Field f = ArchiveWriter.class.getDeclaredField(name);
+		f.setAccessible(true);
+		return f;
+	}
+
+	@SuppressWarnings("unchecked")
+	private ArchiveWriter newWriter(ArchiveWriter.OverloadPolicy overloadPolicy) throws Exception {
+		MessageArchiveRepository<QueryCriteria, DataSource> repo = (MessageArchiveRepository<QueryCriteria, DataSource>) Proxy
+				.newProxyInstance(ArchiveWriterTest.class.getClassLoader(),
+								  new Class[]{MessageArchiveRepository.class}, (proxy, method, args) -> {
+							if (method.getName().equals("archiveMessages")) {
+								permits.acquire();
+								stored.addAll((List<ArchiveEntry>) args[0]);
+								return null;
+							}
+							throw new UnsupportedOperationException(method.getName());
+						});
+
+		ArchiveWriter writer = new ArchiveWriter();
+		field("msg_repo").set(writer, repo);
+		field("writeBehind").set(writer, true);
+		field("threads").set(writer, 1);
+		field("batchSize").set(writer, 1);
+		field("highWatermark").set(writer, 3);
+		field("lowWatermark").set(writer, 1);
+		field("overloadPolicy").set(writer, overloadPolicy);
+		field("journalDirectory").set(writer, folder.getRoot().getAbsolutePath());
+		field("journalSegmentSize").set(writer, 1);
+		writer.initialize();
+		return writer;
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * ColdMessagesCountCacheTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ColdMessagesCountCacheTest {
+
+	@Test
+	public void testPutAndGet() {
+		ColdMessagesCountCache cache = new ColdMessagesCountCache(2);
+		assertNull(cache.get("user1@example.com"));
+
+		cache.put("user1@example.com", 0, cache.startCounting());
+		cache.put("user2@example.com", 5, cache.startCounting());
+		assertEquals(Integer.valueOf(0), cache.get("User1@Example.com"));
+		assertEquals(Integer.valueOf(5), cache.get("user2@example.com"));
+
+		// least recently used entry is evicted
+		cache.get("user1@example.com");
+		cache.put("user3@example.com", 1, cache.startCounting());
+		assertEquals(2, cache.size());
+		assertNull(cache.get("user2@example.com"));
+		assertNotNull(cache.get("user1@example.com"));
+	}
+
+	@Test
+	public void testStaleCountIsNotCached() {
+		ColdMessagesCountCache cache = new ColdMessagesCountCache(10);
+
+		long stamp = cache.startCounting();
+		// messages were moved to cold storage while they were counted
+		cache.clear();
+		cache.put("user1@example.com", 0, stamp);
+		assertNull(cache.get("user1@example.com"));
+
+		stamp = cache.startCounting();
+		cache.remove("user2@example.com");
+		cache.put("user1@example.com", 0, stamp);
+		assertNull(cache.get("user1@example.com"));
+
+		cache.put("user1@example.com", 3, cache.startCounting());
+		cache.remove("user1@example.com");
+		assertNull(cache.get("user1@example.com"));
+	}
+
+}
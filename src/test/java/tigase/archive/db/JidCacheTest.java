@@ -0,0 +1,54 @@
+/*
+ * JidCacheTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JidCacheTest {
+
+	@Test
+	public void testLookupIgnoresCase() {
+		JidCache cache = new JidCache(10);
+		assertNull(cache.get("user@example.com"));
+		cache.put("User@Example.com", 5);
+		assertEquals(Long.valueOf(5), cache.get("user@example.com"));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(50f, cache.getHitRatio(), 0.001f);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+		JidCache cache = new JidCache(2);
+		cache.put("a@example.com", 1);
+		cache.put("b@example.com", 2);
+		cache.get("a@example.com");
+		cache.put("c@example.com", 3);
+		assertEquals(2, cache.size());
+		assertEquals(Long.valueOf(1), cache.get("a@example.com"));
+		assertNull(cache.get("b@example.com"));
+		assertEquals(Long.valueOf(3), cache.get("c@example.com"));
+	}
+
+}
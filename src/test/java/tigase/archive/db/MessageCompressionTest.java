@@ -0,0 +1,75 @@
+/*
+ * MessageCompressionTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCompressionTest {
+
+	@Test
+	public void testRoundTrip() {
+		String msg = "<message xmlns=\"jabber:client\" type=\"chat\" from=\"juliet@capulet.example/balcony\" " +
+				"to=\"romeo@montague.example\" id=\"5a8d6b7c-0e5f-4c4e-9d7b-3a1b2c3d4e5f\" time=\"1466000000000\">" +
+				"<body>Wherefore art thou, Romeo? Zażółć gęślą jaźń 😀</body>" +
+				"<active xmlns=\"http://jabber.org/protocol/chatstates\"/><request xmlns=\"urn:xmpp:receipts\"/>" +
+				"<markable xmlns=\"urn:xmpp:chat-markers:0\"/></message>";
+		String encoded = MessageCompression.encode(msg);
+		assertFalse(encoded.startsWith("<"));
+		assertTrue(encoded.length() < msg.length());
+		assertEquals(msg, MessageCompression.decode(encoded));
+	}
+
+	@Test
+	public void testLargeMessage() {
+		StringBuilder sb = new StringBuilder("<message><body>");
+		for (int i = 0; i < 100000; i++) {
+			sb.append("line ").append(i % 10).append('\n');
+		}
+		String msg = sb.append("</body></message>").toString();
+		assertEquals(msg, MessageCompression.decode(MessageCompression.encode(msg)));
+	}
+
+	@Test
+	public void testUncompressedIsReadable() {
+		assertNull(MessageCompression.decode(null));
+		String msg = "<message><body>Hi</body></message>";
+		assertEquals(msg, MessageCompression.decode(msg));
+		// too short to be compressed
+		assertEquals("<message/>", MessageCompression.encode("<message/>"));
+	}
+
+	@Test
+	public void testCorruptedIsRejected() {
+		String encoded = MessageCompression.encode("<message><body>Wherefore art thou, Romeo?</body></message>");
+		for (String corrupted : new String[]{encoded.substring(0, encoded.length() - 8), encoded + "!", "$D1:AAAA"}) {
+			try {
+				MessageCompression.decode(corrupted);
+				fail("Corrupted message was decoded: " + corrupted);
+			} catch (IllegalArgumentException ex) {
+				// expected, message is passed as stored
+			}
+		}
+	}
+
+}
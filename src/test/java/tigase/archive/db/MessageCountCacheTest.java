@@ -0,0 +1,99 @@
+/*
+ * MessageCountCacheTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MessageCountCacheTest {
+
+	@Test
+	public void testCountsOfOwner() {
+		MessageCountCache cache = new MessageCountCache(10, 60000);
+		long stamp = cache.getStamp("user@example.com");
+		cache.put("User@Example.com", null, 10, stamp);
+		cache.put("user@example.com", "Buddy@Example.com", 3, stamp);
+		assertEquals(Integer.valueOf(10), cache.get("user@example.com", null));
+		assertEquals(Integer.valueOf(3), cache.get("user@example.com", "buddy@example.com"));
+		assertNull(cache.get("user@example.com", "other@example.com"));
+
+		cache.remove("user@example.com");
+		assertNull(cache.get("user@example.com", null));
+		assertNull(cache.get("user@example.com", "buddy@example.com"));
+	}
+
+	@Test
+	public void testCountFromBeforeChangeIsNotCached() {
+		MessageCountCache cache = new MessageCountCache(10, 60000);
+		long stamp = cache.getStamp("user@example.com");
+		cache.remove("user@example.com");
+		cache.put("user@example.com", null, 10, stamp);
+		assertNull(cache.get("user@example.com", null));
+	}
+
+	@Test
+	public void testCountCachedWhileOtherOwnerChanges() {
+		MessageCountCache cache = new MessageCountCache(10, 60000);
+		long stamp = cache.getStamp("user@example.com");
+		// messages of other owners are stored while messages of user are counted
+		cache.added("other@example.com", "buddy@example.com", cache.startAdding("other@example.com"));
+		cache.remove("third@example.com");
+		cache.put("user@example.com", null, 10, stamp);
+		assertEquals(Integer.valueOf(10), cache.get("user@example.com", null));
+	}
+
+	@Test
+	public void testCountIncrementedWhenMessageAdded() {
+		MessageCountCache cache = new MessageCountCache(10, 60000);
+		long stamp = cache.getStamp("user@example.com");
+		cache.put("user@example.com", null, 10, stamp);
+		cache.put("user@example.com", "buddy@example.com", 3, stamp);
+		cache.put("user@example.com", "other@example.com", 5, stamp);
+
+		cache.added("User@Example.com", "Buddy@Example.com", cache.startAdding("user@example.com"));
+		assertEquals(Integer.valueOf(11), cache.get("user@example.com", null));
+		assertEquals(Integer.valueOf(4), cache.get("user@example.com", "buddy@example.com"));
+		assertEquals(Integer.valueOf(5), cache.get("user@example.com", "other@example.com"));
+	}
+
+	@Test
+	public void testCountCachedWhileAddingIsForgotten() {
+		MessageCountCache cache = new MessageCountCache(10, 60000);
+		cache.put("user@example.com", null, 10, cache.getStamp("user@example.com"));
+		long adding = cache.startAdding("user@example.com");
+		// number counted while message was added may already include it
+		cache.put("user@example.com", "buddy@example.com", 4, cache.getStamp("user@example.com"));
+		cache.added("user@example.com", "buddy@example.com", adding);
+		assertEquals(Integer.valueOf(11), cache.get("user@example.com", null));
+		assertNull(cache.get("user@example.com", "buddy@example.com"));
+	}
+
+	@Test
+	public void testCountExpires() throws InterruptedException {
+		MessageCountCache cache = new MessageCountCache(10, 1);
+		cache.put("user@example.com", null, 10, cache.getStamp("user@example.com"));
+		Thread.sleep(10);
+		assertNull(cache.get("user@example.com", null));
+	}
+
+}
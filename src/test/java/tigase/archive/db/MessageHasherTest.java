@@ -0,0 +1,64 @@
+/*
+ * MessageHasherTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+
+import static org.junit.Assert.*;
+
+public class MessageHasherTest {
+
+	@Test
+	public void testSameAsMessageDigest() throws Exception {
+		String[] values = {"", "plain ascii", "zażółć gęślą jaźń", "你好", "emoji 😀 here",
+						   "lone \ud83d high", "lone \ude00 low", "high at end \ud83d", generate(5000)};
+		for (String value : values) {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(value.getBytes());
+			md.update(Long.toString(1466000000L).getBytes());
+			assertArrayEquals(value, md.digest(), MessageHasher.get().update(value).update(1466000000L).digest());
+		}
+	}
+
+	@Test
+	public void testNumbers() throws Exception {
+		long[] values = {0, 7, -7, Long.MAX_VALUE, Long.MIN_VALUE};
+		for (long value : values) {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(Long.toString(value).getBytes());
+			assertArrayEquals(String.valueOf(value), md.digest(), MessageHasher.get().update(value).digest());
+		}
+	}
+
+	private static String generate(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append((char) ('a' + (i % 26)));
+			if (i % 100 == 0) {
+				sb.append("é€😀");
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * RawMessageElementTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+import tigase.xml.Element;
+
+import static org.junit.Assert.*;
+
+public class RawMessageElementTest {
+
+	@Test
+	public void testFromXml() {
+		String msg = "<message xmlns=\"jabber:client\" type='groupchat' from=\"room@muc.example/nick\">" +
+				"<body>a &gt; b &amp; c</body><x xmlns=\"jabber:x:oob\"><url>https://example.com/</url></x></message>";
+		RawMessageElement el = RawMessageElement.fromXml(msg);
+		assertNotNull(el);
+		assertEquals("message", el.getName());
+		assertEquals("groupchat", el.getAttributeStaticStr("type"));
+		assertEquals("room@muc.example/nick", el.getAttributeStaticStr("from"));
+		assertEquals("<body>a &gt; b &amp; c</body><x xmlns=\"jabber:x:oob\"><url>https://example.com/</url></x>",
+					 el.getInnerXml());
+		assertEquals(msg, el.getXml());
+
+		Element parsed = el.parse();
+		assertEquals("a &gt; b &amp; c", parsed.getChild("body").getCData());
+	}
+
+	@Test
+	public void testToString() {
+		String msg = "<message type=\"chat\"><body>a &lt; b</body></message>";
+		RawMessageElement el = RawMessageElement.fromXml(msg);
+		assertNotNull(el);
+		assertNull(el.getChildren());
+		assertEquals(msg, el.toString());
+
+		// attributes changed by handlers are written out with stored content
+		el.setAttribute("id", "1");
+		assertTrue(el.toString().startsWith("<message "));
+		assertTrue(el.toString().contains(" id=\"1\""));
+		assertTrue(el.toString().endsWith("><body>a &lt; b</body></message>"));
+	}
+
+	@Test
+	public void testEmptyMessage() {
+		RawMessageElement el = RawMessageElement.fromXml("<message type=\"chat\"/>");
+		assertNotNull(el);
+		assertEquals("chat", el.getAttributeStaticStr("type"));
+		assertNull(el.getInnerXml());
+	}
+
+	@Test
+	public void testMalformed() {
+		assertNull(RawMessageElement.fromXml("message"));
+		assertNull(RawMessageElement.fromXml("<message type=\"chat\""));
+		assertNull(RawMessageElement.fromXml("<message type=chat></message>"));
+		assertNull(RawMessageElement.fromXml("<message><body>Hi</body>"));
+		assertNull(RawMessageElement.fromXml("<message/><message/>"));
+	}
+
+}
@@ -0,0 +1,113 @@
+/*
+ * RecentItemsCacheTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class RecentItemsCacheTest {
+
+	@Test
+	public void testPages() {
+		RecentItemsCache cache = newCache();
+		assertEquals("h97,h98,h99", ids(cache.getPage("user@example.com", "Buddy@Example.com", null, null, 3)));
+		assertEquals(97, cache.getPage("user@example.com", "buddy@example.com", null, null, 3).getOffset());
+		// first messages of a conversation are not cached
+		assertNull(cache.getPage("user@example.com", "buddy@example.com", null, null, 10));
+		assertNull(cache.getPage("user@example.com", "other@example.com", null, null, 3));
+
+		cache.add("user@example.com", "buddy@example.com", () -> entry(100));
+		// duplicate is ignored
+		cache.add("user@example.com", "buddy@example.com", () -> entry(100));
+		RecentItemsCache.Page page = cache.getPage("user@example.com", "buddy@example.com", null, null, 5);
+		assertEquals("h96,h97,h98,h99,h100", ids(page));
+		assertEquals(101, page.getCount());
+
+		assertEquals("h99,h100", ids(cache.getPage("user@example.com", "buddy@example.com", "h98", null, 5)));
+		assertEquals("h97,h98", ids(cache.getPage("user@example.com", "buddy@example.com", null, "h99", 2)));
+		assertNull(cache.getPage("user@example.com", "buddy@example.com", null, "h97", 2));
+	}
+
+	@Test
+	public void testOlderMessageForgetsConversation() {
+		RecentItemsCache cache = newCache();
+		cache.add("user@example.com", "buddy@example.com", () -> entry(50));
+		assertNull(cache.getPage("user@example.com", "buddy@example.com", null, null, 1));
+	}
+
+	@Test
+	public void testPageFromBeforeChangeIsNotCached() {
+		RecentItemsCache cache = new RecentItemsCache(5, 1024 * 1024, 60000);
+		long stamp = cache.getStamp("user@example.com");
+		cache.add("user@example.com", "other@example.com", () -> entry(1));
+		cache.put("user@example.com", "buddy@example.com", entries(), 100, stamp);
+		assertNull(cache.getPage("user@example.com", "buddy@example.com", null, null, 1));
+	}
+
+	@Test
+	public void testConversationExpires() throws InterruptedException {
+		RecentItemsCache cache = new RecentItemsCache(5, 1024 * 1024, 1);
+		cache.put("user@example.com", "buddy@example.com", entries(), 100, cache.getStamp("user@example.com"));
+		Thread.sleep(10);
+		assertNull(cache.getPage("user@example.com", "buddy@example.com", null, null, 1));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemory());
+	}
+
+	@Test
+	public void testMemoryLimit() {
+		RecentItemsCache cache = new RecentItemsCache(5, 1, 60000);
+		cache.put("user@example.com", "buddy@example.com", entries(), 100, cache.getStamp("user@example.com"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getMemory());
+	}
+
+	private RecentItemsCache newCache() {
+		RecentItemsCache cache = new RecentItemsCache(5, 1024 * 1024, 60000);
+		cache.put("User@Example.com", "buddy@example.com", entries(), 100, cache.getStamp("user@example.com"));
+		return cache;
+	}
+
+	private List<RecentItemsCache.Entry> entries() {
+		List<RecentItemsCache.Entry> entries = new ArrayList<>();
+		for (int i = 96; i < 100; i++) {
+			entries.add(entry(i));
+		}
+		return entries;
+	}
+
+	private RecentItemsCache.Entry entry(int i) {
+		return new RecentItemsCache.Entry("h" + i, new Date(1000L * i), MessageArchiveRepository.Direction.incoming,
+										  "<message><body>" + i + "</body></message>");
+	}
+
+	private String ids(RecentItemsCache.Page page) {
+		return page.getItems().stream().map(RecentItemsCache.Entry::getId).collect(Collectors.joining(","));
+	}
+
+}
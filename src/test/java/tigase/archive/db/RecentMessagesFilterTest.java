@@ -0,0 +1,67 @@
+/*
+ * RecentMessagesFilterTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RecentMessagesFilterTest {
+
+	@Test
+	public void testChatMessageRequiresSameTimestamp() {
+		RecentMessagesFilter filter = new RecentMessagesFilter(1024 * 1024, TimeUnit.MINUTES.toMillis(10));
+		long ts = System.currentTimeMillis();
+		assertFalse(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "b@example.com", "hash", "chat", ts)));
+		filter.add(RecentMessagesFilter.key("a@example.com", "b@example.com", "hash", "chat", ts));
+		assertTrue(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "b@example.com", "hash", "chat", ts)));
+		assertFalse(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "b@example.com", "hash", "chat", ts + 1)));
+		assertFalse(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "c@example.com", "hash", "chat", ts)));
+		assertEquals(1, filter.getDropped());
+	}
+
+	@Test
+	public void testGroupchatMessageWithinWindow() {
+		RecentMessagesFilter filter = new RecentMessagesFilter(1024 * 1024, TimeUnit.MINUTES.toMillis(10));
+		long ts = System.currentTimeMillis();
+		filter.add(RecentMessagesFilter.key("a@example.com", "room@muc.example.com", "hash", "groupchat", ts));
+		assertTrue(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "room@muc.example.com", "hash", "groupchat",
+															  ts + TimeUnit.MINUTES.toMillis(29))));
+		assertFalse(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "room@muc.example.com", "hash", "groupchat",
+															   ts + TimeUnit.MINUTES.toMillis(31))));
+	}
+
+	@Test
+	public void testOldGenerationIsDropped() {
+		// room for a single entry in each generation
+		RecentMessagesFilter filter = new RecentMessagesFilter(1024, TimeUnit.MINUTES.toMillis(10));
+		filter.add(RecentMessagesFilter.key("a@example.com", "b@example.com", "1", "chat", 1));
+		filter.add(RecentMessagesFilter.key("a@example.com", "b@example.com", "2", "chat", 2));
+		filter.add(RecentMessagesFilter.key("a@example.com", "b@example.com", "3", "chat", 3));
+		assertEquals(2, filter.size());
+		assertFalse(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "b@example.com", "1", "chat", 1)));
+		assertTrue(filter.isDuplicate(RecentMessagesFilter.key("a@example.com", "b@example.com", "2", "chat", 2)));
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * TagCacheTest.java
+ *
+ * Tigase Jabber/XMPP Server
+ * Copyright (C) 2004-2014 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TagCacheTest {
+
+	@Test
+	public void testTagsOfOwnersAreSeparate() {
+		TagCache cache = new TagCache(10);
+		assertNull(cache.get(1, "#work"));
+		cache.put(1, "#work", 5);
+		cache.put(2, "#work", 7);
+		assertEquals(Long.valueOf(5), cache.get(1, "#work"));
+		assertEquals(Long.valueOf(7), cache.get(2, "#work"));
+		assertNull(cache.get(1, "#home"));
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(50f, cache.getHitRatio(), 0.001f);
+	}
+
+	@Test
+	public void testLeastRecentlyUsedOwnerIsEvicted() {
+		TagCache cache = new TagCache(2);
+		cache.put(1, "#a", 1);
+		cache.put(2, "#b", 2);
+		cache.get(1, "#a");
+		cache.put(3, "#c", 3);
+		assertEquals(2, cache.size());
+		assertEquals(Long.valueOf(1), cache.get(1, "#a"));
+		assertNull(cache.get(2, "#b"));
+		assertEquals(Long.valueOf(3), cache.get(3, "#c"));
+	}
+
+	@Test
+	public void testTagsOfOwnerAreForgottenOverLimit() {
+		TagCache cache = new TagCache(10);
+		cache.put(2, "#other", 1000);
+		for (int i = 0; i < 256; i++) {
+			cache.put(1, "#tag" + i, i);
+		}
+		assertEquals(257, cache.size());
+
+		// owner using more tags than may be cached starts with an empty set of tags
+		cache.put(1, "#tag256", 256);
+		assertEquals(2, cache.size());
+		assertNull(cache.get(1, "#tag0"));
+		assertEquals(Long.valueOf(256), cache.get(1, "#tag256"));
+		assertEquals(Long.valueOf(1000), cache.get(2, "#other"));
+	}
+
+	@Test
+	public void testRemoveOwner() {
+		TagCache cache = new TagCache(10);
+		cache.put(1, "#a", 1);
+		cache.put(2, "#b", 2);
+		cache.remove(1);
+		assertNull(cache.get(1, "#a"));
+		assertEquals(Long.valueOf(2), cache.get(2, "#b"));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertNull(cache.get(2, "#b"));
+	}
+
+}
@@ -210,9 +210,14 @@ public class Xep0136MessageArchivingProcessorTest extends ProcessorTestCase {
 		Packet result = null;
 		xep0136Processor.process(packet, session1, null, results, null);
 
-		assertEquals(1, results.size());
+		// default preferences are confirmed locally and forwarded to the component
+		assertEquals(2, results.size());
 		result = results.poll();
 		assertEquals(StanzaType.result, result.getType());
+		result = results.poll();
+		assertEquals(StanzaType.set, result.getType());
+		assertEquals(maPlugin.getComponentJid(), result.getPacketTo());
+		assertEquals(userJid.toString(), result.getAttributeStaticStr(MessageArchivePlugin.PREFS_OWNER_JID));
 
 		assertTrue(settings.isAutoArchivingEnabled());
 		assertEquals(StoreMethod.Message, settings.getStoreMethod());
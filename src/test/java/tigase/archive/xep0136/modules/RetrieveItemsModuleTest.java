@@ -0,0 +1,106 @@
+/*
+ * RetrieveItemsModuleTest.java
+ *
+ * Tigase Message Archiving Component
+ * Copyright (C) 2004-2016 "Tigase, Inc." <office@tigase.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ *
+ */
+package tigase.archive.xep0136.modules;
+
+import org.junit.Test;
+import tigase.archive.QueryCriteria;
+import tigase.archive.db.MessageArchiveRepository;
+import tigase.archive.db.RawMessageElement;
+import tigase.archive.db.RawXmlElement;
+import tigase.xml.Element;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RetrieveItemsModuleTest {
+
+	private static final String MSG = "<message xmlns=\"jabber:client\" type=\"chat\" from=\"user@example.com/res\">" +
+			"<body>a &lt; b &amp; c</body><x xmlns=\"jabber:x:oob\"><url>https://example.com/</url></x></message>";
+
+	@Test
+	public void testRawMessage() {
+		RawMessageElement msg = RawMessageElement.fromXml(MSG);
+		assertNotNull(msg);
+		Element itemEl = findItem(msg);
+
+		assertTrue(itemEl instanceof RawXmlElement);
+		assertNull(itemEl.getChildren());
+		assertEquals("<from secs=\"0\">" + msg.getInnerXml() + "</from>", itemEl.toString());
+
+		// content is written out verbatim also as a child of a response
+		Element chat = new Element("chat");
+		chat.addChild(itemEl);
+		assertEquals("<chat>" + itemEl.toString() + "</chat>", chat.toString());
+
+		List<Element> children = ((RawXmlElement) itemEl).parseChildren();
+		assertEquals(2, children.size());
+		assertEquals("a &lt; b &amp; c", children.get(0).getCData());
+		assertEquals("https://example.com/", children.get(1).getChildCData(new String[]{"x", "url"}));
+	}
+
+	@Test
+	public void testParsedMessage() {
+		Element msg = RawMessageElement.fromXml(MSG).parse();
+		Element itemEl = findItem(msg);
+
+		assertFalse(itemEl instanceof RawXmlElement);
+		assertEquals(2, itemEl.getChildren().size());
+		assertEquals("a &lt; b &amp; c", itemEl.getChildCData(new String[]{"from", "body"}));
+		assertTrue(itemEl.toString().contains("<body>a &lt; b &amp; c</body>"));
+	}
+
+	private Element findItem(Element msg) {
+		QueryCriteria query = new QueryCriteria();
+		RetrieveItemsModule.Xep0136ItemHandler<QueryCriteria, MessageArchiveRepository.Item> handler = new RetrieveItemsModule.Xep0136ItemHandler<>();
+		handler.itemFound(query, new MessageArchiveRepository.Item() {
+			@Override
+			public MessageArchiveRepository.Direction getDirection() {
+				return MessageArchiveRepository.Direction.incoming;
+			}
+
+			@Override
+			public String getWith() {
+				return null;
+			}
+
+			@Override
+			public String getId() {
+				return "1";
+			}
+
+			@Override
+			public Element getMessage() {
+				return msg;
+			}
+
+			@Override
+			public Date getTimestamp() {
+				return new Date();
+			}
+		});
+		assertEquals(1, query.getItems().size());
+		return query.getItems().get(0);
+	}
+
+}